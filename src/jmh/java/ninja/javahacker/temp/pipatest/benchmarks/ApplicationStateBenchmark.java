@@ -0,0 +1,145 @@
+package ninja.javahacker.temp.pipatest.benchmarks;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the operations of the {@link ApplicationState} engines on states with several numbers of users.
+ *
+ * <p>The users have the ids from zero up to the number of users and pseudo-random points below 10000, so many users share their
+ * points. The state is built at once with the {@link ApplicationState#loadUsers(long[], long[], int) loadUsers} method. The users
+ * used by each operation are taken in a round-robin fashion from a fixed pseudo-random sequence of existing users. Each operation
+ * works on the same state, so the states created by {@code addScore} are discarded right away.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class ApplicationStateBenchmark {
+
+    /**
+     * How many users are in the pseudo-random sequence. Must be a power of two.
+     */
+    private static final int PROBES = 1 << 16;
+
+    /**
+     * Which {@link ApplicationState} engine is used.
+     */
+    @Param({"NESTED_TREES", "COMPOSITE_KEY"})
+    public String engine;
+
+    /**
+     * How many users are in the state.
+     */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /**
+     * The state.
+     */
+    private ApplicationState state;
+
+    /**
+     * The scores added by the {@link #addScore()} benchmark, each one to an existing user.
+     */
+    private UserData[] scores;
+
+    /**
+     * The index of the next element to be used from the {@link #scores} array.
+     */
+    private int next;
+
+    /**
+     * Benchmark sole constructor.
+     */
+    public ApplicationStateBenchmark() {
+    }
+
+    /**
+     * Builds the state and the sequence of scores.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        ApplicationState empty;
+        switch (engine) {
+            case "NESTED_TREES":
+                empty = ApplicationState.getNestedTreesImplementation();
+                break;
+            case "COMPOSITE_KEY":
+                empty = ApplicationState.getCompositeKeyImplementation();
+                break;
+            default:
+                throw new IllegalArgumentException(engine);
+        }
+        Random random = new Random(42);
+        long[] userIds = new long[size];
+        long[] points = new long[size];
+        for (int i = 0; i < size; i++) {
+            userIds[i] = i;
+            points[i] = random.nextInt(10000);
+        }
+        state = empty.loadUsers(userIds, points, size);
+        scores = new UserData[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            scores[i] = new UserData(random.nextInt(size), 1 + random.nextInt(100));
+        }
+    }
+
+    /**
+     * Gives the next score to be used from the {@link #scores} array.
+     * @return The next score to be used.
+     */
+    private UserData nextScore() {
+        int i = next;
+        next = (i + 1) & (PROBES - 1);
+        return scores[i];
+    }
+
+    /**
+     * Measures adding points to an existing user.
+     * @return The new state.
+     */
+    @Benchmark
+    public ApplicationState addScore() {
+        return state.addScore(nextScore());
+    }
+
+    /**
+     * Measures finding out the position of an existing user.
+     * @return The user and his/her position.
+     */
+    @Benchmark
+    public Optional<PositionedUserData> findUser() {
+        return state.findUser(nextScore().getUserId());
+    }
+
+    /**
+     * Measures listing the top of the high scores list, as done by the server.
+     * @return The top of the high scores list.
+     */
+    @Benchmark
+    public HighscoresTableData getHighScores() {
+        return state.getHighScores(20000);
+    }
+}
@@ -0,0 +1,147 @@
+package ninja.javahacker.temp.pipatest.benchmarks;
+
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the operations of the {@link ImmutableWeightedAvlTree} class on trees of several sizes.
+ *
+ * <p>The tree has the even keys from zero up to twice its size, each one with weight one. The keys used by each operation are
+ * taken in a round-robin fashion from a fixed pseudo-random sequence of existing keys, which is already boxed, so that neither the
+ * random number generator nor boxing the keys is measured. Each operation works on the same tree, so the trees created by
+ * {@code put} and {@code remove} are discarded right away.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AvlTreeBenchmark {
+
+    /**
+     * How many keys are in the pseudo-random sequence. Must be a power of two.
+     */
+    private static final int PROBES = 1 << 16;
+
+    /**
+     * How many nodes are in the tree.
+     */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /**
+     * The tree.
+     */
+    private ImmutableWeightedAvlTree<Long, Long> tree;
+
+    /**
+     * The pseudo-random sequence of existing keys.
+     */
+    private Long[] existing;
+
+    /**
+     * The keys right after each one in {@link #existing}, which aren't in the tree.
+     */
+    private Long[] missing;
+
+    /**
+     * The index of the next key to be used from the sequences.
+     */
+    private int next;
+
+    /**
+     * Benchmark sole constructor.
+     */
+    public AvlTreeBenchmark() {
+    }
+
+    /**
+     * Builds the tree and the sequences of keys.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = ImmutableWeightedAvlTree.fromSorted(size, i -> i * 2L, i -> 1, i -> (long) i);
+        existing = new Long[PROBES];
+        missing = new Long[PROBES];
+        Random random = new Random(42);
+        for (int i = 0; i < PROBES; i++) {
+            long key = random.nextInt(size) * 2L;
+            existing[i] = key;
+            missing[i] = key + 1;
+        }
+    }
+
+    /**
+     * Gives the index of the next key to be used from the sequences.
+     * @return The index of the next key to be used from the sequences.
+     */
+    private int nextIndex() {
+        int i = next;
+        next = (i + 1) & (PROBES - 1);
+        return i;
+    }
+
+    /**
+     * Measures adding a new key.
+     * @return The tree with the new key.
+     */
+    @Benchmark
+    public ImmutableWeightedAvlTree<Long, Long> put() {
+        return tree.put(missing[nextIndex()], 1, 0L);
+    }
+
+    /**
+     * Measures finding an existing key.
+     * @return The value of the key.
+     */
+    @Benchmark
+    public Optional<Long> get() {
+        return tree.get(existing[nextIndex()]);
+    }
+
+    /**
+     * Measures removing an existing key.
+     * @return The tree without the key.
+     */
+    @Benchmark
+    public ImmutableWeightedAvlTree<Long, Long> remove() {
+        return tree.remove(existing[nextIndex()]);
+    }
+
+    /**
+     * Measures computing the weight of everything after an existing key, which is how positions are found out.
+     * @return The weight of everything after the key.
+     */
+    @Benchmark
+    public OptionalInt getRightWeight() {
+        return tree.getRightWeight(existing[nextIndex()]);
+    }
+
+    /**
+     * Measures traversing the whole tree in reverse order.
+     * @param blackhole Consumes each key, so that the traversal isn't optimized away.
+     */
+    @Benchmark
+    public void forEachReverse(Blackhole blackhole) {
+        tree.forEachReverse((key, value, leftWeight, nodeWeight, rightWeight) -> blackhole.consume(key));
+    }
+}
@@ -0,0 +1,138 @@
+package ninja.javahacker.temp.pipatest.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.tests.HighscoresTableImplementation;
+import ninja.javahacker.temp.pipatest.tests.workload.Operation;
+import ninja.javahacker.temp.pipatest.tests.workload.ScoreDistribution;
+import ninja.javahacker.temp.pipatest.tests.workload.UserSelector;
+import ninja.javahacker.temp.pipatest.tests.workload.Workload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the {@link HighscoresTable} implementations driven by several threads with a {@link Workload}.
+ *
+ * <p>Every user gets a score before the measurements start, so that the table has its full size from the beginning. Then, each
+ * thread performs the operations of its own {@link Workload.Driver}, which are reproducible across runs. The users are either
+ * chosen uniformly or following a Zipfian distribution, where a few users are very hot.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+public class HighscoresTableBenchmark {
+
+    /**
+     * Which {@link HighscoresTable} implementation is used, as named in {@link HighscoresTableImplementation}.
+     */
+    @Param({"CAS", "SYNC", "SINGLE_WRITER", "FLAT_COMBINING", "SHARDED"})
+    public String implementation;
+
+    /**
+     * How many users there are.
+     */
+    @Param({"100000", "1000000"})
+    public int users;
+
+    /**
+     * The exponent of the Zipfian distribution of the users, or zero for choosing them uniformly.
+     */
+    @Param({"0", "0.99"})
+    public double skew;
+
+    /**
+     * The table.
+     */
+    private HighscoresTable table;
+
+    /**
+     * The workload.
+     */
+    private Workload workload;
+
+    /**
+     * The index of the next driver to be created.
+     */
+    private AtomicInteger nextDriver;
+
+    /**
+     * Benchmark sole constructor.
+     */
+    public HighscoresTableBenchmark() {
+    }
+
+    /**
+     * Creates the table, adds every user to it and creates the workload. For each 20 added scores, there are 4 users looked up and
+     * one listing of the top 100 users.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        table = HighscoresTableImplementation.valueOf(implementation).createTable();
+        List<UserData> all = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            all.add(new UserData(i, i % 1000));
+        }
+        table.addScores(all);
+        UserSelector selector = skew == 0 ? UserSelector.uniform(users) : UserSelector.zipfian(users, skew);
+        workload = new Workload(42L, selector, ScoreDistribution.geometric(5.0), 20, 4, 1, 100);
+        nextDriver = new AtomicInteger();
+    }
+
+    /**
+     * The driver of each thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadDriver {
+
+        /**
+         * The driver.
+         */
+        private Workload.Driver driver;
+
+        /**
+         * State sole constructor.
+         */
+        public ThreadDriver() {
+        }
+
+        /**
+         * Creates the driver of the thread.
+         * @param benchmark The benchmark, which holds the workload.
+         */
+        @Setup(Level.Trial)
+        public void setUp(HighscoresTableBenchmark benchmark) {
+            driver = benchmark.workload.newDriver(benchmark.nextDriver.getAndIncrement());
+        }
+    }
+
+    /**
+     * Measures the mix of operations of the workload.
+     * @param thread The driver of the calling thread.
+     * @return The performed operation.
+     */
+    @Benchmark
+    public Operation mixed(ThreadDriver thread) {
+        return thread.driver.runOn(table);
+    }
+}
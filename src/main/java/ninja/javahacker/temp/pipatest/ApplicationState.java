@@ -2,148 +2,129 @@ package ninja.javahacker.temp.pipatest;
 
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
 import edu.umd.cs.findbugs.annotations.NonNull;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
 import net.jcip.annotations.Immutable;
-import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
 import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserConsumer;
 import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserConsumer;
 import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
 
 /**
- * Represents a state of the application. That state is maintained in a set of immutable weighted AVL trees. The state itself is
- * immutable and the operation that adds a score to a user actually creates a new state.
+ * Represents a state of the application. The state itself is immutable and the operation that adds a score to a user actually creates
+ * a new state.
+ *
+ * <p>There are different implementations (or engines) of this interface, each one organizing the users and their scores in a different
+ * set of immutable weighted AVL trees. They all behave the same way, so they are interchangeable, but have different performance
+ * characteristics.</p>
+ *
  * @author Victor Williams Stafusa da Silva
  */
 @Immutable
-@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
-public final class ApplicationState {
+public interface ApplicationState {
 
     /**
-     * Map the users from the number os points that each one achieved. This is an {@code ImmutableWeightedAvlTree} because we need
-     * an immutable class with {@code O(log N)} complexity for search and changes (which actually creates new instances). Since we
-     * might have several users with the same number of points, we use a second-level nested {@code ImmutableWeightedAvlTree} for
-     * keeping their users' ids.
-     *
-     * <p>In the internal {@code ImmutableWeightedAvlTree} we have interest in the users' ids with are kept as the keys of the tree.
-     * We have no interest in the values themselves kept in the tree, so we use a dummy class for them.</p>
-     *
-     * <p>Each node in the external {@code ImmutableWeightedAvlTree} has a weight that is the total weight of
-     * the internal {@code ImmutableWeightedAvlTree}. Each node in the internal {@code ImmutableWeightedAvlTree} has a weight of 1.</p>
+     * Creates a new instance of {@code ApplicationState} where the given user have collected a few more points.
+     * @param data The user data containing the user id and the quantity of points that s/he scored.
+     * @return A new state for the application.
+     * @throws ArithmeticException If the points of the user overflow.
      */
     @NonNull
-    private final ImmutableWeightedAvlTree<Long, ImmutableWeightedAvlTree<Long, Dummy>> pointsToUsers;
+    @CheckReturnValue
+    public ApplicationState addScore(@NonNull UserData data);
 
     /**
-     * Map the users from their ids to their number of points. This is an {@code ImmutableWeightedAvlTree} because we need
-     * an immutable class with {@code O(log N)} complexity for search and changes (which actually creates new instances).
+     * Creates a new instance of {@code ApplicationState} where all the given users have collected a few more points. The points of
+     * repeated users are summed up first, so each user is changed only once, and the users are changed in the order of their ids, so
+     * consecutive changes walk through neighbouring paths in the trees. Only the final state is given, so, for whoever holds the
+     * state, the whole batch is applied in a single transition.
+     *
+     * <p>This default implementation adds the summed points of each user with the {@link #addScore(UserData) addScore} method, one
+     * by one. The engines backed by trees override it to merge the whole batch into each tree in a single sorted pass instead.</p>
+     *
+     * @param data The users' data, each one containing the user id and the quantity of points that s/he scored.
+     * @return A new state for the application.
+     * @throws IllegalArgumentException If the {@code data} is {@code null} or contains {@code null}.
+     * @throws ArithmeticException If the sum of the points of some user overflows.
      */
     @NonNull
-    private final ImmutableWeightedAvlTree<Long, Long> usersToPoints;
+    @CheckReturnValue
+    public default ApplicationState addScores(@NonNull Collection<UserData> data) {
+        ScoreDeltas deltas = ScoreDeltas.of(data);
+        ApplicationState s = this;
+        for (int i = 0; i < deltas.getCount(); i++) {
+            s = s.addScore(new UserData(deltas.getUserId(i), deltas.getPoints(i)));
+        }
+        return s;
+    }
 
     /**
-     * The dummy class for the internal nodes of the values of the internal trees of the
-     * {@link ApplicationState#pointsToUsers pointsToUsers} field.
-     * @author Victor Williams Stafusa da Silva
+     * Creates a new instance of {@code ApplicationState} with the given users, starting from this state, which must be empty. This is
+     * meant for loading a large number of users at once, like when a saved state is restored, so the engines might build their trees
+     * straight from the given users, instead of adding them one by one. The version of the created state is the number of users, just
+     * as if they were added one by one.
+     * @param userIds The ids of the users, in strictly ascending order. Only the first {@code count} elements are used.
+     * @param points The points of each user, in the same order as their ids. Only the first {@code count} elements are used.
+     * @param count How many users there are.
+     * @return A new state for the application, with the given users.
+     * @throws IllegalArgumentException If this state isn't empty, if any array is {@code null} or shorter than {@code count}, if
+     *     {@code count} is negative, if the ids aren't strictly ascending or if any id or points is negative.
      */
-    private static enum Dummy {
-        /**
-         * Dummy instance.
-         */
-        DUMMY
+    @NonNull
+    @CheckReturnValue
+    public default ApplicationState loadUsers(@NonNull long[] userIds, @NonNull long[] points, int count) {
+        if (getUserCount() != 0 || userIds == null || points == null || count < 0) throw new IllegalArgumentException();
+        if (userIds.length < count || points.length < count) throw new IllegalArgumentException();
+        ApplicationState s = this;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && userIds[i - 1] >= userIds[i]) throw new IllegalArgumentException();
+            s = s.addScore(new UserData(userIds[i], points[i]));
+        }
+        return s;
     }
 
     /**
-     * Constructor for the initial state of the application, which is empty and features no users.
+     * Feeds the given action with all the users and their points, in the ascending order of their ids. Nothing is allocated for each
+     * user, so this can be used to save a state of any size. The users are given in the same order that the
+     * {@link #loadUsers(long[], long[], int) loadUsers} method expects them.
+     * @param action The action that receives each user.
+     * @throws IllegalArgumentException If {@code action} is {@code null}.
      */
-    public ApplicationState() {
-        this.pointsToUsers = new ImmutableWeightedAvlTree<>();
-        this.usersToPoints = new ImmutableWeightedAvlTree<>();
-    }
+    public void forEachUser(@NonNull UserConsumer action);
 
     /**
-     * Constructor for the non-initial states of the application, which features a lot of users with different scores.
-     * @param pointsToUsers The value for the {@link ApplicationState#pointsToUsers pointsToUsers} field.
-     * @param usersToPoints The value for the {@link ApplicationState#usersToPoints usersToPoints} field.
+     * Feeds the given action with the users that were added or whose points changed since an older state, with their current points,
+     * in the ascending order of their ids. Users are never removed, so applying what is given here to the older state with the
+     * {@link #loadUsers(long[], long[], int) loadUsers} method gives this state back.
+     *
+     * <p>Implementations may also give users that didn't change, so this is only suitable where doing so is harmless. This
+     * implementation gives all the users. The implementations that are able to compare their trees with the ones of an older state of
+     * the same implementation give just the changes, taking time proportional to their number instead of to the number of users.</p>
+     *
+     * @param older An older state, from which this one was created by adding scores.
+     * @param action The action that receives each added or changed user.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
      */
-    private ApplicationState(
-            ImmutableWeightedAvlTree<Long, ImmutableWeightedAvlTree<Long, Dummy>> pointsToUsers,
-            ImmutableWeightedAvlTree<Long, Long> usersToPoints)
-    {
-        this.pointsToUsers = pointsToUsers;
-        this.usersToPoints = usersToPoints;
+    public default void forEachUserChangedSince(@NonNull ApplicationState older, @NonNull UserConsumer action) {
+        if (older == null || action == null) throw new IllegalArgumentException();
+        forEachUser(action);
     }
 
     /**
-     * Creates a new instance of {@code ApplicationState} where the given user have collected a few more points.
-     * @param data The user data containing the user id and the quantity of points that s/he scored.
-     * @return A new state for the application.
+     * Gives the version of this state. The initial empty state has version zero and each state created by the
+     * {@link #addScore(UserData) addScore} method which is different from the state that created it has the next version. So, two
+     * states derived from the same initial state with the same version have the same content.
+     * @return The version of this state.
      */
-    @NonNull
     @CheckReturnValue
-    public ApplicationState addScore(@NonNull UserData data) {
-
-        // Starts unwrapping the data.
-        long id = data.getUserId();
-        long earnedPoints = data.getPoints();
-
-        // Use this variable as sketch for new pointsToUsers.
-        ImmutableWeightedAvlTree<Long, ImmutableWeightedAvlTree<Long, Dummy>> newPointsToUsers = pointsToUsers;
-
-        // Find out how many points the given user has and also if s/he even exist in the table so far.
-        // Complexity of this step is O(log n).
-        Optional<Long> optCurrentPoints = usersToPoints.get(id);
-        long currentPoints = optCurrentPoints.orElse(0L);
-
-        // If the user already existed, we need to delete it from the newPointsToUsers tree first before re-adding it.
-        // We don't need to caare bout deleting it from the usersToPoints because the number of points will be replaced anyway.
-        if (optCurrentPoints.isPresent()) {
-
-            // If the user already existed and got zero new points, there is no change after all.
-            if (earnedPoints == 0) return this;
-
-            // Remove it from the internal trees of the sketch of the pointsToUsers.
-            // Complexity of this step is two O(log n) operations.
-            ImmutableWeightedAvlTree<Long, Dummy> usersWithThatManyPointsOld = newPointsToUsers.get(currentPoints).get();
-            usersWithThatManyPointsOld = usersWithThatManyPointsOld.remove(id);
-
-            // If the internal tree degenerated to an empty tree, remove it from the external tree.
-            // Otherwise, re-add a new internal tree.
-            // Either way, it is an O(log n).
-            if (usersWithThatManyPointsOld.isEmpty()) {
-                newPointsToUsers = newPointsToUsers.remove(currentPoints);
-            } else {
-                newPointsToUsers = newPointsToUsers.put(
-                        currentPoints,
-                        usersWithThatManyPointsOld.getTotalWeight(),
-                        usersWithThatManyPointsOld);
-            }
-        }
-
-        // Find out the internal node of the sketch of the pointsToUsers where the user should be added or create a new tree for that.
-        // This have a complexity of O(log n).
-        ImmutableWeightedAvlTree<Long, Dummy> usersWithThatManyPointsNew = newPointsToUsers
-                .get(currentPoints + earnedPoints)
-                .orElseGet(ImmutableWeightedAvlTree::new);
-
-        // Then, add the user in the internal tree. Complexity is O(log n).
-        usersWithThatManyPointsNew = usersWithThatManyPointsNew.put(id, 1, Dummy.DUMMY);
-
-        // Add the internal tree to the external one. This have a complexity of O(log n).
-        newPointsToUsers = newPointsToUsers.put(
-                currentPoints + earnedPoints,
-                usersWithThatManyPointsNew.getTotalWeight(),
-                usersWithThatManyPointsNew);
-
-        // Finally, update the usersToPoints. This have a complexity of O(log n).
-        ImmutableWeightedAvlTree<Long, Long> newUsersToPoints = usersToPoints.put(id, 0, currentPoints + earnedPoints);
-
-        // Produce a new state.
-        // The total complexity is 8 operations of O(log n) size plus some O(1) operations.
-        return new ApplicationState(newPointsToUsers, newUsersToPoints);
-    }
+    public long getVersion();
 
     /**
      * Find the score and the position of a user given by his/her id.
@@ -152,22 +133,17 @@ public final class ApplicationState {
      */
     @NonNull
     @CheckReturnValue
-    public Optional<PositionedUserData> findUser(long userId) {
-        return usersToPoints.get(userId).map((points) -> {
-            int position = 1 + pointsToUsers.getRightWeight(points).orElseThrow(AssertionError::new);
-            return new PositionedUserData(userId, points, position);
-        });
-    }
+    public Optional<PositionedUserData> findUser(long userId);
 
     /**
-     * Used to stop collecting new users data.
-     * @author Victor Williams Stafusa da Silva
+     * Find the score of a user given by his/her id, without finding out his/her position, which is cheaper than the
+     * {@link #findUser(long) findUser} method.
+     * @param userId The id of the user we want to find out the score.
+     * @return An {@link OptionalLong} containing the points of the user or an empty one if the user had never been seen before.
      */
-    private static class StopIt extends RuntimeException {
-
-        /** Important for serialization. */
-        private static final long serialVersionUID = 1L;
-    }
+    @NonNull
+    @CheckReturnValue
+    public OptionalLong findPoints(long userId);
 
     /**
      * Creates an object containing a list of the topmost users and their scores and positions. Tied users are shown with the same
@@ -177,35 +153,141 @@ public final class ApplicationState {
      */
     @NonNull
     @CheckReturnValue
-    public HighscoresTableData getHighScores(int maxUsers) {
+    public default HighscoresTableData getHighScores(int maxUsers) {
+        return getHighScores(0, Math.max(0, maxUsers));
+    }
 
-        // We will collect the users' data here. Constructs the list with the proper size.
-        List<PositionedUserData> output = new ArrayList<>(Math.max(maxUsers, usersToPoints.getTotalWeight()));
+    /**
+     * Creates an object containing a page of the list of users and their scores and positions. The list is ordered in the same way as
+     * in the {@link #getHighScores(int)} method, but skips the given number of users at its beginning. Skipped users are not walked
+     * through, so this takes {@code O(log n + limit)} time regardless of the offset.
+     * @param offset How many users should be skipped at the beginning of the list.
+     * @param limit The maximum number of users that we want to get listed.
+     * @return An object containing the users in the page and their scores and positions.
+     * @throws IllegalArgumentException If either {@code offset} or {@code limit} are negative.
+     */
+    @NonNull
+    @CheckReturnValue
+    public default HighscoresTableData getHighScores(int offset, int limit) {
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException();
+        List<PositionedUserData> output = new ArrayList<>(Math.max(0, Math.min(limit, getUserCount() - offset)));
+        Object event = FlightRecorderEvents.beginHighScores();
+        forEachHighScore(offset, limit, (userId, points, position) -> output.add(new PositionedUserData(userId, points, position)));
+        FlightRecorderEvents.endHighScores(event, this, offset, limit);
+        return new HighscoresTableData(output);
+    }
 
-        // Traverse the pointsToUsers tree and add the users' data to the output until it is full.
-        try {
+    /**
+     * Feeds the given action with a page of the list of users and their scores and positions, in the same order as the
+     * {@link #getHighScores(int, int)} method would list them. Nothing is allocated for each user, so this can be used to stream a
+     * list of any size.
+     * @param offset How many users should be skipped at the beginning of the list.
+     * @param limit The maximum number of users that we want to get listed.
+     * @param action The action that receives each listed user.
+     * @throws IllegalArgumentException If either {@code offset} or {@code limit} are negative.
+     */
+    public void forEachHighScore(int offset, int limit, @NonNull PositionedUserConsumer action);
 
-            // Iterate the users by points in reverse order. I.E. from the users with most points to the users with less points.
-            // The weight of each node is the number of users tied in the node. The weight to the right, how many users with more
-            // points and the weight to the left, how many with less points.
-            pointsToUsers.forEachReverse((points, tiedUsers, howManyWithLessPoints, howManyTied, howManyWithMorePoints) -> {
+    /**
+     * Gives how many users are in this state.
+     * @return How many users are in this state.
+     */
+    @CheckReturnValue
+    public int getUserCount();
 
-                // Each of the internal nodes of the pointsToUsers are a ImmutableWeightedAvlTree ordered by the userId. Iterate
-                // it in order to get the users' id.
-                tiedUsers.forEach((userId, dummy, shouldBeZeroA, shouldBeZeroB, shouldBeZeroC) -> {
+    /**
+     * Gives how many distinct points the users in this state have, if this implementation keeps track of that, in which case this takes
+     * {@code O(1)} time. This is meant for metrics that are read often, so implementations that would need to walk through the users
+     * for that don't give it at all.
+     * @return How many distinct points the users in this state have, or an empty {@link OptionalInt} if this implementation doesn't
+     *     keep track of that. By default, it is empty.
+     */
+    @NonNull
+    @CheckReturnValue
+    public default OptionalInt getDistinctScoreCount() {
+        return OptionalInt.empty();
+    }
 
-                    // First, check if we are already full.
-                    if (output.size() >= maxUsers) throw new StopIt();
+    /**
+     * Gives how many users are listed before a user with the given points and id, i.e., how many users have more points plus how many
+     * tied users have smaller ids. There is no need for such user to exist. This takes {@code O(log n)} time.
+     * @param points The points of the user.
+     * @param userId The id of the user.
+     * @return How many users are listed before a user with the given points and id.
+     */
+    @CheckReturnValue
+    public int countUsersListedBefore(long points, long userId);
 
-                    // We aren't full yet, so add the user's data to the list.
-                    output.add(new PositionedUserData(userId, points, howManyWithMorePoints + 1));
-                });
-            });
-        } catch (StopIt e) {
-            // Just swallow the exception.
-        }
+    /**
+     * Gives how many users have more points than the given ones. This takes {@code O(log n)} time.
+     * @param points The points to be compared.
+     * @return How many users have more points than the given ones.
+     */
+    @CheckReturnValue
+    public default int countUsersWithMorePoints(long points) {
+        return countUsersListedBefore(points, Long.MIN_VALUE);
+    }
 
-        // Produce the result.
-        return new HighscoresTableData(output);
+    /**
+     * Creates an object containing a window of the list of users around the user given by his/her id. The list is ordered in the same
+     * way as in the {@link #getHighScores(int)} method and features the given user, up to {@code above} users listed immediately
+     * before him/her and up to {@code below} users listed immediately after him/her. This takes {@code O(log n + above + below)} time.
+     * @param userId The id of the user that should be in the middle of the window.
+     * @param above The maximum number of users listed before the given one that should be in the window.
+     * @param below The maximum number of users listed after the given one that should be in the window.
+     * @return An {@link Optional} containing an object with the users in the window and their scores and positions or an empty one
+     *     if the user had never been seen before.
+     * @throws IllegalArgumentException If either {@code above} or {@code below} are negative.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below);
+
+    /**
+     * Creates the initial empty state of the application using the default implementation.
+     * @return The initial empty state of the application.
+     */
+    @NonNull
+    public static ApplicationState getDefaultImplementation() {
+        return getNestedTreesImplementation();
+    }
+
+    /**
+     * Creates the initial empty state of the application using an implementation that keeps the users ordered by points in a tree
+     * where each node have a nested tree with the tied users.
+     * @return The initial empty state of the application.
+     * @see NestedTreesApplicationState
+     */
+    @NonNull
+    public static ApplicationState getNestedTreesImplementation() {
+        return new NestedTreesApplicationState();
+    }
+
+    /**
+     * Creates the initial empty state of the application using an implementation that keeps the users ordered by points in a single
+     * tree with a composite key formed by both the points and the user id.
+     * @return The initial empty state of the application.
+     * @see CompositeKeyApplicationState
+     */
+    @NonNull
+    public static ApplicationState getCompositeKeyImplementation() {
+        return new CompositeKeyApplicationState();
+    }
+
+    /**
+     * Creates the initial empty state of the application using an implementation that partitions the users by their ids across the
+     * given number of independent states.
+     * @param empty An empty state, which determines which implementation is used in each shard.
+     * @param shardCount The number of shards.
+     * @return The initial empty state of the application.
+     * @throws IllegalArgumentException If {@code empty} is {@code null} or not empty or if {@code shardCount} isn't positive.
+     * @see ShardedApplicationState
+     */
+    @NonNull
+    public static ApplicationState getShardedImplementation(@NonNull ApplicationState empty, int shardCount) {
+        if (empty == null || empty.getUserCount() != 0 || shardCount <= 0) throw new IllegalArgumentException();
+        ApplicationState[] shards = new ApplicationState[shardCount];
+        Arrays.fill(shards, empty);
+        return new ShardedApplicationState(shards);
     }
 }
@@ -0,0 +1,515 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalLong;
+import net.jcip.annotations.Immutable;
+import ninja.javahacker.temp.pipatest.avl.ImmutableLongWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserConsumer;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserConsumer;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+
+/**
+ * Implementation of {@link ApplicationState} where the users are ordered in a single immutable weighted AVL tree whose keys are
+ * composed by both the points and the user id. The state itself is immutable and the operation that adds a score to a user actually
+ * creates a new state.
+ *
+ * <p>Compared to the {@link NestedTreesApplicationState}, this avoids having to search a tree of tied users inside a tree of points and
+ * then re-adding the changed nested tree into the outer one. Adding a score takes only 4 {@code O(log n)} operations instead of 6.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class CompositeKeyApplicationState implements ApplicationState {
+
+    /**
+     * Keeps all the users ordered by their points in descending order and then by their ids in ascending order, which is exactly the
+     * order that they are presented in the highscores table. This is an {@code ImmutableWeightedAvlTree} because we need an immutable
+     * class with {@code O(log N)} complexity for search and changes (which actually creates new instances).
+     *
+     * <p>Each node has a weight of 1, so the weight of all the nodes to the left of a given node is the number of users that are listed
+     * before it in the highscores table. We have no interest in the values themselves kept in the tree, so we use a dummy class for
+     * them.</p>
+     */
+    @NonNull
+    private final ImmutableWeightedAvlTree<ScoreKey, Dummy> ranking;
+
+    /**
+     * Map the users from their ids to their number of points. This is an {@code ImmutableLongWeightedAvlTree} because we need
+     * an immutable class with {@code O(log N)} complexity for search and changes (which actually creates new instances) and we
+     * don't want to box neither the users' ids nor their points.
+     */
+    @NonNull
+    private final ImmutableLongWeightedAvlTree usersToPoints;
+
+    /**
+     * The version of this state. The initial state has version zero and each state derived from another one has the next version.
+     */
+    private final long version;
+
+    /**
+     * The dummy class for the values of the {@link CompositeKeyApplicationState#ranking ranking} field.
+     * @author Victor Williams Stafusa da Silva
+     */
+    private static enum Dummy {
+        /**
+         * Dummy instance.
+         */
+        DUMMY
+    }
+
+    /**
+     * The key of the {@link CompositeKeyApplicationState#ranking ranking} tree. Users with more points come first and tied users are
+     * ordered by their ids.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @Immutable
+    private static final class ScoreKey implements Comparable<ScoreKey> {
+
+        /**
+         * The points of the user.
+         */
+        private final long points;
+
+        /**
+         * The id of the user.
+         */
+        private final long userId;
+
+        /**
+         * Creates an instance from its values.
+         * @param points The points of the user.
+         * @param userId The id of the user.
+         */
+        public ScoreKey(long points, long userId) {
+            this.points = points;
+            this.userId = userId;
+        }
+
+        /**
+         * Creates a key that comes before the keys of all the users with the given points, but after the keys of all the users with
+         * more points. Since users' ids are never negative, this key never belongs to an actual user.
+         * @param points The points of the users.
+         * @return A key that comes before the keys of all the users with the given points.
+         */
+        @NonNull
+        public static ScoreKey first(long points) {
+            return new ScoreKey(points, Long.MIN_VALUE);
+        }
+
+        /**
+         * Compares this key to another one. Keys with more points come first, and keys with the same points are ordered by their
+         * users' ids.
+         * @param other The other key.
+         * @return A negative number if this key comes before the other one, a positive if it comes after it or zero if they are equal.
+         */
+        @Override
+        public int compareTo(@NonNull ScoreKey other) {
+            int cmp = Long.compare(other.points, this.points);
+            return cmp != 0 ? cmp : Long.compare(this.userId, other.userId);
+        }
+
+        /**
+         * Determines if this object is equal to the given object.
+         * @param other Another object to be compared as being equal to this one.
+         * @return {@code true} if this object is equal to the other, {@code false} otherwise.
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ScoreKey)) return false;
+            ScoreKey that = (ScoreKey) other;
+            return this.points == that.points && this.userId == that.userId;
+        }
+
+        /**
+         * Gives a hash code for this object.
+         * @return This object's hash code.
+         */
+        @Override
+        public int hashCode() {
+            return Long.hashCode(points) * 31 + Long.hashCode(userId);
+        }
+
+        /**
+         * Gives a string representation of this key.
+         * @return A string representation of this key.
+         */
+        @Override
+        public String toString() {
+            return points + "/" + userId;
+        }
+    }
+
+    /**
+     * Keeps track of the listing made by the {@link CompositeKeyApplicationState#forEachHighScore forEachHighScore} method while it
+     * traverses the {@link CompositeKeyApplicationState#ranking ranking} tree.
+     * @author Victor Williams Stafusa da Silva
+     */
+    private static final class ListingProgress {
+
+        /**
+         * The points of the last user listed.
+         */
+        private long lastPoints;
+
+        /**
+         * The position of the last user listed, which is the position of the first user listed with the same points.
+         */
+        private int position;
+
+        /**
+         * How many users still should be listed.
+         */
+        private int remaining;
+
+        /**
+         * Creates an instance from its initial values.
+         * @param lastPoints The points of the first user listed.
+         * @param position The position of the first user listed.
+         * @param remaining How many users should be listed.
+         */
+        public ListingProgress(long lastPoints, int position, int remaining) {
+            this.lastPoints = lastPoints;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * Constructor for the initial state of the application, which is empty and features no users.
+     */
+    public CompositeKeyApplicationState() {
+        this.ranking = new ImmutableWeightedAvlTree<>();
+        this.usersToPoints = new ImmutableLongWeightedAvlTree();
+        this.version = 0L;
+    }
+
+    /**
+     * Constructor for the non-initial states of the application, which features a lot of users with different scores.
+     * @param ranking The value for the {@link CompositeKeyApplicationState#ranking ranking} field.
+     * @param usersToPoints The value for the {@link CompositeKeyApplicationState#usersToPoints usersToPoints} field.
+     * @param version The value for the {@link CompositeKeyApplicationState#version version} field.
+     */
+    private CompositeKeyApplicationState(
+            @NonNull ImmutableWeightedAvlTree<ScoreKey, Dummy> ranking,
+            @NonNull ImmutableLongWeightedAvlTree usersToPoints,
+            long version)
+    {
+        this.ranking = ranking;
+        this.usersToPoints = usersToPoints;
+        this.version = version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public CompositeKeyApplicationState addScore(@NonNull UserData data) {
+        Object event = FlightRecorderEvents.beginAddScore();
+        CompositeKeyApplicationState next = applyScore(data);
+        FlightRecorderEvents.endAddScore(event, data);
+        return next;
+    }
+
+    /**
+     * Creates a new state with the given user points added. This does the actual work of the {@link #addScore(UserData) addScore}
+     * method, which just wraps it in a Flight Recorder event.
+     * @param data The user data containing the user id and the quantity of points that s/he scored.
+     * @return A new state for the application.
+     * @throws ArithmeticException If the points of the user overflow.
+     */
+    @NonNull
+    @CheckReturnValue
+    private CompositeKeyApplicationState applyScore(@NonNull UserData data) {
+
+        // Starts unwrapping the data.
+        long id = data.getUserId();
+        long earnedPoints = data.getPoints();
+
+        // Find out how many points the given user has and also if s/he even exist in the table so far.
+        // Complexity of this step is O(log n).
+        OptionalLong optCurrentPoints = usersToPoints.get(id);
+        long currentPoints = optCurrentPoints.orElse(0L);
+        long newPoints = Math.addExact(currentPoints, earnedPoints);
+        ImmutableWeightedAvlTree<ScoreKey, Dummy> newRanking = ranking;
+
+        // If the user already existed, we need to delete it from the ranking, since it would now be mispositioned.
+        if (optCurrentPoints.isPresent()) {
+
+            // If the user already existed and got zero new points, there is no change after all.
+            if (earnedPoints == 0) return this;
+
+            // Complexity of this step is O(log n).
+            newRanking = newRanking.remove(new ScoreKey(currentPoints, id));
+        }
+
+        // Add the user in its new place in the ranking. Complexity of this step is O(log n).
+        newRanking = newRanking.put(new ScoreKey(newPoints, id), 1, Dummy.DUMMY);
+
+        // Finally, update the usersToPoints. This have a complexity of O(log n).
+        ImmutableLongWeightedAvlTree newUsersToPoints = usersToPoints.put(id, 0, newPoints);
+
+        // Produce a new state.
+        // The total complexity is 4 operations of O(log n) size plus some O(1) operations.
+        return new CompositeKeyApplicationState(newRanking, newUsersToPoints, version + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, the whole batch is merged into each tree at once with the {@code updateSorted} and {@code putSorted}
+     * methods of the trees, instead of adding the users one by one, so every node of the trees is copied at most once for each of
+     * those merges. The changed users are grouped by their old points, which are removed from the {@code ranking} in a single pass,
+     * and then by their new points, which are added in another one. The version of the new state is increased by the number of
+     * changed users, just as if they were added one by one.</p>
+     *
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public CompositeKeyApplicationState addScores(@NonNull Collection<UserData> data) {
+        ScoreChanges changes = ScoreChanges.of(ScoreDeltas.of(data), usersToPoints);
+        int count = changes.getCount();
+        if (count == 0) return this;
+        ScoreKey[] leaving = rankedKeys(changes.leaving());
+        ScoreKey[] arriving = rankedKeys(changes.arriving());
+        ImmutableWeightedAvlTree<ScoreKey, Dummy> newRanking = ranking
+                .updateSorted(leaving.length, i -> leaving[i], d -> 1, (i, old) -> Optional.empty())
+                .updateSorted(arriving.length, i -> arriving[i], d -> 1, (i, old) -> Optional.of(Dummy.DUMMY));
+        ImmutableLongWeightedAvlTree newUsersToPoints = usersToPoints.putSorted(
+                count,
+                changes::getUserId,
+                i -> 0,
+                changes::getNewPoints);
+        return new CompositeKeyApplicationState(newRanking, newUsersToPoints, version + count);
+    }
+
+    /**
+     * Gives the keys of the given users in the order of the {@link #ranking}, which lists the groups from the one with most points to
+     * the one with less points, each one in the order of the ids.
+     * @param groups The users grouped by their points.
+     * @return The keys of the users in the order of the ranking.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static ScoreKey[] rankedKeys(@NonNull UsersByPoints groups) {
+        int count = 0;
+        for (int g = 0; g < groups.getGroupCount(); g++) {
+            count += groups.getGroupSize(g);
+        }
+        ScoreKey[] keys = new ScoreKey[count];
+        int index = 0;
+        for (int g = groups.getGroupCount() - 1; g >= 0; g--) {
+            for (int i = 0; i < groups.getGroupSize(g); i++) {
+                keys[index++] = new ScoreKey(groups.getPoints(g), groups.getUserId(g, i));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, both trees are built straight from the users with the {@code fromSorted} methods of the trees,
+     * instead of adding the users one by one. The {@code usersToPoints} tree is built in {@code O(n)} time, since the users are
+     * already in the order of their ids. For the {@code ranking} tree, the users are grouped by their points first, which takes
+     * {@code O(n log m)} time, where {@code m} is the number of distinct points, and then the tree is built in {@code O(n)} time.</p>
+     *
+     * @param userIds {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param count {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public CompositeKeyApplicationState loadUsers(@NonNull long[] userIds, @NonNull long[] points, int count) {
+        if (getUserCount() != 0) throw new IllegalArgumentException();
+        UsersByPoints groups = UsersByPoints.of(userIds, points, count);
+        ImmutableLongWeightedAvlTree newUsersToPoints = ImmutableLongWeightedAvlTree.fromSorted(
+                count,
+                i -> userIds[i],
+                i -> 0,
+                i -> points[i]);
+
+        ScoreKey[] ranked = rankedKeys(groups);
+        ImmutableWeightedAvlTree<ScoreKey, Dummy> newRanking = ImmutableWeightedAvlTree.fromSorted(
+                count,
+                i -> ranked[i],
+                i -> 1,
+                i -> Dummy.DUMMY);
+        return new CompositeKeyApplicationState(newRanking, newUsersToPoints, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUser(@NonNull UserConsumer action) {
+        if (action == null) throw new IllegalArgumentException();
+        usersToPoints.forEach((userId, points, unusedA, unusedB, unusedC) -> action.accept(userId, points));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, if the older state is also a {@code CompositeKeyApplicationState}, just the changes are given, by
+     * comparing the {@code usersToPoints} trees of both states, which share every subtree not touched by the changes.</p>
+     *
+     * @param older {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUserChangedSince(@NonNull ApplicationState older, @NonNull UserConsumer action) {
+        if (older == null || action == null) throw new IllegalArgumentException();
+        if (!(older instanceof CompositeKeyApplicationState)) {
+            forEachUser(action);
+            return;
+        }
+        ImmutableLongWeightedAvlTree olderUsers = ((CompositeKeyApplicationState) older).usersToPoints;
+        usersToPoints.forEachChange(olderUsers, (userId, unusedA, unusedB, inNewer, points) -> {
+            if (inNewer) action.accept(userId, points);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        OptionalLong points = usersToPoints.get(userId);
+        if (!points.isPresent()) return Optional.empty();
+
+        // The users with more points are the ones that comes before the first possible key with the same points.
+        int position = 1 + ranking.getWeightBefore(ScoreKey.first(points.getAsLong()));
+        return Optional.of(new PositionedUserData(userId, points.getAsLong(), position));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public OptionalLong findPoints(long userId) {
+        return usersToPoints.get(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachHighScore(int offset, int limit, @NonNull PositionedUserConsumer action) {
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException();
+
+        // Find out the first user. Since each user have a weight of 1, the offset is exactly the left weight of its node.
+        Optional<ImmutableWeightedAvlTree.Entry<ScoreKey, Dummy>> first = ranking.selectByWeight(offset);
+        if (!first.isPresent() || limit == 0) return;
+        ScoreKey firstKey = first.get().getKey();
+
+        // Tied users have the same position as the first one of them, so we need to remember it.
+        // The first user listed might be tied with some users that were skipped, so we find out the position of the first of them.
+        int firstPosition = 1 + ranking.getWeightBefore(ScoreKey.first(firstKey.points));
+        ListingProgress progress = new ListingProgress(firstKey.points, firstPosition, limit);
+
+        // Traverse the ranking tree from the first user and give the users' data to the action until the limit.
+        // The weight to the left of each node is how many users come before it in the ranking.
+        ranking.forEachFromWhile(firstKey, (key, dummy, howManyBefore, shouldBeOne, howManyAfter) -> {
+
+            // If this user is not tied with the previous one, it starts a new position.
+            if (key.points != progress.lastPoints) {
+                progress.lastPoints = key.points;
+                progress.position = howManyBefore + 1;
+            }
+            action.accept(key.userId, key.points, progress.position);
+
+            // Stop if we reached the limit.
+            return --progress.remaining != 0;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int getUserCount() {
+        return ranking.getTotalWeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int countUsersListedBefore(long points, long userId) {
+        return ranking.getWeightBefore(new ScoreKey(points, userId));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        if (above < 0 || below < 0) throw new IllegalArgumentException();
+        OptionalLong points = usersToPoints.get(userId);
+        if (!points.isPresent()) return Optional.empty();
+
+        // The index of the user in the list is the weight of all the users before him/her.
+        int index = ranking.getLeftWeight(new ScoreKey(points.getAsLong(), userId)).orElseThrow(AssertionError::new);
+        int offset = Math.max(0, index - above);
+        return Optional.of(getHighScores(offset, (int) Math.min(Integer.MAX_VALUE, (long) index - offset + 1 + below)));
+    }
+}
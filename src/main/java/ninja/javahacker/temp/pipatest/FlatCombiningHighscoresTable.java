@@ -0,0 +1,311 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+
+/**
+ * Implementation of {@link HighscoresTable} that uses flat combining to change its state.
+ *
+ * <p>Each thread that adds scores publishes them into its own slot and then tries to acquire the combiner lock. The thread that
+ * gets the lock becomes the combiner: it collects the scores published in all the slots, applies all of them in a single
+ * {@link ApplicationState#addScores(Collection) addScores} call and then clears the served slots. The other threads just wait for
+ * their slots to be cleared, unless they get the lock first. So, instead of each thread making its own change to the state (and
+ * either retrying it as the {@link HighscoresTable.CasHighscoresTable CasHighscoresTable} does or parking as the
+ * {@link HighscoresTable.SynchronizedHighscoresTable SynchronizedHighscoresTable} does), a single state transition serves every
+ * thread waiting at that moment.</p>
+ *
+ * <p>A slot enters the list scanned by the combiners when its thread first becomes a combiner and leaves it after being idle for a
+ * while, so slots of finished threads don't pile up. The list and the slots' bookkeeping are only touched by the combiner.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class FlatCombiningHighscoresTable implements HighscoresTable {
+
+    /**
+     * After how many combining passes without being used a slot leaves the list scanned by the combiners.
+     */
+    private static final long MAX_IDLE_PASSES = 1024;
+
+    /**
+     * Stores the application state. Only the combiner changes it.
+     */
+    @NonNull
+    private volatile ApplicationState state;
+
+    /**
+     * The combiner lock.
+     */
+    @NonNull
+    private final ReentrantLock combinerLock;
+
+    /**
+     * The slots scanned by the combiners.
+     */
+    @NonNull
+    @GuardedBy("combinerLock")
+    private final List<Slot> slots;
+
+    /**
+     * The slot of each thread.
+     */
+    @NonNull
+    private final ThreadLocal<Slot> ownSlot;
+
+    /**
+     * How many combining passes were made so far.
+     */
+    @GuardedBy("combinerLock")
+    private long passes;
+
+    /**
+     * A slot where a thread publishes its pending scores.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Slot {
+
+        /**
+         * The pending scores, or {@code null} if there is none. Set by the owner thread and cleared by the combiner that served them.
+         */
+        @Nullable
+        private volatile Collection<UserData> request;
+
+        /**
+         * Why the pending scores couldn't be applied, or {@code null} if they were. Written by the combiner before clearing the
+         * {@link #request} and read by the owner thread after seeing it cleared.
+         */
+        @Nullable
+        private RuntimeException failure;
+
+        /**
+         * Tells if this slot is in the list scanned by the combiners.
+         */
+        @GuardedBy("combinerLock")
+        private boolean registered;
+
+        /**
+         * The combining pass where this slot was last used.
+         */
+        @GuardedBy("combinerLock")
+        private long lastPass;
+
+        /**
+         * Sole constructor.
+         */
+        public Slot() {
+        }
+    }
+
+    /**
+     * Creates a new initially empty {@code HighscoreTable} using the default {@link ApplicationState} engine.
+     */
+    public FlatCombiningHighscoresTable() {
+        this(ApplicationState.getDefaultImplementation());
+    }
+
+    /**
+     * Creates a new {@code HighscoreTable} starting at the given state.
+     * @param initial The initial state of the table.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+     */
+    public FlatCombiningHighscoresTable(@NonNull ApplicationState initial) {
+        if (initial == null) throw new IllegalArgumentException();
+        this.state = initial;
+        this.combinerLock = new ReentrantLock();
+        this.slots = new ArrayList<>();
+        this.ownSlot = ThreadLocal.withInitial(Slot::new);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScore(@NonNull UserData data) {
+        if (data == null) throw new IllegalArgumentException();
+        publishAndWait(Collections.singletonList(data));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScores(@NonNull Collection<UserData> data) {
+        if (data == null) throw new IllegalArgumentException();
+        publishAndWait(data);
+    }
+
+    /**
+     * Publishes the given scores into the slot of the current thread and waits until they are applied, either by some other combiner
+     * or by the current thread itself, if it gets the combiner lock.
+     * @param data The scores.
+     * @throws IllegalArgumentException If the {@code data} contains {@code null}.
+     * @throws ArithmeticException If the sum of the points of some user overflows.
+     */
+    private void publishAndWait(@NonNull Collection<UserData> data) {
+        Slot mine = ownSlot.get();
+        mine.failure = null;
+        mine.request = data;
+        while (mine.request != null) {
+            if (combinerLock.tryLock()) {
+                try {
+                    if (mine.request != null) combine(mine);
+                } finally {
+                    combinerLock.unlock();
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        RuntimeException failure = mine.failure;
+        mine.failure = null;
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Applies the scores published in all the slots in a single state transition. If that fails as a whole (which only happens if the
+     * points of some user overflow or if some scores contains {@code null}), then the scores of each slot are applied alone, so only
+     * the faulty ones fail.
+     * @param mine The slot of the combiner, which is registered if it isn't yet.
+     */
+    @GuardedBy("combinerLock")
+    private void combine(@NonNull Slot mine) {
+        passes++;
+        if (!mine.registered) {
+            mine.registered = true;
+            slots.add(mine);
+        }
+
+        // Collect the published scores and drop the slots that are idle for too long.
+        List<Slot> served = new ArrayList<>();
+        List<UserData> merged = new ArrayList<>();
+        for (Iterator<Slot> it = slots.iterator(); it.hasNext();) {
+            Slot s = it.next();
+            Collection<UserData> request = s.request;
+            if (request != null) {
+                served.add(s);
+                merged.addAll(request);
+                s.lastPass = passes;
+            } else if (passes - s.lastPass > MAX_IDLE_PASSES) {
+                s.registered = false;
+                it.remove();
+            }
+        }
+
+        // Apply everything at once.
+        try {
+            publish(merged);
+        } catch (RuntimeException e) {
+            for (Slot s : served) {
+                try {
+                    publish(s.request);
+                } catch (RuntimeException x) {
+                    s.failure = x;
+                }
+            }
+        }
+
+        // Release the waiting threads.
+        for (Slot s : served) {
+            s.request = null;
+        }
+    }
+
+    /**
+     * Publishes the state with the given scores added to the current one.
+     * @param data The scores.
+     */
+    @GuardedBy("combinerLock")
+    private void publish(@NonNull Collection<UserData> data) {
+        ApplicationState previous = state;
+        ApplicationState next = previous.addScores(data);
+        state = next;
+        FlightRecorderEvents.statePublished(this, previous, next);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ApplicationState snapshot() {
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        return state.findUser(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param maxUsers {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int maxUsers) {
+        return state.getHighScores(maxUsers);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit) {
+        return state.getHighScores(offset, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        return state.findNeighbours(userId, above, below);
+    }
+}
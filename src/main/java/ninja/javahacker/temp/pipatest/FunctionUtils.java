@@ -2,6 +2,7 @@ package ninja.javahacker.temp.pipatest;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.OptionalLong;
 import java.util.function.Consumer;
 import java.util.function.LongConsumer;
@@ -72,6 +73,21 @@ public class FunctionUtils {
         }
     }
 
+    /**
+     * Parses an {@code int} using the {@link Integer#parseInt(String)} method, but returns an {@link OptionalInt} containing the parsed
+     * value. If the parse fails, an empty {@link OptionalInt} is returned.
+     * @param toParse The value to be parsed as an int.
+     * @return An {@link OptionalInt} containing the parsed value or an empty {@link OptionalInt} if the parse fails.
+     */
+    @NonNull
+    public static OptionalInt parseOptionalInt(@NonNull String toParse) {
+        try {
+            return OptionalInt.of(Integer.parseInt(toParse));
+        } catch (NumberFormatException e) {
+            return OptionalInt.empty();
+        }
+    }
+
     /**
      * Equivalent of {@link Supplier} where the functional method might also throw any exception.
      * @param <T> The type of results supplied by this supplier.
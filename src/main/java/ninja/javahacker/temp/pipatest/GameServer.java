@@ -1,10 +1,10 @@
 package ninja.javahacker.temp.pipatest;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.plugin.json.JavalinJackson;
 import io.javalin.plugin.json.JavalinJson;
 import io.javalin.plugin.openapi.OpenApiOptions;
@@ -17,9 +17,34 @@ import io.javalin.plugin.openapi.annotations.OpenApiRequestBody;
 import io.javalin.plugin.openapi.annotations.OpenApiResponse;
 import io.javalin.plugin.openapi.ui.SwaggerOptions;
 import io.swagger.v3.oas.models.info.Info;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.data.BatchTooLargeException;
 import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableJsonWriter;
 import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.RejectedLineData;
+import ninja.javahacker.temp.pipatest.data.ScoreBatchResultData;
+import ninja.javahacker.temp.pipatest.data.StrictObjectMapper;
 import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.data.UserDataBatchReader;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+import ninja.javahacker.temp.pipatest.metrics.Counter;
+import ninja.javahacker.temp.pipatest.metrics.Histogram;
+import ninja.javahacker.temp.pipatest.metrics.InstrumentedHighscoresTable;
+import ninja.javahacker.temp.pipatest.metrics.MetricsRegistry;
 
 /**
  * This class is the controller responsible for receiving the HTTP requests for the HTTP-based game highscores table.
@@ -28,12 +53,61 @@ import ninja.javahacker.temp.pipatest.data.UserData;
 @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
 public class GameServer {
 
+    /**
+     * The maximum number of users listed in a single response.
+     */
+    private static final int MAX_LISTED_USERS = 20000;
+
+    /**
+     * How many users are listed before and after a given user in the "/score/:userId/neighbours" route if not specified.
+     */
+    private static final int DEFAULT_NEIGHBOURS = 5;
+
+    /**
+     * The maximum number of entries in a single request to the "/scores" route.
+     */
+    private static final int MAX_BATCH_ENTRIES = 10000;
+
     /**
      * The highscore table.
      */
     @NonNull
     private final HighscoresTable table;
 
+    /**
+     * Where the metrics of the server are kept.
+     */
+    @NonNull
+    private final MetricsRegistry metrics;
+
+    /**
+     * The durations of the reads of the "/score/:userId/position" route from the state, in the same histogram that an
+     * {@link InstrumentedHighscoresTable} would use for the {@code findUser} operation.
+     */
+    @NonNull
+    private final Histogram findUserDuration;
+
+    /**
+     * The durations of the reads of the "/highscorelist" route from the state, in the same histogram that an
+     * {@link InstrumentedHighscoresTable} would use for the {@code getHighScores} operations.
+     */
+    @NonNull
+    private final Histogram getHighScoresDuration;
+
+    /**
+     * The durations of the reads of the "/score/:userId/neighbours" route from the state, in the same histogram that an
+     * {@link InstrumentedHighscoresTable} would use for the {@code findNeighbours} operation.
+     */
+    @NonNull
+    private final Histogram findNeighboursDuration;
+
+    /**
+     * The serialized JSON of the default high score list, kept for the version of the state where it was produced, so it is only
+     * rebuilt when some score is changed.
+     */
+    @NonNull
+    private final AtomicReference<SerializedHighScores> highScoresCache;
+
     /**
      * Object responsible for actually serving the HTTP requests.
      */
@@ -41,30 +115,70 @@ public class GameServer {
     private final Javalin server;
 
     /**
-     * HTTP port tht this request is listening.
+     * Prefix of the {@code ETag}s produced by this server. Since versions of the application state restart at zero when the server
+     * restarts, this is unique for each server instance in order to not have clients mistaking new responses for old ones.
+     */
+    @NonNull
+    private final String etagPrefix;
+
+    /**
+     * HTTP port tht this request is listening. If the server was asked to use the port 0, this is the ephemeral port actually chosen.
      */
     private final int port;
 
     /**
-     * Starts the game server.
-     * @param port The HTTP port which should be used to run the server.
+     * Starts the game server with an empty in-memory highscores table.
+     * @param port The HTTP port which should be used to run the server. If it is 0, a free ephemeral port is chosen.
      */
     public GameServer(int port) {
-        this.port = port;
-
-        // Configure Javalin's Jackson instance to make it very strict in rejecting bad JSONs.
-        JavalinJackson
-                .getObjectMapper()
-                .configure(DeserializationFeature.FAIL_ON_IGNORED_PROPERTIES, true)
-                .configure(DeserializationFeature.FAIL_ON_MISSING_CREATOR_PROPERTIES, true)
-                .configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, true)
-                .configure(DeserializationFeature.FAIL_ON_NULL_CREATOR_PROPERTIES, true)
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true)
-                .configure(DeserializationFeature.FAIL_ON_READING_DUP_TREE_KEY, true)
-                .findAndRegisterModules();
-
-        // Intantiate the highscores table.
-        this.table = HighscoresTable.getSynchronizedImplementation();
+        this(port, HighscoresTable.getSynchronizedImplementation());
+    }
+
+    /**
+     * Starts the game server serving the given highscores table, with its own metrics.
+     * @param port The HTTP port which should be used to run the server. If it is 0, a free ephemeral port is chosen.
+     * @param table The highscores table.
+     * @throws IllegalArgumentException If {@code table} is {@code null}.
+     */
+    public GameServer(int port, @NonNull HighscoresTable table) {
+        this(port, table, new MetricsRegistry());
+    }
+
+    /**
+     * Starts the game server serving the given highscores table and recording its metrics into the given registry, which are exposed
+     * in the "/metrics" route along with any other metrics in the same registry.
+     * @param port The HTTP port which should be used to run the server. If it is 0, a free ephemeral port is chosen.
+     * @param table The highscores table.
+     * @param metrics Where the metrics of the server are recorded.
+     * @throws IllegalArgumentException If either {@code table} or {@code metrics} are {@code null}.
+     */
+    public GameServer(int port, @NonNull HighscoresTable table, @NonNull MetricsRegistry metrics) {
+        if (table == null || metrics == null) throw new IllegalArgumentException();
+
+        // Make Javalin's Jackson instance very strict in rejecting bad JSONs.
+        JavalinJackson.configure(StrictObjectMapper.create());
+
+        // Keep the highscores table.
+        this.table = table;
+        this.metrics = metrics;
+        this.highScoresCache = new AtomicReference<>();
+
+        // The read routes query a snapshot instead of the table, so they time their reads themselves.
+        this.findUserDuration = InstrumentedHighscoresTable.operationDuration(metrics, "findUser");
+        this.getHighScoresDuration = InstrumentedHighscoresTable.operationDuration(metrics, "getHighScores");
+        this.findNeighboursDuration = InstrumentedHighscoresTable.operationDuration(metrics, "findNeighbours");
+        this.etagPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+
+        // The gauges are computed from the current state whenever the metrics are read. The distinct scores are only counted by the
+        // engines that keep track of them.
+        metrics.gauge("pipatest_users", "Number of users with some score.", () -> table.snapshot().getUserCount());
+        if (table.snapshot().getDistinctScoreCount().isPresent()) {
+            metrics.gauge(
+                    "pipatest_distinct_scores",
+                    "Number of distinct scores.",
+                    () -> table.snapshot().getDistinctScoreCount().orElse(0));
+        }
+        metrics.gauge("pipatest_state_version", "Version of the current state of the table.", () -> table.snapshot().getVersion());
 
         // Instantiates the server with the configured routes.
         this.server = Javalin
@@ -73,10 +187,14 @@ public class GameServer {
                     cfg.defaultContentType = "application/json";
                     cfg.showJavalinBanner = false;
                 })
-                .post("/score", this::addScore)
-                .get("/score/:userId/position", this::findUser)
-                .get("/highscorelist", this::getHighScores)
+                .post("/score", instrumented("/score", this::addScore))
+                .post("/scores", instrumented("/scores", this::addScores))
+                .get("/score/:userId/position", instrumented("/score/:userId/position", this::findUser))
+                .get("/score/:userId/neighbours", instrumented("/score/:userId/neighbours", this::findNeighbours))
+                .get("/highscorelist", instrumented("/highscorelist", this::getHighScores))
+                .get("/metrics", this::getMetrics)
                 .start(port);
+        this.port = server.port();
     }
 
     /**
@@ -86,6 +204,29 @@ public class GameServer {
         server.stop();
     }
 
+    /**
+     * Wraps the handler of a route, so that the duration of each request is recorded into a histogram for the route and each response
+     * is counted by its status. A request whose handler fails is counted as a 500 (Internal Server Error).
+     * @param route The route, as it is named in the metrics.
+     * @param handler The handler of the route.
+     * @return The wrapped handler.
+     */
+    @NonNull
+    private Handler instrumented(@NonNull String route, @NonNull Handler handler) {
+        RouteMetrics routeMetrics = new RouteMetrics(metrics, route);
+        return ctx -> {
+            long start = System.nanoTime();
+            int status = 500;
+            try {
+                handler.handle(ctx);
+                status = ctx.status();
+            } finally {
+                routeMetrics.duration.record(System.nanoTime() - start);
+                routeMetrics.responses(status).increment();
+            }
+        };
+    }
+
     /**
      * Handle the POST "/score" route.
      * @param ctx The Javalin's context.
@@ -107,6 +248,61 @@ public class GameServer {
         FunctionUtils.tryRun(() -> JavalinJson.fromJson(ctx.body(), UserData.class), table::addScore, e -> ctx.status(422));
     }
 
+    /**
+     * Handle the POST "/scores" route.
+     * @param ctx The Javalin's context.
+     * @throws IOException If the request couldn't be read.
+     */
+    @OpenApi(
+            summary = "Post a batch of users' score points.",
+            operationId = "addScores",
+            description = "Works as if the \"/score\" route was called once for each entry, but all the accepted entries are added "
+                    + "at once. The body is either a JSON array or newline-delimited JSON, with one entry per line. "
+                    + "Rejected entries are listed with their lines (or positions in the array) without rejecting the others. "
+                    + "If the accepted entries together would overflow the points of some user, they are added one by one instead "
+                    + "and the ones that overflow are rejected. Batches with more than " + MAX_BATCH_ENTRIES + " entries are refused "
+                    + "as a whole with 413 (Payload Too Large) and none of their entries is added.",
+            path = "/scores",
+            method = HttpMethod.POST,
+            requestBody = @OpenApiRequestBody(content = {
+                @OpenApiContent(from = UserData.class, isArray = true),
+                @OpenApiContent(from = UserData.class, type = "application/x-ndjson")
+            }),
+            responses = {
+                @OpenApiResponse(status = "200", content = @OpenApiContent(from = ScoreBatchResultData.class)),
+                @OpenApiResponse(status = "413")
+            }
+    )
+    private void addScores(@NonNull Context ctx) throws IOException {
+        NumberedBatch batch = new NumberedBatch();
+        List<RejectedLineData> rejected;
+        try {
+            rejected = new ArrayList<>(UserDataBatchReader.readNumbered(ctx.req.getInputStream(), MAX_BATCH_ENTRIES, batch::add));
+        } catch (BatchTooLargeException e) {
+            ctx.status(413);
+            return;
+        }
+        int accepted = batch.entries.size();
+        try {
+            table.addScores(batch.entries);
+        } catch (ArithmeticException e) {
+
+            // Some user would overflow. The table didn't add any of the entries then, so add them one by one, as if the "/score"
+            // route was called for each of them.
+            accepted = 0;
+            for (int i = 0; i < batch.entries.size(); i++) {
+                try {
+                    table.addScore(batch.entries.get(i));
+                    accepted++;
+                } catch (ArithmeticException x) {
+                    rejected.add(new RejectedLineData(batch.lines[i], 422, "Points overflow."));
+                }
+            }
+            rejected.sort(Comparator.comparingInt(RejectedLineData::getLine));
+        }
+        ctx.json(new ScoreBatchResultData(accepted, rejected));
+    }
+
     /**
      * Handle the GET "/score/:user-id/position" route.
      * @param ctx The Javalin's context.
@@ -119,34 +315,364 @@ public class GameServer {
             path = "/score/:userId/position",
             method = HttpMethod.GET,
             pathParams = @OpenApiParam(name = "userId", type = long.class, description = "User's id."),
+            headers = @OpenApiParam(name = "If-None-Match", description = "ETag of a previous response."),
             responses = {
                 @OpenApiResponse(status = "200", content = @OpenApiContent(from = PositionedUserData.class)),
+                @OpenApiResponse(status = "304"),
                 @OpenApiResponse(status = "404")
             }
     )
     private void findUser(@NonNull Context ctx) {
         FunctionUtils.ifPresentOrElse(
                 FunctionUtils.parseOptionalLong(ctx.pathParam("userId")),
-                userId -> FunctionUtils.ifPresentOrElse(table.findUser(userId), f -> ctx.json(f), () -> ctx.result("")),
+                userId -> {
+                    ApplicationState current = table.snapshot();
+                    if (notModified(ctx, current)) return;
+                    long start = System.nanoTime();
+                    Optional<PositionedUserData> found;
+                    try {
+                        found = current.findUser(userId);
+                    } finally {
+                        findUserDuration.record(System.nanoTime() - start);
+                    }
+                    FunctionUtils.ifPresentOrElse(found, f -> ctx.json(f), () -> ctx.result(""));
+                },
                 () -> ctx.status(404)
         );
     }
 
+    /**
+     * Handle the GET "/score/:user-id/neighbours" route.
+     * @param ctx The Javalin's context.
+     */
+    @OpenApi(
+            summary = "Get the users around a user.",
+            operationId = "findNeighbours",
+            description = "Retrieves a window of the high scores list around a specific user, in order, featuring the user, "
+                    + "up to 'above' users listed before him/her and up to 'below' users listed after him/her. "
+                    + "Each one of those is limited to " + (MAX_LISTED_USERS / 2) + ". "
+                    + "If a user hasn't submitted a score, the response must be empty.",
+            path = "/score/:userId/neighbours",
+            method = HttpMethod.GET,
+            pathParams = @OpenApiParam(name = "userId", type = long.class, description = "User's id."),
+            queryParams = {
+                @OpenApiParam(name = "above", type = int.class, description = "How many users before the given one. Defaults to 5."),
+                @OpenApiParam(name = "below", type = int.class, description = "How many users after the given one. Defaults to 5.")
+            },
+            headers = @OpenApiParam(name = "If-None-Match", description = "ETag of a previous response."),
+            responses = {
+                @OpenApiResponse(status = "200", content = @OpenApiContent(from = HighscoresTableData.class)),
+                @OpenApiResponse(status = "304"),
+                @OpenApiResponse(status = "404"),
+                @OpenApiResponse(status = "422")
+            }
+    )
+    private void findNeighbours(@NonNull Context ctx) {
+        OptionalLong userId = FunctionUtils.parseOptionalLong(ctx.pathParam("userId"));
+        if (!userId.isPresent()) {
+            ctx.status(404);
+            return;
+        }
+        OptionalInt above = nonNegativeQueryParam(ctx, "above", DEFAULT_NEIGHBOURS);
+        OptionalInt below = nonNegativeQueryParam(ctx, "below", DEFAULT_NEIGHBOURS);
+        if (!above.isPresent() || !below.isPresent()) {
+            ctx.status(422);
+            return;
+        }
+        ApplicationState current = table.snapshot();
+        if (notModified(ctx, current)) return;
+        long start = System.nanoTime();
+        Optional<HighscoresTableData> found;
+        try {
+            found = current.findNeighbours(
+                    userId.getAsLong(),
+                    Math.min(above.getAsInt(), MAX_LISTED_USERS / 2),
+                    Math.min(below.getAsInt(), MAX_LISTED_USERS / 2));
+        } finally {
+            findNeighboursDuration.record(System.nanoTime() - start);
+        }
+        FunctionUtils.ifPresentOrElse(found, f -> ctx.json(f), () -> ctx.result(""));
+    }
+
     /**
      * Handle the GET "/highscorelist" route.
      * @param ctx The Javalin's context.
+     * @throws IOException If the response couldn't be written.
      */
     @OpenApi(
             summary = "Get a high score list.",
             operationId = "getHighScores",
-            description = "Retrieves the high scores list, in order, limited to the 20000 higher scores. "
-                    + "A request for a high score list without any scores submitted shall be an empty list.",
+            description = "Retrieves the high scores list, in order, limited to the " + MAX_LISTED_USERS + " higher scores. "
+                    + "A request for a high score list without any scores submitted shall be an empty list. "
+                    + "Optionally, the list might start at any given offset and have a smaller limit.",
             path = "/highscorelist",
             method = HttpMethod.GET,
-            responses = @OpenApiResponse(status = "200", content = @OpenApiContent(from = HighscoresTableData.class))
+            queryParams = {
+                @OpenApiParam(name = "offset", type = int.class, description = "How many users should be skipped. Defaults to 0."),
+                @OpenApiParam(name = "limit", type = int.class, description = "Maximum number of users listed. Defaults to the maximum.")
+            },
+            headers = @OpenApiParam(name = "If-None-Match", description = "ETag of a previous response."),
+            responses = {
+                @OpenApiResponse(status = "200", content = @OpenApiContent(from = HighscoresTableData.class)),
+                @OpenApiResponse(status = "304"),
+                @OpenApiResponse(status = "422")
+            }
     )
-    private void getHighScores(@NonNull Context ctx) {
-        ctx.json(table.getHighScores(20000));
+    private void getHighScores(@NonNull Context ctx) throws IOException {
+        OptionalInt offset = nonNegativeQueryParam(ctx, "offset", 0);
+        OptionalInt limit = nonNegativeQueryParam(ctx, "limit", MAX_LISTED_USERS);
+        if (!offset.isPresent() || !limit.isPresent()) {
+            ctx.status(422);
+            return;
+        }
+        ApplicationState current = table.snapshot();
+        if (notModified(ctx, current)) return;
+        ctx.contentType("application/json");
+
+        // The default list is cached. Other pages are streamed straight into the response, so their time includes writing it.
+        long start = System.nanoTime();
+        try {
+            if (offset.getAsInt() == 0 && limit.getAsInt() >= MAX_LISTED_USERS) {
+                ctx.result(new ByteArrayInputStream(serializedHighScores(current)));
+                return;
+            }
+            int pageLimit = Math.min(limit.getAsInt(), MAX_LISTED_USERS);
+            Object event = FlightRecorderEvents.beginHighScores();
+            try (HighscoresTableJsonWriter writer = new HighscoresTableJsonWriter(ctx.res.getOutputStream())) {
+                current.forEachHighScore(offset.getAsInt(), pageLimit, writer);
+            }
+            FlightRecorderEvents.endHighScores(event, current, offset.getAsInt(), pageLimit);
+        } finally {
+            getHighScoresDuration.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Handle the GET "/metrics" route.
+     * @param ctx The Javalin's context.
+     */
+    @OpenApi(
+            summary = "Get the metrics of the server.",
+            operationId = "getMetrics",
+            description = "Gives the latency histograms of each route and of each operation of the highscores table, the count of "
+                    + "the responses of each route by their status, the number of users and the number of distinct scores, "
+                    + "in the Prometheus text format.",
+            path = "/metrics",
+            method = HttpMethod.GET,
+            responses = @OpenApiResponse(status = "200", content = @OpenApiContent(type = "text/plain"))
+    )
+    private void getMetrics(@NonNull Context ctx) {
+        ctx.contentType("text/plain; version=0.0.4; charset=utf-8");
+        ctx.result(metrics.toPrometheusText());
+    }
+
+    /**
+     * Sets the {@code ETag} header of the response to the version of the given state and checks if the client already have the
+     * response for that same version, as told by the {@code If-None-Match} header of the request. If so, the response status is set
+     * to 304 (Not Modified) and nothing else should be done.
+     * @param ctx The Javalin's context.
+     * @param current The state of the application used to produce the response.
+     * @return {@code true} if the client already have the response, {@code false} if the response should be produced.
+     */
+    private boolean notModified(@NonNull Context ctx, @NonNull ApplicationState current) {
+        String etag = "\"" + etagPrefix + current.getVersion() + "\"";
+        ctx.header("ETag", etag);
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if (ifNoneMatch == null || !etagMatches(ifNoneMatch, etag)) return false;
+        ctx.status(304);
+        return true;
+    }
+
+    /**
+     * Tells if the given value of an {@code If-None-Match} header matches the given {@code ETag}. The header might contain either
+     * {@code *} or a list of comma-separated tags, which might be weak.
+     * @param ifNoneMatch The value of the {@code If-None-Match} header.
+     * @param etag The {@code ETag} to be matched.
+     * @return {@code true} if the header value matches the {@code ETag}, {@code false} otherwise.
+     */
+    private static boolean etagMatches(@NonNull String ifNoneMatch, @NonNull String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The accepted entries of a request to the "/scores" route together with their lines (or positions in the array).
+     * @author Victor Williams Stafusa da Silva
+     */
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class NumberedBatch {
+
+        /**
+         * The accepted entries, in the order that they were read.
+         */
+        @NonNull
+        private final List<UserData> entries;
+
+        /**
+         * The line of each accepted entry, at the same index of the entry. Only the first {@code entries.size()} positions are used.
+         */
+        @NonNull
+        private int[] lines;
+
+        /**
+         * Creates an instance without entries.
+         */
+        public NumberedBatch() {
+            this.entries = new ArrayList<>();
+            this.lines = new int[16];
+        }
+
+        /**
+         * Adds an accepted entry.
+         * @param data The entry.
+         * @param line The line or the position in the array of the entry.
+         */
+        public void add(@NonNull UserData data, int line) {
+            if (entries.size() == lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+            lines[entries.size()] = line;
+            entries.add(data);
+        }
+    }
+
+    /**
+     * Holds the serialized JSON of the default high score list of some version of the application state.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @Immutable
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class SerializedHighScores {
+
+        /**
+         * The version of the state from which the JSON was produced.
+         */
+        private final long version;
+
+        /**
+         * The serialized JSON. This array is never modified after the construction.
+         */
+        @NonNull
+        private final byte[] json;
+
+        /**
+         * Creates an instance from its values.
+         * @param version The version of the state from which the JSON was produced.
+         * @param json The serialized JSON.
+         */
+        @SuppressFBWarnings("EI_EXPOSE_REP2")
+        public SerializedHighScores(long version, @NonNull byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    /**
+     * The metrics of a single route. The counters of the responses are looked up in the registry only for the first response with each
+     * status, so recording a request doesn't need to look up anything.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @ThreadSafe
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class RouteMetrics {
+
+        /**
+         * Where the counters of the responses are looked up.
+         */
+        @NonNull
+        private final MetricsRegistry metrics;
+
+        /**
+         * The route, as it is named in the metrics.
+         */
+        @NonNull
+        private final String route;
+
+        /**
+         * The durations of the requests of the route.
+         */
+        @NonNull
+        private final Histogram duration;
+
+        /**
+         * The counters of the responses of the route, indexed by their status. Empty positions weren't looked up yet.
+         */
+        @NonNull
+        private final AtomicReferenceArray<Counter> responses;
+
+        /**
+         * Creates the metrics of the given route.
+         * @param metrics Where the metrics of the route are kept.
+         * @param route The route, as it is named in the metrics.
+         */
+        public RouteMetrics(@NonNull MetricsRegistry metrics, @NonNull String route) {
+            this.metrics = metrics;
+            this.route = route;
+            this.duration = metrics.histogram("pipatest_http_request_duration_seconds", "Duration of the HTTP requests.", "route", route);
+            this.responses = new AtomicReferenceArray<>(600);
+        }
+
+        /**
+         * Gives the counter of the responses of the route with the given status.
+         * @param status The status of the responses.
+         * @return The counter of the responses of the route with the given status.
+         */
+        @NonNull
+        public Counter responses(int status) {
+            int index = status >= 0 && status < responses.length() ? status : 0;
+            Counter counter = responses.get(index);
+            if (counter == null) {
+                counter = metrics.counter(
+                        "pipatest_http_responses_total",
+                        "Number of HTTP responses by their status.",
+                        "route", route, "status", Integer.toString(status));
+                if (index != 0) responses.lazySet(index, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Gives the serialized JSON of the default high score list of the given state. If it was already serialized for the same version,
+     * the cached one is used, otherwise it is serialized and cached.
+     * @param current The state of the application.
+     * @return The serialized JSON of the default high score list. The caller must not modify this array.
+     * @throws IOException If the JSON couldn't be produced.
+     */
+    @NonNull
+    private byte[] serializedHighScores(@NonNull ApplicationState current) throws IOException {
+        SerializedHighScores cached = highScoresCache.get();
+        if (cached != null && cached.version == current.getVersion()) return cached.json;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Object event = FlightRecorderEvents.beginHighScores();
+        try (HighscoresTableJsonWriter writer = new HighscoresTableJsonWriter(out)) {
+            current.forEachHighScore(0, MAX_LISTED_USERS, writer);
+        }
+        FlightRecorderEvents.endHighScores(event, current, 0, MAX_LISTED_USERS);
+        byte[] json = out.toByteArray();
+        SerializedHighScores created = new SerializedHighScores(current.getVersion(), json);
+
+        // Concurrent requests might have serialized other versions. Never replace a newer one by an older one.
+        highScoresCache.accumulateAndGet(created, (old, neo) -> old != null && old.version > neo.version ? old : neo);
+        return json;
+    }
+
+    /**
+     * Reads a query parameter that should be a non-negative {@code int}.
+     * @param ctx The Javalin's context.
+     * @param name The name of the query parameter.
+     * @param defaultValue The value used if the query parameter is absent.
+     * @return An {@link OptionalInt} containing the value of the query parameter (or the default value if it is absent) or an empty
+     *     one if it is not a non-negative {@code int}.
+     */
+    @NonNull
+    private static OptionalInt nonNegativeQueryParam(@NonNull Context ctx, @NonNull String name, int defaultValue) {
+        String value = ctx.queryParam(name);
+        if (value == null) return OptionalInt.of(defaultValue);
+        OptionalInt parsed = FunctionUtils.parseOptionalInt(value);
+        return parsed.isPresent() && parsed.getAsInt() >= 0 ? parsed : OptionalInt.empty();
     }
 
     /**
@@ -165,6 +691,14 @@ public class GameServer {
         return new OpenApiPlugin(options);
     }
 
+    /**
+     * Gives the HTTP port that this server is listening.
+     * @return The HTTP port that this server is listening.
+     */
+    public int getPort() {
+        return port;
+    }
+
     /**
      * Gives the URL where the swagger's documents are published.
      * @return The URL where the swagger's documents are published.
@@ -2,11 +2,17 @@ package ninja.javahacker.temp.pipatest;
 
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
 import ninja.javahacker.temp.pipatest.data.PositionedUserData;
 import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+import ninja.javahacker.temp.pipatest.metrics.Counter;
+import ninja.javahacker.temp.pipatest.metrics.Histogram;
+import ninja.javahacker.temp.pipatest.metrics.MetricsRegistry;
 
 /**
  * Represents the living data of the highscore table.
@@ -18,9 +24,30 @@ public interface HighscoresTable {
      * Adds the given user points to the application state.
      * @param data The user data containing the user id and the quantity of points that s/he scored.
      * @throws IllegalArgumentException If the {@code data} is {@code null}.
+     * @throws ArithmeticException If the points of the user overflow.
      */
     public void addScore(@NonNull UserData data);
 
+    /**
+     * Adds all the given users points to the application state at once. The points of repeated users are summed up first. Either
+     * all the scores are added or, if some exception is thrown, none of them is. Unless stated otherwise by the implementation, the
+     * table goes from the state before the batch to the state after it in a single transition, so no one ever sees the batch
+     * partially applied.
+     * @param data The users' data, each one containing the user id and the quantity of points that s/he scored.
+     * @throws IllegalArgumentException If the {@code data} is {@code null} or contains {@code null}.
+     * @throws ArithmeticException If the sum of the points of some user overflows. No score is added then.
+     */
+    public void addScores(@NonNull Collection<UserData> data);
+
+    /**
+     * Gives the current state of the table. Since the state is immutable, it can be freely used to perform several queries that should
+     * see exactly the same content, regardless of scores concurrently added to the table.
+     * @return The current state of the table.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ApplicationState snapshot();
+
     /**
      * Find the score and the position of a user given by his/her id.
      * @param userId The id of the user we want to find out the score and the position.
@@ -40,6 +67,33 @@ public interface HighscoresTable {
     @CheckReturnValue
     public HighscoresTableData getHighScores(int maxUsers);
 
+    /**
+     * Creates an object containing a page of the list of users and their scores and positions. The list is ordered in the same way as
+     * in the {@link #getHighScores(int)} method, but skips the given number of users at its beginning.
+     * @param offset How many users should be skipped at the beginning of the list.
+     * @param limit The maximum number of users that we want to get listed.
+     * @return An object containing the users in the page and their scores and positions.
+     * @throws IllegalArgumentException If either {@code offset} or {@code limit} are negative.
+     */
+    @NonNull
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit);
+
+    /**
+     * Creates an object containing a window of the list of users around the user given by his/her id. The list is ordered in the same
+     * way as in the {@link #getHighScores(int)} method and features the given user, up to {@code above} users listed immediately
+     * before him/her and up to {@code below} users listed immediately after him/her.
+     * @param userId The id of the user that should be in the middle of the window.
+     * @param above The maximum number of users listed before the given one that should be in the window.
+     * @param below The maximum number of users listed after the given one that should be in the window.
+     * @return An {@link Optional} containing an object with the users in the window and their scores and positions or an empty one
+     *     if the user had never been seen before.
+     * @throws IllegalArgumentException If either {@code above} or {@code below} are negative.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below);
+
     /**
      * Creates an implementation of {@code HighscoresTable} that holds it state in an {@link AtomicReference}.
      * @return An implementation of {@code HighscoresTable}.
@@ -48,6 +102,29 @@ public interface HighscoresTable {
         return new CasHighscoresTable();
     }
 
+    /**
+     * Creates an implementation of {@code HighscoresTable} that holds it state in an {@link AtomicReference}.
+     * @param initial The initial state of the table, which also determines which {@link ApplicationState} engine is used.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+     */
+    public static HighscoresTable getCasImplementation(@NonNull ApplicationState initial) {
+        return new CasHighscoresTable(initial);
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} that holds its state in an {@link AtomicReference}, starting at the given
+     * state and recording how many times its updates are retried into the given registry.
+     * @param initial The initial state of the table.
+     * @param metrics Where the retries are recorded.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     * @see CasHighscoresTable
+     */
+    public static HighscoresTable getCasImplementation(@NonNull ApplicationState initial, @NonNull MetricsRegistry metrics) {
+        return new CasHighscoresTable(initial, metrics);
+    }
+
     /**
      * Creates an implementation of {@code HighscoresTable} that holds it state guarded by synchronization.
      * @return An implementation of {@code HighscoresTable}.
@@ -56,8 +133,104 @@ public interface HighscoresTable {
         return new SynchronizedHighscoresTable();
     }
 
+    /**
+     * Creates an implementation of {@code HighscoresTable} that holds it state guarded by synchronization.
+     * @param initial The initial state of the table, which also determines which {@link ApplicationState} engine is used.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+     */
+    public static HighscoresTable getSynchronizedImplementation(@NonNull ApplicationState initial) {
+        return new SynchronizedHighscoresTable(initial);
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} that holds its state guarded by synchronization, starting at the given
+     * state and recording how long its lock is waited for and held into the given registry.
+     * @param initial The initial state of the table.
+     * @param metrics Where the times are recorded.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     * @see SynchronizedHighscoresTable
+     */
+    public static HighscoresTable getSynchronizedImplementation(@NonNull ApplicationState initial, @NonNull MetricsRegistry metrics) {
+        return new SynchronizedHighscoresTable(initial, metrics);
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the state is changed only by a single writer thread, which applies
+     * the scores submitted by the other threads through a queue.
+     * @return An implementation of {@code HighscoresTable}.
+     * @see SingleWriterHighscoresTable
+     */
+    public static HighscoresTable getSingleWriterImplementation() {
+        return new SingleWriterHighscoresTable();
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the state is changed only by a single writer thread, which applies
+     * the scores submitted by the other threads through a queue.
+     * @param initial The initial state of the table, which also determines which {@link ApplicationState} engine is used.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+     * @see SingleWriterHighscoresTable
+     */
+    public static HighscoresTable getSingleWriterImplementation(@NonNull ApplicationState initial) {
+        return new SingleWriterHighscoresTable(initial, SingleWriterHighscoresTable.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the threads publish their scores into per-thread slots and whichever
+     * thread holds the combiner lock applies all the published scores in a single state transition.
+     * @return An implementation of {@code HighscoresTable}.
+     * @see FlatCombiningHighscoresTable
+     */
+    public static HighscoresTable getFlatCombiningImplementation() {
+        return new FlatCombiningHighscoresTable();
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the threads publish their scores into per-thread slots and whichever
+     * thread holds the combiner lock applies all the published scores in a single state transition.
+     * @param initial The initial state of the table, which also determines which {@link ApplicationState} engine is used.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+     * @see FlatCombiningHighscoresTable
+     */
+    public static HighscoresTable getFlatCombiningImplementation(@NonNull ApplicationState initial) {
+        return new FlatCombiningHighscoresTable(initial);
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the users are partitioned by their ids across as many independent
+     * states as available processors, each one held in its own {@link AtomicReference}.
+     * @return An implementation of {@code HighscoresTable}.
+     * @see ShardedHighscoresTable
+     */
+    public static HighscoresTable getShardedImplementation() {
+        return new ShardedHighscoresTable();
+    }
+
+    /**
+     * Creates an implementation of {@code HighscoresTable} where the users are partitioned by their ids across the given number of
+     * independent states, each one held in its own {@link AtomicReference}.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used in each shard.
+     * @param shardCount The number of shards.
+     * @return An implementation of {@code HighscoresTable}.
+     * @throws IllegalArgumentException If {@code empty} is {@code null} or not empty or if {@code shardCount} isn't positive.
+     * @see ShardedHighscoresTable
+     */
+    public static HighscoresTable getShardedImplementation(@NonNull ApplicationState empty, int shardCount) {
+        return new ShardedHighscoresTable(empty, shardCount);
+    }
+
     /**
      * Implementation of {@link HighscoresTable} that holds it state in an {@link AtomicReference}.
+     *
+     * <p>Each update builds a new state from the current one and then tries to replace the current one by it. If some other thread
+     * replaced the current state meanwhile, the built state is discarded and the update is retried. How many updates there were, how
+     * many times they were retried and how long was spent building the discarded states are recorded into a {@link MetricsRegistry},
+     * in the {@code pipatest_cas_updates_total}, {@code pipatest_cas_retries_total} and
+     * {@code pipatest_cas_wasted_build_duration_seconds} families.</p>
      * @author Victor Williams Stafusa da Silva
      */
     public static class CasHighscoresTable implements HighscoresTable {
@@ -68,21 +241,110 @@ public interface HighscoresTable {
         private final AtomicReference<ApplicationState> state;
 
         /**
-         * Creates a new initially empty {@code HighscoreTable}.
+         * Counts the updates.
+         */
+        @NonNull
+        private final Counter updates;
+
+        /**
+         * Counts the retried updates, which is also the number of discarded states.
+         */
+        @NonNull
+        private final Counter retries;
+
+        /**
+         * How long it took to build each discarded state.
+         */
+        @NonNull
+        private final Histogram wastedBuilds;
+
+        /**
+         * Creates a new initially empty {@code HighscoreTable} using the default {@link ApplicationState} engine.
          */
         public CasHighscoresTable() {
-            this.state = new AtomicReference<>(new ApplicationState());
+            this(ApplicationState.getDefaultImplementation());
+        }
+
+        /**
+         * Creates a new {@code HighscoreTable} starting at the given state.
+         * @param initial The initial state of the table.
+         * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+         */
+        public CasHighscoresTable(@NonNull ApplicationState initial) {
+            this(initial, new MetricsRegistry());
+        }
+
+        /**
+         * Creates a new {@code HighscoreTable} starting at the given state and recording its retries into the given registry.
+         * @param initial The initial state of the table.
+         * @param metrics Where the retries are recorded.
+         * @throws IllegalArgumentException If any parameter is {@code null}.
+         */
+        public CasHighscoresTable(@NonNull ApplicationState initial, @NonNull MetricsRegistry metrics) {
+            if (initial == null || metrics == null) throw new IllegalArgumentException();
+            this.state = new AtomicReference<>(initial);
+            this.updates = metrics.counter("pipatest_cas_updates_total", "Number of updates of the CAS table.");
+            this.retries = metrics.counter("pipatest_cas_retries_total", "Number of failed CAS, each one discarding a built state.");
+            this.wastedBuilds = metrics.histogram(
+                    "pipatest_cas_wasted_build_duration_seconds",
+                    "Time spent building each state discarded by a failed CAS.");
+        }
+
+        /**
+         * Replaces the current state by the one built from it by the given function, retrying if some other thread replaced it
+         * meanwhile, and records the retries.
+         * @param change Builds the new state from the current one.
+         */
+        private void update(@NonNull UnaryOperator<ApplicationState> change) {
+            int failed = 0;
+            while (true) {
+                ApplicationState current = state.get();
+                long start = System.nanoTime();
+                ApplicationState next = change.apply(current);
+                if (state.compareAndSet(current, next)) {
+                    FlightRecorderEvents.statePublished(this, current, next);
+                    break;
+                }
+                wastedBuilds.record(System.nanoTime() - start);
+                failed++;
+            }
+            updates.increment();
+            if (failed > 0) retries.add(failed);
         }
 
         /**
          * {@inheritDoc}
          * @param data {@inheritDoc}
          * @throws IllegalArgumentException {@inheritDoc}
+         * @throws ArithmeticException {@inheritDoc}
          */
         @Override
         public void addScore(@NonNull UserData data) {
             if (data == null) throw new IllegalArgumentException();
-            state.updateAndGet(s -> s.addScore(data));
+            update(s -> s.addScore(data));
+        }
+
+        /**
+         * {@inheritDoc}
+         * @param data {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         * @throws ArithmeticException {@inheritDoc}
+         */
+        @Override
+        public void addScores(@NonNull Collection<UserData> data) {
+            if (data == null) throw new IllegalArgumentException();
+            update(s -> s.addScores(data));
+        }
+
+        /**
+         * {@inheritDoc}
+         * @return {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public ApplicationState snapshot() {
+            return state.get();
         }
 
         /**
@@ -108,10 +370,43 @@ public interface HighscoresTable {
         public HighscoresTableData getHighScores(int maxUsers) {
             return state.get().getHighScores(maxUsers);
         }
+
+        /**
+         * {@inheritDoc}
+         * @param offset {@inheritDoc}
+         * @param limit {@inheritDoc}
+         * @return {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public HighscoresTableData getHighScores(int offset, int limit) {
+            return state.get().getHighScores(offset, limit);
+        }
+
+        /**
+         * {@inheritDoc}
+         * @param userId {@inheritDoc}
+         * @param above {@inheritDoc}
+         * @param below {@inheritDoc}
+         * @return {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+            return state.get().findNeighbours(userId, above, below);
+        }
     }
 
     /**
      * Implementation of {@link HighscoresTable} that holds it state guarded by synchronization.
+     *
+     * <p>How long each thread waited for the lock and then held it are recorded into a {@link MetricsRegistry}, in the
+     * {@code pipatest_lock_wait_duration_seconds} and {@code pipatest_lock_hold_duration_seconds} families, separately for updates
+     * (which build the new state while holding the lock) and reads (which just take the current state).</p>
      * @author Victor Williams Stafusa da Silva
      */
     public static class SynchronizedHighscoresTable implements HighscoresTable {
@@ -128,24 +423,140 @@ public interface HighscoresTable {
         private final Object lock;
 
         /**
-         * Creates a new initially empty {@code HighscoreTable}.
+         * How long each update waited for the lock.
+         */
+        @NonNull
+        private final Histogram updateWait;
+
+        /**
+         * How long each update held the lock.
+         */
+        @NonNull
+        private final Histogram updateHold;
+
+        /**
+         * How long each read waited for the lock.
+         */
+        @NonNull
+        private final Histogram readWait;
+
+        /**
+         * How long each read held the lock.
+         */
+        @NonNull
+        private final Histogram readHold;
+
+        /**
+         * Creates a new initially empty {@code HighscoreTable} using the default {@link ApplicationState} engine.
          */
         public SynchronizedHighscoresTable() {
-            this.state = new ApplicationState();
+            this(ApplicationState.getDefaultImplementation());
+        }
+
+        /**
+         * Creates a new {@code HighscoreTable} starting at the given state.
+         * @param initial The initial state of the table.
+         * @throws IllegalArgumentException If the {@code initial} is {@code null}.
+         */
+        public SynchronizedHighscoresTable(@NonNull ApplicationState initial) {
+            this(initial, new MetricsRegistry());
+        }
+
+        /**
+         * Creates a new {@code HighscoreTable} starting at the given state and recording how long its lock is waited for and held into
+         * the given registry.
+         * @param initial The initial state of the table.
+         * @param metrics Where the times are recorded.
+         * @throws IllegalArgumentException If any parameter is {@code null}.
+         */
+        public SynchronizedHighscoresTable(@NonNull ApplicationState initial, @NonNull MetricsRegistry metrics) {
+            if (initial == null || metrics == null) throw new IllegalArgumentException();
+            this.state = initial;
             this.lock = new Object();
+            String waitName = "pipatest_lock_wait_duration_seconds";
+            String waitHelp = "Time waiting for the lock of the synchronized table.";
+            String holdName = "pipatest_lock_hold_duration_seconds";
+            String holdHelp = "Time holding the lock of the synchronized table.";
+            this.updateWait = metrics.histogram(waitName, waitHelp, "operation", "update");
+            this.updateHold = metrics.histogram(holdName, holdHelp, "operation", "update");
+            this.readWait = metrics.histogram(waitName, waitHelp, "operation", "read");
+            this.readHold = metrics.histogram(holdName, holdHelp, "operation", "read");
+        }
+
+        /**
+         * Replaces the current state by the one built from it by the given function while holding the lock, and records how long the
+         * lock was waited for and held. If the function fails, nothing is recorded.
+         * @param change Builds the new state from the current one.
+         */
+        private void update(@NonNull UnaryOperator<ApplicationState> change) {
+            long start = System.nanoTime();
+            long acquired;
+            ApplicationState previous;
+            ApplicationState next;
+            synchronized (lock) {
+                acquired = System.nanoTime();
+                previous = state;
+                next = change.apply(previous);
+                state = next;
+            }
+            long released = System.nanoTime();
+            updateWait.record(acquired - start);
+            updateHold.record(released - acquired);
+            FlightRecorderEvents.statePublished(this, previous, next);
+        }
+
+        /**
+         * Gives the current state, which is read while holding the lock, and records how long the lock was waited for and held.
+         * @return The current state.
+         */
+        @NonNull
+        private ApplicationState current() {
+            long start = System.nanoTime();
+            long acquired;
+            ApplicationState current;
+            synchronized (lock) {
+                acquired = System.nanoTime();
+                current = state;
+            }
+            long released = System.nanoTime();
+            readWait.record(acquired - start);
+            readHold.record(released - acquired);
+            return current;
         }
 
         /**
          * {@inheritDoc}
          * @param data {@inheritDoc}
          * @throws IllegalArgumentException {@inheritDoc}
+         * @throws ArithmeticException {@inheritDoc}
          */
         @Override
         public void addScore(@NonNull UserData data) {
             if (data == null) throw new IllegalArgumentException();
-            synchronized (lock) {
-                state = state.addScore(data);
-            }
+            update(s -> s.addScore(data));
+        }
+
+        /**
+         * {@inheritDoc}
+         * @param data {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         * @throws ArithmeticException {@inheritDoc}
+         */
+        @Override
+        public void addScores(@NonNull Collection<UserData> data) {
+            if (data == null) throw new IllegalArgumentException();
+            update(s -> s.addScores(data));
+        }
+
+        /**
+         * {@inheritDoc}
+         * @return {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public ApplicationState snapshot() {
+            return current();
         }
 
         /**
@@ -157,11 +568,7 @@ public interface HighscoresTable {
         @Override
         @CheckReturnValue
         public Optional<PositionedUserData> findUser(long userId) {
-            ApplicationState current;
-            synchronized (lock) {
-                current = state;
-            }
-            return current.findUser(userId);
+            return current().findUser(userId);
         }
 
         /**
@@ -173,11 +580,36 @@ public interface HighscoresTable {
         @Override
         @CheckReturnValue
         public HighscoresTableData getHighScores(int maxUsers) {
-            ApplicationState current;
-            synchronized (lock) {
-                current = state;
-            }
-            return current.getHighScores(maxUsers);
+            return current().getHighScores(maxUsers);
+        }
+
+        /**
+         * {@inheritDoc}
+         * @param offset {@inheritDoc}
+         * @param limit {@inheritDoc}
+         * @return {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public HighscoresTableData getHighScores(int offset, int limit) {
+            return current().getHighScores(offset, limit);
+        }
+
+        /**
+         * {@inheritDoc}
+         * @param userId {@inheritDoc}
+         * @param above {@inheritDoc}
+         * @param below {@inheritDoc}
+         * @return {@inheritDoc}
+         * @throws IllegalArgumentException {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        @CheckReturnValue
+        public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+            return current().findNeighbours(userId, above, below);
         }
     }
 }
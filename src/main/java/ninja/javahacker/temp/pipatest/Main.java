@@ -1,7 +1,44 @@
 package ninja.javahacker.temp.pipatest;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import ninja.javahacker.temp.pipatest.metrics.InstrumentedHighscoresTable;
+import ninja.javahacker.temp.pipatest.metrics.MetricsRegistry;
+import ninja.javahacker.temp.pipatest.persistence.DurableHighscoresTable;
+import ninja.javahacker.temp.pipatest.persistence.ScoreEventLog;
+
 /**
  * Main class for running the HTTP-based highscores table program.
+ *
+ * <p>The program is configured by the following system properties:</p>
+ * <ul>
+ *     <li>{@code pipatest.port} - The HTTP port. Defaults to 7002.</li>
+ *     <li>{@code pipatest.table} - Which {@link HighscoresTable} implementation is used: {@code synchronized} (the default),
+ *         {@code cas}, {@code single-writer}, {@code flat-combining} or {@code sharded}. The last one can't be used together with
+ *         {@code pipatest.log.dir}.</li>
+ *     <li>{@code pipatest.log.dir} - The directory of the log of score events and of the snapshots. If absent, the scores are kept
+ *         only in memory and are lost when the program stops. If present, the most recent snapshot is loaded and the scores in the
+ *         log after it are replayed at startup and each new score is written into the log before being acknowledged.</li>
+ *     <li>{@code pipatest.log.batch} - The maximum number of score events written into the log with a single {@code fsync}.
+ *         Defaults to {@value ScoreEventLog#DEFAULT_MAX_BATCH}.</li>
+ *     <li>{@code pipatest.log.lingerMillis} - How long the log waits for more score events before writing them, in milliseconds.
+ *         Defaults to 0, which means that it writes right away whatever arrived while the previous {@code fsync} was running.</li>
+ *     <li>{@code pipatest.snapshot.intervalSeconds} - How long to wait between writing snapshots of the table, in seconds. Defaults
+ *         to 300. If it is 0, no snapshot is written and the whole log is replayed at startup.</li>
+ *     <li>{@code pipatest.snapshot.compactEvery} - How many incremental snapshots, with just the changes since the previous one, are
+ *         written between two full snapshots. Defaults to {@value DurableHighscoresTable#DEFAULT_COMPACT_EVERY}. If it is 0, every
+ *         snapshot is a full one.</li>
+ *     <li>{@code pipatest.jfr} - Whether JDK Flight Recorder events are emitted, if the JVM has the Flight Recorder. Defaults to
+ *         {@code true}. The events are only recorded while some recording has them enabled.</li>
+ *     <li>{@code pipatest.countNodes} - Whether the tree nodes allocated by each change of the state are counted, in order to be
+ *         reported in the Flight Recorder events. Defaults to {@code false}.</li>
+ * </ul>
+ *
+ * <p>The metrics of the server and of the highscores table are exposed in the Prometheus text format in the "/metrics" route.</p>
  * @author Victor Williams Stafusa da Silva
  */
 public class Main {
@@ -9,10 +46,79 @@ public class Main {
     /**
      * The method that would be called by the OS/JVM to start the application.
      * @param args The command line arguments. However, this is not used is any way afterall.
+     * @throws IOException If the log of score events couldn't be read or opened.
+     * @throws IllegalArgumentException If the {@code pipatest.table} system property doesn't name a usable implementation.
      */
-    public static void main(String[] args) {
-        GameServer gs = new GameServer(7002);
+    public static void main(String[] args) throws IOException {
+        int port = Integer.getInteger("pipatest.port", 7002);
+        String logDir = System.getProperty("pipatest.log.dir");
+        String implementation = System.getProperty("pipatest.table", "synchronized");
+        MetricsRegistry metrics = new MetricsRegistry();
+        HighscoresTable table;
+        if (implementation.equals("sharded")) {
+            if (logDir != null) throw new IllegalArgumentException("The sharded table can't be used with pipatest.log.dir.");
+            table = HighscoresTable.getShardedImplementation();
+        } else if (logDir == null) {
+            table = tableFactory(implementation, metrics).apply(ApplicationState.getDefaultImplementation());
+        } else {
+            int batch = Integer.getInteger("pipatest.log.batch", ScoreEventLog.DEFAULT_MAX_BATCH);
+            long linger = Long.getLong("pipatest.log.lingerMillis", 0L);
+            long interval = Long.getLong("pipatest.snapshot.intervalSeconds", 300L);
+            int compactEvery = Integer.getInteger("pipatest.snapshot.compactEvery", DurableHighscoresTable.DEFAULT_COMPACT_EVERY);
+            DurableHighscoresTable durable = DurableHighscoresTable.open(
+                    ApplicationState.getDefaultImplementation(),
+                    tableFactory(implementation, metrics),
+                    Paths.get(logDir),
+                    batch,
+                    linger,
+                    compactEvery);
+            Runtime.getRuntime().addShutdownHook(new Thread(durable::close));
+            if (interval > 0) scheduleCheckpoints(durable, interval);
+            table = durable;
+        }
+        GameServer gs = new GameServer(port, new InstrumentedHighscoresTable(table, metrics), metrics);
         System.out.println("We launched!");
         System.out.println("Check out Swagger UI docs at " + gs.getSwaggerUrl());
     }
+
+    /**
+     * Gives the function that creates the {@link HighscoresTable} implementation with the given name from its initial state.
+     * @param implementation The name of the implementation.
+     * @param metrics Where the implementations that measure their contention record it.
+     * @return The function that creates the {@link HighscoresTable} implementation.
+     * @throws IllegalArgumentException If there is no implementation with the given name.
+     */
+    private static Function<ApplicationState, HighscoresTable> tableFactory(String implementation, MetricsRegistry metrics) {
+        switch (implementation) {
+            case "synchronized":
+                return initial -> HighscoresTable.getSynchronizedImplementation(initial, metrics);
+            case "cas":
+                return initial -> HighscoresTable.getCasImplementation(initial, metrics);
+            case "single-writer":
+                return HighscoresTable::getSingleWriterImplementation;
+            case "flat-combining":
+                return HighscoresTable::getFlatCombiningImplementation;
+            default:
+                throw new IllegalArgumentException("Unknown table implementation: " + implementation);
+        }
+    }
+
+    /**
+     * Periodically writes snapshots of the given table in a background thread. A failed snapshot is reported and retried in the next
+     * period.
+     * @param table The table.
+     * @param intervalSeconds How long to wait between writing snapshots, in seconds.
+     */
+    private static void scheduleCheckpoints(DurableHighscoresTable table, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "score-snapshot-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        Runnable checkpoint = () -> table.checkpoint().exceptionally(e -> {
+            System.err.println("Couldn't write a snapshot: " + e);
+            return null;
+        }).join();
+        scheduler.scheduleWithFixedDelay(checkpoint, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
 }
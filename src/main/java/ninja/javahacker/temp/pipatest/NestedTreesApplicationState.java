@@ -0,0 +1,425 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import net.jcip.annotations.Immutable;
+import ninja.javahacker.temp.pipatest.avl.ImmutableLongWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserConsumer;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserConsumer;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+
+/**
+ * Implementation of {@link ApplicationState} where the state is maintained in a set of immutable weighted AVL trees, the one that
+ * keeps the users ordered by their points having nested trees of tied users. The state itself is immutable and the operation that adds
+ * a score to a user actually creates a new state.
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class NestedTreesApplicationState implements ApplicationState {
+
+    /**
+     * Map the users from the number os points that each one achieved. This is an {@code ImmutableWeightedAvlTree} because we need
+     * an immutable class with {@code O(log N)} complexity for search and changes (which actually creates new instances). Since we
+     * might have several users with the same number of points, we use a second-level nested {@code ImmutableLongWeightedAvlTree} for
+     * keeping their users' ids.
+     *
+     * <p>In the internal {@code ImmutableLongWeightedAvlTree} we have interest in the users' ids with are kept as the keys of the tree.
+     * We have no interest in the values themselves kept in the tree, so they are all zero.</p>
+     *
+     * <p>Each node in the external {@code ImmutableWeightedAvlTree} has a weight that is the total weight of
+     * the internal {@code ImmutableLongWeightedAvlTree}. Each node in the internal {@code ImmutableLongWeightedAvlTree} has a weight
+     * of 1.</p>
+     */
+    @NonNull
+    private final ImmutableWeightedAvlTree<Long, ImmutableLongWeightedAvlTree> pointsToUsers;
+
+    /**
+     * Map the users from their ids to their number of points. This is an {@code ImmutableLongWeightedAvlTree} because we need
+     * an immutable class with {@code O(log N)} complexity for search and changes (which actually creates new instances) and we
+     * don't want to box neither the users' ids nor their points.
+     */
+    @NonNull
+    private final ImmutableLongWeightedAvlTree usersToPoints;
+
+    /**
+     * The version of this state. The initial state has version zero and each state derived from another one has the next version.
+     */
+    private final long version;
+
+    /**
+     * Constructor for the initial state of the application, which is empty and features no users.
+     */
+    public NestedTreesApplicationState() {
+        this.pointsToUsers = new ImmutableWeightedAvlTree<>();
+        this.usersToPoints = new ImmutableLongWeightedAvlTree();
+        this.version = 0L;
+    }
+
+    /**
+     * Constructor for the non-initial states of the application, which features a lot of users with different scores.
+     * @param pointsToUsers The value for the {@link NestedTreesApplicationState#pointsToUsers pointsToUsers} field.
+     * @param usersToPoints The value for the {@link NestedTreesApplicationState#usersToPoints usersToPoints} field.
+     * @param version The value for the {@link NestedTreesApplicationState#version version} field.
+     */
+    private NestedTreesApplicationState(
+            ImmutableWeightedAvlTree<Long, ImmutableLongWeightedAvlTree> pointsToUsers,
+            ImmutableLongWeightedAvlTree usersToPoints,
+            long version)
+    {
+        this.pointsToUsers = pointsToUsers;
+        this.usersToPoints = usersToPoints;
+        this.version = version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public NestedTreesApplicationState addScore(@NonNull UserData data) {
+        Object event = FlightRecorderEvents.beginAddScore();
+        NestedTreesApplicationState next = applyScore(data);
+        FlightRecorderEvents.endAddScore(event, data);
+        return next;
+    }
+
+    /**
+     * Creates a new state with the given user points added. This does the actual work of the {@link #addScore(UserData) addScore}
+     * method, which just wraps it in a Flight Recorder event.
+     * @param data The user data containing the user id and the quantity of points that s/he scored.
+     * @return A new state for the application.
+     * @throws ArithmeticException If the points of the user overflow.
+     */
+    @NonNull
+    @CheckReturnValue
+    private NestedTreesApplicationState applyScore(@NonNull UserData data) {
+
+        // Starts unwrapping the data.
+        long id = data.getUserId();
+        long earnedPoints = data.getPoints();
+
+        // Use this variable as sketch for new pointsToUsers.
+        ImmutableWeightedAvlTree<Long, ImmutableLongWeightedAvlTree> newPointsToUsers = pointsToUsers;
+
+        // Find out how many points the given user has and also if s/he even exist in the table so far.
+        // Complexity of this step is O(log n).
+        OptionalLong optCurrentPoints = usersToPoints.get(id);
+        long currentPoints = optCurrentPoints.orElse(0L);
+        long newPoints = Math.addExact(currentPoints, earnedPoints);
+
+        // If the user already existed, we need to delete it from the newPointsToUsers tree first before re-adding it.
+        // We don't need to caare bout deleting it from the usersToPoints because the number of points will be replaced anyway.
+        if (optCurrentPoints.isPresent()) {
+
+            // If the user already existed and got zero new points, there is no change after all.
+            if (earnedPoints == 0) return this;
+
+            // Remove it from the internal tree of the sketch of the pointsToUsers. If the internal tree degenerated to an empty tree,
+            // remove it from the external tree. Otherwise, replace the old internal tree by the new one.
+            // Complexity of this step is two O(log n) operations, one in the external tree and one in the internal tree.
+            newPointsToUsers = newPointsToUsers.update(
+                    currentPoints,
+                    ImmutableLongWeightedAvlTree::getTotalWeight,
+                    old -> Optional.of(old.orElseThrow(AssertionError::new).remove(id)).filter(t -> !t.isEmpty()));
+        }
+
+        // Find out the internal node of the sketch of the pointsToUsers where the user should be added or create a new tree for that.
+        // Then, add the user in the internal tree and replace the internal tree in the external one.
+        // Complexity of this step is two O(log n) operations, one in the external tree and one in the internal tree.
+        newPointsToUsers = newPointsToUsers.update(
+                newPoints,
+                ImmutableLongWeightedAvlTree::getTotalWeight,
+                old -> Optional.of(old.orElseGet(ImmutableLongWeightedAvlTree::new).put(id, 1, 0L)));
+
+        // Finally, update the usersToPoints. This have a complexity of O(log n).
+        ImmutableLongWeightedAvlTree newUsersToPoints = usersToPoints.put(id, 0, newPoints);
+
+        // Produce a new state.
+        // The total complexity is 6 operations of O(log n) size plus some O(1) operations.
+        return new NestedTreesApplicationState(newPointsToUsers, newUsersToPoints, version + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, the whole batch is merged into each tree at once with the {@code updateSorted}, {@code putSorted} and
+     * {@code removeSorted} methods of the trees, instead of adding the users one by one, so every node of the trees is copied at most
+     * once for each of those merges. The changed users are grouped by their old points, which are removed from the internal trees of
+     * the {@code pointsToUsers} in a single pass over the external tree, and then by their new points, which are added in another one.
+     * The version of the new state is increased by the number of changed users, just as if they were added one by one.</p>
+     *
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public NestedTreesApplicationState addScores(@NonNull Collection<UserData> data) {
+        ScoreChanges changes = ScoreChanges.of(ScoreDeltas.of(data), usersToPoints);
+        int count = changes.getCount();
+        if (count == 0) return this;
+
+        // Remove the users that already existed from the internal trees of their old points, dropping the ones that became empty.
+        UsersByPoints leaving = changes.leaving();
+        ImmutableWeightedAvlTree<Long, ImmutableLongWeightedAvlTree> newPointsToUsers = pointsToUsers.updateSorted(
+                leaving.getGroupCount(),
+                leaving::getPoints,
+                ImmutableLongWeightedAvlTree::getTotalWeight,
+                (group, old) -> Optional.of(old.orElseThrow(AssertionError::new)
+                        .removeSorted(leaving.getGroupSize(group), i -> leaving.getUserId(group, i)))
+                        .filter(t -> !t.isEmpty()));
+
+        // Add all the changed users into the internal trees of their new points, creating the missing ones.
+        UsersByPoints arriving = changes.arriving();
+        newPointsToUsers = newPointsToUsers.updateSorted(
+                arriving.getGroupCount(),
+                arriving::getPoints,
+                ImmutableLongWeightedAvlTree::getTotalWeight,
+                (group, old) -> Optional.of(old.orElseGet(ImmutableLongWeightedAvlTree::new)
+                        .putSorted(arriving.getGroupSize(group), i -> arriving.getUserId(group, i), i -> 1, i -> 0L)));
+
+        ImmutableLongWeightedAvlTree newUsersToPoints = usersToPoints.putSorted(
+                count,
+                changes::getUserId,
+                i -> 0,
+                changes::getNewPoints);
+        return new NestedTreesApplicationState(newPointsToUsers, newUsersToPoints, version + count);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUser(@NonNull UserConsumer action) {
+        if (action == null) throw new IllegalArgumentException();
+        usersToPoints.forEach((userId, points, unusedA, unusedB, unusedC) -> action.accept(userId, points));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, if the older state is also a {@code NestedTreesApplicationState}, just the changes are given, by comparing
+     * the {@code usersToPoints} trees of both states, which share every subtree not touched by the changes.</p>
+     *
+     * @param older {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUserChangedSince(@NonNull ApplicationState older, @NonNull UserConsumer action) {
+        if (older == null || action == null) throw new IllegalArgumentException();
+        if (!(older instanceof NestedTreesApplicationState)) {
+            forEachUser(action);
+            return;
+        }
+        ImmutableLongWeightedAvlTree olderUsers = ((NestedTreesApplicationState) older).usersToPoints;
+        usersToPoints.forEachChange(olderUsers, (userId, unusedA, unusedB, inNewer, points) -> {
+            if (inNewer) action.accept(userId, points);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, all the trees are built straight from the users with the {@code fromSorted} methods of the trees,
+     * instead of adding the users one by one. The {@code usersToPoints} tree is built in {@code O(n)} time, since the users are
+     * already in the order of their ids. For the {@code pointsToUsers} tree, the users are grouped by their points first, which takes
+     * {@code O(n log m)} time, where {@code m} is the number of distinct points, and then the external tree and all the internal trees
+     * are built in {@code O(n)} time.</p>
+     *
+     * @param userIds {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param count {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public NestedTreesApplicationState loadUsers(@NonNull long[] userIds, @NonNull long[] points, int count) {
+        if (getUserCount() != 0) throw new IllegalArgumentException();
+        UsersByPoints groups = UsersByPoints.of(userIds, points, count);
+        ImmutableLongWeightedAvlTree newUsersToPoints = ImmutableLongWeightedAvlTree.fromSorted(
+                count,
+                i -> userIds[i],
+                i -> 0,
+                i -> points[i]);
+
+        // Each node of the external tree is a group of tied users, whose internal tree is built from the group.
+        ImmutableWeightedAvlTree<Long, ImmutableLongWeightedAvlTree> newPointsToUsers = ImmutableWeightedAvlTree.fromSorted(
+                groups.getGroupCount(),
+                groups::getPoints,
+                groups::getGroupSize,
+                group -> ImmutableLongWeightedAvlTree.fromSorted(
+                        groups.getGroupSize(group),
+                        i -> groups.getUserId(group, i),
+                        i -> 1,
+                        i -> 0L));
+        return new NestedTreesApplicationState(newPointsToUsers, newUsersToPoints, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        OptionalLong points = usersToPoints.get(userId);
+        if (!points.isPresent()) return Optional.empty();
+        int position = 1 + pointsToUsers.getRightWeight(points.getAsLong()).orElseThrow(AssertionError::new);
+        return Optional.of(new PositionedUserData(userId, points.getAsLong(), position));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public OptionalLong findPoints(long userId) {
+        return usersToPoints.get(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachHighScore(int offset, int limit, @NonNull PositionedUserConsumer action) {
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException();
+
+        // Find out the node in the pointsToUsers tree where the first user is. The weight to the right of it is how many users with
+        // more points there are, so we skip that many users inside its internal tree in order to find out the first user.
+        Optional<ImmutableWeightedAvlTree.Entry<Long, ImmutableLongWeightedAvlTree>> first = pointsToUsers.selectByWeightReverse(offset);
+        if (!first.isPresent() || limit == 0) return;
+        long firstPoints = first.get().getKey();
+        long firstUserId = first.get().getValue()
+                .selectByWeight(offset - first.get().getRightWeight())
+                .orElseThrow(AssertionError::new)
+                .getKey();
+
+        // How many users still should be given to the action.
+        int[] remaining = {limit};
+
+        // Traverse the pointsToUsers tree starting from the first user and give the users' data to the action until the limit.
+        // Iterate the users by points in reverse order. I.E. from the users with most points to the users with less points.
+        // The weight of each node is the number of users tied in the node. The weight to the right, how many users with more
+        // points and the weight to the left, how many with less points.
+        pointsToUsers.forEachReverseFromWhile(firstPoints, (points, tiedUsers, howManyWithLessPoints, howManyTied, howManyWithMore) -> {
+            long p = points;
+            int position = howManyWithMore + 1;
+
+            // Each of the internal nodes of the pointsToUsers are a ImmutableWeightedAvlTree ordered by the userId. Iterate
+            // it in order to get the users' id, stopping when we reach the limit.
+            ImmutableLongWeightedAvlTree.StoppableTraversalAction collector = (userId, zero, unusedA, unusedB, unusedC) -> {
+                action.accept(userId, p, position);
+                return --remaining[0] != 0;
+            };
+
+            // In the first internal tree, we should skip the users before the first one.
+            return p == firstPoints ? tiedUsers.forEachFromWhile(firstUserId, collector) : tiedUsers.forEachWhile(collector);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int getUserCount() {
+        return pointsToUsers.getTotalWeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, this takes {@code O(1)} time, since there is a node in the {@code pointsToUsers} tree for each
+     * distinct points.</p>
+     *
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public OptionalInt getDistinctScoreCount() {
+        return OptionalInt.of(pointsToUsers.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int countUsersListedBefore(long points, long userId) {
+
+        // The users with more points are the ones in the nodes to the right of the given points, existing or not.
+        // The tied users with smaller ids, if any, are the ones to the left of the given user inside the internal tree.
+        int withMorePoints = pointsToUsers.getWeightAfter(points);
+        Optional<ImmutableLongWeightedAvlTree> tiedUsers = pointsToUsers.get(points);
+        return withMorePoints + (tiedUsers.isPresent() ? tiedUsers.get().getWeightBefore(userId) : 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        if (above < 0 || below < 0) throw new IllegalArgumentException();
+        OptionalLong points = usersToPoints.get(userId);
+        if (!points.isPresent()) return Optional.empty();
+
+        // The index of the user in the list is the number of users with more points plus the number of tied users with smaller ids.
+        long p = points.getAsLong();
+        int index = pointsToUsers.getRightWeight(p).orElseThrow(AssertionError::new)
+                + pointsToUsers.get(p).orElseThrow(AssertionError::new).getLeftWeight(userId).orElseThrow(AssertionError::new);
+        int offset = Math.max(0, index - above);
+        return Optional.of(getHighScores(offset, (int) Math.min(Integer.MAX_VALUE, (long) index - offset + 1 + below)));
+    }
+}
@@ -0,0 +1,169 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Collection;
+import java.util.OptionalLong;
+import net.jcip.annotations.Immutable;
+import ninja.javahacker.temp.pipatest.avl.ImmutableLongWeightedAvlTree;
+
+/**
+ * Finds out how the points of the users change when a batch of {@link ScoreDeltas} is added to a state, so that the
+ * {@link ApplicationState} engines are able to merge the whole batch into their trees at once in the
+ * {@link ApplicationState#addScores(Collection) addScores} method.
+ *
+ * <p>Users that already exist and scored no points are left out, since they don't change at all. Every other user gets new points
+ * and the ones that already existed also leave their old points behind. Both are kept in the ascending order of their ids, in
+ * primitive arrays, and might be grouped by their points with the {@link UsersByPoints} class.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+final class ScoreChanges {
+
+    /**
+     * The ids of the changed users, in ascending order. Only the first {@link #count} elements are used.
+     */
+    @NonNull
+    private final long[] userIds;
+
+    /**
+     * The new points of each changed user, in the same order as {@link #userIds}. Only the first {@link #count} elements are used.
+     */
+    @NonNull
+    private final long[] newPoints;
+
+    /**
+     * How many users changed.
+     */
+    private final int count;
+
+    /**
+     * The ids of the changed users that already existed, in ascending order. Only the first {@link #movedCount} elements are used.
+     */
+    @NonNull
+    private final long[] movedIds;
+
+    /**
+     * The old points of each changed user that already existed, in the same order as {@link #movedIds}. Only the first
+     * {@link #movedCount} elements are used.
+     */
+    @NonNull
+    private final long[] oldPoints;
+
+    /**
+     * How many changed users already existed.
+     */
+    private final int movedCount;
+
+    /**
+     * Creates an instance from its values.
+     * @param userIds The value for the {@link #userIds} field.
+     * @param newPoints The value for the {@link #newPoints} field.
+     * @param count The value for the {@link #count} field.
+     * @param movedIds The value for the {@link #movedIds} field.
+     * @param oldPoints The value for the {@link #oldPoints} field.
+     * @param movedCount The value for the {@link #movedCount} field.
+     */
+    private ScoreChanges(
+            @NonNull long[] userIds,
+            @NonNull long[] newPoints,
+            int count,
+            @NonNull long[] movedIds,
+            @NonNull long[] oldPoints,
+            int movedCount)
+    {
+        this.userIds = userIds;
+        this.newPoints = newPoints;
+        this.count = count;
+        this.movedIds = movedIds;
+        this.oldPoints = oldPoints;
+        this.movedCount = movedCount;
+    }
+
+    /**
+     * Finds out how the points of the users change when the given deltas are added to the given points.
+     * @param deltas The sum of the points scored by each user.
+     * @param usersToPoints The current points of each user, keyed by their ids.
+     * @return How the points of the users change.
+     * @throws ArithmeticException If the points of some user overflow.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static ScoreChanges of(@NonNull ScoreDeltas deltas, @NonNull ImmutableLongWeightedAvlTree usersToPoints) {
+        int size = deltas.getCount();
+        long[] userIds = new long[size];
+        long[] newPoints = new long[size];
+        long[] movedIds = new long[size];
+        long[] oldPoints = new long[size];
+        int count = 0;
+        int movedCount = 0;
+        for (int i = 0; i < size; i++) {
+            long userId = deltas.getUserId(i);
+            long delta = deltas.getPoints(i);
+            OptionalLong old = usersToPoints.get(userId);
+            if (old.isPresent() && delta == 0) continue;
+            long oldValue = old.orElse(0L);
+            userIds[count] = userId;
+            newPoints[count] = Math.addExact(oldValue, delta);
+            count++;
+            if (old.isPresent()) {
+                movedIds[movedCount] = userId;
+                oldPoints[movedCount] = oldValue;
+                movedCount++;
+            }
+        }
+        return new ScoreChanges(userIds, newPoints, count, movedIds, oldPoints, movedCount);
+    }
+
+    /**
+     * Gives the number of changed users.
+     * @return The number of changed users.
+     */
+    @CheckReturnValue
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gives the id of one of the changed users. The users are in the ascending order of their ids.
+     * @param index The index of the user.
+     * @return The id of the user.
+     */
+    @CheckReturnValue
+    public long getUserId(int index) {
+        return userIds[index];
+    }
+
+    /**
+     * Gives the new points of one of the changed users.
+     * @param index The index of the user.
+     * @return The new points of the user.
+     */
+    @CheckReturnValue
+    public long getNewPoints(int index) {
+        return newPoints[index];
+    }
+
+    /**
+     * Groups the changed users by their new points.
+     * @return The changed users grouped by their new points.
+     */
+    @NonNull
+    @CheckReturnValue
+    public UsersByPoints arriving() {
+        return UsersByPoints.of(userIds, newPoints, count);
+    }
+
+    /**
+     * Groups the changed users that already existed by their old points.
+     * @return The changed users that already existed grouped by their old points.
+     */
+    @NonNull
+    @CheckReturnValue
+    public UsersByPoints leaving() {
+        return UsersByPoints.of(movedIds, oldPoints, movedCount);
+    }
+}
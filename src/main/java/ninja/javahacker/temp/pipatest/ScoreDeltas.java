@@ -0,0 +1,114 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.Collection;
+import net.jcip.annotations.Immutable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * Sums up the points of a batch of scores for each distinct user, so that the {@link ApplicationState} engines are able to change each
+ * user only once and in the ascending order of their ids when adding the batch with the
+ * {@link ApplicationState#addScores(Collection) addScores} method.
+ *
+ * <p>The ids are sorted and the repeated ones are removed, and then the points of each score are summed into the slot of its user,
+ * found with a binary search. Everything is kept in primitive arrays, so nothing is allocated for each score.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+final class ScoreDeltas {
+
+    /**
+     * The distinct ids of the users, in ascending order.
+     */
+    @NonNull
+    private final long[] userIds;
+
+    /**
+     * The sum of the points scored by each user, in the same order as {@link #userIds}.
+     */
+    @NonNull
+    private final long[] points;
+
+    /**
+     * Creates an instance from its values.
+     * @param userIds The value for the {@link #userIds} field.
+     * @param points The value for the {@link #points} field.
+     */
+    private ScoreDeltas(@NonNull long[] userIds, @NonNull long[] points) {
+        this.userIds = userIds;
+        this.points = points;
+    }
+
+    /**
+     * Sums up the points of the given scores for each distinct user. This takes {@code O(n log n)} time.
+     * @param data The users' data, each one containing the user id and the quantity of points that s/he scored.
+     * @return The sum of the points scored by each distinct user.
+     * @throws IllegalArgumentException If the {@code data} is {@code null} or contains {@code null}.
+     * @throws ArithmeticException If the sum of the points of some user overflows.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static ScoreDeltas of(@NonNull Collection<UserData> data) {
+        if (data == null) throw new IllegalArgumentException();
+        long[] ids = new long[data.size()];
+        long[] scored = new long[ids.length];
+        int n = 0;
+        for (UserData d : data) {
+            if (d == null) throw new IllegalArgumentException();
+            ids[n] = d.getUserId();
+            scored[n] = d.getPoints();
+            n++;
+        }
+
+        // Sort the ids and remove the repeated ones.
+        long[] sorted = Arrays.copyOf(ids, n);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+        }
+        long[] distinctIds = Arrays.copyOf(sorted, distinct);
+
+        // Sum the points of each user, in the order that they were given.
+        long[] sums = new long[distinct];
+        for (int i = 0; i < n; i++) {
+            int slot = Arrays.binarySearch(distinctIds, ids[i]);
+            sums[slot] = Math.addExact(sums[slot], scored[i]);
+        }
+        return new ScoreDeltas(distinctIds, sums);
+    }
+
+    /**
+     * Gives the number of distinct users.
+     * @return The number of distinct users.
+     */
+    @CheckReturnValue
+    public int getCount() {
+        return userIds.length;
+    }
+
+    /**
+     * Gives the id of one of the users. The users are in the ascending order of their ids.
+     * @param index The index of the user.
+     * @return The id of the user.
+     */
+    @CheckReturnValue
+    public long getUserId(int index) {
+        return userIds[index];
+    }
+
+    /**
+     * Gives the sum of the points scored by one of the users.
+     * @param index The index of the user.
+     * @return The sum of the points scored by the user.
+     */
+    @CheckReturnValue
+    public long getPoints(int index) {
+        return points[index];
+    }
+}
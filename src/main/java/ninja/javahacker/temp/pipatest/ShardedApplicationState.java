@@ -0,0 +1,578 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import net.jcip.annotations.Immutable;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserConsumer;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserConsumer;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * Implementation of {@link ApplicationState} where the users are partitioned by their ids across several independent states, named
+ * shards. Each user always belongs to the same shard, which is given by his/her id modulo the number of shards. The state itself is
+ * immutable and the operation that adds a score to a user actually creates a new state, where only the shard of that user changes.
+ *
+ * <p>The position of a user is found out by summing how many users have more points in each shard, which takes
+ * {@code O(shards · log n)} time. A page of the high scores list is produced by first finding out where it starts in each shard, with
+ * binary searches over the points and then over the ids of the tied users, and then by a lazy k-way merge of the shards from there,
+ * which reads from each shard only a little more than what it contributes to the page. That takes
+ * {@code O(64 · shards · log n + shards · limit)} time, regardless of the offset.</p>
+ *
+ * <p>The users with the same points might be in any shard, so this doesn't keep track of how many distinct points the users have.</p>
+ *
+ * <p>This is mainly used by the {@link ShardedHighscoresTable} to give consistent snapshots of its shards.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class ShardedApplicationState implements ApplicationState {
+
+    /**
+     * The shards. This array is never modified after the construction.
+     */
+    @NonNull
+    private final ApplicationState[] shards;
+
+    /**
+     * Creates a state from the given shards.
+     * @param shards The shards. The array is copied.
+     * @throws IllegalArgumentException If {@code shards} is {@code null}, empty or contains {@code null}.
+     */
+    public ShardedApplicationState(@NonNull ApplicationState... shards) {
+        if (shards == null || shards.length == 0) throw new IllegalArgumentException();
+        this.shards = shards.clone();
+        for (ApplicationState s : this.shards) {
+            if (s == null) throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Gives the index of the shard where the given user belongs.
+     * @param userId The id of the user.
+     * @param shardCount The number of shards.
+     * @return The index of the shard where the given user belongs.
+     */
+    @CheckReturnValue
+    static int shardOf(long userId, int shardCount) {
+        return (int) Math.floorMod(userId, (long) shardCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ShardedApplicationState addScore(@NonNull UserData data) {
+        int index = shardOf(data.getUserId(), shards.length);
+        ApplicationState changed = shards[index].addScore(data);
+        if (changed == shards[index]) return this;
+        ApplicationState[] newShards = shards.clone();
+        newShards[index] = changed;
+        return new ShardedApplicationState(newShards);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Each shard receives only its own users and the shards are replaced all at once in the new state.</p>
+     *
+     * @param data {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ShardedApplicationState addScores(@NonNull Collection<UserData> data) {
+        ApplicationState[] newShards = shards.clone();
+        List<List<UserData>> groups = groupByShard(data, shards.length);
+        boolean changed = false;
+        for (int i = 0; i < shards.length; i++) {
+            if (!groups.get(i).isEmpty()) newShards[i] = shards[i].addScores(groups.get(i));
+            changed |= newShards[i] != shards[i];
+        }
+        return changed ? new ShardedApplicationState(newShards) : this;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Each shard loads only its own users, which keep the ascending order of their ids.</p>
+     *
+     * @param userIds {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param count {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ShardedApplicationState loadUsers(@NonNull long[] userIds, @NonNull long[] points, int count) {
+        if (getUserCount() != 0 || userIds == null || points == null || count < 0) throw new IllegalArgumentException();
+        if (userIds.length < count || points.length < count) throw new IllegalArgumentException();
+        int[] sizes = new int[shards.length];
+        for (int i = 0; i < count; i++) {
+            if (userIds[i] < 0 || (i > 0 && userIds[i - 1] >= userIds[i])) throw new IllegalArgumentException();
+            sizes[shardOf(userIds[i], shards.length)]++;
+        }
+        long[][] shardIds = new long[shards.length][];
+        long[][] shardPoints = new long[shards.length][];
+        for (int s = 0; s < shards.length; s++) {
+            shardIds[s] = new long[sizes[s]];
+            shardPoints[s] = new long[sizes[s]];
+            sizes[s] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int s = shardOf(userIds[i], shards.length);
+            shardIds[s][sizes[s]] = userIds[i];
+            shardPoints[s][sizes[s]] = points[i];
+            sizes[s]++;
+        }
+        ApplicationState[] newShards = new ApplicationState[shards.length];
+        for (int s = 0; s < shards.length; s++) {
+            newShards[s] = shards[s].loadUsers(shardIds[s], shardPoints[s], sizes[s]);
+        }
+        return new ShardedApplicationState(newShards);
+    }
+
+    /**
+     * Splits the given users' data according to the shards where each user belongs.
+     * @param data The users' data.
+     * @param shardCount The number of shards.
+     * @return A list with the users' data of each shard, in the same order of the shards.
+     * @throws IllegalArgumentException If the {@code data} is {@code null} or contains {@code null}.
+     */
+    @NonNull
+    @CheckReturnValue
+    static List<List<UserData>> groupByShard(@NonNull Collection<UserData> data, int shardCount) {
+        if (data == null) throw new IllegalArgumentException();
+        List<List<UserData>> groups = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (UserData d : data) {
+            if (d == null) throw new IllegalArgumentException();
+            groups.get(shardOf(d.getUserId(), shardCount)).add(d);
+        }
+        return groups;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This is the sum of the versions of the shards. Since each shard's version only grows, two states of the same table with the
+     * same version have the same content as long as they are consistent cuts of the shards.</p>
+     *
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public long getVersion() {
+        long version = 0;
+        for (ApplicationState s : shards) {
+            version += s.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, the users of each shard are collected into arrays and then merged by their ids.</p>
+     *
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUser(@NonNull UserConsumer action) {
+        if (action == null) throw new IllegalArgumentException();
+        CollectedUsers[] collected = new CollectedUsers[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            collected[i] = new CollectedUsers(shards[i].getUserCount());
+            shards[i].forEachUser(collected[i]);
+        }
+        CollectedUsers.merge(collected, action);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, if the older state is also a {@code ShardedApplicationState} with the same number of shards, the
+     * changes of each shard since its older counterpart are collected into arrays and then merged by their ids.</p>
+     *
+     * @param older {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachUserChangedSince(@NonNull ApplicationState older, @NonNull UserConsumer action) {
+        if (older == null || action == null) throw new IllegalArgumentException();
+        if (!(older instanceof ShardedApplicationState) || ((ShardedApplicationState) older).shards.length != shards.length) {
+            forEachUser(action);
+            return;
+        }
+        ApplicationState[] olderShards = ((ShardedApplicationState) older).shards;
+        CollectedUsers[] collected = new CollectedUsers[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            collected[i] = new CollectedUsers(16);
+            if (shards[i] != olderShards[i]) shards[i].forEachUserChangedSince(olderShards[i], collected[i]);
+        }
+        CollectedUsers.merge(collected, action);
+    }
+
+    /**
+     * Users and their points collected from a shard, in the ascending order of their ids, kept in primitive arrays that grow as
+     * needed.
+     */
+    private static final class CollectedUsers implements UserConsumer {
+
+        /**
+         * The ids of the users. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] ids;
+
+        /**
+         * The points of the users. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] points;
+
+        /**
+         * How many users were collected.
+         */
+        private int count;
+
+        /**
+         * Creates an instance without any user.
+         * @param capacity How many users might be collected before the arrays need to grow.
+         */
+        public CollectedUsers(int capacity) {
+            this.ids = new long[Math.max(1, capacity)];
+            this.points = new long[ids.length];
+        }
+
+        /**
+         * Collects a user.
+         * @param userId The id of the user.
+         * @param userPoints The points of the user.
+         */
+        @Override
+        public void accept(long userId, long userPoints) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                points = Arrays.copyOf(points, count * 2);
+            }
+            ids[count] = userId;
+            points[count] = userPoints;
+            count++;
+        }
+
+        /**
+         * Merges the users collected from each shard by their ids, feeding the given action with them.
+         * @param collected The users collected from each shard.
+         * @param action The action that receives each user.
+         */
+        public static void merge(@NonNull CollectedUsers[] collected, @NonNull UserConsumer action) {
+            int[] heads = new int[collected.length];
+            while (true) {
+                int best = -1;
+                for (int i = 0; i < collected.length; i++) {
+                    if (heads[i] == collected[i].count) continue;
+                    if (best == -1 || collected[i].ids[heads[i]] < collected[best].ids[heads[best]]) best = i;
+                }
+                if (best == -1) return;
+                action.accept(collected[best].ids[heads[best]], collected[best].points[heads[best]]);
+                heads[best]++;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        OptionalLong points = findPoints(userId);
+        if (!points.isPresent()) return Optional.empty();
+        return Optional.of(new PositionedUserData(userId, points.getAsLong(), 1 + countUsersWithMorePoints(points.getAsLong())));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public OptionalLong findPoints(long userId) {
+        return shards[shardOf(userId, shards.length)].findPoints(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @param action {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @Override
+    public void forEachHighScore(int offset, int limit, @NonNull PositionedUserConsumer action) {
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException();
+        if (limit == 0 || offset >= getUserCount()) return;
+
+        // Find out the points of the user at the offset: the smallest points such that at most offset users have more than them.
+        long lo = 0;
+        long hi = Long.MAX_VALUE;
+        while (lo < hi) {
+            long mid = lo + (hi - lo) / 2;
+            if (countUsersWithMorePoints(mid) <= offset) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        long startPoints = lo;
+
+        // Then, among the users tied with those points, find out the largest id such that at most offset users are listed before it.
+        // Since each id adds at most one user listed before it, exactly offset users are listed before that id.
+        lo = 0;
+        hi = Long.MAX_VALUE;
+        while (lo < hi) {
+            long mid = hi - (hi - lo) / 2;
+            if (countUsersListedBefore(startPoints, mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long startId = lo;
+
+        // Each shard starts at the users that it has listed before that points and id, which sum up to the offset.
+        HighScoreCursor[] cursors = new HighScoreCursor[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            cursors[i] = new HighScoreCursor(shards[i], shards[i].countUsersListedBefore(startPoints, startId), limit);
+        }
+
+        // Merge the shards, taking the one with most points (and then the smallest id) from the heads of the cursors each time.
+        // The position of tied users is the index of the first one of them plus one.
+        int position = 1 + countUsersWithMorePoints(startPoints);
+        long lastPoints = startPoints;
+        for (int index = offset; index - offset < limit; index++) {
+            HighScoreCursor best = null;
+            for (HighScoreCursor c : cursors) {
+                if (c.isExhausted()) continue;
+                if (best == null || c.points() > best.points() || (c.points() == best.points() && c.userId() < best.userId())) best = c;
+            }
+            if (best == null) return;
+            long p = best.points();
+            long userId = best.userId();
+            best.advance();
+            if (p != lastPoints) {
+                lastPoints = p;
+                position = index + 1;
+            }
+            action.accept(userId, p, position);
+        }
+    }
+
+    /**
+     * Reads the high scores list of a shard from a given index onwards, in chunks that grow as they are consumed, so that a shard that
+     * contributes little to a page is read little.
+     */
+    private static final class HighScoreCursor implements PositionedUserConsumer {
+
+        /**
+         * The size of the first chunk read.
+         */
+        private static final int FIRST_CHUNK = 16;
+
+        /**
+         * The shard.
+         */
+        @NonNull
+        private final ApplicationState shard;
+
+        /**
+         * How many users of the shard might still be needed, including the ones in the current chunk.
+         */
+        private int wanted;
+
+        /**
+         * The index in the shard of the first user that wasn't read yet.
+         */
+        private int next;
+
+        /**
+         * The ids of the users in the current chunk. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] ids;
+
+        /**
+         * The points of the users in the current chunk. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] points;
+
+        /**
+         * How many users are in the current chunk.
+         */
+        private int count;
+
+        /**
+         * The index in the current chunk of the user at the head of this cursor.
+         */
+        private int head;
+
+        /**
+         * Creates a cursor and reads its first chunk.
+         * @param shard The shard.
+         * @param start The index in the shard of the first user.
+         * @param wanted How many users of the shard might be needed at most.
+         */
+        public HighScoreCursor(@NonNull ApplicationState shard, int start, int wanted) {
+            this.shard = shard;
+            this.next = start;
+            this.wanted = Math.min(wanted, shard.getUserCount() - start);
+            this.ids = new long[Math.max(1, Math.min(FIRST_CHUNK, this.wanted))];
+            this.points = new long[ids.length];
+            fill();
+        }
+
+        /**
+         * Reads the next chunk, twice as big as the previous one, but not bigger than what might still be needed.
+         */
+        private void fill() {
+            int size = Math.min(wanted, count == 0 ? ids.length : (int) Math.min(Integer.MAX_VALUE, 2L * count));
+            if (size > ids.length) {
+                ids = new long[size];
+                points = new long[size];
+            }
+            count = 0;
+            head = 0;
+            if (size == 0) return;
+            shard.forEachHighScore(next, size, this);
+            next += count;
+            wanted -= count;
+        }
+
+        /**
+         * Collects a user of the chunk being read.
+         * @param userId The id of the user.
+         * @param userPoints The points of the user.
+         * @param position The position of the user in the shard, which is ignored.
+         */
+        @Override
+        public void accept(long userId, long userPoints, int position) {
+            ids[count] = userId;
+            points[count] = userPoints;
+            count++;
+        }
+
+        /**
+         * Tells if there are no more users in this cursor.
+         * @return {@code true} if there are no more users in this cursor, {@code false} otherwise.
+         */
+        public boolean isExhausted() {
+            return head == count;
+        }
+
+        /**
+         * Gives the id of the user at the head of this cursor.
+         * @return The id of the user at the head of this cursor.
+         */
+        public long userId() {
+            return ids[head];
+        }
+
+        /**
+         * Gives the points of the user at the head of this cursor.
+         * @return The points of the user at the head of this cursor.
+         */
+        public long points() {
+            return points[head];
+        }
+
+        /**
+         * Moves to the next user, reading the next chunk if needed.
+         */
+        public void advance() {
+            head++;
+            if (head == count) fill();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int getUserCount() {
+        int count = 0;
+        for (ApplicationState s : shards) {
+            count += s.getUserCount();
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param points {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    @CheckReturnValue
+    public int countUsersListedBefore(long points, long userId) {
+        int count = 0;
+        for (ApplicationState s : shards) {
+            count += s.countUsersListedBefore(points, userId);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        if (above < 0 || below < 0) throw new IllegalArgumentException();
+        OptionalLong points = findPoints(userId);
+        if (!points.isPresent()) return Optional.empty();
+
+        // The index of the user in the list is the number of users listed before him/her in all the shards.
+        int index = countUsersListedBefore(points.getAsLong(), userId);
+        int offset = Math.max(0, index - above);
+        return Optional.of(getHighScores(offset, (int) Math.min(Integer.MAX_VALUE, (long) index - offset + 1 + below)));
+    }
+}
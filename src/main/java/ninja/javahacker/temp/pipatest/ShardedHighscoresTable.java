@@ -0,0 +1,277 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+
+/**
+ * Implementation of {@link HighscoresTable} where the users are partitioned by their ids across several independent states, named
+ * shards, each one held in its own {@link AtomicReference}. Adding a score changes only the shard of the user, so writes to users in
+ * different shards never contend and the write throughput grows with the number of shards.
+ *
+ * <p>Reading is made over a {@link ShardedApplicationState} that is a consistent cut of all the shards. It is taken by reading all
+ * the shards until two consecutive reads give the very same states (a double collect). Since the states of each shard are always
+ * new instances, this means that no shard changed between the two reads and that the cut really existed at some moment. Under a
+ * steady stream of writes, that might never happen, so after a few attempts the reader locks all the shards against writes, in the
+ * order of their indexes, and reads them while they are still. Each shard has its own lock, which writers to that shard share, so
+ * writes to different shards still never contend.</p>
+ *
+ * <p>Adding several scores at once with the {@link #addScores(Collection) addScores} method locks the shards that it changes
+ * against other writers, so that it either changes all of them or none of them, and changes each shard in a single transition.
+ * However, different shards are published one after the other, so readers might see the batch partially applied.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class ShardedHighscoresTable implements HighscoresTable {
+
+    /**
+     * How many times a reader collects all the shards looking for a consistent cut before locking them.
+     */
+    private static final int MAX_COLLECT_ATTEMPTS = 8;
+
+    /**
+     * Stores the state of each shard. This list is never modified after the construction.
+     */
+    @NonNull
+    private final List<AtomicReference<ApplicationState>> shards;
+
+    /**
+     * The lock of each shard. Writers of a single score hold its read lock while changing the shard. Writers of batches hold its write
+     * lock, and so do readers, but only after failing to read a consistent cut of all the shards for {@value #MAX_COLLECT_ATTEMPTS}
+     * times. This list is never modified after the
+     * construction.
+     */
+    @NonNull
+    private final List<StampedLock> locks;
+
+    /**
+     * Creates a new initially empty {@code HighscoreTable} using the default {@link ApplicationState} engine and as many shards as
+     * available processors.
+     */
+    public ShardedHighscoresTable() {
+        this(ApplicationState.getDefaultImplementation(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new initially empty {@code HighscoreTable} with the given number of shards.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used in each shard. Since it is
+     *     immutable, it is shared by all the shards.
+     * @param shardCount The number of shards.
+     * @throws IllegalArgumentException If {@code empty} is {@code null} or not empty or if {@code shardCount} isn't positive.
+     */
+    public ShardedHighscoresTable(@NonNull ApplicationState empty, int shardCount) {
+        if (empty == null || empty.getUserCount() != 0 || shardCount <= 0) throw new IllegalArgumentException();
+        this.shards = new ArrayList<>(shardCount);
+        this.locks = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new AtomicReference<>(empty));
+            locks.add(new StampedLock());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScore(@NonNull UserData data) {
+        if (data == null) throw new IllegalArgumentException();
+        update(ShardedApplicationState.shardOf(data.getUserId(), shards.size()), s -> s.addScore(data));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>In this implementation, the shards touched by the batch are locked against other writers, in the order of their indexes, and
+     * the new state of each one of them is built before any of them is published, so if some user would overflow, no shard is
+     * changed at all. Each shard then goes from the state before the batch to the state after it in a single transition, but the
+     * shards are published one after the other, so readers might see the batch applied to some shards and not to others.</p>
+     *
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScores(@NonNull Collection<UserData> data) {
+        List<List<UserData>> groups = ShardedApplicationState.groupByShard(data, shards.size());
+        long[] stamps = new long[shards.size()];
+        int locked = 0;
+        try {
+            for (; locked < stamps.length; locked++) {
+                if (!groups.get(locked).isEmpty()) stamps[locked] = locks.get(locked).writeLock();
+            }
+            ApplicationState[] current = collect();
+            ApplicationState[] next = new ApplicationState[current.length];
+            for (int i = 0; i < next.length; i++) {
+                List<UserData> group = groups.get(i);
+                if (!group.isEmpty()) next[i] = current[i].addScores(group);
+            }
+            for (int i = 0; i < next.length; i++) {
+                if (next[i] == null) continue;
+                shards.get(i).set(next[i]);
+                FlightRecorderEvents.statePublished(this, current[i], next[i]);
+            }
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                if (!groups.get(i).isEmpty()) locks.get(i).unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the current state of the given shard by the one built from it by the given function, retrying if some other thread
+     * replaced it meanwhile.
+     * @param index The index of the shard.
+     * @param change Builds the new state from the current one.
+     */
+    private void update(int index, @NonNull UnaryOperator<ApplicationState> change) {
+        AtomicReference<ApplicationState> shard = shards.get(index);
+        StampedLock lock = locks.get(index);
+        long stamp = lock.readLock();
+        try {
+            while (true) {
+                ApplicationState current = shard.get();
+                ApplicationState next = change.apply(current);
+                if (shard.compareAndSet(current, next)) {
+                    FlightRecorderEvents.statePublished(this, current, next);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ShardedApplicationState snapshot() {
+        ApplicationState[] collected = collect();
+        for (int i = 1; i < MAX_COLLECT_ATTEMPTS; i++) {
+            ApplicationState[] again = collect();
+            if (sameStates(collected, again)) return new ShardedApplicationState(again);
+            collected = again;
+        }
+        return new ShardedApplicationState(collectLocked());
+    }
+
+    /**
+     * Reads the current state of each shard while holding the locks of all of them, so that none of them changes meanwhile. The
+     * locks are always acquired in the order of the indexes of the shards, so concurrent readers never deadlock.
+     * @return The current state of each shard.
+     */
+    @NonNull
+    private ApplicationState[] collectLocked() {
+        long[] stamps = new long[locks.size()];
+        int locked = 0;
+        try {
+            for (; locked < stamps.length; locked++) {
+                stamps[locked] = locks.get(locked).writeLock();
+            }
+            return collect();
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                locks.get(i).unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads the current state of each shard.
+     * @return The current state of each shard.
+     */
+    @NonNull
+    private ApplicationState[] collect() {
+        ApplicationState[] collected = new ApplicationState[shards.size()];
+        for (int i = 0; i < collected.length; i++) {
+            collected[i] = shards.get(i).get();
+        }
+        return collected;
+    }
+
+    /**
+     * Tells if two collects of the shards found the very same states.
+     * @param first The first collect.
+     * @param second The second collect.
+     * @return {@code true} if the two collects found the very same states, {@code false} otherwise.
+     */
+    private static boolean sameStates(@NonNull ApplicationState[] first, @NonNull ApplicationState[] second) {
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] != second[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        return snapshot().findUser(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param maxUsers {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int maxUsers) {
+        return snapshot().getHighScores(maxUsers);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit) {
+        return snapshot().getHighScores(offset, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        return snapshot().findNeighbours(userId, above, below);
+    }
+}
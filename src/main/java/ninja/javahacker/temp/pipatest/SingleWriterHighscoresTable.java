@@ -0,0 +1,436 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+
+/**
+ * Implementation of {@link HighscoresTable} where a single writer thread is the only one that ever changes the state.
+ *
+ * <p>The threads that add scores just put them into a bounded queue, which the writer thread drains. All the scores taken from the
+ * queue at once are merged and applied in a single {@link ApplicationState#addScores(Collection) addScores} call, so repeated updates
+ * to the same user in a drain cycle cost a single change and only one new state is published per cycle. Since the writer thread is
+ * the only one that changes the state, writers never contend over it and reading a snapshot is just reading a {@code volatile}
+ * field.</p>
+ *
+ * <p>The scores might be submitted either in a fire-and-forget way with the {@link #submit(UserData) submit} method or with an
+ * acknowledgement given by the {@link CompletableFuture} returned by the {@link #submitAndAcknowledge(UserData) submitAndAcknowledge}
+ * method, which is completed when a state containing the score is published. The {@link #addScore(UserData) addScore} method waits for
+ * that acknowledgement, so, as in the other implementations, the score is already visible when it returns. If the queue is full, the
+ * submitting threads wait until there is room in it.</p>
+ *
+ * <p>Closing the table waits for the threads that are putting updates into the queue, so every update that was accepted is applied
+ * before the writer thread stops, and every update submitted afterwards is refused. If applying a drain cycle fails with anything
+ * other than an overflow, including an {@link Error}, all the updates of that cycle fail with it and the writer thread goes on.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class SingleWriterHighscoresTable implements HighscoresTable, AutoCloseable {
+
+    /**
+     * The default capacity of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * Stores the application state. Only the writer thread changes it.
+     */
+    @NonNull
+    private volatile ApplicationState state;
+
+    /**
+     * The queue of submitted updates which weren't applied yet.
+     */
+    @NonNull
+    private final BlockingQueue<Update> queue;
+
+    /**
+     * The maximum number of updates taken from the queue in a single drain cycle.
+     */
+    private final int maxDrain;
+
+    /**
+     * The writer thread.
+     */
+    @NonNull
+    private final Thread writer;
+
+    /**
+     * Tells if this table was closed.
+     */
+    @GuardedBy("closing")
+    private volatile boolean closed;
+
+    /**
+     * Updates are put into the queue while holding the read lock, so closing the table, which takes the write lock, waits until no
+     * update is between checking that the table isn't closed and being in the queue.
+     */
+    @NonNull
+    private final ReadWriteLock closing;
+
+    /**
+     * An update submitted to the table, together with its acknowledgement.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @Immutable
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Update {
+
+        /**
+         * The submitted scores.
+         */
+        @NonNull
+        private final Collection<UserData> data;
+
+        /**
+         * The acknowledgement, or {@code null} if the update was submitted in a fire-and-forget way.
+         */
+        @Nullable
+        private final CompletableFuture<Void> ack;
+
+        /**
+         * Creates an instance from its values.
+         * @param data The submitted scores.
+         * @param ack The acknowledgement, or {@code null} if the update was submitted in a fire-and-forget way.
+         */
+        public Update(@NonNull Collection<UserData> data, @Nullable CompletableFuture<Void> ack) {
+            this.data = data;
+            this.ack = ack;
+        }
+
+        /**
+         * Tells the submitter that the update was applied, if s/he wants to know it.
+         */
+        public void done() {
+            if (ack != null) ack.complete(null);
+        }
+
+        /**
+         * Tells the submitter that the update failed, if s/he wants to know it.
+         * @param problem Why the update failed.
+         */
+        public void failed(@NonNull Throwable problem) {
+            if (ack != null) ack.completeExceptionally(problem);
+        }
+    }
+
+    /**
+     * Creates a new initially empty {@code HighscoreTable} using the default {@link ApplicationState} engine and a queue with the
+     * default capacity.
+     */
+    public SingleWriterHighscoresTable() {
+        this(ApplicationState.getDefaultImplementation(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new {@code HighscoreTable} starting at the given state and with a queue with the given capacity. The writer thread is
+     * started right away and is a daemon thread.
+     * @param initial The initial state of the table.
+     * @param capacity The maximum number of submitted updates which weren't applied yet.
+     * @throws IllegalArgumentException If the {@code initial} is {@code null} or if the {@code capacity} isn't positive.
+     */
+    public SingleWriterHighscoresTable(@NonNull ApplicationState initial, int capacity) {
+        if (initial == null || capacity <= 0) throw new IllegalArgumentException();
+        this.state = initial;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxDrain = capacity;
+        this.closing = new ReentrantReadWriteLock();
+        this.writer = new Thread(this::writeLoop, "highscores-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Submits the given user points to be added to the table in a fire-and-forget way. If the queue is full, waits until there is
+     * room in it.
+     * @param data The user data containing the user id and the quantity of points that s/he scored.
+     * @throws IllegalArgumentException If the {@code data} is {@code null}.
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    public void submit(@NonNull UserData data) {
+        if (data == null) throw new IllegalArgumentException();
+        enqueue(new Update(Collections.singletonList(data), null));
+    }
+
+    /**
+     * Submits the given user points to be added to the table. If the queue is full, waits until there is room in it.
+     * @param data The user data containing the user id and the quantity of points that s/he scored.
+     * @return A {@link CompletableFuture} that is completed when a state containing the given user points is published.
+     * @throws IllegalArgumentException If the {@code data} is {@code null}.
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    @NonNull
+    public CompletableFuture<Void> submitAndAcknowledge(@NonNull UserData data) {
+        if (data == null) throw new IllegalArgumentException();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        enqueue(new Update(Collections.singletonList(data), ack));
+        return ack;
+    }
+
+    /**
+     * Submits all the given users points to be added to the table at once. If the queue is full, waits until there is room in it.
+     * @param data The users' data, each one containing the user id and the quantity of points that s/he scored.
+     * @return A {@link CompletableFuture} that is completed when a state containing all the given users points is published.
+     * @throws IllegalArgumentException If the {@code data} is {@code null} or contains {@code null}.
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    @NonNull
+    public CompletableFuture<Void> submitAllAndAcknowledge(@NonNull Collection<UserData> data) {
+        if (data == null) throw new IllegalArgumentException();
+        List<UserData> copy = new ArrayList<>(data);
+        if (copy.contains(null)) throw new IllegalArgumentException();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        enqueue(new Update(copy, ack));
+        return ack;
+    }
+
+    /**
+     * Puts an update in the queue, waiting until there is room in it.
+     * @param update The update.
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    private void enqueue(@NonNull Update update) {
+        Lock lock = closing.readLock();
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Closed.");
+            queue.put(update);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the given acknowledgement, rethrowing whatever made the update fail.
+     * @param ack The acknowledgement.
+     */
+    private static void await(@NonNull CompletableFuture<Void> ack) {
+        try {
+            ack.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * The work done by the writer thread. Waits for some update, then drains everything in the queue, applies it all as a single
+     * batch and publishes the new state. Runs until the table is closed.
+     */
+    private void writeLoop() {
+        List<Update> drained = new ArrayList<>();
+        List<UserData> merged = new ArrayList<>();
+        try {
+            while (true) {
+                try {
+                    drained.add(queue.take());
+                } catch (InterruptedException e) {
+                    if (closed) break;
+                    continue;
+                }
+                queue.drainTo(drained, maxDrain - 1);
+                cycle(drained, merged);
+            }
+
+            // Apply whatever was left behind. Since the table is closed, nothing else is put into the queue.
+            queue.drainTo(drained);
+            if (!drained.isEmpty()) cycle(drained, merged);
+        } finally {
+
+            // Should never happen, but no submitter must ever be left waiting.
+            drained.clear();
+            queue.drainTo(drained);
+            IllegalStateException problem = new IllegalStateException("Closed.");
+            drained.forEach(u -> u.failed(problem));
+        }
+    }
+
+    /**
+     * Applies the drained updates in a drain cycle. If that fails with anything unexpected, every update of the cycle that wasn't
+     * acknowledged yet fails with it.
+     * @param drained The drained updates, which are removed.
+     * @param merged A scratch list to hold all the drained scores.
+     */
+    private void cycle(@NonNull List<Update> drained, @NonNull List<UserData> merged) {
+        try {
+            apply(drained, merged);
+        } catch (Throwable t) {
+            drained.forEach(u -> u.failed(t));
+        } finally {
+            drained.clear();
+            merged.clear();
+        }
+    }
+
+    /**
+     * Applies the drained updates as a single batch and publishes the new state. If the batch fails as a whole (which only happens if
+     * the points of some user overflow), then each update is applied alone, so only the faulty ones fail.
+     * @param drained The drained updates.
+     * @param merged A scratch list to hold all the drained scores.
+     */
+    private void apply(@NonNull List<Update> drained, @NonNull List<UserData> merged) {
+        for (Update u : drained) {
+            merged.addAll(u.data);
+        }
+        try {
+            publish(merged);
+            drained.forEach(Update::done);
+        } catch (RuntimeException e) {
+            for (Update u : drained) {
+                try {
+                    publish(u.data);
+                    u.done();
+                } catch (RuntimeException x) {
+                    u.failed(x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the state with the given scores added to the current one. Only runs in the writer thread.
+     * @param data The scores.
+     */
+    private void publish(@NonNull Collection<UserData> data) {
+        ApplicationState previous = state;
+        ApplicationState next = previous.addScores(data);
+        state = next;
+        FlightRecorderEvents.statePublished(this, previous, next);
+    }
+
+    /**
+     * Stops the writer thread after applying every update already submitted. After closing, no more updates are accepted, but the
+     * table might still be read. If the calling thread is interrupted while waiting for the writer thread to stop, it stops waiting
+     * and its interrupted status is kept, but the writer thread still stops by itself.
+     */
+    @Override
+    public void close() {
+        Lock lock = closing.writeLock();
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    @Override
+    public void addScore(@NonNull UserData data) {
+        await(submitAndAcknowledge(data));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     * @throws IllegalStateException If the table was closed or if the thread was interrupted while waiting.
+     */
+    @Override
+    public void addScores(@NonNull Collection<UserData> data) {
+        await(submitAllAndAcknowledge(data));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ApplicationState snapshot() {
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        return state.findUser(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param maxUsers {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int maxUsers) {
+        return state.getHighScores(maxUsers);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit) {
+        return state.getHighScores(offset, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        return state.findNeighbours(userId, above, below);
+    }
+}
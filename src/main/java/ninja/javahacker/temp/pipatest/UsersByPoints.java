@@ -0,0 +1,143 @@
+package ninja.javahacker.temp.pipatest;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.Collection;
+import net.jcip.annotations.Immutable;
+
+/**
+ * Groups users given in the ascending order of their ids by their points, so that the {@link ApplicationState} engines are able to
+ * build the trees ordered by points straight from the groups when loading users with the
+ * {@link ApplicationState#loadUsers(long[], long[], int) loadUsers} method, or to merge the users changed by a batch of scores into
+ * those trees in the {@link ApplicationState#addScores(Collection) addScores} method.
+ *
+ * <p>The distinct points are sorted and then the users are distributed into their groups with a counting sort, which is stable, so
+ * the users in each group stay in the ascending order of their ids. Everything is kept in primitive arrays, so nothing is allocated
+ * for each user.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+final class UsersByPoints {
+
+    /**
+     * The distinct points, in ascending order.
+     */
+    @NonNull
+    private final long[] distinctPoints;
+
+    /**
+     * The index in {@link #userIds} where the group of each distinct points starts. It has an extra element at the end, which is the
+     * number of users.
+     */
+    @NonNull
+    private final int[] groupStarts;
+
+    /**
+     * The ids of the users, grouped by their points in the same order as {@link #distinctPoints}. Inside each group, the ids are in
+     * ascending order.
+     */
+    @NonNull
+    private final long[] userIds;
+
+    /**
+     * Creates an instance from its values.
+     * @param distinctPoints The value for the {@link #distinctPoints} field.
+     * @param groupStarts The value for the {@link #groupStarts} field.
+     * @param userIds The value for the {@link #userIds} field.
+     */
+    private UsersByPoints(@NonNull long[] distinctPoints, @NonNull int[] groupStarts, @NonNull long[] userIds) {
+        this.distinctPoints = distinctPoints;
+        this.groupStarts = groupStarts;
+        this.userIds = userIds;
+    }
+
+    /**
+     * Groups the given users by their points. This takes {@code O(n log m)} time, where {@code m} is the number of distinct points.
+     * @param userIds The ids of the users, in strictly ascending order. Only the first {@code count} elements are used.
+     * @param points The points of each user, in the same order as their ids. Only the first {@code count} elements are used.
+     * @param count How many users there are.
+     * @return The users grouped by their points.
+     * @throws IllegalArgumentException If any array is {@code null} or shorter than {@code count}, if {@code count} is negative, if the
+     *     ids aren't strictly ascending or if any id or points is negative.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static UsersByPoints of(@NonNull long[] userIds, @NonNull long[] points, int count) {
+        if (userIds == null || points == null || count < 0 || userIds.length < count || points.length < count) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < count; i++) {
+            if (userIds[i] < 0 || points[i] < 0 || (i > 0 && userIds[i - 1] >= userIds[i])) throw new IllegalArgumentException();
+        }
+
+        // Sort the points and remove the repeated ones.
+        long[] sorted = Arrays.copyOf(points, count);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+        }
+        long[] distinctPoints = Arrays.copyOf(sorted, distinct);
+
+        // Count the users with each points and then place each user after the ones with less points and the ones with smaller ids.
+        int[] groupStarts = new int[distinct + 1];
+        int[] groupOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            groupOf[i] = Arrays.binarySearch(distinctPoints, points[i]);
+            groupStarts[groupOf[i] + 1]++;
+        }
+        for (int g = 0; g < distinct; g++) {
+            groupStarts[g + 1] += groupStarts[g];
+        }
+        int[] next = Arrays.copyOf(groupStarts, distinct);
+        long[] grouped = new long[count];
+        for (int i = 0; i < count; i++) {
+            grouped[next[groupOf[i]]++] = userIds[i];
+        }
+        return new UsersByPoints(distinctPoints, groupStarts, grouped);
+    }
+
+    /**
+     * Gives the number of distinct points, which is also the number of groups.
+     * @return The number of distinct points.
+     */
+    @CheckReturnValue
+    public int getGroupCount() {
+        return distinctPoints.length;
+    }
+
+    /**
+     * Gives the points of the users in the given group. The groups are in the ascending order of their points.
+     * @param group The index of the group.
+     * @return The points of the users in the given group.
+     */
+    @CheckReturnValue
+    public long getPoints(int group) {
+        return distinctPoints[group];
+    }
+
+    /**
+     * Gives the number of users in the given group.
+     * @param group The index of the group.
+     * @return The number of users in the given group.
+     */
+    @CheckReturnValue
+    public int getGroupSize(int group) {
+        return groupStarts[group + 1] - groupStarts[group];
+    }
+
+    /**
+     * Gives the id of one of the users in the given group. The users in each group are in the ascending order of their ids.
+     * @param group The index of the group.
+     * @param index The index of the user inside the group.
+     * @return The id of the user.
+     */
+    @CheckReturnValue
+    public long getUserId(int group, int index) {
+        return userIds[groupStarts[group] + index];
+    }
+}
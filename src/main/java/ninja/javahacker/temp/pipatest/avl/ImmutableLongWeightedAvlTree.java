@@ -0,0 +1,1582 @@
+package ninja.javahacker.temp.pipatest.avl;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import net.jcip.annotations.Immutable;
+
+/**
+ * This is a specialization of the {@link ImmutableWeightedAvlTree} where both the keys and the values are primitive {@code long}s.
+ *
+ * <p>The {@link ImmutableWeightedAvlTree} is generic, so every key and every value must be kept boxed and every comparison between
+ * keys must go through the {@link Comparable#compareTo(Object) compareTo} method. Trees mapping users' ids to their points (or just
+ * keeping sets of users' ids) are very large and are modified on every score change, so boxing {@code long}s in those trees have a
+ * considerable cost in allocation and garbage collection. This class avoids all of that by keeping the keys and the values unboxed.</p>
+ *
+ * <p>Other than that, it behaves exactly like the {@link ImmutableWeightedAvlTree}. Like all AVL trees, the complexity for the search,
+ * insertion and deletion operations are all {@code O(log N)}. It is thread-safe and lock-free, using immutable nodes to achieve that,
+ * so every mutating method returns a new tree reusing the most nodes possible from the old one. Also, a weight is maintained for each
+ * node and the tree computes the weight for all the nodes to the left and to the right of the node.</p>
+ *
+ * <p>When the tree is used just as a set of keys, the values are irrelevant and 0 should be used for them.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+public class ImmutableLongWeightedAvlTree {
+
+    /**
+     * This class represents nodes inside the AVL tree.
+     * <p>Note that almost all methods of this class heavily uses recursion.</p>
+     */
+    @Immutable
+    private static final class Node {
+
+        /**
+         * The left child of this node, or null if there isn't one.
+         */
+        @Nullable
+        private final Node leftChild;
+
+        /**
+         * The left right of this node, or null if there isn't one.
+         */
+        @Nullable
+        private final Node rightChild;
+
+        /**
+         * The node's key.
+         */
+        private final long key;
+
+        /**
+         * The node's value.
+         */
+        private final long value;
+
+        /**
+         * The height of the subtree rooted at this node.
+         */
+        private final int height;
+
+        /**
+         * The balance of this node, as defined for AVL trees.
+         */
+        private final int balance;
+
+        /**
+         * The weight of this node.
+         */
+        private final int nodeWeight;
+
+        /**
+         * The weight of the left subtree. Do not confound this with the weight of all the leftmost nodes, since this do not consider
+         * nodes that are in the left subtree of the parent node when this node is part of its right subtree, and so on with all the
+         * other ancestor nodes up to the root.
+         */
+        private final int leftWeight;
+
+        /**
+         * The weight of the right subtree. Do not confound this with the weight of all the rightmost nodes, since this do not consider
+         * nodes that are in the right subtree of the parent node when this node is part of its left subtree, and so on with all the
+         * other ancestor nodes up to the root.
+         */
+        private final int rightWeight;
+
+        /**
+         * The total weight of this node and all the nodes in its subtree.
+         */
+        private final int totalWeight;
+
+        /**
+         * Instantiates a node.
+         * This constructor should be used only through the {@link Node#createNode(long, long, int, Node, Node) createNode} and
+         * {@link Node#leaf(long, int, long) leaf} methods, to ensure balance and perform necessary rebalances if needed.
+         * @param key The node's key.
+         * @param value The node's value.
+         * @param nodeWeight The node's weight.
+         * @param leftChild The node which is the left child of this one.
+         * @param rightChild The node which is the right child of this one.
+         */
+        private Node(long key, long value, int nodeWeight, @Nullable Node leftChild, @Nullable Node rightChild) {
+
+            // Direct field assignments.
+            this.nodeWeight = nodeWeight;
+            this.leftChild = leftChild;
+            this.rightChild = rightChild;
+            this.key = key;
+            this.value = value;
+
+            // Calculated fields computed from looking up into the child nodes.
+            this.leftWeight = leftChild == null ? 0 : leftChild.totalWeight;
+            this.rightWeight = rightChild == null ? 0 : rightChild.totalWeight;
+            this.totalWeight = nodeWeight + leftWeight + rightWeight;
+            int lh = leftChild == null ? 0 : leftChild.height;
+            int rh = rightChild == null ? 0 : rightChild.height;
+            this.height = Math.max(lh, rh) + 1;
+            this.balance = lh - rh;
+
+            // Count the allocation, if anyone wants to know.
+            NodeAllocationCounter.allocated();
+
+            // Sanity check.
+            if (leftChild != null && leftChild.key >= key) throw new AssertionError();
+            if (rightChild != null && rightChild.key <= key) throw new AssertionError();
+        }
+
+        /**
+         * Creates a node with the given key, value, weight and child nodes. Rebalances are performed in order to assure that the returned
+         * node forms a balanced (sub)tree.
+         * @param key The node's key.
+         * @param value The node's value.
+         * @param nodeWeight The node's weight.
+         * @param leftChild The node which is the left child of this one.
+         * @param rightChild The node which is the right child of this one.
+         * @return The newly created nod.
+         */
+        @NonNull
+        @CheckReturnValue
+        public static Node createNode(long key, long value, int nodeWeight, @Nullable Node leftChild, @Nullable Node rightChild) {
+            // Create the node and rebalance it.
+            Node n = new Node(key, value, nodeWeight, leftChild, rightChild).rebalance();
+
+            // Sanity check.
+            if (n.balance < -1 || n.balance > 1) throw new AssertionError();
+
+            return n;
+        }
+
+        /**
+         * Rebalance this node. This should be invoked only from the {@link Node#createNode(long, long, int, Node, Node) createNode}
+         * method, since there should be no way to get unbalanced nodes other than during the creation of a node.
+         * @return The same subtree as given by {@code this} node, but rebalanced. If this node is already balanced, {@code this}
+         *     is returned.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node rebalance() {
+            if (balance >= -1 && balance <= 1) return this;
+            Node lc = leftChild;
+            Node rc = rightChild;
+            int lh = lc == null ? 0 : lc.height;
+            int rh = rc == null ? 0 : rc.height;
+            int lb = lc == null ? 0 : lc.balance;
+            int rb = rc == null ? 0 : rc.balance;
+            int b = lh - rh;
+            if (b < -1 && rb > 0) return rightLeftRotate();
+            if (b > 1 && lb < 0) return leftRightRotate();
+            if (b < -1) return leftLeftRotate();
+            if (b > 1) return rightRightRotate();
+            return this;
+        }
+
+        /**
+         * Creates a childless (leaf) node with the given key, value and weight.
+         * @param newKey The node's key.
+         * @param nodeWeight The node's weight.
+         * @param newValue The node's value.
+         * @return The newly created nod.
+         */
+        @NonNull
+        @CheckReturnValue
+        public static Node leaf(long newKey, int nodeWeight, long newValue) {
+            return new Node(newKey, newValue, nodeWeight, null, null);
+        }
+
+        /**
+         * Perform a left-right rotation to rebalance this node. This should only be called from the {@link Node#rebalance() rebalance()}
+         * method, which is responsible for checking if this type of rebalance is needed.
+         * @return A left-right rotation of the subtree rooted at this node.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node leftRightRotate() {
+            Node a = assertNotNull(leftChild);
+            Node b = assertNotNull(a.rightChild);
+            Node c = a.withRightChild(b.leftChild);
+            Node d = this.withLeftChild(b.rightChild);
+            return b.withChildren(c, d);
+        }
+
+        /**
+         * Perform a right-left rotation to rebalance this node. This should only be called from the {@link Node#rebalance() rebalance()}
+         * method, which is responsible for checking if this type of rebalance is needed.
+         * @return A left-right rotation of the subtree rooted at this node.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node rightLeftRotate() {
+            Node a = assertNotNull(rightChild);
+            Node b = assertNotNull(a.leftChild);
+            Node c = a.withLeftChild(b.rightChild);
+            Node d = this.withRightChild(b.leftChild);
+            return b.withChildren(d, c);
+        }
+
+        /**
+         * Perform a right-right rotation to rebalance this node. This should only be called from the {@link Node#rebalance() rebalance()}
+         * method, which is responsible for checking if this type of rebalance is needed.
+         * @return A left-right rotation of the subtree rooted at this node.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node rightRightRotate() {
+            Node a = assertNotNull(leftChild);
+            Node b = this.withLeftChild(a.rightChild);
+            return a.withRightChild(b);
+        }
+
+        /**
+         * Perform a left-left rotation to rebalance this node. This should only be called from the {@link Node#rebalance() rebalance()}
+         * method, which is responsible for checking if this type of rebalance is needed.
+         * @return A left-right rotation of the subtree rooted at this node.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node leftLeftRotate() {
+            Node a = assertNotNull(rightChild);
+            Node b = this.withRightChild(a.leftChild);
+            return a.withLeftChild(b);
+        }
+
+        /**
+         * Creates a new (sub)tree (trying to reuse the most nodes possible from the old one) with a new added node. If there already is
+         * a node with the given key, it is replaced in place, so the path from the root to it is copied only once.
+         * @param newKey The key of the node to add.
+         * @param newWeight The weight of the node to add.
+         * @param newValue The value of the node to add.
+         * @return A new (sub)tree corresponding from the old one with a new node added. If there already is a node with the same key,
+         *     weight and value, returns this node unchanged.
+         */
+        @NonNull
+        @CheckReturnValue
+        public Node put(long newKey, int newWeight, long newValue) {
+            if (newKey == key) {
+                return newWeight == nodeWeight && newValue == value ? this : new Node(key, newValue, newWeight, leftChild, rightChild);
+            }
+            Node lc = leftChild;
+            Node rc = rightChild;
+            return newKey < key
+                    ? withLeftChild(lc == null ? leaf(newKey, newWeight, newValue) : lc.put(newKey, newWeight, newValue))
+                    : withRightChild(rc == null ? leaf(newKey, newWeight, newValue) : rc.put(newKey, newWeight, newValue));
+        }
+
+        /**
+         * Finds the value corresponding to the given key, if it exists.
+         * @param findingKey The key to find the corresponding value inside the tree.
+         * @return An {@link OptionalLong} containing the found value, if it exists, or an empty one if it does not.
+         */
+        @NonNull
+        @CheckReturnValue
+        public OptionalLong get(long findingKey) {
+            Node n = this;
+            while (n != null) {
+                if (findingKey == n.key) return OptionalLong.of(n.value);
+                n = findingKey < n.key ? n.leftChild : n.rightChild;
+            }
+            return OptionalLong.empty();
+        }
+
+        /**
+         * Gives the total weight of this node and its subtree.
+         * @return The total weight of this node and its subtree.
+         */
+        @CheckReturnValue
+        public int getTotalWeight() {
+            return totalWeight;
+        }
+
+        /**
+         * Gives the total weight of the nodes left to the one with the given key within the subtree rooted at this node.
+         * @param findingKey The key to find the node inside the tree.
+         * @return An {@link OptionalInt} containing the total weight of the nodes left to the one with the given key within the subtree
+         *     rooted at this node, if it exists, or an empty one if it doesn't.
+         */
+        @NonNull
+        @CheckReturnValue
+        public OptionalInt getLeftWeight(long findingKey) {
+            if (findingKey == key) return OptionalInt.of(leftWeight);
+            if (findingKey < key) {
+                Node lc = leftChild;
+                if (lc == null) return OptionalInt.empty();
+                return lc.getLeftWeight(findingKey);
+            } else {
+                Node rc = rightChild;
+                if (rc == null) return OptionalInt.empty();
+                OptionalInt partialAnswer = rc.getLeftWeight(findingKey);
+                if (!partialAnswer.isPresent()) return OptionalInt.empty();
+                return OptionalInt.of(partialAnswer.getAsInt() + leftWeight + nodeWeight);
+            }
+        }
+
+        /**
+         * Gives the total weight of the nodes right to the one with the given key within the subtree rooted at this node.
+         * @param findingKey The key to find the node inside the tree.
+         * @return An {@link OptionalInt} containing the total weight of the nodes right to the one with the given key within the subtree
+         *     rooted at this node, if it exists, or an empty one if it doesn't.
+         */
+        @NonNull
+        @CheckReturnValue
+        public OptionalInt getRightWeight(long findingKey) {
+            if (findingKey == key) return OptionalInt.of(rightWeight);
+            if (findingKey > key) {
+                Node rc = rightChild;
+                if (rc == null) return OptionalInt.empty();
+                return rc.getRightWeight(findingKey);
+            } else {
+                Node lc = leftChild;
+                if (lc == null) return OptionalInt.empty();
+                OptionalInt partialAnswer = lc.getRightWeight(findingKey);
+                if (!partialAnswer.isPresent()) return OptionalInt.empty();
+                return OptionalInt.of(partialAnswer.getAsInt() + rightWeight + nodeWeight);
+            }
+        }
+
+        /**
+         * Gives the weight of the node having the given key within the subtree rooted at this node.
+         * @param findingKey The key to find the node inside the tree.
+         * @return An {@link OptionalInt} containing the weight of the given node, if it exists, or an empty one if it doesn't.
+         */
+        @NonNull
+        @CheckReturnValue
+        public OptionalInt getNodeWeight(long findingKey) {
+            Node n = this;
+            while (n != null) {
+                if (findingKey == n.key) return OptionalInt.of(n.nodeWeight);
+                n = findingKey < n.key ? n.leftChild : n.rightChild;
+            }
+            return OptionalInt.empty();
+        }
+
+        /**
+         * Gives a new (sub)tree with the node from the given key removed. If there is no such node, returns this node unchanged.
+         * @param removeKey The key of the node to be removed.
+         * @return A new (sub)tree with the node from the given key removed. If there is no such node, returns this node unchanged.
+         */
+        @Nullable
+        @CheckReturnValue
+        public Node remove(long removeKey) {
+            Node lc = leftChild;
+            Node rc = rightChild;
+            if (removeKey < key) return lc == null ? this : withLeftChild(lc.remove(removeKey));
+            if (removeKey > key) return rc == null ? this : withRightChild(rc.remove(removeKey));
+            if (lc == null) return rc;
+            if (rc == null) return lc;
+            return rc.height >= lc.height ? rc.extractMin().withNewRight(lc) : lc.extractMax().withNewLeft(rc);
+        }
+
+        /**
+         * Joins two subtrees with a node between them, giving a balanced subtree with all the nodes of the left one, then the given
+         * node and then all the nodes of the right one. The subtrees might have any heights: the node is placed down the right spine of
+         * the left subtree (or the left spine of the right one) until it reaches a subtree with about the same height as the other
+         * side, so this takes time proportional to the difference between their heights and only the nodes of that spine are copied.
+         * @param left The left subtree, whose keys are all lesser than the given key.
+         * @param key The key of the node between the subtrees.
+         * @param value The value of the node between the subtrees.
+         * @param nodeWeight The weight of the node between the subtrees.
+         * @param right The right subtree, whose keys are all greater than the given key.
+         * @return The joined subtree.
+         */
+        @NonNull
+        @CheckReturnValue
+        public static Node join(@Nullable Node left, long key, long value, int nodeWeight, @Nullable Node right) {
+            int lh = left == null ? 0 : left.height;
+            int rh = right == null ? 0 : right.height;
+            if (lh > rh + 1) {
+                Node l = assertNotNull(left);
+                return l.withRightChild(join(l.rightChild, key, value, nodeWeight, right));
+            }
+            if (rh > lh + 1) {
+                Node r = assertNotNull(right);
+                return r.withLeftChild(join(left, key, value, nodeWeight, r.leftChild));
+            }
+            return new Node(key, value, nodeWeight, left, right);
+        }
+
+        /**
+         * Joins two subtrees, giving a balanced subtree with all the nodes of the left one and then all the nodes of the right one. The
+         * leftmost node of the right subtree is taken out of it and used to {@link #join(Node, long, long, int, Node) join} them.
+         * @param left The left subtree, whose keys are all lesser than the keys of the right subtree.
+         * @param right The right subtree, whose keys are all greater than the keys of the left subtree.
+         * @return The joined subtree.
+         */
+        @Nullable
+        @CheckReturnValue
+        public static Node concat(@Nullable Node left, @Nullable Node right) {
+            if (left == null) return right;
+            if (right == null) return left;
+            NodeReplace ex = right.extractMin();
+            return join(left, ex.extracted.key, ex.extracted.value, ex.extracted.nodeWeight, ex.replacement);
+        }
+
+        /**
+         * Gives a new copy of this node and its subtrees with the left subtree replaced by the given node and rebalanced applied if
+         * needed. If the given node is already the left children, returns this node unchanged.
+         * @param newLeftChild The left subtree replacement.
+         * @return A new copy of this node and its subtree with the left subtree replaced by the given node and rebalanced applied if
+         *     needed. If the given node is already the left children, returns this node unchanged.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node withLeftChild(@Nullable Node newLeftChild) {
+            return withChildren(newLeftChild, rightChild);
+        }
+
+        /**
+         * Gives a new copy of this node and its subtrees with the right subtree replaced by the given node and rebalanced applied if
+         * needed. If the given node is already the right children, returns this node unchanged.
+         * @param newRightChild The right subtree replacement.
+         * @return A new copy of this node and its subtree with the right subtree replaced by the given node and rebalanced applied if
+         *     needed. If the given node is already the right children, returns this node unchanged.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node withRightChild(@Nullable Node newRightChild) {
+            return withChildren(leftChild, newRightChild);
+        }
+
+        /**
+         * Gives a new copy of this node with its child nodes replaced by the given node and rebalanced applied if needed. If the given
+         * nodes are already the children of this one, then returns this node unchanged.
+         * @param newLeftChild The left subtree replacement.
+         * @param newRightChild The right subtree replacement.
+         * @return A new copy of this node with its child nodes replaced by the given node and rebalanced applied if needed. If the given
+         *     nodes are already the children of this one, then returns this node unchanged.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node withChildren(@Nullable Node newLeftChild, @Nullable Node newRightChild) {
+            return newLeftChild == leftChild && newRightChild == rightChild
+                    ? this
+                    : createNode(key, value, nodeWeight, newLeftChild, newRightChild);
+        }
+
+        /**
+         * Represents a pair of nodes, the one extracted from the tree and a new corresponding and rebalanced subtree without it. The
+         * extracted node is meant to eventually become a new root of the subtree. Instances of this class represents intermediate steps
+         * in the reconstruction of that subtree.
+         *
+         * <p>This class should be used as part of the {@link Node#extractMin() extractMin()}, {@link Node#extractMax() extractMax()} and
+         * {@link Node#remove(long) remove(long)} methods.</p>
+         *
+         * @see Node#extractMin() extractMin()
+         * @see Node#extractMax() extractMax()
+         * @see Node#remove(long) remove(long)
+         */
+        @Immutable
+        private static class NodeReplace {
+
+            /**
+             * The extracted node of the subtree that will become its new root node.
+             */
+            @NonNull
+            private final Node extracted;
+
+            /**
+             * The extracted rebalanced subtree without the extracted node.
+             */
+            @Nullable
+            private final Node replacement;
+
+            /**
+             * Creates an instance with the given extracted node and the rebalanced subtree without the extracted node.
+             * @param extracted The extracted node of the subtree.
+             * @param replacement The extracted rebalanced subtree without the extracted node.
+             */
+            public NodeReplace(@NonNull Node extracted, @Nullable Node replacement) {
+                this.extracted = extracted;
+                this.replacement = replacement;
+            }
+
+            /**
+             * Creates a new subtree with the extracted node as the root, the replacement node as its right subtree, and receives
+             * the left subtree as a parameter. As always, rebalancements will be performed if needed.
+             * @param oldLeft The left subtree to be given to this node.
+             * @return The newly formed subtree with the extracted root as the root, the replacement subtree as the right child and the
+             *     given node as the left child. Rebalancements will be performed if needed.
+             */
+            @NonNull
+            @CheckReturnValue
+            public Node withNewRight(@Nullable Node oldLeft) {
+                return extracted.withChildren(oldLeft, replacement);
+            }
+
+            /**
+             * Creates a new subtree with the extracted node as the root, the replacement node as its left subtree, and receives
+             * the right subtree as a parameter. As always, rebalancements will be performed if needed.
+             * @param oldRight The right subtree to be given to this node.
+             * @return The newly formed subtree with the extracted root as the root, the replacement subtree as the left child and the
+             *     given node as the right child. Rebalancements will be performed if needed.
+             */
+            @NonNull
+            @CheckReturnValue
+            public Node withNewLeft(@Nullable Node oldRight) {
+                return extracted.withChildren(replacement, oldRight);
+            }
+
+            /**
+             * Creates a new instance of this {@code NodeReplace} using this instance's {@link NodeReplace#extracted extracted} value
+             * and the given {@code Node} as the {@link NodeReplace#replacement replacement}.
+             * @param newReplacement The new instance's {@link NodeReplace#replacement replacement}.
+             * @return A new {@code NodeReplace} instance.
+             */
+            @NonNull
+            @CheckReturnValue
+            public NodeReplace withReplacement(@Nullable Node newReplacement) {
+                return new NodeReplace(extracted, newReplacement);
+            }
+
+            /**
+             * Gives the extracted rebalanced subtree without the extracted node.
+             * @return The extracted rebalanced subtree without the extracted node.
+             */
+            @Nullable
+            @CheckReturnValue
+            public Node getReplacement() {
+                return replacement;
+            }
+        }
+
+        /**
+         * Extract the leftmost node of this tree and gives both the node extracted and a new corresponding and rebalanced subtree without
+         * it. This method is used as part of the {@link Node#remove(long) remove(long)} method.
+         * @return The node extracted and a new corresponding and rebalanced subtree without it.
+         */
+        @NonNull
+        @CheckReturnValue
+        private NodeReplace extractMin() {
+            if (leftChild == null) return new NodeReplace(this, rightChild);
+            NodeReplace ex = leftChild.extractMin();
+            return ex.withReplacement(withLeftChild(ex.getReplacement()));
+        }
+
+        /**
+         * Extract the rightmost node of this tree and gives both the node extracted and a new corresponding and rebalanced subtree
+         * without it. This method is used as part of the {@link Node#remove(long) remove(long)} method.
+         * @return The node extracted and a new corresponding and rebalanced subtree without it.
+         */
+        @NonNull
+        @CheckReturnValue
+        private NodeReplace extractMax() {
+            if (rightChild == null) return new NodeReplace(this, leftChild);
+            NodeReplace ex = rightChild.extractMax();
+            return ex.withReplacement(withRightChild(ex.getReplacement()));
+        }
+
+        /**
+         * Throws an {@code AssertionError} if the given value is {@code null} and returns it if it's not.
+         * @param <X> The type of the given value.
+         * @param value The given value.
+         * @return The given value.
+         * @throws AssertionError If the given value is {@code null}.
+         */
+        @NonNull
+        private static <X> X assertNotNull(X value) {
+            if (value == null) throw new AssertionError();
+            return value;
+        }
+
+        /**
+         * Traverses the nodes of the (sub)tree in order.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         */
+        public void forEach(int parentLeftWeight, int parentRightWeight, @NonNull TraversalAction receiver) {
+            if (leftChild != null) leftChild.forEach(parentLeftWeight, parentRightWeight + nodeWeight + rightWeight, receiver);
+            receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight);
+            if (rightChild != null) rightChild.forEach(parentLeftWeight + nodeWeight + leftWeight, parentRightWeight, receiver);
+        }
+
+        /**
+         * Traverses the nodes of the (sub)tree in reverse order.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         */
+        public void forEachReverse(int parentLeftWeight, int parentRightWeight, @NonNull TraversalAction receiver) {
+            if (rightChild != null) rightChild.forEachReverse(parentLeftWeight + nodeWeight + leftWeight, parentRightWeight, receiver);
+            receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight);
+            if (leftChild != null) leftChild.forEachReverse(parentLeftWeight, parentRightWeight + nodeWeight + rightWeight, receiver);
+        }
+
+        /**
+         * Traverses the nodes of the (sub)tree in order while the given action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachWhile(int parentLeftWeight, int parentRightWeight, @NonNull StoppableTraversalAction receiver) {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (leftChild != null && !leftChild.forEachWhile(parentLeftWeight, rightOfLeftChild, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return rightChild == null || rightChild.forEachWhile(leftOfRightChild, parentRightWeight, receiver);
+        }
+
+        /**
+         * Traverses the nodes of the (sub)tree in reverse order while the given action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachReverseWhile(int parentLeftWeight, int parentRightWeight, @NonNull StoppableTraversalAction receiver) {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (rightChild != null && !rightChild.forEachReverseWhile(leftOfRightChild, parentRightWeight, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return leftChild == null || leftChild.forEachReverseWhile(parentLeftWeight, rightOfLeftChild, receiver);
+        }
+
+        /**
+         * Traverses in order the nodes of the (sub)tree having keys greater than or equal to the given one while the given action
+         * tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param fromKey The key where the traversal starts.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachFromWhile(
+                long fromKey,
+                int parentLeftWeight,
+                int parentRightWeight,
+                @NonNull StoppableTraversalAction receiver)
+        {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (fromKey > key) {
+                return rightChild == null || rightChild.forEachFromWhile(fromKey, leftOfRightChild, parentRightWeight, receiver);
+            }
+            if (leftChild != null && !leftChild.forEachFromWhile(fromKey, parentLeftWeight, rightOfLeftChild, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return rightChild == null || rightChild.forEachWhile(leftOfRightChild, parentRightWeight, receiver);
+        }
+
+        /**
+         * Traverses in reverse order the nodes of the (sub)tree having keys smaller than or equal to the given one while the given
+         * action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param fromKey The key where the traversal starts.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachReverseFromWhile(
+                long fromKey,
+                int parentLeftWeight,
+                int parentRightWeight,
+                @NonNull StoppableTraversalAction receiver)
+        {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (fromKey < key) {
+                return leftChild == null || leftChild.forEachReverseFromWhile(fromKey, parentLeftWeight, rightOfLeftChild, receiver);
+            }
+            boolean goOn = rightChild == null || rightChild.forEachReverseFromWhile(fromKey, leftOfRightChild, parentRightWeight, receiver);
+            if (!goOn) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return leftChild == null || leftChild.forEachReverseWhile(parentLeftWeight, rightOfLeftChild, receiver);
+        }
+
+        /**
+         * Gives a string representation of this node containing its key and value and all the subtrees.
+         * @return A string representation of this node containing its key and value and all the subtrees.
+         */
+        @Override
+        @CheckReturnValue
+        public String toString() {
+            return (leftChild == null ? "-" : "(" + leftChild + ")")
+                    + " (" + key + ": " + value + ") "
+                    + (rightChild == null ? "-" : "(" + rightChild + ")");
+        }
+    }
+
+    /**
+     * The root of the tree.
+     */
+    @Nullable
+    private final Node root;
+
+    /**
+     * Creates an initially empty instance of the class.
+     */
+    public ImmutableLongWeightedAvlTree() {
+        this.root = null;
+    }
+
+    /**
+     * Internal constructor for creating an instance of this class given a node to be the root of the tree.
+     * @param root The node to be the root of the tree.
+     */
+    private ImmutableLongWeightedAvlTree(@Nullable Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Creates a tree with the given nodes, which should be given in the ascending order of their keys, in {@code O(n)} time. Instead
+     * of adding the nodes one by one with the {@link #put(long, int, long) put} method, which takes {@code O(n log n)} time and
+     * rebalances the tree over and over again, the tree is built already perfectly balanced: the nodes are split in a left half, a
+     * middle node and a right half, recursively, so the sizes (and then the heights) of the subtrees of every node differ by at most
+     * one.
+     *
+     * <p>The given functions are called exactly once for each index, in ascending order, so they might just take the next node from
+     * some sequential source.</p>
+     *
+     * @param size How many nodes the tree has.
+     * @param keys Gives the key of the node at each index, from zero to {@code size - 1}.
+     * @param weights Gives the weight of the node at each index, from zero to {@code size - 1}.
+     * @param values Gives the value of the node at each index, from zero to {@code size - 1}.
+     * @return A tree with the given nodes.
+     * @throws IllegalArgumentException If {@code size} is negative, if any function is {@code null} or if the keys aren't strictly
+     *     ascending.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static ImmutableLongWeightedAvlTree fromSorted(
+            int size,
+            @NonNull IntToLongFunction keys,
+            @NonNull IntUnaryOperator weights,
+            @NonNull IntToLongFunction values)
+    {
+        if (size < 0 || keys == null || weights == null || values == null) throw new IllegalArgumentException();
+        return new ImmutableLongWeightedAvlTree(new SortedBuilder(keys, weights, values).build(size));
+    }
+
+    /**
+     * Gives a string representation of this tree containing all its keys and values.
+     * @return A string representation of this tree containing all its keys and values.
+     */
+    @Override
+    @CheckReturnValue
+    public String toString() {
+        return isEmpty() ? "-" : root.toString();
+    }
+
+    /**
+     * Creates a new tree (trying to reuse the most nodes possible from the old one) with a new added node. If there already is a node
+     * with the given key, it will be replaced by the new one. Either way, the path from the root to the node is walked and copied only
+     * once.
+     * @param key The key of the node to add.
+     * @param weight The weight of the node to add.
+     * @param value The value of the node to add.
+     * @return A new tree corresponding from the old one with a new node added. If the tree already had a node with the same key,
+     *     weight and value, returns this tree unchanged.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ImmutableLongWeightedAvlTree put(long key, int weight, long value) {
+        return withRoot(root == null ? Node.leaf(key, weight, value) : root.put(key, weight, value));
+    }
+
+    /**
+     * Gives a tree with the given root node.
+     * @param newRoot The root node of the tree.
+     * @return A tree with the given root node. If it is the same root node of this tree, returns this tree unchanged.
+     */
+    @NonNull
+    @CheckReturnValue
+    private ImmutableLongWeightedAvlTree withRoot(@Nullable Node newRoot) {
+        return newRoot == root ? this : new ImmutableLongWeightedAvlTree(newRoot);
+    }
+
+    /**
+     * Finds the value corresponding to the given key, if it exists.
+     * @param key The key to find the corresponding value inside the tree.
+     * @return An {@link OptionalLong} containing the found value, if it exists, or an empty one if it does not.
+     */
+    @NonNull
+    @CheckReturnValue
+    public OptionalLong get(long key) {
+        return root == null ? OptionalLong.empty() : root.get(key);
+    }
+
+    /**
+     * Gives a new tree with the node from the given key removed. If there is no such node, returns this node unchanged.
+     * @param key The key of the node to be removed.
+     * @return A new tree with the node from the given key removed. If there is no such node, returns this node unchanged.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ImmutableLongWeightedAvlTree remove(long key) {
+        return root == null ? this : withRoot(root.remove(key));
+    }
+
+    /**
+     * Creates a new tree (trying to reuse the most nodes possible from the old one) with the given nodes added, which should be given
+     * in the ascending order of their keys. If there already are nodes with some of the given keys, they will be replaced by the new
+     * ones. This works like calling the {@link #put(long, int, long) put} method for each node, but the whole batch is merged into the
+     * tree at once.
+     *
+     * <p>The tree is walked from the root and the nodes are split between the left and the right subtrees of each node by a binary
+     * search, so the subtrees without any of the keys are kept untouched and shared with the old tree and every other node is copied
+     * only once, instead of once for each key below it. Each subtree is then joined again to its node, which also rebalances it, no
+     * matter how many nodes were added to each side. Keys that aren't in the tree are built into balanced subtrees straight away.</p>
+     *
+     * @param size How many nodes there are.
+     * @param keys Gives the key of the node at each index, from zero to {@code size - 1}.
+     * @param weights Gives the weight of the node at each index, from zero to {@code size - 1}.
+     * @param values Gives the value of the node at each index, from zero to {@code size - 1}.
+     * @return A new tree corresponding from the old one with the nodes added. If the tree already had all the nodes with the same keys,
+     *     weights and values, returns this tree unchanged.
+     * @throws IllegalArgumentException If {@code size} is negative, if any function is {@code null} or if the keys aren't strictly
+     *     ascending.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ImmutableLongWeightedAvlTree putSorted(
+            int size,
+            @NonNull IntToLongFunction keys,
+            @NonNull IntUnaryOperator weights,
+            @NonNull IntToLongFunction values)
+    {
+        if (size < 0 || keys == null || weights == null || values == null) throw new IllegalArgumentException();
+        checkAscending(size, keys);
+        return withRoot(new SortedMerger(keys, weights, values).merge(root, 0, size));
+    }
+
+    /**
+     * Creates a new tree (trying to reuse the most nodes possible from the old one) with the nodes of the given keys removed, which
+     * should be given in ascending order. Keys without nodes are ignored. This works like calling the {@link #remove(long) remove}
+     * method for each key, but the whole batch is merged into the tree at once, just like in the
+     * {@link #putSorted(int, IntToLongFunction, IntUnaryOperator, IntToLongFunction) putSorted} method.
+     * @param size How many keys there are.
+     * @param keys Gives the key at each index, from zero to {@code size - 1}.
+     * @return A new tree with the nodes of the given keys removed. If there are no such nodes, returns this tree unchanged.
+     * @throws IllegalArgumentException If {@code size} is negative, if {@code keys} is {@code null} or if the keys aren't strictly
+     *     ascending.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ImmutableLongWeightedAvlTree removeSorted(int size, @NonNull IntToLongFunction keys) {
+        if (size < 0 || keys == null) throw new IllegalArgumentException();
+        checkAscending(size, keys);
+        return withRoot(new SortedMerger(keys, null, null).merge(root, 0, size));
+    }
+
+    /**
+     * Checks that the given keys are strictly ascending.
+     * @param size How many keys there are.
+     * @param keys Gives the key at each index, from zero to {@code size - 1}.
+     * @throws IllegalArgumentException If the keys aren't strictly ascending.
+     */
+    private static void checkAscending(int size, @NonNull IntToLongFunction keys) {
+        for (int i = 1; i < size; i++) {
+            if (keys.applyAsLong(i - 1) >= keys.applyAsLong(i)) throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Finds out the differences between an older tree and this one, feeding the given action with each key that was added, removed or
+     * whose value or weight was changed, in the ascending order of the keys.
+     *
+     * <p>Since the trees are immutable, a tree derived from an older one shares with it every subtree that wasn't touched by the changes
+     * between them. Both trees are walked through in order at the same time and whenever both walks reach the very same subtree, it is
+     * skipped at once without looking inside it. So, when this tree was derived from the older one, this takes time proportional to
+     * the number of nodes created by the changes, not to the size of the trees. For unrelated trees, this still works, but every node
+     * is visited.</p>
+     *
+     * @param older The older tree.
+     * @param action The action that receives each difference.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    public void forEachChange(@NonNull ImmutableLongWeightedAvlTree older, @NonNull ChangeAction action) {
+        if (older == null || action == null) throw new IllegalArgumentException();
+        DiffCursor before = new DiffCursor(older.root);
+        DiffCursor after = new DiffCursor(root);
+        while (!before.isEmpty() || !after.isEmpty()) {
+
+            // The very same subtree in both trees has the very same nodes, so it is skipped.
+            if (!before.isEmpty() && !after.isEmpty() && before.isSubtree() && after.isSubtree() && before.peek() == after.peek()) {
+                before.pop();
+                after.pop();
+                continue;
+            }
+
+            // Split the tallest subtree at the top of the walks, until both walks are at single nodes.
+            boolean splitBefore = !before.isEmpty() && before.isSubtree()
+                    && (after.isEmpty() || !after.isSubtree() || before.peek().height >= after.peek().height);
+            if (splitBefore) {
+                before.split();
+                continue;
+            }
+            if (!after.isEmpty() && after.isSubtree()) {
+                after.split();
+                continue;
+            }
+
+            // Compare the single nodes at the top of the walks, in the same way as merging two sorted lists.
+            Node b = before.isEmpty() ? null : before.peek();
+            Node a = after.isEmpty() ? null : after.peek();
+            if (a == null || (b != null && b.key < a.key)) {
+                action.run(b.key, true, b.value, false, 0L);
+                before.pop();
+            } else if (b == null || a.key < b.key) {
+                action.run(a.key, false, 0L, true, a.value);
+                after.pop();
+            } else {
+                if (a.value != b.value || a.nodeWeight != b.nodeWeight) action.run(a.key, true, b.value, true, a.value);
+                before.pop();
+                after.pop();
+            }
+        }
+    }
+
+    /**
+     * Traverses the nodes of the tree in order.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEach(@NonNull TraversalAction receiver) {
+        if (root != null) root.forEach(0, 0, receiver);
+    }
+
+    /**
+     * Traverses the nodes of the tree in reverse order.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEachReverse(@NonNull TraversalAction receiver) {
+        if (root != null) root.forEachReverse(0, 0, receiver);
+    }
+
+    /**
+     * Traverses in order the nodes of the tree having keys greater than or equal to the given one. There is no need for a node with
+     * the given key to exist in the tree. The nodes before the starting one are skipped in {@code O(log N)} time.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEachFrom(long fromKey, @NonNull TraversalAction receiver) {
+        forEachFromWhile(fromKey, (k, v, lw, nw, rw) -> {
+            receiver.run(k, v, lw, nw, rw);
+            return true;
+        });
+    }
+
+    /**
+     * Traverses in reverse order the nodes of the tree having keys smaller than or equal to the given one. There is no need for a node
+     * with the given key to exist in the tree. The nodes after the starting one are skipped in {@code O(log N)} time.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEachReverseFrom(long fromKey, @NonNull TraversalAction receiver) {
+        forEachReverseFromWhile(fromKey, (k, v, lw, nw, rw) -> {
+            receiver.run(k, v, lw, nw, rw);
+            return true;
+        });
+    }
+
+    /**
+     * Traverses the nodes of the tree in order while the given action tells to continue.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachWhile(@NonNull StoppableTraversalAction receiver) {
+        return root == null || root.forEachWhile(0, 0, receiver);
+    }
+
+    /**
+     * Traverses the nodes of the tree in reverse order while the given action tells to continue.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachReverseWhile(@NonNull StoppableTraversalAction receiver) {
+        return root == null || root.forEachReverseWhile(0, 0, receiver);
+    }
+
+    /**
+     * Traverses in order the nodes of the tree having keys greater than or equal to the given one while the given action tells to
+     * continue. There is no need for a node with the given key to exist in the tree. The nodes before the starting one are skipped in
+     * {@code O(log N)} time.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachFromWhile(long fromKey, @NonNull StoppableTraversalAction receiver) {
+        return root == null || root.forEachFromWhile(fromKey, 0, 0, receiver);
+    }
+
+    /**
+     * Traverses in reverse order the nodes of the tree having keys smaller than or equal to the given one while the given action tells
+     * to continue. There is no need for a node with the given key to exist in the tree. The nodes after the starting one are skipped
+     * in {@code O(log N)} time.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachReverseFromWhile(long fromKey, @NonNull StoppableTraversalAction receiver) {
+        return root == null || root.forEachReverseFromWhile(fromKey, 0, 0, receiver);
+    }
+
+    /**
+     * Finds the node which covers the given offset when the weights of all the nodes are laid out side by side in order. I.e., the
+     * node whose left weight is smaller than or equal to the given offset, but whose left weight plus its own weight is greater than it.
+     * Nodes with zero weight are never selected. This is the inverse of the {@link #getLeftWeight(long) getLeftWeight} method
+     * and takes {@code O(log N)} time.
+     * @param offset The offset, counted from the beginning of the tree.
+     * @return An {@link Optional} containing the entry of the node covering the given offset or an empty one if the offset is
+     *     negative or not smaller than the total weight of the tree.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<Entry> selectByWeight(int offset) {
+        int leftBase = 0;
+        int rightBase = 0;
+        Node n = root;
+        while (n != null && offset >= 0) {
+            if (offset < leftBase + n.leftWeight) {
+                rightBase += n.nodeWeight + n.rightWeight;
+                n = n.leftChild;
+            } else if (offset < leftBase + n.leftWeight + n.nodeWeight) {
+                return Optional.of(new Entry(n.key, n.value, leftBase + n.leftWeight, n.nodeWeight, rightBase + n.rightWeight));
+            } else {
+                leftBase += n.leftWeight + n.nodeWeight;
+                n = n.rightChild;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the node which covers the given offset when the weights of all the nodes are laid out side by side in reverse order. I.e.,
+     * the node whose right weight is smaller than or equal to the given offset, but whose right weight plus its own weight is greater
+     * than it. Nodes with zero weight are never selected. This is the inverse of the
+     * {@link #getRightWeight(long) getRightWeight} method and takes {@code O(log N)} time.
+     * @param offset The offset, counted from the end of the tree.
+     * @return An {@link Optional} containing the entry of the node covering the given offset or an empty one if the offset is
+     *     negative or not smaller than the total weight of the tree.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<Entry> selectByWeightReverse(int offset) {
+        int leftBase = 0;
+        int rightBase = 0;
+        Node n = root;
+        while (n != null && offset >= 0) {
+            if (offset < rightBase + n.rightWeight) {
+                leftBase += n.nodeWeight + n.leftWeight;
+                n = n.rightChild;
+            } else if (offset < rightBase + n.rightWeight + n.nodeWeight) {
+                return Optional.of(new Entry(n.key, n.value, leftBase + n.leftWeight, n.nodeWeight, rightBase + n.rightWeight));
+            } else {
+                rightBase += n.rightWeight + n.nodeWeight;
+                n = n.leftChild;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Tells if this tree is empty (i.e. has no nodes).
+     * @return {@code true} if this tree is empty or {@code false} otherwise.
+     */
+    @CheckReturnValue
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Gives the total weight of the tree.
+     * @return The total weight of the tree.
+     */
+    @CheckReturnValue
+    public int getTotalWeight() {
+        return root == null ? 0 : root.getTotalWeight();
+    }
+
+    /**
+     * Gives the total weight of the nodes left to the one with the given key within the tree.
+     * @param findingKey The key to find the node inside the tree.
+     * @return An {@link OptionalInt} containing the total weight of the nodes left to the one with the given key within the tree, if
+     *     it exists, or an empty one if it doesn't.
+     */
+    @NonNull
+    @CheckReturnValue
+    public OptionalInt getLeftWeight(long findingKey) {
+        return root == null ? OptionalInt.empty() : root.getLeftWeight(findingKey);
+    }
+
+    /**
+     * Gives the total weight of the nodes right to the one with the given key within the tree.
+     * @param findingKey The key to find the node inside the tree.
+     * @return An {@link OptionalInt} containing the total weight of the nodes right to the one with the given key within the tree, if
+     *     it exists, or an empty one if it doesn't.
+     */
+    @NonNull
+    @CheckReturnValue
+    public OptionalInt getRightWeight(long findingKey) {
+        return root == null ? OptionalInt.empty() : root.getRightWeight(findingKey);
+    }
+
+    /**
+     * Gives the total weight of all the nodes having keys smaller than the given one. Differently from the
+     * {@link #getLeftWeight(long) getLeftWeight(long)} method, there is no need for a node with the given key to exist in the tree.
+     * @param findingKey The key to be compared with the keys of the nodes inside the tree.
+     * @return The total weight of all the nodes having keys smaller than the given one.
+     */
+    @CheckReturnValue
+    public int getWeightBefore(long findingKey) {
+        int weight = 0;
+        Node n = root;
+        while (n != null) {
+            if (findingKey == n.key) return weight + n.leftWeight;
+            if (findingKey < n.key) {
+                n = n.leftChild;
+            } else {
+                weight += n.leftWeight + n.nodeWeight;
+                n = n.rightChild;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Gives the weight of the node having the given key, if it exists.
+     * @param findingKey The key to find the node inside the tree.
+     * @return An {@link OptionalInt} containing the weight of the given node, if it exists, or an empty one if it doesn't.
+     */
+    @NonNull
+    @CheckReturnValue
+    public OptionalInt getNodeWeight(long findingKey) {
+        return root == null ? OptionalInt.empty() : root.getNodeWeight(findingKey);
+    }
+
+    /**
+     * Represents an action to be performed with each difference between two trees.
+     */
+    @FunctionalInterface
+    public static interface ChangeAction {
+
+        /**
+         * This is the functional method representing what should be done with each difference.
+         * @param key The key that was added, removed or changed.
+         * @param inOlder {@code true} if the key is in the older tree, {@code false} if it was added.
+         * @param oldValue The value in the older tree, or zero if the key was added.
+         * @param inNewer {@code true} if the key is in the newer tree, {@code false} if it was removed.
+         * @param newValue The value in the newer tree, or zero if the key was removed.
+         */
+        public void run(long key, boolean inOlder, long oldValue, boolean inNewer, long newValue);
+    }
+
+    /**
+     * An in order walk through a tree used by the {@link ImmutableLongWeightedAvlTree#forEachChange forEachChange} method. It keeps an
+     * explicit stack of what is still to be walked through, in order. Each element of the stack is either a whole subtree or a single
+     * node, whose left subtree was already split from it.
+     */
+    private static final class DiffCursor {
+
+        /**
+         * The nodes in the stack. Each one stands either for its whole subtree or just for itself.
+         */
+        @NonNull
+        private final Node[] nodes;
+
+        /**
+         * Tells if each node in the stack stands just for itself.
+         */
+        @NonNull
+        private final boolean[] single;
+
+        /**
+         * How many elements are in the stack.
+         */
+        private int size;
+
+        /**
+         * Creates a walk through the subtree rooted at the given node.
+         * @param root The root of the subtree, or {@code null} for an empty walk.
+         */
+        public DiffCursor(@Nullable Node root) {
+
+            // Each split replaces an element by up to three, going one level down in the tree, so this is enough.
+            int capacity = root == null ? 1 : 2 * root.height + 1;
+            this.nodes = new Node[capacity];
+            this.single = new boolean[capacity];
+            if (root != null) push(root, false);
+        }
+
+        /**
+         * Pushes an element into the stack.
+         * @param node The node.
+         * @param isSingle {@code true} if the element is just the node, {@code false} if it is its whole subtree.
+         */
+        private void push(@NonNull Node node, boolean isSingle) {
+            nodes[size] = node;
+            single[size] = isSingle;
+            size++;
+        }
+
+        /**
+         * Tells if there is nothing more to be walked through.
+         * @return {@code true} if there is nothing more to be walked through, {@code false} otherwise.
+         */
+        @CheckReturnValue
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Gives the node at the top of the stack.
+         * @return The node at the top of the stack.
+         */
+        @NonNull
+        @CheckReturnValue
+        public Node peek() {
+            return nodes[size - 1];
+        }
+
+        /**
+         * Tells if the element at the top of the stack is a whole subtree.
+         * @return {@code true} if the element at the top of the stack is a whole subtree, {@code false} if it is a single node.
+         */
+        @CheckReturnValue
+        public boolean isSubtree() {
+            return !single[size - 1];
+        }
+
+        /**
+         * Removes the element at the top of the stack, which was walked through.
+         */
+        public void pop() {
+            nodes[--size] = null;
+        }
+
+        /**
+         * Splits the subtree at the top of the stack into its left subtree, its root node and its right subtree.
+         */
+        public void split() {
+            Node n = nodes[--size];
+            if (n.rightChild != null) push(n.rightChild, false);
+            push(n, true);
+            if (n.leftChild != null) push(n.leftChild, false);
+        }
+    }
+
+    /**
+     * Builds perfectly balanced subtrees from nodes given in the ascending order of their keys, as needed by the
+     * {@link ImmutableLongWeightedAvlTree#fromSorted(int, IntToLongFunction, IntUnaryOperator, IntToLongFunction) fromSorted} method.
+     * The nodes are taken in order, so the left subtree of each node is built before taking the node itself and the right subtree
+     * afterwards.
+     */
+    private static final class SortedBuilder {
+
+        /**
+         * Gives the key of the node at each index.
+         */
+        @NonNull
+        private final IntToLongFunction keys;
+
+        /**
+         * Gives the weight of the node at each index.
+         */
+        @NonNull
+        private final IntUnaryOperator weights;
+
+        /**
+         * Gives the value of the node at each index.
+         */
+        @NonNull
+        private final IntToLongFunction values;
+
+        /**
+         * The index of the next node to be taken.
+         */
+        private int next;
+
+        /**
+         * The key of the last node taken. Meaningless before the first node is taken.
+         */
+        private long previous;
+
+        /**
+         * Creates an instance that takes the nodes from the given functions.
+         * @param keys Gives the key of the node at each index.
+         * @param weights Gives the weight of the node at each index.
+         * @param values Gives the value of the node at each index.
+         */
+        public SortedBuilder(@NonNull IntToLongFunction keys, @NonNull IntUnaryOperator weights, @NonNull IntToLongFunction values) {
+            this.keys = keys;
+            this.weights = weights;
+            this.values = values;
+        }
+
+        /**
+         * Builds a perfectly balanced subtree with the next nodes.
+         * @param count How many nodes the subtree has.
+         * @return The root of the subtree or {@code null} if it has no nodes.
+         * @throws IllegalArgumentException If the keys aren't strictly ascending.
+         */
+        @Nullable
+        public Node build(int count) {
+            if (count == 0) return null;
+            int leftCount = (count - 1) / 2;
+            Node left = build(leftCount);
+            int index = next++;
+            long key = keys.applyAsLong(index);
+            int weight = weights.applyAsInt(index);
+            long value = values.applyAsLong(index);
+            if (index != 0 && previous >= key) throw new IllegalArgumentException();
+            previous = key;
+            Node right = build(count - 1 - leftCount);
+            return new Node(key, value, weight, left, right);
+        }
+    }
+
+    /**
+     * Merges a batch of nodes given in the ascending order of their keys into a subtree, either adding them or removing them, as needed
+     * by the {@link ImmutableLongWeightedAvlTree#putSorted(int, IntToLongFunction, IntUnaryOperator, IntToLongFunction) putSorted} and
+     * {@link ImmutableLongWeightedAvlTree#removeSorted(int, IntToLongFunction) removeSorted} methods.
+     */
+    private static final class SortedMerger {
+
+        /**
+         * Gives the key of the node at each index.
+         */
+        @NonNull
+        private final IntToLongFunction keys;
+
+        /**
+         * Gives the weight of the node at each index, or {@code null} if the nodes are being removed.
+         */
+        @Nullable
+        private final IntUnaryOperator weights;
+
+        /**
+         * Gives the value of the node at each index, or {@code null} if the nodes are being removed.
+         */
+        @Nullable
+        private final IntToLongFunction values;
+
+        /**
+         * Creates an instance that takes the nodes from the given functions.
+         * @param keys Gives the key of the node at each index.
+         * @param weights Gives the weight of the node at each index, or {@code null} if the nodes are being removed.
+         * @param values Gives the value of the node at each index, or {@code null} if the nodes are being removed.
+         */
+        public SortedMerger(@NonNull IntToLongFunction keys, @Nullable IntUnaryOperator weights, @Nullable IntToLongFunction values) {
+            this.keys = keys;
+            this.weights = weights;
+            this.values = values;
+        }
+
+        /**
+         * Merges the nodes in the given range of indexes into the given subtree.
+         * @param node The root of the subtree, or {@code null} if it is empty.
+         * @param from The first index of the range, inclusive.
+         * @param to The last index of the range, exclusive.
+         * @return The root of the changed subtree, or {@code null} if it became empty. If nothing changed, returns the given node.
+         */
+        @Nullable
+        public Node merge(@Nullable Node node, int from, int to) {
+            if (from == to) return node;
+            IntUnaryOperator w = weights;
+            IntToLongFunction v = values;
+
+            // Nodes for missing keys are built straight away, splitting the range in halves, so the built subtree is balanced.
+            if (node == null) {
+                if (w == null || v == null) return null;
+                int middle = (from + to) >>> 1;
+                Node left = merge(null, from, middle);
+                Node right = merge(null, middle + 1, to);
+                return Node.join(left, keys.applyAsLong(middle), v.applyAsLong(middle), w.applyAsInt(middle), right);
+            }
+
+            // Split the range between the subtrees, change them and then this node and join everything again.
+            int split = search(node.key, from, to);
+            boolean found = split < to && keys.applyAsLong(split) == node.key;
+            Node left = merge(node.leftChild, from, split);
+            Node right = merge(node.rightChild, found ? split + 1 : split, to);
+            if (found && (w == null || v == null)) return Node.concat(left, right);
+            int weight = found ? w.applyAsInt(split) : node.nodeWeight;
+            long value = found ? v.applyAsLong(split) : node.value;
+            if (left == node.leftChild && right == node.rightChild) {
+                return weight == node.nodeWeight && value == node.value ? node : new Node(node.key, value, weight, left, right);
+            }
+            return Node.join(left, node.key, value, weight, right);
+        }
+
+        /**
+         * Finds the first index in the given range whose key isn't lesser than the given one.
+         * @param key The key to search for.
+         * @param from The first index of the range, inclusive.
+         * @param to The last index of the range, exclusive.
+         * @return The first index in the given range whose key isn't lesser than the given one, or {@code to} if there is none.
+         */
+        private int search(long key, int from, int to) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys.applyAsLong(middle) < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Represents an action to be performed with a tree node during a tree traversal.
+     */
+    @FunctionalInterface
+    public static interface TraversalAction {
+
+        /**
+         * This is the functional method representing what should be done with each tree node.
+         * @param key The key of the node.
+         * @param value The value of the node.
+         * @param leftWeight The total weight of all the nodes to the left of the current one.
+         * @param nodeWeight The total weight of the node.
+         * @param rightWeight The total weight of all the nodes to the right of the current one.
+         */
+        public void run(long key, long value, int leftWeight, int nodeWeight, int rightWeight);
+    }
+
+    /**
+     * Represents an action to be performed with a tree node during a tree traversal that might be stopped before reaching its end.
+     */
+    @FunctionalInterface
+    public static interface StoppableTraversalAction {
+
+        /**
+         * This is the functional method representing what should be done with each tree node.
+         * @param key The key of the node.
+         * @param value The value of the node.
+         * @param leftWeight The total weight of all the nodes to the left of the current one.
+         * @param nodeWeight The total weight of the node.
+         * @param rightWeight The total weight of all the nodes to the right of the current one.
+         * @return {@code true} if the traversal should continue or {@code false} if it should be stopped.
+         */
+        public boolean run(long key, long value, int leftWeight, int nodeWeight, int rightWeight);
+    }
+
+    /**
+     * Represents the data of a node found in the tree, together with its position expressed as weights.
+     */
+    @Immutable
+    public static final class Entry {
+
+        /**
+         * The key of the node.
+         */
+        private final long key;
+
+        /**
+         * The value of the node.
+         */
+        private final long value;
+
+        /**
+         * The total weight of all the nodes to the left of the node.
+         */
+        private final int leftWeight;
+
+        /**
+         * The weight of the node.
+         */
+        private final int nodeWeight;
+
+        /**
+         * The total weight of all the nodes to the right of the node.
+         */
+        private final int rightWeight;
+
+        /**
+         * Creates an instance from its values.
+         * @param key The key of the node.
+         * @param value The value of the node.
+         * @param leftWeight The total weight of all the nodes to the left of the node.
+         * @param nodeWeight The weight of the node.
+         * @param rightWeight The total weight of all the nodes to the right of the node.
+         */
+        private Entry(long key, long value, int leftWeight, int nodeWeight, int rightWeight) {
+            this.key = key;
+            this.value = value;
+            this.leftWeight = leftWeight;
+            this.nodeWeight = nodeWeight;
+            this.rightWeight = rightWeight;
+        }
+
+        /**
+         * Gives the key of the node.
+         * @return The key of the node.
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * Gives the value of the node.
+         * @return The value of the node.
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * Gives the total weight of all the nodes to the left of the node.
+         * @return The total weight of all the nodes to the left of the node.
+         */
+        public int getLeftWeight() {
+            return leftWeight;
+        }
+
+        /**
+         * Gives the weight of the node.
+         * @return The weight of the node.
+         */
+        public int getNodeWeight() {
+            return nodeWeight;
+        }
+
+        /**
+         * Gives the total weight of all the nodes to the right of the node.
+         * @return The total weight of all the nodes to the right of the node.
+         */
+        public int getRightWeight() {
+            return rightWeight;
+        }
+
+        /**
+         * Gives a string representation of this entry.
+         * @return A string representation of this entry.
+         */
+        @Override
+        public String toString() {
+            return key + ": " + value + " [" + leftWeight + "/" + nodeWeight + "/" + rightWeight + "]";
+        }
+    }
+}
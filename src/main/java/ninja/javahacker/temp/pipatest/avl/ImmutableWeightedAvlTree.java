@@ -3,10 +3,20 @@ package ninja.javahacker.temp.pipatest.avl;
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.Spliterator;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import net.jcip.annotations.Immutable;
 
 /**
@@ -112,6 +122,12 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
          */
         private final int totalWeight;
 
+        /**
+         * How many nodes there are in the subtree rooted at this node, including itself. Differently from the weights, this is always
+         * the exact number of nodes, so it can be used to split the tree in parts of exact sizes.
+         */
+        private final int size;
+
         /**
          * Instantiates a node.
          * This constructor should be used only through the
@@ -136,11 +152,15 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
             this.leftWeight = leftChild == null ? 0 : leftChild.totalWeight;
             this.rightWeight = rightChild == null ? 0 : rightChild.totalWeight;
             this.totalWeight = nodeWeight + leftWeight + rightWeight;
+            this.size = 1 + (leftChild == null ? 0 : leftChild.size) + (rightChild == null ? 0 : rightChild.size);
             int lh = leftChild == null ? 0 : leftChild.height;
             int rh = rightChild == null ? 0 : rightChild.height;
             this.height = Math.max(lh, rh) + 1;
             this.balance = lh - rh;
 
+            // Count the allocation, if anyone wants to know.
+            NodeAllocationCounter.allocated();
+
             // Sanity check.
             if (leftChild != null && leftChild.key.compareTo(key) >= 0) throw new AssertionError();
             if (rightChild != null && rightChild.key.compareTo(key) <= 0) throw new AssertionError();
@@ -273,22 +293,89 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
         }
 
         /**
-         * Creates a new (sub)tree (trying to reuse the most nodes possible from the old one) with a new added node.
+         * Creates a new (sub)tree (trying to reuse the most nodes possible from the old one) with a new added node. If there already is
+         * a node with the given key, it is replaced in place, so the path from the root to it is copied only once.
          * @param newKey The key of the node to add.
          * @param newWeight The weight of the node to add.
          * @param newValue The value of the node to add.
-         * @return A new (sub)tree corresponding from the old one with a new node added.
+         * @return A new (sub)tree corresponding from the old one with a new node added. If there already is a node with the same key,
+         *     weight and value, returns this node unchanged.
          */
         @NonNull
         @CheckReturnValue
         public Node<K, V> put(@NonNull K newKey, int newWeight, @NonNull V newValue) {
+            int cmp = newKey.compareTo(key);
+            if (cmp == 0) return withValue(newWeight, newValue);
             Node<K, V> lc = leftChild;
             Node<K, V> rc = rightChild;
-            return newKey.compareTo(key) < 0
+            return cmp < 0
                     ? withLeftChild(lc == null ? leaf(newKey, newWeight, newValue) : lc.put(newKey, newWeight, newValue))
                     : withRightChild(rc == null ? leaf(newKey, newWeight, newValue) : rc.put(newKey, newWeight, newValue));
         }
 
+        /**
+         * Creates a new (sub)tree (trying to reuse the most nodes possible from the old one) where the node with the given key is
+         * added, replaced or removed accordingly to what the given {@code remapper} function says. The path from the root to the node
+         * is copied only once, regardless of what happens with the node.
+         * @param updateKey The key of the node to be updated.
+         * @param weigher Function that gives the weight of the node from its new value.
+         * @param remapper Function that receives the current value of the node (or an empty {@link Optional} if there is no node with
+         *     the given key) and gives its new value (or an empty {@link Optional} if the node should be removed).
+         * @return A new (sub)tree with the node updated. If nothing changed, returns this node unchanged.
+         */
+        @Nullable
+        @CheckReturnValue
+        public Node<K, V> update(
+                @NonNull K updateKey,
+                @NonNull ToIntFunction<? super V> weigher,
+                @NonNull UnaryOperator<Optional<V>> remapper)
+        {
+            int cmp = updateKey.compareTo(key);
+            if (cmp == 0) {
+                Optional<V> newValue = remapper.apply(Optional.of(value));
+                return newValue.isPresent() ? withValue(weigher.applyAsInt(newValue.get()), newValue.get()) : removeThis();
+            }
+            Node<K, V> lc = leftChild;
+            Node<K, V> rc = rightChild;
+            return cmp < 0
+                    ? withLeftChild(lc == null ? absent(updateKey, weigher, remapper) : lc.update(updateKey, weigher, remapper))
+                    : withRightChild(rc == null ? absent(updateKey, weigher, remapper) : rc.update(updateKey, weigher, remapper));
+        }
+
+        /**
+         * Used by the {@link Node#update(Comparable, ToIntFunction, UnaryOperator) update(K, ToIntFunction, UnaryOperator)} method
+         * when there is no node with the given key. Gives a leaf node if the {@code remapper} function provides a value for it.
+         * @param <K> The type of the key used to search for nodes.
+         * @param <V> The type of the data hold into each node.
+         * @param newKey The key of the node that would be created.
+         * @param weigher Function that gives the weight of the node from its value.
+         * @param remapper Function that receives an empty {@link Optional} and gives the value for the node, if it should be created.
+         * @return A newly created leaf node or {@code null} if the {@code remapper} function gave out nothing.
+         */
+        @Nullable
+        @CheckReturnValue
+        public static <K extends Comparable<K>, V> Node<K, V> absent(
+                @NonNull K newKey,
+                @NonNull ToIntFunction<? super V> weigher,
+                @NonNull UnaryOperator<Optional<V>> remapper)
+        {
+            Optional<V> newValue = remapper.apply(Optional.empty());
+            return newValue.isPresent() ? leaf(newKey, weigher.applyAsInt(newValue.get()), newValue.get()) : null;
+        }
+
+        /**
+         * Gives a copy of this node with the same key and children, but with another weight and value. Since the children are the same,
+         * there is no need for rebalancing.
+         * @param newWeight The weight of the new node.
+         * @param newValue The value of the new node.
+         * @return A copy of this node with the given weight and value. If they are the same as this node's, returns this node unchanged.
+         */
+        @NonNull
+        @CheckReturnValue
+        private Node<K, V> withValue(int newWeight, @NonNull V newValue) {
+            return newWeight == nodeWeight && newValue == value ? this : new Node<>(key, newValue, newWeight, leftChild, rightChild);
+        }
+
         /**
          * Finds the value corresponding to the given key, if it exists.
          * @param findingKey The key to find the corresponding value inside the tree.
@@ -390,11 +477,78 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
             Node<K, V> rc = rightChild;
             if (comp < 0) return lc == null ? this : withLeftChild(lc.remove(removeKey));
             if (comp > 0) return rc == null ? this : withRightChild(rc.remove(removeKey));
+            return removeThis();
+        }
+
+        /**
+         * Gives a new (sub)tree with the same nodes of this one, except for this node itself, which is removed.
+         * @return A new (sub)tree with this node removed.
+         */
+        @Nullable
+        @CheckReturnValue
+        private Node<K, V> removeThis() {
+            Node<K, V> lc = leftChild;
+            Node<K, V> rc = rightChild;
             if (lc == null) return rc;
             if (rc == null) return lc;
             return rc.height >= lc.height ? rc.extractMin().withNewRight(lc) : lc.extractMax().withNewLeft(rc);
         }
 
+        /**
+         * Joins two subtrees with a node between them, giving a balanced subtree with all the nodes of the left one, then the given
+         * node and then all the nodes of the right one. The subtrees might have any heights: the node is placed down the right spine of
+         * the left subtree (or the left spine of the right one) until it reaches a subtree with about the same height as the other
+         * side, so this takes time proportional to the difference between their heights and only the nodes of that spine are copied.
+         * @param <K> The type of the key used to search for nodes.
+         * @param <V> The type of the data hold into each node.
+         * @param left The left subtree, whose keys all come before the given key.
+         * @param key The key of the node between the subtrees.
+         * @param value The value of the node between the subtrees.
+         * @param nodeWeight The weight of the node between the subtrees.
+         * @param right The right subtree, whose keys all come after the given key.
+         * @return The joined subtree.
+         */
+        @NonNull
+        @CheckReturnValue
+        public static <K extends Comparable<K>, V> Node<K, V> join(
+                @Nullable Node<K, V> left,
+                @NonNull K key,
+                @NonNull V value,
+                int nodeWeight,
+                @Nullable Node<K, V> right)
+        {
+            int lh = left == null ? 0 : left.height;
+            int rh = right == null ? 0 : right.height;
+            if (lh > rh + 1) {
+                Node<K, V> l = assertNotNull(left);
+                return l.withRightChild(join(l.rightChild, key, value, nodeWeight, right));
+            }
+            if (rh > lh + 1) {
+                Node<K, V> r = assertNotNull(right);
+                return r.withLeftChild(join(left, key, value, nodeWeight, r.leftChild));
+            }
+            return new Node<>(key, value, nodeWeight, left, right);
+        }
+
+        /**
+         * Joins two subtrees, giving a balanced subtree with all the nodes of the left one and then all the nodes of the right one. The
+         * leftmost node of the right subtree is taken out of it and used to {@link #join(Node, Comparable, Object, int, Node) join}
+         * them.
+         * @param <K> The type of the key used to search for nodes.
+         * @param <V> The type of the data hold into each node.
+         * @param left The left subtree, whose keys all come before the keys of the right subtree.
+         * @param right The right subtree, whose keys all come after the keys of the left subtree.
+         * @return The joined subtree.
+         */
+        @Nullable
+        @CheckReturnValue
+        public static <K extends Comparable<K>, V> Node<K, V> concat(@Nullable Node<K, V> left, @Nullable Node<K, V> right) {
+            if (left == null) return right;
+            if (right == null) return left;
+            NodeReplace<K, V> ex = right.extractMin();
+            return join(left, ex.extracted.key, ex.extracted.value, ex.extracted.nodeWeight, ex.replacement);
+        }
+
         /**
          * Gives a new copy of this node and its subtrees with the left subtree replaced by the given node and rebalanced applied if
          * needed. If the given node is already the left children, returns this node unchanged.
@@ -592,6 +746,95 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
             if (leftChild != null) leftChild.forEachReverse(parentLeftWeight, parentRightWeight + nodeWeight + rightWeight, receiver);
         }
 
+        /**
+         * Traverses the nodes of the (sub)tree in order while the given action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachWhile(int parentLeftWeight, int parentRightWeight, @NonNull StoppableTraversalAction<K, V> receiver) {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (leftChild != null && !leftChild.forEachWhile(parentLeftWeight, rightOfLeftChild, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return rightChild == null || rightChild.forEachWhile(leftOfRightChild, parentRightWeight, receiver);
+        }
+
+        /**
+         * Traverses the nodes of the (sub)tree in reverse order while the given action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachReverseWhile(int parentLeftWeight, int parentRightWeight, @NonNull StoppableTraversalAction<K, V> receiver) {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (rightChild != null && !rightChild.forEachReverseWhile(leftOfRightChild, parentRightWeight, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return leftChild == null || leftChild.forEachReverseWhile(parentLeftWeight, rightOfLeftChild, receiver);
+        }
+
+        /**
+         * Traverses in order the nodes of the (sub)tree having keys greater than or equal to the given one while the given action
+         * tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param fromKey The key where the traversal starts.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachFromWhile(
+                @NonNull K fromKey,
+                int parentLeftWeight,
+                int parentRightWeight,
+                @NonNull StoppableTraversalAction<K, V> receiver)
+        {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (fromKey.compareTo(key) > 0) {
+                return rightChild == null || rightChild.forEachFromWhile(fromKey, leftOfRightChild, parentRightWeight, receiver);
+            }
+            if (leftChild != null && !leftChild.forEachFromWhile(fromKey, parentLeftWeight, rightOfLeftChild, receiver)) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return rightChild == null || rightChild.forEachWhile(leftOfRightChild, parentRightWeight, receiver);
+        }
+
+        /**
+         * Traverses in reverse order the nodes of the (sub)tree having keys smaller than or equal to the given one while the given
+         * action tells to continue.
+         * The traversal is stopped as soon as the action returns {@code false}.
+         * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+         * @param fromKey The key where the traversal starts.
+         * @param parentLeftWeight The weight of the nodes left to the parent.
+         * @param parentRightWeight The weight of the nodes right to the parent.
+         * @param receiver The action to perform with each node and its data.
+         * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+         */
+        public boolean forEachReverseFromWhile(
+                @NonNull K fromKey,
+                int parentLeftWeight,
+                int parentRightWeight,
+                @NonNull StoppableTraversalAction<K, V> receiver)
+        {
+            int leftOfRightChild = parentLeftWeight + nodeWeight + leftWeight;
+            int rightOfLeftChild = parentRightWeight + nodeWeight + rightWeight;
+            if (fromKey.compareTo(key) < 0) {
+                return leftChild == null || leftChild.forEachReverseFromWhile(fromKey, parentLeftWeight, rightOfLeftChild, receiver);
+            }
+            boolean goOn = rightChild == null || rightChild.forEachReverseFromWhile(fromKey, leftOfRightChild, parentRightWeight, receiver);
+            if (!goOn) return false;
+            if (!receiver.run(key, value, parentLeftWeight + leftWeight, nodeWeight, parentRightWeight + rightWeight)) return false;
+            return leftChild == null || leftChild.forEachReverseWhile(parentLeftWeight, rightOfLeftChild, receiver);
+        }
+
         /**
          * Gives a string representation of this node containing its key and value and all the subtrees.
          * @return A string representation of this node containing its key and value and all the subtrees.
@@ -626,6 +869,38 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
         this.root = root;
     }
 
+    /**
+     * Creates a tree with the given nodes, which should be given in the ascending order of their keys, in {@code O(n)} time. Instead
+     * of adding the nodes one by one with the {@link #put(Comparable, int, Object) put} method, which takes {@code O(n log n)} time
+     * and rebalances the tree over and over again, the tree is built already perfectly balanced: the nodes are split in a left half,
+     * a middle node and a right half, recursively, so the sizes (and then the heights) of the subtrees of every node differ by at most
+     * one.
+     *
+     * <p>The given functions are called exactly once for each index, in ascending order, so they might just take the next node from
+     * some sequential source.</p>
+     *
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     * @param size How many nodes the tree has.
+     * @param keys Gives the key of the node at each index, from zero to {@code size - 1}.
+     * @param weights Gives the weight of the node at each index, from zero to {@code size - 1}.
+     * @param values Gives the value of the node at each index, from zero to {@code size - 1}.
+     * @return A tree with the given nodes.
+     * @throws IllegalArgumentException If {@code size} is negative, if any function is {@code null}, if any key or value is
+     *     {@code null} or if the keys aren't strictly ascending.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static <K extends Comparable<K>, V> ImmutableWeightedAvlTree<K, V> fromSorted(
+            int size,
+            @NonNull IntFunction<? extends K> keys,
+            @NonNull IntUnaryOperator weights,
+            @NonNull IntFunction<? extends V> values)
+    {
+        if (size < 0 || keys == null || weights == null || values == null) throw new IllegalArgumentException();
+        return new ImmutableWeightedAvlTree<>(new SortedBuilder<K, V>(keys, weights, values).build(size));
+    }
+
     /**
      * Gives a string representation of this tree containing all its keys and values.
      * @return A string representation of this tree containing all its keys and values.
@@ -638,31 +913,96 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
 
     /**
      * Creates a new tree (trying to reuse the most nodes possible from the old one) with a new added node. If there already is a node
-     * with the given key, it will be removed and the new one will be added.
+     * with the given key, it will be replaced by the new one. Either way, the path from the root to the node is walked and copied only
+     * once.
      * @param key The key of the node to add.
      * @param weight The weight of the node to add.
      * @param value The value of the node to add.
-     * @return A new tree corresponding from the old one with a new node added.
+     * @return A new tree corresponding from the old one with a new node added. If the tree already had a node with the same key,
+     *     weight and value, returns this tree unchanged.
      */
     @NonNull
     @CheckReturnValue
     public ImmutableWeightedAvlTree<K, V> put(@NonNull K key, int weight, @NonNull V value) {
-        return this.remove(key).putNoRemove(key, weight, value);
+        return withRoot(root == null ? Node.leaf(key, weight, value) : root.put(key, weight, value));
     }
 
     /**
-     * Internal method that should be used only from within the {@link ImmutableWeightedAvlTree#put(Comparable, int, Object) put(K, int, V)}
-     * method. This creates a new tree (trying to reuse the most nodes possible from the old one) with a new added node after ensuring
-     * that the node holding the key does not exists in the tree.
-     * @param key The key of the node to add.
-     * @param weight The weight of the node to add.
-     * @param value The value of the node to add.
-     * @return A new tree corresponding from the old one with a new node added.
+     * Creates a new tree (trying to reuse the most nodes possible from the old one) where the node with the given key is added,
+     * replaced or removed accordingly to what the given {@code remapper} function says. This is similar to the
+     * {@link Map#compute(Object, java.util.function.BiFunction) Map.compute} method, but also computes the weight of the node.
+     *
+     * <p>This is equivalent to a {@link #get(Comparable) get(K)} followed by either a {@link #put(Comparable, int, Object) put(K, int, V)}
+     * or a {@link #remove(Comparable) remove(K)}, but the path from the root to the node is walked and copied only once.</p>
+     *
+     * @param key The key of the node to be updated.
+     * @param weigher Function that gives the weight of the node from its new value.
+     * @param remapper Function that receives the current value of the node (or an empty {@link Optional} if there is no node with
+     *     the given key) and gives its new value (or an empty {@link Optional} if the node should be removed or not be added).
+     * @return A new tree corresponding from the old one with the node updated. If nothing changed, returns this tree unchanged.
      */
     @NonNull
     @CheckReturnValue
-    private ImmutableWeightedAvlTree<K, V> putNoRemove(@NonNull K key, int weight, @NonNull V value) {
-        return new ImmutableWeightedAvlTree<>(root == null ? Node.leaf(key, weight, value) : root.put(key, weight, value));
+    public ImmutableWeightedAvlTree<K, V> update(
+            @NonNull K key,
+            @NonNull ToIntFunction<? super V> weigher,
+            @NonNull UnaryOperator<Optional<V>> remapper)
+    {
+        return withRoot(root == null ? Node.absent(key, weigher, remapper) : root.update(key, weigher, remapper));
+    }
+
+    /**
+     * Creates a new tree (trying to reuse the most nodes possible from the old one) where the nodes with the given keys, which should
+     * be given in ascending order, are added, replaced or removed accordingly to what the given {@code remapper} function says. This
+     * works like calling the {@link #update(Comparable, ToIntFunction, UnaryOperator) update} method for each key, but the whole batch
+     * is merged into the tree at once.
+     *
+     * <p>The tree is walked from the root and the keys are split between the left and the right subtrees of each node by a binary
+     * search, so the subtrees without any of the keys are kept untouched and shared with the old tree and every other node is copied
+     * only once, instead of once for each key below it. Each subtree is then joined again to its node, which also rebalances it, no
+     * matter how many nodes were added to or removed from each side. Keys that aren't in the tree are built into balanced subtrees
+     * straight away.</p>
+     *
+     * <p>The {@code remapper} function is called exactly once for each index, in ascending order. The {@code keys} function might be
+     * called several times for each index.</p>
+     *
+     * @param size How many keys there are.
+     * @param keys Gives the key at each index, from zero to {@code size - 1}.
+     * @param weigher Function that gives the weight of a node from its new value.
+     * @param remapper Function that receives the index of each key and the current value of its node (or an empty {@link Optional}
+     *     if there is no node with that key) and gives its new value (or an empty {@link Optional} if the node should be removed or
+     *     not be added).
+     * @return A new tree corresponding from the old one with the nodes updated. If nothing changed, returns this tree unchanged.
+     * @throws IllegalArgumentException If {@code size} is negative, if any function is {@code null}, if any key is {@code null} or if
+     *     the keys aren't strictly ascending.
+     */
+    @NonNull
+    @CheckReturnValue
+    public ImmutableWeightedAvlTree<K, V> updateSorted(
+            int size,
+            @NonNull IntFunction<? extends K> keys,
+            @NonNull ToIntFunction<? super V> weigher,
+            @NonNull SortedRemapper<V> remapper)
+    {
+        if (size < 0 || keys == null || weigher == null || remapper == null) throw new IllegalArgumentException();
+        K previous = null;
+        for (int i = 0; i < size; i++) {
+            K key = keys.apply(i);
+            if (key == null || (previous != null && previous.compareTo(key) >= 0)) throw new IllegalArgumentException();
+            previous = key;
+        }
+        return withRoot(new SortedUpdater<K, V>(keys, weigher, remapper).update(root, 0, size));
+    }
+
+    /**
+     * Gives a tree with the given root node.
+     * @param newRoot The root node of the tree.
+     * @return A tree with the given root node. If it is the same root node of this tree, returns this tree unchanged.
+     */
+    @NonNull
+    @CheckReturnValue
+    private ImmutableWeightedAvlTree<K, V> withRoot(@Nullable Node<K, V> newRoot) {
+        return newRoot == root ? this : new ImmutableWeightedAvlTree<>(newRoot);
     }
 
     /**
@@ -684,9 +1024,7 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
     @NonNull
     @CheckReturnValue
     public ImmutableWeightedAvlTree<K, V> remove(@NonNull K key) {
-        if (root == null) return this;
-        Node<K, V> newRoot = root.remove(key);
-        return newRoot == root ? this : new ImmutableWeightedAvlTree<>(newRoot);
+        return root == null ? this : withRoot(root.remove(key));
     }
 
     /**
@@ -707,6 +1045,202 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
         if (root != null) root.forEachReverse(0, 0, receiver);
     }
 
+    /**
+     * Traverses in order the nodes of the tree having keys greater than or equal to the given one. There is no need for a node with
+     * the given key to exist in the tree. The nodes before the starting one are skipped in {@code O(log N)} time.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEachFrom(@NonNull K fromKey, @NonNull TraversalAction<K, V> receiver) {
+        forEachFromWhile(fromKey, (k, v, lw, nw, rw) -> {
+            receiver.run(k, v, lw, nw, rw);
+            return true;
+        });
+    }
+
+    /**
+     * Traverses in reverse order the nodes of the tree having keys smaller than or equal to the given one. There is no need for a node
+     * with the given key to exist in the tree. The nodes after the starting one are skipped in {@code O(log N)} time.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     */
+    public void forEachReverseFrom(@NonNull K fromKey, @NonNull TraversalAction<K, V> receiver) {
+        forEachReverseFromWhile(fromKey, (k, v, lw, nw, rw) -> {
+            receiver.run(k, v, lw, nw, rw);
+            return true;
+        });
+    }
+
+    /**
+     * Traverses the nodes of the tree in order while the given action tells to continue.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachWhile(@NonNull StoppableTraversalAction<K, V> receiver) {
+        return root == null || root.forEachWhile(0, 0, receiver);
+    }
+
+    /**
+     * Traverses the nodes of the tree in reverse order while the given action tells to continue.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachReverseWhile(@NonNull StoppableTraversalAction<K, V> receiver) {
+        return root == null || root.forEachReverseWhile(0, 0, receiver);
+    }
+
+    /**
+     * Traverses in order the nodes of the tree having keys greater than or equal to the given one while the given action tells to
+     * continue. There is no need for a node with the given key to exist in the tree. The nodes before the starting one are skipped in
+     * {@code O(log N)} time.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachFromWhile(@NonNull K fromKey, @NonNull StoppableTraversalAction<K, V> receiver) {
+        return root == null || root.forEachFromWhile(fromKey, 0, 0, receiver);
+    }
+
+    /**
+     * Traverses in reverse order the nodes of the tree having keys smaller than or equal to the given one while the given action tells
+     * to continue. There is no need for a node with the given key to exist in the tree. The nodes after the starting one are skipped
+     * in {@code O(log N)} time.
+     * The traversal is stopped as soon as the action returns {@code false}, so this can be used to visit just the first few nodes
+     * without needing to throw an exception to stop the traversal.
+     * If the traversal gets an exception, it is stopped and the exception relayed to the caller.
+     * @param fromKey The key where the traversal starts.
+     * @param receiver The action to perform with each node and its data.
+     * @return {@code true} if the traversal reached its end, {@code false} if it was stopped by the action.
+     */
+    public boolean forEachReverseFromWhile(@NonNull K fromKey, @NonNull StoppableTraversalAction<K, V> receiver) {
+        return root == null || root.forEachReverseFromWhile(fromKey, 0, 0, receiver);
+    }
+
+    /**
+     * Finds the node which covers the given offset when the weights of all the nodes are laid out side by side in order. I.e., the
+     * node whose left weight is smaller than or equal to the given offset, but whose left weight plus its own weight is greater than it.
+     * Nodes with zero weight are never selected. This is the inverse of the {@link #getLeftWeight(Comparable) getLeftWeight} method
+     * and takes {@code O(log N)} time.
+     * @param offset The offset, counted from the beginning of the tree.
+     * @return An {@link Optional} containing the entry of the node covering the given offset or an empty one if the offset is
+     *     negative or not smaller than the total weight of the tree.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<Entry<K, V>> selectByWeight(int offset) {
+        int leftBase = 0;
+        int rightBase = 0;
+        Node<K, V> n = root;
+        while (n != null && offset >= 0) {
+            if (offset < leftBase + n.leftWeight) {
+                rightBase += n.nodeWeight + n.rightWeight;
+                n = n.leftChild;
+            } else if (offset < leftBase + n.leftWeight + n.nodeWeight) {
+                return Optional.of(new Entry<>(n.key, n.value, leftBase + n.leftWeight, n.nodeWeight, rightBase + n.rightWeight));
+            } else {
+                leftBase += n.leftWeight + n.nodeWeight;
+                n = n.rightChild;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the node which covers the given offset when the weights of all the nodes are laid out side by side in reverse order. I.e.,
+     * the node whose right weight is smaller than or equal to the given offset, but whose right weight plus its own weight is greater
+     * than it. Nodes with zero weight are never selected. This is the inverse of the
+     * {@link #getRightWeight(Comparable) getRightWeight} method and takes {@code O(log N)} time.
+     * @param offset The offset, counted from the end of the tree.
+     * @return An {@link Optional} containing the entry of the node covering the given offset or an empty one if the offset is
+     *     negative or not smaller than the total weight of the tree.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Optional<Entry<K, V>> selectByWeightReverse(int offset) {
+        int leftBase = 0;
+        int rightBase = 0;
+        Node<K, V> n = root;
+        while (n != null && offset >= 0) {
+            if (offset < rightBase + n.rightWeight) {
+                leftBase += n.nodeWeight + n.leftWeight;
+                n = n.rightChild;
+            } else if (offset < rightBase + n.rightWeight + n.nodeWeight) {
+                return Optional.of(new Entry<>(n.key, n.value, leftBase + n.leftWeight, n.nodeWeight, rightBase + n.rightWeight));
+            } else {
+                rightBase += n.rightWeight + n.nodeWeight;
+                n = n.leftChild;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Gives an {@link Iterator} that walks through all the nodes of the tree in order. Differently from the {@code forEach} family of
+     * methods, the iterator isn't recursive and might be paused and resumed at any time, since it keeps its own explicit stack of
+     * nodes. Since the tree is immutable, the iterator is never affected by changes that creates new trees.
+     * @return An {@link Iterator} that walks through all the nodes of the tree in order.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Iterator<Entry<K, V>> iterator() {
+        return EntryIterator.forward(root, 0);
+    }
+
+    /**
+     * Gives an {@link Iterator} that walks through all the nodes of the tree in reverse order. Differently from the {@code forEach}
+     * family of methods, the iterator isn't recursive and might be paused and resumed at any time, since it keeps its own explicit
+     * stack of nodes. Since the tree is immutable, the iterator is never affected by changes that creates new trees.
+     * @return An {@link Iterator} that walks through all the nodes of the tree in reverse order.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Iterator<Entry<K, V>> reverseIterator() {
+        return EntryIterator.reverse(root);
+    }
+
+    /**
+     * Gives a {@link Spliterator} over all the nodes of the tree in order. It knows its exact size and splits itself in halves with
+     * exactly known sizes, finding out where the second half starts in {@code O(log N)} time, so it is suitable for parallel streams.
+     * @return A {@link Spliterator} over all the nodes of the tree in order.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Spliterator<Entry<K, V>> spliterator() {
+        return new EntrySpliterator<>(root, 0, size());
+    }
+
+    /**
+     * Gives a sequential {@link Stream} of all the nodes of the tree in order. It might be turned into a parallel stream with the
+     * {@link Stream#parallel()} method.
+     * @return A sequential {@link Stream} of all the nodes of the tree in order.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Stream<Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Gives how many nodes there are in the tree. Differently from the {@link #getTotalWeight() getTotalWeight} method, the weight of
+     * the nodes doesn't matter.
+     * @return How many nodes there are in the tree.
+     */
+    @CheckReturnValue
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
     /**
      * Tells if this tree is empty (i.e. has no nodes).
      * @return {@code true} if this tree is empty or {@code false} otherwise.
@@ -749,6 +1283,53 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
         return root == null ? OptionalInt.empty() : root.getRightWeight(findingKey);
     }
 
+    /**
+     * Gives the total weight of all the nodes having keys smaller than the given one. Differently from the
+     * {@link #getLeftWeight(Comparable) getLeftWeight(K)} method, there is no need for a node with the given key to exist in the tree.
+     * @param findingKey The key to be compared with the keys of the nodes inside the tree.
+     * @return The total weight of all the nodes having keys smaller than the given one.
+     */
+    @CheckReturnValue
+    public int getWeightBefore(@NonNull K findingKey) {
+        int weight = 0;
+        Node<K, V> n = root;
+        while (n != null) {
+            int cmp = findingKey.compareTo(n.key);
+            if (cmp == 0) return weight + n.leftWeight;
+            if (cmp < 0) {
+                n = n.leftChild;
+            } else {
+                weight += n.leftWeight + n.nodeWeight;
+                n = n.rightChild;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Gives the total weight of all the nodes having keys greater than the given one. Differently from the
+     * {@link #getRightWeight(Comparable) getRightWeight(K)} method, there is no need for a node with the given key to exist in the
+     * tree.
+     * @param findingKey The key to be compared with the keys of the nodes inside the tree.
+     * @return The total weight of all the nodes having keys greater than the given one.
+     */
+    @CheckReturnValue
+    public int getWeightAfter(@NonNull K findingKey) {
+        int weight = 0;
+        Node<K, V> n = root;
+        while (n != null) {
+            int cmp = findingKey.compareTo(n.key);
+            if (cmp == 0) return weight + n.rightWeight;
+            if (cmp > 0) {
+                n = n.rightChild;
+            } else {
+                weight += n.rightWeight + n.nodeWeight;
+                n = n.leftChild;
+            }
+        }
+        return weight;
+    }
+
     /**
      * Gives the weight of the node having the given key, if it exists.
      * @param findingKey The key to find the node inside the tree.
@@ -778,4 +1359,586 @@ public class ImmutableWeightedAvlTree<K extends Comparable<K>, V> {
          */
         public void run(K key, V value, int leftWeight, int nodeWeight, int rightWeight);
     }
+
+    /**
+     * Represents an action to be performed with a tree node during a tree traversal that might be stopped before reaching its end.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    @FunctionalInterface
+    public static interface StoppableTraversalAction<K extends Comparable<K>, V> {
+
+        /**
+         * This is the functional method representing what should be done with each tree node.
+         * @param key The key of the node.
+         * @param value The value of the node.
+         * @param leftWeight The total weight of all the nodes to the left of the current one.
+         * @param nodeWeight The total weight of the node.
+         * @param rightWeight The total weight of all the nodes to the right of the current one.
+         * @return {@code true} if the traversal should continue or {@code false} if it should be stopped.
+         */
+        public boolean run(K key, V value, int leftWeight, int nodeWeight, int rightWeight);
+    }
+
+    /**
+     * Represents how the {@link ImmutableWeightedAvlTree#updateSorted(int, IntFunction, ToIntFunction, SortedRemapper) updateSorted}
+     * method changes the node of each key.
+     * @param <V> The type of the data hold into each node.
+     */
+    @FunctionalInterface
+    public static interface SortedRemapper<V> {
+
+        /**
+         * Gives the new value of the node of the key at the given index.
+         * @param index The index of the key.
+         * @param current The current value of the node, or an empty {@link Optional} if there is no node with the key.
+         * @return The new value of the node, or an empty {@link Optional} if the node should be removed or not be added.
+         */
+        @NonNull
+        public Optional<V> remap(int index, @NonNull Optional<V> current);
+    }
+
+    /**
+     * Merges a batch of changes given in the ascending order of their keys into a subtree, as needed by the
+     * {@link ImmutableWeightedAvlTree#updateSorted(int, IntFunction, ToIntFunction, SortedRemapper) updateSorted} method. The keys are
+     * taken in order, so the changes of the left subtree of each node are merged before changing the node itself and the ones of the
+     * right subtree afterwards.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    private static final class SortedUpdater<K extends Comparable<K>, V> {
+
+        /**
+         * Gives the key at each index.
+         */
+        @NonNull
+        private final IntFunction<? extends K> keys;
+
+        /**
+         * Gives the weight of a node from its new value.
+         */
+        @NonNull
+        private final ToIntFunction<? super V> weigher;
+
+        /**
+         * Gives the new value of the node of each key.
+         */
+        @NonNull
+        private final SortedRemapper<V> remapper;
+
+        /**
+         * Creates an instance that takes the changes from the given functions.
+         * @param keys Gives the key at each index.
+         * @param weigher Gives the weight of a node from its new value.
+         * @param remapper Gives the new value of the node of each key.
+         */
+        public SortedUpdater(
+                @NonNull IntFunction<? extends K> keys,
+                @NonNull ToIntFunction<? super V> weigher,
+                @NonNull SortedRemapper<V> remapper)
+        {
+            this.keys = keys;
+            this.weigher = weigher;
+            this.remapper = remapper;
+        }
+
+        /**
+         * Merges the changes of the keys in the given range of indexes into the given subtree.
+         * @param node The root of the subtree, or {@code null} if it is empty.
+         * @param from The first index of the range, inclusive.
+         * @param to The last index of the range, exclusive.
+         * @return The root of the changed subtree, or {@code null} if it became empty. If nothing changed, returns the given node.
+         */
+        @Nullable
+        public Node<K, V> update(@Nullable Node<K, V> node, int from, int to) {
+            if (from == to) return node;
+
+            // Nodes for missing keys are built straight away, splitting the range in halves, so the built subtree is balanced.
+            if (node == null) {
+                int middle = (from + to) >>> 1;
+                Node<K, V> left = update(null, from, middle);
+                Optional<V> newValue = remapper.remap(middle, Optional.empty());
+                Node<K, V> right = update(null, middle + 1, to);
+                if (!newValue.isPresent()) return Node.concat(left, right);
+                return Node.join(left, keys.apply(middle), newValue.get(), weigher.applyAsInt(newValue.get()), right);
+            }
+
+            // Split the range between the subtrees, change them and then this node and join everything again.
+            int split = search(node.key, from, to);
+            boolean found = split < to && keys.apply(split).compareTo(node.key) == 0;
+            Node<K, V> left = update(node.leftChild, from, split);
+            Optional<V> newValue = found ? remapper.remap(split, Optional.of(node.value)) : Optional.of(node.value);
+            Node<K, V> right = update(node.rightChild, found ? split + 1 : split, to);
+            if (!newValue.isPresent()) return Node.concat(left, right);
+            V value = newValue.get();
+            int weight = found ? weigher.applyAsInt(value) : node.nodeWeight;
+            if (left == node.leftChild && right == node.rightChild) return node.withValue(weight, value);
+            return Node.join(left, node.key, value, weight, right);
+        }
+
+        /**
+         * Finds the first index in the given range whose key doesn't come before the given one.
+         * @param key The key to search for.
+         * @param from The first index of the range, inclusive.
+         * @param to The last index of the range, exclusive.
+         * @return The first index in the given range whose key doesn't come before the given one, or {@code to} if there is none.
+         */
+        private int search(@NonNull K key, int from, int to) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys.apply(middle).compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Builds perfectly balanced subtrees from nodes given in the ascending order of their keys, as needed by the
+     * {@link ImmutableWeightedAvlTree#fromSorted(int, IntFunction, IntUnaryOperator, IntFunction) fromSorted} method. The nodes are
+     * taken in order, so the left subtree of each node is built before taking the node itself and the right subtree afterwards.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    private static final class SortedBuilder<K extends Comparable<K>, V> {
+
+        /**
+         * Gives the key of the node at each index.
+         */
+        @NonNull
+        private final IntFunction<? extends K> keys;
+
+        /**
+         * Gives the weight of the node at each index.
+         */
+        @NonNull
+        private final IntUnaryOperator weights;
+
+        /**
+         * Gives the value of the node at each index.
+         */
+        @NonNull
+        private final IntFunction<? extends V> values;
+
+        /**
+         * The index of the next node to be taken.
+         */
+        private int next;
+
+        /**
+         * The key of the last node taken, if any.
+         */
+        @Nullable
+        private K previous;
+
+        /**
+         * Creates an instance that takes the nodes from the given functions.
+         * @param keys Gives the key of the node at each index.
+         * @param weights Gives the weight of the node at each index.
+         * @param values Gives the value of the node at each index.
+         */
+        public SortedBuilder(
+                @NonNull IntFunction<? extends K> keys,
+                @NonNull IntUnaryOperator weights,
+                @NonNull IntFunction<? extends V> values)
+        {
+            this.keys = keys;
+            this.weights = weights;
+            this.values = values;
+        }
+
+        /**
+         * Builds a perfectly balanced subtree with the next nodes.
+         * @param count How many nodes the subtree has.
+         * @return The root of the subtree or {@code null} if it has no nodes.
+         * @throws IllegalArgumentException If any key or value is {@code null} or if the keys aren't strictly ascending.
+         */
+        @Nullable
+        public Node<K, V> build(int count) {
+            if (count == 0) return null;
+            int leftCount = (count - 1) / 2;
+            Node<K, V> left = build(leftCount);
+            int index = next++;
+            K key = keys.apply(index);
+            int weight = weights.applyAsInt(index);
+            V value = values.apply(index);
+            if (key == null || value == null || (previous != null && previous.compareTo(key) >= 0)) throw new IllegalArgumentException();
+            previous = key;
+            Node<K, V> right = build(count - 1 - leftCount);
+            return new Node<>(key, value, weight, left, right);
+        }
+    }
+
+    /**
+     * Non-recursive {@link Iterator} that walks through the nodes of a tree using an explicit stack of nodes, either in order or in
+     * reverse order. The stack keeps the nodes that were not visited yet, but whose left subtree (or right subtree, for the reverse
+     * order) is being visited, together with the weights of all the nodes to the left and to the right of their subtrees.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    private static final class EntryIterator<K extends Comparable<K>, V> implements Iterator<Entry<K, V>> {
+
+        /**
+         * The stack of nodes. No path from the root has more nodes than the height of the tree.
+         */
+        @NonNull
+        private final Node<K, V>[] nodes;
+
+        /**
+         * The total weight of all the nodes left to the subtree of each node in the stack.
+         */
+        @NonNull
+        private final int[] parentLeftWeights;
+
+        /**
+         * The total weight of all the nodes right to the subtree of each node in the stack.
+         */
+        @NonNull
+        private final int[] parentRightWeights;
+
+        /**
+         * Tells if the nodes are walked through in reverse order.
+         */
+        private final boolean reverse;
+
+        /**
+         * How many nodes there are in the stack.
+         */
+        private int depth;
+
+        /**
+         * Creates an instance with an empty stack large enough for the given tree.
+         * @param root The root of the tree, or {@code null} if it is empty.
+         * @param reverse Tells if the nodes are walked through in reverse order.
+         */
+        @SuppressWarnings("unchecked")
+        private EntryIterator(@Nullable Node<K, V> root, boolean reverse) {
+            int height = root == null ? 0 : root.height;
+            this.nodes = (Node<K, V>[]) new Node<?, ?>[height];
+            this.parentLeftWeights = new int[height];
+            this.parentRightWeights = new int[height];
+            this.reverse = reverse;
+            this.depth = 0;
+        }
+
+        /**
+         * Creates an instance that walks through the tree in order, starting at the node with the given index.
+         * @param <K> The type of the key used to search for nodes.
+         * @param <V> The type of the data hold into each node.
+         * @param root The root of the tree, or {@code null} if it is empty.
+         * @param startIndex How many nodes should be skipped at the beginning of the tree.
+         * @return An instance that walks through the tree in order.
+         */
+        @NonNull
+        public static <K extends Comparable<K>, V> EntryIterator<K, V> forward(@Nullable Node<K, V> root, int startIndex) {
+            EntryIterator<K, V> it = new EntryIterator<>(root, false);
+
+            // Walks down to the starting node, stacking the nodes where we go left, since they will be visited later.
+            Node<K, V> n = root;
+            int parentLeftWeight = 0;
+            int parentRightWeight = 0;
+            int index = startIndex;
+            while (n != null) {
+                int leftSize = n.leftChild == null ? 0 : n.leftChild.size;
+                if (index <= leftSize) {
+                    it.push(n, parentLeftWeight, parentRightWeight);
+                    if (index == leftSize) break;
+                    parentRightWeight += n.nodeWeight + n.rightWeight;
+                    n = n.leftChild;
+                } else {
+                    index -= leftSize + 1;
+                    parentLeftWeight += n.leftWeight + n.nodeWeight;
+                    n = n.rightChild;
+                }
+            }
+            return it;
+        }
+
+        /**
+         * Creates an instance that walks through the tree in reverse order, starting at its last node.
+         * @param <K> The type of the key used to search for nodes.
+         * @param <V> The type of the data hold into each node.
+         * @param root The root of the tree, or {@code null} if it is empty.
+         * @return An instance that walks through the tree in reverse order.
+         */
+        @NonNull
+        public static <K extends Comparable<K>, V> EntryIterator<K, V> reverse(@Nullable Node<K, V> root) {
+            EntryIterator<K, V> it = new EntryIterator<>(root, true);
+            it.pushRightmost(root, 0, 0);
+            return it;
+        }
+
+        /**
+         * Pushes a node into the stack.
+         * @param n The node.
+         * @param parentLeftWeight The total weight of all the nodes left to the subtree of the node.
+         * @param parentRightWeight The total weight of all the nodes right to the subtree of the node.
+         */
+        private void push(@NonNull Node<K, V> n, int parentLeftWeight, int parentRightWeight) {
+            nodes[depth] = n;
+            parentLeftWeights[depth] = parentLeftWeight;
+            parentRightWeights[depth] = parentRightWeight;
+            depth++;
+        }
+
+        /**
+         * Pushes into the stack the given node and all of its descendants by going always to the left child.
+         * @param start The node where the pushes start, or {@code null} if nothing should be pushed.
+         * @param parentLeftWeight The total weight of all the nodes left to the subtree of the starting node.
+         * @param parentRightWeight The total weight of all the nodes right to the subtree of the starting node.
+         */
+        private void pushLeftmost(@Nullable Node<K, V> start, int parentLeftWeight, int parentRightWeight) {
+            int rightWeight = parentRightWeight;
+            for (Node<K, V> n = start; n != null; n = n.leftChild) {
+                push(n, parentLeftWeight, rightWeight);
+                rightWeight += n.nodeWeight + n.rightWeight;
+            }
+        }
+
+        /**
+         * Pushes into the stack the given node and all of its descendants by going always to the right child.
+         * @param start The node where the pushes start, or {@code null} if nothing should be pushed.
+         * @param parentLeftWeight The total weight of all the nodes left to the subtree of the starting node.
+         * @param parentRightWeight The total weight of all the nodes right to the subtree of the starting node.
+         */
+        private void pushRightmost(@Nullable Node<K, V> start, int parentLeftWeight, int parentRightWeight) {
+            int leftWeight = parentLeftWeight;
+            for (Node<K, V> n = start; n != null; n = n.rightChild) {
+                push(n, leftWeight, parentRightWeight);
+                leftWeight += n.nodeWeight + n.leftWeight;
+            }
+        }
+
+        /**
+         * Tells if there are more nodes to be walked through.
+         * @return {@code true} if there are more nodes to be walked through, {@code false} otherwise.
+         */
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        /**
+         * Gives the next node.
+         * @return The next node.
+         * @throws NoSuchElementException If there are no more nodes to be walked through.
+         */
+        @NonNull
+        @Override
+        public Entry<K, V> next() {
+            if (depth == 0) throw new NoSuchElementException();
+            depth--;
+            Node<K, V> n = nodes[depth];
+            int parentLeftWeight = parentLeftWeights[depth];
+            int parentRightWeight = parentRightWeights[depth];
+            nodes[depth] = null;
+            if (reverse) {
+                pushRightmost(n.leftChild, parentLeftWeight, parentRightWeight + n.nodeWeight + n.rightWeight);
+            } else {
+                pushLeftmost(n.rightChild, parentLeftWeight + n.nodeWeight + n.leftWeight, parentRightWeight);
+            }
+            return new Entry<>(n.key, n.value, parentLeftWeight + n.leftWeight, n.nodeWeight, parentRightWeight + n.rightWeight);
+        }
+    }
+
+    /**
+     * {@link Spliterator} that walks through the nodes of a tree in order. Each instance covers a range of indexes of nodes in the tree
+     * and splits itself by handing over the first half of its range.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    private static final class EntrySpliterator<K extends Comparable<K>, V> implements Spliterator<Entry<K, V>> {
+
+        /**
+         * The root of the tree, or {@code null} if it is empty.
+         */
+        @Nullable
+        private final Node<K, V> root;
+
+        /**
+         * The index of the next node to be walked through.
+         */
+        private int from;
+
+        /**
+         * The index after the last node to be walked through.
+         */
+        private final int to;
+
+        /**
+         * The iterator used to walk through the nodes, created only when the first node is walked through.
+         */
+        @Nullable
+        private EntryIterator<K, V> cursor;
+
+        /**
+         * Creates an instance covering the given range of indexes of nodes in the tree.
+         * @param root The root of the tree, or {@code null} if it is empty.
+         * @param from The index of the first node to be walked through.
+         * @param to The index after the last node to be walked through.
+         */
+        public EntrySpliterator(@Nullable Node<K, V> root, int from, int to) {
+            this.root = root;
+            this.from = from;
+            this.to = to;
+            this.cursor = null;
+        }
+
+        /**
+         * Gives the next node to the given action, if there is one.
+         * @param action The action that receives the next node.
+         * @return {@code true} if there was a next node, {@code false} otherwise.
+         */
+        @Override
+        public boolean tryAdvance(@NonNull Consumer<? super Entry<K, V>> action) {
+            if (from >= to) return false;
+            if (cursor == null) cursor = EntryIterator.forward(root, from);
+            from++;
+            action.accept(cursor.next());
+            return true;
+        }
+
+        /**
+         * Splits this instance by handing over the first half of its range to a new instance.
+         * @return The new instance, or {@code null} if this instance is too small to be split.
+         */
+        @Nullable
+        @Override
+        public Spliterator<Entry<K, V>> trySplit() {
+            int mid = (from + to) >>> 1;
+            if (mid <= from) return null;
+            EntrySpliterator<K, V> prefix = new EntrySpliterator<>(root, from, mid);
+            from = mid;
+
+            // The cursor, if any, is positioned before the splitting point. It will be recreated in the right place when needed.
+            cursor = null;
+            return prefix;
+        }
+
+        /**
+         * Gives the exact number of nodes still to be walked through.
+         * @return The exact number of nodes still to be walked through.
+         */
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        /**
+         * Gives the characteristics of this instance.
+         * @return The characteristics of this instance.
+         */
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        }
+    }
+
+    /**
+     * Represents the data of a node found in the tree, together with its position expressed as weights.
+     * @param <K> The type of the key used to search for nodes.
+     * @param <V> The type of the data hold into each node.
+     */
+    @Immutable
+    public static final class Entry<K extends Comparable<K>, V> {
+
+        /**
+         * The key of the node.
+         */
+        @NonNull
+        private final K key;
+
+        /**
+         * The value of the node.
+         */
+        @NonNull
+        private final V value;
+
+        /**
+         * The total weight of all the nodes to the left of the node.
+         */
+        private final int leftWeight;
+
+        /**
+         * The weight of the node.
+         */
+        private final int nodeWeight;
+
+        /**
+         * The total weight of all the nodes to the right of the node.
+         */
+        private final int rightWeight;
+
+        /**
+         * Creates an instance from its values.
+         * @param key The key of the node.
+         * @param value The value of the node.
+         * @param leftWeight The total weight of all the nodes to the left of the node.
+         * @param nodeWeight The weight of the node.
+         * @param rightWeight The total weight of all the nodes to the right of the node.
+         */
+        private Entry(@NonNull K key, @NonNull V value, int leftWeight, int nodeWeight, int rightWeight) {
+            this.key = key;
+            this.value = value;
+            this.leftWeight = leftWeight;
+            this.nodeWeight = nodeWeight;
+            this.rightWeight = rightWeight;
+        }
+
+        /**
+         * Gives the key of the node.
+         * @return The key of the node.
+         */
+        @NonNull
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Gives the value of the node.
+         * @return The value of the node.
+         */
+        @NonNull
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Gives the total weight of all the nodes to the left of the node.
+         * @return The total weight of all the nodes to the left of the node.
+         */
+        public int getLeftWeight() {
+            return leftWeight;
+        }
+
+        /**
+         * Gives the weight of the node.
+         * @return The weight of the node.
+         */
+        public int getNodeWeight() {
+            return nodeWeight;
+        }
+
+        /**
+         * Gives the total weight of all the nodes to the right of the node.
+         * @return The total weight of all the nodes to the right of the node.
+         */
+        public int getRightWeight() {
+            return rightWeight;
+        }
+
+        /**
+         * Gives a string representation of this entry.
+         * @return A string representation of this entry.
+         */
+        @Override
+        public String toString() {
+            return key + ": " + value + " [" + leftWeight + "/" + nodeWeight + "/" + rightWeight + "]";
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package ninja.javahacker.temp.pipatest.avl;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Counts how many nodes of the {@link ImmutableWeightedAvlTree} and of the {@link ImmutableLongWeightedAvlTree} were created by each
+ * thread, so that the number of nodes allocated by an operation is the difference between the counts before and after it.
+ *
+ * <p>Counting is opt-in, by setting the {@code pipatest.countNodes} system property to {@code true}, since it costs a thread-local
+ * lookup for each created node. Otherwise, the check is a {@code static final} field that the JIT compiler folds away, so the nodes
+ * cost nothing more and the count is always zero.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+public final class NodeAllocationCounter {
+
+    /**
+     * Whether nodes are counted.
+     */
+    private static final boolean ENABLED = Boolean.getBoolean("pipatest.countNodes");
+
+    /**
+     * How many nodes were created by each thread. The count is in a single-element array, so it is incremented without boxing.
+     */
+    private static final ThreadLocal<long[]> COUNT = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Prevents instantiation.
+     * @throws UnsupportedOperationException Always.
+     */
+    private NodeAllocationCounter() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Tells if nodes are counted.
+     * @return {@code true} if nodes are counted, {@code false} otherwise.
+     */
+    @CheckReturnValue
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Gives how many nodes were created by the calling thread so far.
+     * @return How many nodes were created by the calling thread so far, or zero if nodes are not counted.
+     */
+    @CheckReturnValue
+    public static long get() {
+        return ENABLED ? COUNT.get()[0] : 0L;
+    }
+
+    /**
+     * Counts a node created by the calling thread. Called by the constructors of the nodes.
+     */
+    static void allocated() {
+        if (ENABLED) COUNT.get()[0]++;
+    }
+}
@@ -0,0 +1,38 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the {@link UserDataBatchReader} when a batch has more entries than it was allowed to read. The reading stops as soon as
+ * the first entry beyond the limit is found, so the entries read before that were already given to the action that receives them.
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class BatchTooLargeException extends IOException {
+
+    /**
+     * The serial version of this class.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The maximum number of entries that the batch could have.
+     */
+    private final int maxEntries;
+
+    /**
+     * Creates an instance for the given limit.
+     * @param maxEntries The maximum number of entries that the batch could have.
+     */
+    public BatchTooLargeException(int maxEntries) {
+        super("The batch has more than " + maxEntries + " entries.");
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gives the maximum number of entries that the batch could have.
+     * @return The maximum number of entries that the batch could have.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
@@ -0,0 +1,82 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes the highscores directly as JSON into an {@link OutputStream}, in the same format that a {@link HighscoresTableData} would
+ * be serialized by Jackson, but without needing to create neither it nor any {@link PositionedUserData} instance. So, nothing is
+ * allocated for each user written.
+ *
+ * <p>The users are written as they are received by the {@link #accept(long, long, int) accept} method and the JSON is finished
+ * when the {@link #close() close} method is called, which doesn't close the underlying {@link OutputStream}.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class HighscoresTableJsonWriter implements PositionedUserConsumer, Closeable {
+
+    /**
+     * Creates the JSON generators. It is thread-safe, since it is never reconfigured after its creation.
+     */
+    private static final JsonFactory FACTORY = StrictObjectMapper.create().getFactory();
+
+    /**
+     * The Jackson's JSON generator where the highscores are written to.
+     */
+    @NonNull
+    private final JsonGenerator generator;
+
+    /**
+     * Creates an instance that writes to the given {@link OutputStream} and writes the beginning of the JSON.
+     * @param out Where the JSON should be written to.
+     * @throws IOException If the beginning of the JSON couldn't be written.
+     * @throws IllegalArgumentException If the parameter is {@code null}.
+     */
+    public HighscoresTableJsonWriter(@NonNull OutputStream out) throws IOException {
+        if (out == null) throw new IllegalArgumentException();
+        this.generator = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartObject();
+        generator.writeFieldName("highscores");
+        generator.writeStartArray();
+    }
+
+    /**
+     * Writes the data of a user.
+     * @param userId The id of the user.
+     * @param points The points earned by the user.
+     * @param position The position of the user in the highscore. Tied users have the same position.
+     * @throws UncheckedIOException If the data couldn't be written.
+     */
+    @Override
+    public void accept(long userId, long points, int position) {
+        try {
+            generator.writeStartObject();
+            generator.writeNumberField("userId", userId);
+            generator.writeNumberField("points", points);
+            generator.writeNumberField("position", position);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the ending of the JSON and flushes it into the underlying {@link OutputStream}, which is not closed.
+     * @throws IOException If the ending of the JSON couldn't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+    }
+}
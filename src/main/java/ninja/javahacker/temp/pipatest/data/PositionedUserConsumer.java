@@ -0,0 +1,18 @@
+package ninja.javahacker.temp.pipatest.data;
+
+/**
+ * Represents an operation that receives the data of a user positioned in the highscore table, in the same way as a
+ * {@link PositionedUserData}, but without needing to create an instance of it for each user.
+ * @author Victor Williams Stafusa da Silva
+ */
+@FunctionalInterface
+public interface PositionedUserConsumer {
+
+    /**
+     * This is the functional method representing what should be done with each user.
+     * @param userId The id of the user.
+     * @param points The points earned by the user.
+     * @param position The position of the user in the highscore. Tied users have the same position.
+     */
+    public void accept(long userId, long points, int position);
+}
@@ -0,0 +1,102 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.javalin.plugin.json.JavalinJson;
+import java.util.Objects;
+import net.jcip.annotations.Immutable;
+
+/**
+ * Represents an entry of a batch of users' data sent to the {@code POST /scores} HTTP route that was rejected. It is given as a part
+ * of the output in the JSON format of that route.
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+public final class RejectedLineData {
+
+    /**
+     * The line of the rejected entry if the batch was sent as newline-delimited JSON or its position in the array if the batch was
+     * sent as a JSON array. Both are counted from one.
+     */
+    private final int line;
+
+    /**
+     * The HTTP status that a {@code POST /score} would give for the entry alone.
+     */
+    private final int status;
+
+    /**
+     * Why the entry was rejected.
+     */
+    @NonNull
+    private final String message;
+
+    /**
+     * Creates an instance from its values. It is expected that instances of this class would be serialized as JSON by Jackson.
+     * @param line The line or the position in the array of the rejected entry, counted from one.
+     * @param status The HTTP status that a {@code POST /score} would give for the entry alone.
+     * @param message Why the entry was rejected.
+     * @throws IllegalArgumentException If {@code line} is not positive or if {@code message} is {@code null}.
+     */
+    public RejectedLineData(int line, int status, @NonNull String message) {
+        if (line <= 0 || message == null) throw new IllegalArgumentException();
+        this.line = line;
+        this.status = status;
+        this.message = message;
+    }
+
+    /**
+     * Gets the line of the rejected entry or its position in the array, counted from one.
+     * @return The line of the rejected entry or its position in the array, counted from one.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * Gets the HTTP status that a {@code POST /score} would give for the entry alone.
+     * @return The HTTP status that a {@code POST /score} would give for the entry alone.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets why the entry was rejected.
+     * @return Why the entry was rejected.
+     */
+    @NonNull
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gives a hash code for this object.
+     * @return This object's hash code.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(line, status, message);
+    }
+
+    /**
+     * Determines if this object is equal to the given object.
+     * @param other Another object to be compared as being equal to this one.
+     * @return {@code true} if this object is equal to the other, {@code false} otherwise.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RejectedLineData)) return false;
+        RejectedLineData that = (RejectedLineData) other;
+        return this.line == that.line && this.status == that.status && this.message.equals(that.message);
+    }
+
+    /**
+     * Gives a representation of this object as a JSON string.
+     * @return A representation of this object as a JSON string.
+     */
+    @NonNull
+    @Override
+    public String toString() {
+        return JavalinJson.toJson(this);
+    }
+}
@@ -0,0 +1,86 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.javalin.plugin.json.JavalinJson;
+import java.util.List;
+import java.util.Objects;
+import net.jcip.annotations.Immutable;
+
+/**
+ * Represents the outcome of a batch of users' data given as an output in the JSON format for the {@code POST /scores} HTTP route.
+ * @author Victor Williams Stafusa da Silva
+ */
+@Immutable
+public final class ScoreBatchResultData {
+
+    /**
+     * How many entries of the batch were accepted.
+     */
+    private final int accepted;
+
+    /**
+     * The entries of the batch that were rejected.
+     */
+    @NonNull
+    private final List<RejectedLineData> rejected;
+
+    /**
+     * Creates an instance from its values. It is expected that instances of this class would be serialized as JSON by Jackson.
+     * @param accepted How many entries of the batch were accepted.
+     * @param rejected The entries of the batch that were rejected.
+     * @throws IllegalArgumentException If {@code accepted} is negative or if {@code rejected} is {@code null}.
+     */
+    public ScoreBatchResultData(int accepted, @NonNull List<RejectedLineData> rejected) {
+        if (accepted < 0 || rejected == null) throw new IllegalArgumentException();
+        this.accepted = accepted;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Gets how many entries of the batch were accepted.
+     * @return How many entries of the batch were accepted.
+     */
+    public int getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Gets the entries of the batch that were rejected.
+     * @return The entries of the batch that were rejected.
+     */
+    @NonNull
+    public List<RejectedLineData> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Gives a hash code for this object.
+     * @return This object's hash code.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(accepted, rejected);
+    }
+
+    /**
+     * Determines if this object is equal to the given object.
+     * @param other Another object to be compared as being equal to this one.
+     * @return {@code true} if this object is equal to the other, {@code false} otherwise.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ScoreBatchResultData)) return false;
+        ScoreBatchResultData that = (ScoreBatchResultData) other;
+        return this.accepted == that.accepted && Objects.equals(this.rejected, that.rejected);
+    }
+
+    /**
+     * Gives a representation of this object as a JSON string.
+     * @return A representation of this object as a JSON string.
+     */
+    @NonNull
+    @Override
+    public String toString() {
+        return JavalinJson.toJson(this);
+    }
+}
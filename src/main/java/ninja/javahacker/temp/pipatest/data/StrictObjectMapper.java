@@ -0,0 +1,43 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Creates the Jackson's {@link ObjectMapper}s used to read and write the JSON of the HTTP routes. They are very strict in rejecting
+ * bad JSONs and have every Jackson module in the classpath registered, so that the parameter names of the {@link UserData}
+ * constructor are known.
+ *
+ * <p>Both the {@code GameServer}, which gives one of them to Javalin, and the classes that read or write JSON by themselves use
+ * mappers created here, so they all behave the same and none of them depends on Javalin's global mapper being configured first.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class StrictObjectMapper {
+
+    /**
+     * This class isn't instantiable.
+     */
+    private StrictObjectMapper() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Creates a new strict {@link ObjectMapper}.
+     * @return A new strict {@link ObjectMapper}.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static ObjectMapper create() {
+        return new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_IGNORED_PROPERTIES, true)
+                .configure(DeserializationFeature.FAIL_ON_MISSING_CREATOR_PROPERTIES, true)
+                .configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, true)
+                .configure(DeserializationFeature.FAIL_ON_NULL_CREATOR_PROPERTIES, true)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true)
+                .configure(DeserializationFeature.FAIL_ON_READING_DUP_TREE_KEY, true)
+                .findAndRegisterModules();
+    }
+}
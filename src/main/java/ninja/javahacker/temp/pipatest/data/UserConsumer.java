@@ -0,0 +1,17 @@
+package ninja.javahacker.temp.pipatest.data;
+
+/**
+ * Represents an operation that receives the data of a user, in the same way as a {@link UserData}, but without needing to create an
+ * instance of it for each user.
+ * @author Victor Williams Stafusa da Silva
+ */
+@FunctionalInterface
+public interface UserConsumer {
+
+    /**
+     * This is the functional method representing what should be done with each user.
+     * @param userId The id of the user.
+     * @param points The points earned by the user.
+     */
+    public void accept(long userId, long points);
+}
@@ -0,0 +1,238 @@
+package ninja.javahacker.temp.pipatest.data;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Reads a batch of {@link UserData} from an {@link InputStream} as it arrives, without needing to have the whole batch in memory as a
+ * string. The batch might be either a JSON array or newline-delimited JSON (i.e., one JSON object per line). Which one is used is
+ * decided by the first non-blank character, which is {@code [} only for the JSON array.
+ *
+ * <p>Each entry is read in the same strict way as the {@code POST /score} HTTP route does. Entries that can't be read are rejected
+ * one by one, without rejecting the others. In newline-delimited JSON, every line is read independently, so even a malformed line
+ * doesn't affect the next ones. In a JSON array, a malformed entry makes the rest of the array unreadable, so it is the last one
+ * read.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class UserDataBatchReader {
+
+    /**
+     * The HTTP status given to rejected entries, which is the same given by the {@code POST /score} HTTP route for bad data.
+     */
+    private static final int REJECTED_STATUS = 422;
+
+    /**
+     * The mapper used to read the entries. It is thread-safe, since it is never reconfigured after its creation.
+     */
+    private static final ObjectMapper MAPPER = StrictObjectMapper.create();
+
+    /**
+     * This class isn't instantiable.
+     */
+    private UserDataBatchReader() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Reads all the entries from the given {@link InputStream}, giving the accepted ones to the given action and listing the rejected
+     * ones.
+     * @param in Where the batch should be read from.
+     * @param accepted The action that receives each accepted entry, in the order that they were read.
+     * @return The rejected entries, in the order that they were read.
+     * @throws IOException If the {@link InputStream} couldn't be read.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    @NonNull
+    public static List<RejectedLineData> read(@NonNull InputStream in, @NonNull Consumer<UserData> accepted) throws IOException {
+        if (accepted == null) throw new IllegalArgumentException();
+        return readNumbered(in, (data, line) -> accepted.accept(data));
+    }
+
+    /**
+     * Reads all the entries from the given {@link InputStream}, giving the accepted ones together with their lines (or positions in
+     * the array) to the given action and listing the rejected ones.
+     * @param in Where the batch should be read from.
+     * @param accepted The action that receives each accepted entry and its line or position in the array, counted from one, in the
+     *     order that they were read.
+     * @return The rejected entries, in the order that they were read.
+     * @throws IOException If the {@link InputStream} couldn't be read.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    @NonNull
+    public static List<RejectedLineData> readNumbered(@NonNull InputStream in, @NonNull ObjIntConsumer<UserData> accepted)
+            throws IOException
+    {
+        return readNumbered(in, Integer.MAX_VALUE, accepted);
+    }
+
+    /**
+     * Reads at most the given number of entries from the given {@link InputStream}, giving the accepted ones together with their
+     * lines (or positions in the array) to the given action and listing the rejected ones. Both the accepted and the rejected entries
+     * count towards the limit, but blank lines don't.
+     * @param in Where the batch should be read from.
+     * @param maxEntries The maximum number of entries that the batch might have.
+     * @param accepted The action that receives each accepted entry and its line or position in the array, counted from one, in the
+     *     order that they were read.
+     * @return The rejected entries, in the order that they were read.
+     * @throws BatchTooLargeException If the batch has more than {@code maxEntries} entries. The reading stops at the first entry
+     *     beyond the limit.
+     * @throws IOException If the {@link InputStream} couldn't be read.
+     * @throws IllegalArgumentException If any parameter is {@code null} or if {@code maxEntries} isn't positive.
+     */
+    @NonNull
+    public static List<RejectedLineData> readNumbered(
+            @NonNull InputStream in,
+            int maxEntries,
+            @NonNull ObjIntConsumer<UserData> accepted)
+            throws IOException
+    {
+        if (in == null || maxEntries <= 0 || accepted == null) throw new IllegalArgumentException();
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        List<RejectedLineData> rejected = new ArrayList<>();
+        ObjectMapper mapper = MAPPER;
+
+        // Peek the first non-blank byte in order to find out the format.
+        int first;
+        do {
+            buffered.mark(1);
+            first = buffered.read();
+        } while (first != -1 && Character.isWhitespace(first));
+        if (first == -1) return rejected;
+        buffered.reset();
+
+        if (first == '[') {
+            readArray(mapper, buffered, maxEntries, accepted, rejected);
+        } else {
+            readLines(mapper, buffered, maxEntries, accepted, rejected);
+        }
+        return rejected;
+    }
+
+    /**
+     * Reads the entries of a JSON array.
+     * @param mapper The Jackson's object mapper used to read the entries.
+     * @param in Where the array should be read from.
+     * @param maxEntries The maximum number of entries that the array might have.
+     * @param accepted The action that receives each accepted entry and its line or position in the array.
+     * @param rejected Where the rejected entries are listed.
+     * @throws BatchTooLargeException If the array has more than {@code maxEntries} entries.
+     * @throws IOException If the {@link InputStream} couldn't be read.
+     */
+    private static void readArray(
+            @NonNull ObjectMapper mapper,
+            @NonNull InputStream in,
+            int maxEntries,
+            @NonNull ObjIntConsumer<UserData> accepted,
+            @NonNull List<RejectedLineData> rejected)
+            throws IOException
+    {
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+
+            // Skips the opening bracket, which was already seen.
+            parser.nextToken();
+            for (int position = 1; true; position++) {
+
+                // First, read the entry as a tree. If this fails, the JSON is malformed and the rest of the array can't be trusted.
+                JsonNode node;
+                try {
+                    JsonToken t = parser.nextToken();
+                    if (t == JsonToken.END_ARRAY) return;
+                    if (t == null) throw new JsonParseException(parser, "Unexpected end of the array.");
+                    if (position > maxEntries) throw new BatchTooLargeException(maxEntries);
+                    node = mapper.readTree(parser);
+                } catch (JsonParseException e) {
+                    rejected.add(new RejectedLineData(position, REJECTED_STATUS, messageOf(e)));
+                    return;
+                }
+
+                // Then, convert the tree into an entry. If this fails, only this entry is rejected.
+                try {
+                    accept(mapper.treeToValue(node, UserData.class), position, accepted, rejected);
+                } catch (JsonProcessingException | IllegalArgumentException e) {
+                    rejected.add(new RejectedLineData(position, REJECTED_STATUS, messageOf(e)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of newline-delimited JSON. Blank lines are skipped, but still counted.
+     * @param mapper The Jackson's object mapper used to read the entries.
+     * @param in Where the lines should be read from.
+     * @param maxEntries The maximum number of entries that the lines might have.
+     * @param accepted The action that receives each accepted entry and its line or position in the array.
+     * @param rejected Where the rejected entries are listed.
+     * @throws BatchTooLargeException If the lines have more than {@code maxEntries} entries.
+     * @throws IOException If the {@link InputStream} couldn't be read.
+     */
+    private static void readLines(
+            @NonNull ObjectMapper mapper,
+            @NonNull InputStream in,
+            int maxEntries,
+            @NonNull ObjIntConsumer<UserData> accepted,
+            @NonNull List<RejectedLineData> rejected)
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        int entries = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+            if (++entries > maxEntries) throw new BatchTooLargeException(maxEntries);
+            try {
+                accept(mapper.readValue(line, UserData.class), lineNumber, accepted, rejected);
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                rejected.add(new RejectedLineData(lineNumber, REJECTED_STATUS, messageOf(e)));
+            }
+        }
+    }
+
+    /**
+     * Gives an entry that was read to the action, unless it is {@code null}, which happens when the entry was the JSON {@code null}.
+     * @param data The entry that was read.
+     * @param line The line or the position in the array of the entry.
+     * @param accepted The action that receives each accepted entry and its line or position in the array.
+     * @param rejected Where the rejected entries are listed.
+     */
+    private static void accept(
+            @Nullable UserData data,
+            int line,
+            @NonNull ObjIntConsumer<UserData> accepted,
+            @NonNull List<RejectedLineData> rejected)
+    {
+        if (data == null) {
+            rejected.add(new RejectedLineData(line, REJECTED_STATUS, "Null entry."));
+        } else {
+            accepted.accept(data, line);
+        }
+    }
+
+    /**
+     * Gives a message telling why an entry was rejected.
+     * @param e The exception that rejected the entry.
+     * @return A message telling why an entry was rejected.
+     */
+    @NonNull
+    private static String messageOf(@NonNull Exception e) {
+        String message = e instanceof JsonProcessingException ? ((JsonProcessingException) e).getOriginalMessage() : e.getMessage();
+        return message == null ? "Invalid entry." : message;
+    }
+}
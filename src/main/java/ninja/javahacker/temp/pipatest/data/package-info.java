@@ -1,5 +1,6 @@
 /**
- * Contains classes that represents simple data that would be serialized or deserialized by Jackson to or from JSON.
+ * Contains classes that represents simple data that would be serialized or deserialized by Jackson to or from JSON and also the
+ * means to stream them as JSON without creating those classes.
  * @author Victor Williams Stafusa da Silva
  */
 package ninja.javahacker.temp.pipatest.data;
\ No newline at end of file
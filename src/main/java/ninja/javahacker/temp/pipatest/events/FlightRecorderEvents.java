@@ -0,0 +1,131 @@
+package ninja.javahacker.temp.pipatest.events;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * Emits JDK Flight Recorder events for the changes of the {@link ApplicationState}s, for the listing of high scores and for each new
+ * state published by a {@link HighscoresTable}, so that a recording shows what the table was doing during a GC pause or a latency
+ * spike.
+ *
+ * <p>The {@code jdk.jfr} API only exists in JVMs that have the Flight Recorder, which are the ones from Java 11 onwards and the
+ * OpenJDK 8 ones since 8u262. Every use of it is kept in the {@link JfrEvents} class, which is loaded only if the API is found, so in
+ * other JVMs, or if the {@code pipatest.jfr} system property is {@code false}, nothing is ever emitted.</p>
+ *
+ * <p>The events are cheap enough to be always enabled. When no recording is running, or when an event is disabled in it, starting an
+ * event gives {@code null}, so nothing is allocated and finishing the event does nothing. The number of nodes allocated by each
+ * change is only counted if the {@code pipatest.countNodes} system property is {@code true}, since that costs a thread-local lookup
+ * for each node.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class FlightRecorderEvents {
+
+    /**
+     * Whether the Flight Recorder exists and events are wanted.
+     */
+    private static final boolean AVAILABLE = probe();
+
+    /**
+     * Prevents instantiation.
+     * @throws UnsupportedOperationException Always.
+     */
+    private FlightRecorderEvents() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Finds out if the Flight Recorder exists and events are wanted, by registering the events if they are wanted.
+     * @return {@code true} if the Flight Recorder exists and events are wanted, {@code false} otherwise.
+     */
+    private static boolean probe() {
+        if (!Boolean.parseBoolean(System.getProperty("pipatest.jfr", "true"))) return false;
+        try {
+            return JfrEvents.register();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells if the Flight Recorder exists and events are wanted. Even so, each event is emitted only if it is enabled in some running
+     * recording.
+     * @return {@code true} if the Flight Recorder exists and events are wanted, {@code false} otherwise.
+     */
+    @CheckReturnValue
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Starts an event for a score being added to an {@link ApplicationState}, if it is enabled.
+     * @return The started event, which should be given to {@link #endAddScore(Object, UserData) endAddScore}, or {@code null} if it
+     *     isn't enabled.
+     */
+    @Nullable
+    @CheckReturnValue
+    public static Object beginAddScore() {
+        return AVAILABLE ? JfrEvents.beginAddScore() : null;
+    }
+
+    /**
+     * Finishes and emits an event for a score being added to an {@link ApplicationState}.
+     * @param event The event given by {@link #beginAddScore()}. If it is {@code null}, nothing is done.
+     * @param data The added score.
+     */
+    public static void endAddScore(@Nullable Object event, @NonNull UserData data) {
+        if (event != null) JfrEvents.endAddScore(event, data.getUserId(), data.getPoints());
+    }
+
+    /**
+     * Starts an event for a page of the high scores list being produced, if it is enabled.
+     * @return The started event, which should be given to {@link #endHighScores(Object, ApplicationState, int, int) endHighScores},
+     *     or {@code null} if it isn't enabled.
+     */
+    @Nullable
+    @CheckReturnValue
+    public static Object beginHighScores() {
+        return AVAILABLE ? JfrEvents.beginHighScores() : null;
+    }
+
+    /**
+     * Finishes and emits an event for a page of the high scores list being produced.
+     * @param event The event given by {@link #beginHighScores()}. If it is {@code null}, nothing is done.
+     * @param state The state from which the page was produced.
+     * @param offset How many users were skipped at the beginning of the list.
+     * @param limit The maximum number of users in the page.
+     */
+    public static void endHighScores(@Nullable Object event, @NonNull ApplicationState state, int offset, int limit) {
+        if (event == null) return;
+        int users = state.getUserCount();
+        int rows = Math.max(0, Math.min(limit, users - offset));
+        JfrEvents.endHighScores(event, offset, limit, rows, offset + rows < users);
+    }
+
+    /**
+     * Emits an event for a new state published by a table, if it is enabled. If the state didn't change, nothing is emitted.
+     * @param table The table.
+     * @param previous The state replaced by the new one.
+     * @param published The new state.
+     */
+    public static void statePublished(
+            @NonNull HighscoresTable table,
+            @NonNull ApplicationState previous,
+            @NonNull ApplicationState published)
+    {
+        if (!AVAILABLE || previous == published || !JfrEvents.isStatePublishedEnabled()) return;
+        JfrEvents.statePublished(
+                table.getClass().getSimpleName(),
+                published.getVersion(),
+                published.getVersion() - previous.getVersion(),
+                published.getUserCount());
+    }
+}
@@ -0,0 +1,257 @@
+package ninja.javahacker.temp.pipatest.events;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.avl.NodeAllocationCounter;
+
+/**
+ * Holds every use of the {@code jdk.jfr} API, so that it is loaded only by JVMs that have it. It must only be used by the
+ * {@link FlightRecorderEvents} class, after the {@link #register() register} method succeeds.
+ *
+ * <p>None of the events records its stack trace, since that is by far the most expensive part of emitting an event.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+final class JfrEvents {
+
+    /**
+     * The type of the {@link AddScoreEvent}, whose state tells if it is enabled in some running recording.
+     */
+    @NonNull
+    private static final EventType ADD_SCORE = EventType.getEventType(AddScoreEvent.class);
+
+    /**
+     * The type of the {@link HighScoresEvent}, whose state tells if it is enabled in some running recording.
+     */
+    @NonNull
+    private static final EventType HIGH_SCORES = EventType.getEventType(HighScoresEvent.class);
+
+    /**
+     * The type of the {@link StatePublishedEvent}, whose state tells if it is enabled in some running recording.
+     */
+    @NonNull
+    private static final EventType STATE_PUBLISHED = EventType.getEventType(StatePublishedEvent.class);
+
+    /**
+     * Prevents instantiation.
+     * @throws UnsupportedOperationException Always.
+     */
+    private JfrEvents() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Does nothing by itself, but calling it initializes this class, which registers the events. In a JVM without the Flight Recorder,
+     * or if the events can't be registered, the call fails with a {@link LinkageError}.
+     * @return Always {@code true}.
+     */
+    @CheckReturnValue
+    static boolean register() {
+        return true;
+    }
+
+    /**
+     * Starts an {@link AddScoreEvent}, if it is enabled.
+     * @return The started event or {@code null} if it isn't enabled.
+     */
+    @Nullable
+    @CheckReturnValue
+    static Object beginAddScore() {
+        if (!ADD_SCORE.isEnabled()) return null;
+        AddScoreEvent event = new AddScoreEvent();
+        event.nodesAllocated = NodeAllocationCounter.get();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes and commits an {@link AddScoreEvent}.
+     * @param started The event given by {@link #beginAddScore()}.
+     * @param userId The id of the user who scored.
+     * @param delta The points that the user scored.
+     */
+    static void endAddScore(@NonNull Object started, long userId, long delta) {
+        AddScoreEvent event = (AddScoreEvent) started;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.userId = userId;
+        event.delta = delta;
+        event.nodesAllocated = NodeAllocationCounter.isEnabled() ? NodeAllocationCounter.get() - event.nodesAllocated : -1L;
+        event.commit();
+    }
+
+    /**
+     * Starts a {@link HighScoresEvent}, if it is enabled.
+     * @return The started event or {@code null} if it isn't enabled.
+     */
+    @Nullable
+    @CheckReturnValue
+    static Object beginHighScores() {
+        if (!HIGH_SCORES.isEnabled()) return null;
+        HighScoresEvent event = new HighScoresEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes and commits a {@link HighScoresEvent}.
+     * @param started The event given by {@link #beginHighScores()}.
+     * @param offset How many users were skipped at the beginning of the list.
+     * @param limit The maximum number of users in the page.
+     * @param rows How many users are in the page.
+     * @param stoppedEarly Whether there were more users after the page.
+     */
+    static void endHighScores(@NonNull Object started, int offset, int limit, int rows, boolean stoppedEarly) {
+        HighScoresEvent event = (HighScoresEvent) started;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.offset = offset;
+        event.limit = limit;
+        event.rows = rows;
+        event.stoppedEarly = stoppedEarly;
+        event.commit();
+    }
+
+    /**
+     * Tells if the {@link StatePublishedEvent} is enabled.
+     * @return {@code true} if the event is enabled, {@code false} otherwise.
+     */
+    @CheckReturnValue
+    static boolean isStatePublishedEnabled() {
+        return STATE_PUBLISHED.isEnabled();
+    }
+
+    /**
+     * Commits a {@link StatePublishedEvent}.
+     * @param table The name of the implementation of the table.
+     * @param version The version of the published state.
+     * @param changes How many changes the published state has over the replaced one.
+     * @param users How many users there are in the published state.
+     */
+    static void statePublished(@NonNull String table, long version, long changes, int users) {
+        StatePublishedEvent event = new StatePublishedEvent();
+        event.table = table;
+        event.version = version;
+        event.changes = changes;
+        event.users = users;
+        event.commit();
+    }
+
+    /**
+     * Event for a score being added to an {@code ApplicationState}. Only the slow ones are recorded by default.
+     */
+    @Name("ninja.javahacker.pipatest.AddScore")
+    @Label("Add Score")
+    @Category({"Pipatest", "State"})
+    @Description("A score added to an application state, building a new state.")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    @SuppressFBWarnings({"IMC_IMMATURE_CLASS_NO_TOSTRING", "URF_UNREAD_FIELD"})
+    static final class AddScoreEvent extends Event {
+
+        /**
+         * The id of the user who scored.
+         */
+        @Label("User Id")
+        long userId;
+
+        /**
+         * The points that the user scored.
+         */
+        @Label("Delta")
+        long delta;
+
+        /**
+         * How many tree nodes were allocated, or -1 if nodes are not counted. While the event runs, this holds the count when it
+         * started.
+         */
+        @Label("Nodes Allocated")
+        @Description("Tree nodes allocated by the change, or -1 if the pipatest.countNodes system property isn't true.")
+        long nodesAllocated;
+    }
+
+    /**
+     * Event for a page of the high scores list being produced.
+     */
+    @Name("ninja.javahacker.pipatest.HighScores")
+    @Label("High Scores")
+    @Category({"Pipatest", "State"})
+    @Description("A page of the high scores list produced from an application state.")
+    @StackTrace(false)
+    @SuppressFBWarnings({"IMC_IMMATURE_CLASS_NO_TOSTRING", "URF_UNREAD_FIELD"})
+    static final class HighScoresEvent extends Event {
+
+        /**
+         * How many users were skipped at the beginning of the list.
+         */
+        @Label("Offset")
+        int offset;
+
+        /**
+         * The maximum number of users in the page.
+         */
+        @Label("Limit")
+        int limit;
+
+        /**
+         * How many users are in the page.
+         */
+        @Label("Rows")
+        int rows;
+
+        /**
+         * Whether the traversal stopped before the end of the list because the limit was reached.
+         */
+        @Label("Stopped Early")
+        boolean stoppedEarly;
+    }
+
+    /**
+     * Event for a new state published by a {@code HighscoresTable}.
+     */
+    @Name("ninja.javahacker.pipatest.StatePublished")
+    @Label("State Published")
+    @Category({"Pipatest", "Table"})
+    @Description("A new application state published by a highscores table.")
+    @StackTrace(false)
+    @SuppressFBWarnings({"IMC_IMMATURE_CLASS_NO_TOSTRING", "URF_UNREAD_FIELD"})
+    static final class StatePublishedEvent extends Event {
+
+        /**
+         * The name of the implementation of the table.
+         */
+        @Label("Table")
+        String table;
+
+        /**
+         * The version of the published state.
+         */
+        @Label("Version")
+        long version;
+
+        /**
+         * How many changes the published state has over the replaced one.
+         */
+        @Label("Changes")
+        long changes;
+
+        /**
+         * How many users there are in the published state.
+         */
+        @Label("Users")
+        int users;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Contains the JDK Flight Recorder events emitted by the game's highscores server.
+ * @author Victor Williams Stafusa da Silva
+ */
+package ninja.javahacker.temp.pipatest.events;
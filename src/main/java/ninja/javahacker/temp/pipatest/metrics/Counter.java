@@ -0,0 +1,54 @@
+package ninja.javahacker.temp.pipatest.metrics;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A monotonically increasing count of events. Incrementing it never blocks and threads incrementing it concurrently don't contend
+ * over a single memory location, since it is backed by a {@link LongAdder}.
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class Counter {
+
+    /**
+     * The count.
+     */
+    private final LongAdder count;
+
+    /**
+     * Creates a counter with zero events.
+     */
+    public Counter() {
+        this.count = new LongAdder();
+    }
+
+    /**
+     * Counts a single event.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Counts several events at once.
+     * @param events How many events there are.
+     * @throws IllegalArgumentException If {@code events} is negative.
+     */
+    public void add(long events) {
+        if (events < 0) throw new IllegalArgumentException();
+        count.add(events);
+    }
+
+    /**
+     * Gives how many events were counted so far.
+     * @return How many events were counted so far.
+     */
+    @CheckReturnValue
+    public long get() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,111 @@
+package ninja.javahacker.temp.pipatest.metrics;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A histogram of durations, with fixed buckets following the 1-2-5 series from 10 microseconds up to 10 seconds, plus a bucket for
+ * everything above that. Recording a duration never blocks and threads recording concurrently don't contend over a single memory
+ * location, since each bucket is backed by a {@link LongAdder}.
+ *
+ * <p>The buckets are the same ones of a Prometheus histogram, so percentiles over any time window might be computed from them by the
+ * {@code histogram_quantile} function of Prometheus.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class Histogram {
+
+    /**
+     * The upper bounds of the buckets, inclusive, in nanoseconds. The last bucket, for everything larger, has no bound here.
+     */
+    private static final long[] UPPER_BOUNDS = {
+        10_000L, 20_000L, 50_000L,
+        100_000L, 200_000L, 500_000L,
+        1_000_000L, 2_000_000L, 5_000_000L,
+        10_000_000L, 20_000_000L, 50_000_000L,
+        100_000_000L, 200_000_000L, 500_000_000L,
+        1_000_000_000L, 2_000_000_000L, 5_000_000_000L,
+        10_000_000_000L
+    };
+
+    /**
+     * How many durations fell into each bucket. These counts are not cumulative.
+     */
+    private final LongAdder[] buckets;
+
+    /**
+     * The sum of all the recorded durations, in nanoseconds.
+     */
+    private final LongAdder sum;
+
+    /**
+     * Creates a histogram without any recorded duration.
+     */
+    public Histogram() {
+        this.buckets = new LongAdder[UPPER_BOUNDS.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+    }
+
+    /**
+     * Records a duration. Negative durations, which might be given by a clock going backwards, are recorded as zero.
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        int index = Arrays.binarySearch(UPPER_BOUNDS, value);
+        buckets[index >= 0 ? index : -index - 1].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Gives the number of buckets, including the last one for everything above the largest bound.
+     * @return The number of buckets.
+     */
+    @CheckReturnValue
+    public static int getBucketCount() {
+        return UPPER_BOUNDS.length + 1;
+    }
+
+    /**
+     * Gives the upper bound of a bucket, inclusive.
+     * @param bucket The index of the bucket.
+     * @return The upper bound of the bucket, in nanoseconds, or {@link Long#MAX_VALUE} for the last bucket.
+     * @throws IllegalArgumentException If there is no such bucket.
+     */
+    @CheckReturnValue
+    public static long getUpperBound(int bucket) {
+        if (bucket < 0 || bucket > UPPER_BOUNDS.length) throw new IllegalArgumentException();
+        return bucket == UPPER_BOUNDS.length ? Long.MAX_VALUE : UPPER_BOUNDS[bucket];
+    }
+
+    /**
+     * Gives how many durations fell into each bucket. Since the durations might be concurrently recorded, the counts of different
+     * buckets might not have been taken at exactly the same moment.
+     * @return How many durations fell into each bucket. These counts are not cumulative.
+     */
+    @CheckReturnValue
+    public long[] getCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Gives the sum of all the recorded durations.
+     * @return The sum of all the recorded durations, in nanoseconds.
+     */
+    @CheckReturnValue
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,217 @@
+package ninja.javahacker.temp.pipatest.metrics;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Collection;
+import java.util.Optional;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * Decorator of {@link HighscoresTable} that records how long each operation of the decorated table takes into a {@link Histogram}
+ * for each operation, in the {@value #OPERATION_DURATION} family of a {@link MetricsRegistry}.
+ *
+ * <p>The histograms are looked up only once, when the table is created, so measuring an operation costs just two reads of
+ * {@link System#nanoTime()} and an increment of a {@link java.util.concurrent.atomic.LongAdder}. Operations that fail are measured
+ * too. Taking a snapshot isn't measured, since it is just a read of the current state.</p>
+ *
+ * <p>Callers that read from a snapshot instead of calling the read operations of the table, like the HTTP routes of the
+ * {@link ninja.javahacker.temp.pipatest.GameServer GameServer}, should record those reads into the same histograms, given by the
+ * {@link #operationDuration(MetricsRegistry, String) operationDuration} method.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class InstrumentedHighscoresTable implements HighscoresTable {
+
+    /**
+     * The name of the family of histograms with the durations of the operations.
+     */
+    public static final String OPERATION_DURATION = "pipatest_table_operation_duration_seconds";
+
+    /**
+     * The decorated table.
+     */
+    @NonNull
+    private final HighscoresTable delegate;
+
+    /**
+     * The durations of the {@link #addScore(UserData) addScore} operation.
+     */
+    @NonNull
+    private final Histogram addScore;
+
+    /**
+     * The durations of the {@link #addScores(Collection) addScores} operation.
+     */
+    @NonNull
+    private final Histogram addScores;
+
+    /**
+     * The durations of the {@link #findUser(long) findUser} operation.
+     */
+    @NonNull
+    private final Histogram findUser;
+
+    /**
+     * The durations of both {@code getHighScores} operations.
+     */
+    @NonNull
+    private final Histogram getHighScores;
+
+    /**
+     * The durations of the {@link #findNeighbours(long, int, int) findNeighbours} operation.
+     */
+    @NonNull
+    private final Histogram findNeighbours;
+
+    /**
+     * Creates a table that decorates the given one, recording the durations into the given registry.
+     * @param delegate The decorated table.
+     * @param metrics Where the durations are recorded.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    public InstrumentedHighscoresTable(@NonNull HighscoresTable delegate, @NonNull MetricsRegistry metrics) {
+        if (delegate == null || metrics == null) throw new IllegalArgumentException();
+        this.delegate = delegate;
+        this.addScore = operationDuration(metrics, "addScore");
+        this.addScores = operationDuration(metrics, "addScores");
+        this.findUser = operationDuration(metrics, "findUser");
+        this.getHighScores = operationDuration(metrics, "getHighScores");
+        this.findNeighbours = operationDuration(metrics, "findNeighbours");
+    }
+
+    /**
+     * Gives the histogram of the durations of the given operation, creating it if needed.
+     * @param metrics Where the histogram is.
+     * @param operation The name of the operation.
+     * @return The histogram of the durations of the given operation.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    @NonNull
+    public static Histogram operationDuration(@NonNull MetricsRegistry metrics, @NonNull String operation) {
+        return metrics.histogram(OPERATION_DURATION, "Duration of the operations of the highscores table.", "operation", operation);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScore(@NonNull UserData data) {
+        long start = System.nanoTime();
+        try {
+            delegate.addScore(data);
+        } finally {
+            addScore.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc}
+     */
+    @Override
+    public void addScores(@NonNull Collection<UserData> data) {
+        long start = System.nanoTime();
+        try {
+            delegate.addScores(data);
+        } finally {
+            addScores.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ApplicationState snapshot() {
+        return delegate.snapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        long start = System.nanoTime();
+        try {
+            return delegate.findUser(userId);
+        } finally {
+            findUser.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param maxUsers {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int maxUsers) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getHighScores(maxUsers);
+        } finally {
+            getHighScores.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getHighScores(offset, limit);
+        } finally {
+            getHighScores.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        long start = System.nanoTime();
+        try {
+            return delegate.findNeighbours(userId, above, below);
+        } finally {
+            findNeighbours.record(System.nanoTime() - start);
+        }
+    }
+}
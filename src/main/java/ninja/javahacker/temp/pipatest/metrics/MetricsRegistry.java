@@ -0,0 +1,229 @@
+package ninja.javahacker.temp.pipatest.metrics;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Keeps named {@link Counter}s, {@link Histogram}s and gauges and renders all of them in the Prometheus text exposition format.
+ *
+ * <p>Metrics are grouped in families, which have a name, a help text and a type. Each metric of a family is told apart by its labels,
+ * given as pairs of names and values. Asking for a metric that already exists gives the existing one, so metrics might be looked up
+ * whenever needed, but since that involves building the key from the labels, hot paths should keep the metrics that they use instead
+ * of looking them up again for each event.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class MetricsRegistry {
+
+    /**
+     * The valid names of metrics and labels.
+     */
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    /**
+     * The families of metrics, by their names. Kept sorted, so the output is always in the same order.
+     */
+    @NonNull
+    private final ConcurrentMap<String, Family> families;
+
+    /**
+     * Creates a registry without any metric.
+     */
+    public MetricsRegistry() {
+        this.families = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Gives the counter with the given name and labels, creating it if needed.
+     * @param name The name of the family of the counter.
+     * @param help What the counter counts.
+     * @param labels The names and the values of the labels of the counter, alternating.
+     * @return The counter.
+     * @throws IllegalArgumentException If any parameter is {@code null} or invalid or if there is a family of another type with the
+     *     same name.
+     */
+    @NonNull
+    public Counter counter(@NonNull String name, @NonNull String help, @NonNull String... labels) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labelsOf(labels), k -> new Counter());
+    }
+
+    /**
+     * Gives the histogram with the given name and labels, creating it if needed. The durations are exposed in seconds.
+     * @param name The name of the family of the histogram.
+     * @param help What the histogram measures.
+     * @param labels The names and the values of the labels of the histogram, alternating.
+     * @return The histogram.
+     * @throws IllegalArgumentException If any parameter is {@code null} or invalid or if there is a family of another type with the
+     *     same name.
+     */
+    @NonNull
+    public Histogram histogram(@NonNull String name, @NonNull String help, @NonNull String... labels) {
+        return (Histogram) family(name, help, "histogram").metrics.computeIfAbsent(labelsOf(labels), k -> new Histogram());
+    }
+
+    /**
+     * Adds a gauge, whose value is given by the given function whenever the metrics are rendered. If there is already a gauge with
+     * the given name and labels, it is replaced.
+     * @param name The name of the family of the gauge.
+     * @param help What the gauge measures.
+     * @param value Gives the value of the gauge. It should be fast and must be thread-safe.
+     * @param labels The names and the values of the labels of the gauge, alternating.
+     * @throws IllegalArgumentException If any parameter is {@code null} or invalid or if there is a family of another type with the
+     *     same name.
+     */
+    public void gauge(@NonNull String name, @NonNull String help, @NonNull LongSupplier value, @NonNull String... labels) {
+        if (value == null) throw new IllegalArgumentException();
+        family(name, help, "gauge").metrics.put(labelsOf(labels), value);
+    }
+
+    /**
+     * Gives the family with the given name, creating it if needed.
+     * @param name The name of the family.
+     * @param help What the metrics of the family measure.
+     * @param type The type of the metrics of the family.
+     * @return The family.
+     * @throws IllegalArgumentException If {@code name} or {@code help} are {@code null}, if {@code name} is invalid or if there is a
+     *     family of another type with the same name.
+     */
+    @NonNull
+    private Family family(@NonNull String name, @NonNull String help, @NonNull String type) {
+        if (name == null || help == null || !NAME.matcher(name).matches()) throw new IllegalArgumentException();
+        Family f = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!f.type.equals(type)) throw new IllegalArgumentException();
+        return f;
+    }
+
+    /**
+     * Renders the labels as they appear in the output, between braces.
+     * @param labels The names and the values of the labels, alternating.
+     * @return The rendered labels, or an empty string if there is none.
+     * @throws IllegalArgumentException If {@code labels} is {@code null}, has an odd length, has a {@code null} element or an invalid
+     *     name.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static String labelsOf(@NonNull String... labels) {
+        if (labels == null || labels.length % 2 != 0) throw new IllegalArgumentException();
+        if (labels.length == 0) return "";
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (labels[i] == null || labels[i + 1] == null || !NAME.matcher(labels[i]).matches()) throw new IllegalArgumentException();
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            for (char c : labels[i + 1].toCharArray()) {
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Adds a label to already rendered labels.
+     * @param labels The already rendered labels, or an empty string if there is none.
+     * @param extra The extra label, already rendered, without braces.
+     * @return The rendered labels with the extra one.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static String withLabel(@NonNull String labels, @NonNull String extra) {
+        return labels.isEmpty() ? "{" + extra + "}" : labels.substring(0, labels.length() - 1) + "," + extra + "}";
+    }
+
+    /**
+     * Renders a duration in nanoseconds as seconds.
+     * @param nanos The duration, in nanoseconds.
+     * @return The duration in seconds.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /**
+     * Renders all the metrics in the Prometheus text exposition format, version 0.0.4.
+     * @return All the metrics in the Prometheus text exposition format.
+     */
+    @NonNull
+    @CheckReturnValue
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(f.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> m : f.metrics.entrySet()) {
+                String labels = m.getKey();
+                Object metric = m.getValue();
+                if (metric instanceof Counter) {
+                    out.append(name).append(labels).append(' ').append(((Counter) metric).get()).append('\n');
+                } else if (metric instanceof LongSupplier) {
+                    out.append(name).append(labels).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+                } else {
+                    Histogram h = (Histogram) metric;
+                    long[] counts = h.getCounts();
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        long bound = Histogram.getUpperBound(i);
+                        String le = "le=\"" + (bound == Long.MAX_VALUE ? "+Inf" : seconds(bound)) + "\"";
+                        out.append(name).append("_bucket").append(withLabel(labels, le)).append(' ').append(cumulative).append('\n');
+                    }
+                    out.append(name).append("_sum").append(labels).append(' ').append(seconds(h.getSum())).append('\n');
+                    out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * A family of metrics with the same name.
+     */
+    @ThreadSafe
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Family {
+
+        /**
+         * What the metrics of the family measure.
+         */
+        @NonNull
+        private final String help;
+
+        /**
+         * The type of the metrics of the family: {@code counter}, {@code gauge} or {@code histogram}.
+         */
+        @NonNull
+        private final String type;
+
+        /**
+         * The metrics of the family, by their rendered labels. Kept sorted, so the output is always in the same order.
+         */
+        @NonNull
+        private final ConcurrentMap<String, Object> metrics;
+
+        /**
+         * Creates a family without any metric.
+         * @param help What the metrics of the family measure.
+         * @param type The type of the metrics of the family.
+         */
+        public Family(@NonNull String help, @NonNull String type) {
+            this.help = help;
+            this.type = type;
+            this.metrics = new ConcurrentSkipListMap<>();
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Contains the lock-free metrics of the game's highscores server and their exposition in the Prometheus text format.
+ * @author Victor Williams Stafusa da Silva
+ */
+package ninja.javahacker.temp.pipatest.metrics;
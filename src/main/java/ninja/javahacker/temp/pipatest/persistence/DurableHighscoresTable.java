@@ -0,0 +1,517 @@
+package ninja.javahacker.temp.pipatest.persistence;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * Decorator of {@link HighscoresTable} that writes every score into a {@link ScoreEventLog} before adding it to the decorated table,
+ * so that the scores survive restarts of the server.
+ *
+ * <p>Adding a score returns only after the score is durable in the log and added to the table. Since adding scores is commutative,
+ * it doesn't matter that concurrent scores might be added to the table in a different order than the one they were written in the
+ * log. Reading is just delegated to the decorated table.</p>
+ *
+ * <p>Scores that would overflow the points of some user are refused before being written into the log. For that, the points of the
+ * scores written into the log but not yet added to the table are also counted, so every score in the log always fits in the table,
+ * in any order and however the log is split into batches when it is replayed. A batch racing with others near the overflow might
+ * be refused even if it would barely fit after all, but it is never written into the log and then refused by the table. The points
+ * already in the table are read from a single snapshot of it, taken without holding the lock of the pending scores, which is held
+ * only to check and count them.</p>
+ *
+ * <p>In order to avoid replaying the whole log when the server restarts, the {@link #checkpoint() checkpoint} method writes a
+ * {@link ScoreSnapshot} of the table and then deletes the segments of the log that it covers. Adding scores is held back only while
+ * the log starts a new segment and the current state of the table is taken. The snapshot itself is written by a background thread
+ * from that state, which is immutable, while scores keep being added.</p>
+ *
+ * <p>Most checkpoints are incremental: instead of the whole table, they write a delta with just the users that were added or whose
+ * points changed since the previous checkpoint, which takes time proportional to the number of changes. After a given number of
+ * deltas, the next checkpoint writes a full snapshot again and deletes the older snapshot and deltas, so that restarting never needs
+ * to read too many deltas.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class DurableHighscoresTable implements HighscoresTable, AutoCloseable {
+
+    /**
+     * How many events are added to the table at once while replaying the log.
+     */
+    private static final int REPLAY_BATCH = 65536;
+
+    /**
+     * The default number of deltas written between two full snapshots.
+     */
+    public static final int DEFAULT_COMPACT_EVERY = 8;
+
+    /**
+     * The decorated table.
+     */
+    @NonNull
+    private final HighscoresTable delegate;
+
+    /**
+     * Where the scores are written to.
+     */
+    @NonNull
+    private final ScoreEventLog log;
+
+    /**
+     * Scores are added while holding the read lock, so the write lock is acquired by a checkpoint only when no score is between being
+     * written into the log and being added to the table.
+     */
+    @NonNull
+    private final ReadWriteLock quiesce;
+
+    /**
+     * The sum of the points of each user in the scores written into the log, or being written, but not yet added to the table.
+     */
+    @NonNull
+    @GuardedBy("pending")
+    private final Map<Long, Long> pending;
+
+    /**
+     * How many times scores stopped being counted as {@link #pending}. A score might be released after a snapshot of the table that
+     * doesn't have it yet was taken, so the snapshot is only trusted if nothing was released since it was taken.
+     */
+    @NonNull
+    private final AtomicLong releases;
+
+    /**
+     * The thread that writes the snapshots.
+     */
+    @NonNull
+    private final ExecutorService snapshotWriter;
+
+    /**
+     * How many deltas are written between two full snapshots.
+     */
+    private final int compactEvery;
+
+    /**
+     * The state written by the last checkpoint, which the next delta is compared to, or {@code null} if there is no snapshot yet.
+     * Only used by the {@link #snapshotWriter} thread.
+     */
+    @Nullable
+    private ApplicationState lastCheckpointState;
+
+    /**
+     * The number of the first segment not covered by the last checkpoint, or {@code -1} if there is no snapshot yet. Only used by
+     * the {@link #snapshotWriter} thread.
+     */
+    private long lastCheckpointSegment;
+
+    /**
+     * How many deltas were written since the last full snapshot. Only used by the {@link #snapshotWriter} thread.
+     */
+    private int deltasSinceCompaction;
+
+    /**
+     * Creates an instance that decorates the given table, writing the scores into the given log. Nothing is replayed and the first
+     * checkpoint writes a full snapshot.
+     * @param delegate The decorated table.
+     * @param log Where the scores are written to.
+     * @throws IllegalArgumentException If any parameter is {@code null}.
+     */
+    public DurableHighscoresTable(@NonNull HighscoresTable delegate, @NonNull ScoreEventLog log) {
+        this(delegate, log, DEFAULT_COMPACT_EVERY, null, -1L, 0);
+    }
+
+    /**
+     * Creates an instance that decorates the given table, writing the scores into the given log and continuing the checkpoints
+     * loaded from the directory of the log.
+     * @param delegate The decorated table.
+     * @param log Where the scores are written to.
+     * @param compactEvery How many deltas are written between two full snapshots.
+     * @param lastCheckpointState The state loaded from the last snapshot and the deltas after it, or {@code null} if there is none.
+     * @param lastCheckpointSegment The number of the first segment not covered by the last snapshot or delta, or {@code -1} if there
+     *     is none.
+     * @param deltasSinceCompaction How many deltas were loaded after the snapshot.
+     * @throws IllegalArgumentException If {@code delegate} or {@code log} are {@code null} or if {@code compactEvery} is negative.
+     */
+    private DurableHighscoresTable(
+            @NonNull HighscoresTable delegate,
+            @NonNull ScoreEventLog log,
+            int compactEvery,
+            @Nullable ApplicationState lastCheckpointState,
+            long lastCheckpointSegment,
+            int deltasSinceCompaction)
+    {
+        if (delegate == null || log == null || compactEvery < 0) throw new IllegalArgumentException();
+        this.delegate = delegate;
+        this.log = log;
+        this.compactEvery = compactEvery;
+        this.lastCheckpointState = lastCheckpointState;
+        this.lastCheckpointSegment = lastCheckpointSegment;
+        this.deltasSinceCompaction = deltasSinceCompaction;
+        this.quiesce = new ReentrantReadWriteLock();
+        this.pending = new HashMap<>();
+        this.releases = new AtomicLong();
+        this.snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "score-snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Loads the most recent snapshot in the given directory and the deltas after it, if there are any, creates the decorated table
+     * from them, replays the scores in the segments of the log not covered by them into the table, in batches, and then opens the log
+     * for writing new scores into it. A full snapshot is written after every {@value #DEFAULT_COMPACT_EVERY} deltas.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used.
+     * @param factory Creates the decorated table, given its initial state.
+     * @param directory The directory of the log and of the snapshots.
+     * @param maxBatch The maximum number of events written with a single {@code fsync}.
+     * @param lingerMillis How long the log waits for more events before writing them, in milliseconds.
+     * @return A {@code DurableHighscoresTable} decorating the created table.
+     * @throws IOException If the snapshot, the deltas or the log couldn't be read, if the scores in the log overflow the points of
+     *     some user or if the log couldn't be opened.
+     * @throws IllegalArgumentException If any parameter is {@code null}, if {@code empty} isn't empty, if {@code maxBatch} isn't
+     *     positive or if {@code lingerMillis} is negative.
+     */
+    @NonNull
+    public static DurableHighscoresTable open(
+            @NonNull ApplicationState empty,
+            @NonNull Function<? super ApplicationState, ? extends HighscoresTable> factory,
+            @NonNull Path directory,
+            int maxBatch,
+            long lingerMillis)
+            throws IOException
+    {
+        return open(empty, factory, directory, maxBatch, lingerMillis, DEFAULT_COMPACT_EVERY);
+    }
+
+    /**
+     * Loads the most recent snapshot in the given directory and the deltas after it, if there are any, creates the decorated table
+     * from them, replays the scores in the segments of the log not covered by them into the table, in batches, and then opens the log
+     * for writing new scores into it.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used.
+     * @param factory Creates the decorated table, given its initial state.
+     * @param directory The directory of the log and of the snapshots.
+     * @param maxBatch The maximum number of events written with a single {@code fsync}.
+     * @param lingerMillis How long the log waits for more events before writing them, in milliseconds.
+     * @param compactEvery How many deltas are written between two full snapshots. If it is 0, every checkpoint writes a full
+     *     snapshot.
+     * @return A {@code DurableHighscoresTable} decorating the created table.
+     * @throws IOException If the snapshot, the deltas or the log couldn't be read, if the scores in the log overflow the points of
+     *     some user or if the log couldn't be opened.
+     * @throws IllegalArgumentException If any parameter is {@code null}, if {@code empty} isn't empty, if {@code maxBatch} isn't
+     *     positive or if {@code lingerMillis} or {@code compactEvery} are negative.
+     */
+    @NonNull
+    public static DurableHighscoresTable open(
+            @NonNull ApplicationState empty,
+            @NonNull Function<? super ApplicationState, ? extends HighscoresTable> factory,
+            @NonNull Path directory,
+            int maxBatch,
+            long lingerMillis,
+            int compactEvery)
+            throws IOException
+    {
+        if (empty == null || factory == null || directory == null || empty.getUserCount() != 0 || compactEvery < 0) {
+            throw new IllegalArgumentException();
+        }
+        Optional<Path> snapshot = ScoreSnapshot.latest(directory);
+        ApplicationState initial = empty;
+        long firstSegment = 0L;
+        List<Path> deltas = Collections.emptyList();
+        if (snapshot.isPresent()) {
+            deltas = ScoreSnapshot.deltasAfter(directory, ScoreSnapshot.firstSegmentOf(snapshot.get()));
+            initial = ScoreSnapshot.read(snapshot.get(), deltas, empty);
+            firstSegment = ScoreSnapshot.firstSegmentOf(deltas.isEmpty() ? snapshot.get() : deltas.get(deltas.size() - 1));
+        }
+        HighscoresTable delegate = factory.apply(initial);
+        try {
+            ScoreEventLog.replay(directory, firstSegment, REPLAY_BATCH, delegate::addScores);
+        } catch (ArithmeticException e) {
+            throw new IOException("The log doesn't fit in the table.", e);
+        }
+        ScoreEventLog log = new ScoreEventLog(directory, maxBatch, lingerMillis, ScoreEventLog.DEFAULT_SEGMENT_BYTES);
+        return snapshot.isPresent()
+                ? new DurableHighscoresTable(delegate, log, compactEvery, initial, firstSegment, deltas.size())
+                : new DurableHighscoresTable(delegate, log, compactEvery, null, -1L, 0);
+    }
+
+    /**
+     * Waits until some events are durable, rethrowing whatever made them fail.
+     * @param done Completed when the events are durable.
+     */
+    private static void await(@NonNull CompletableFuture<Void> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException If the points of the user overflow, in which case nothing is written into the log.
+     * @throws java.io.UncheckedIOException If the score couldn't be written into the log.
+     * @throws IllegalStateException If the log was closed.
+     */
+    @Override
+    public void addScore(@NonNull UserData data) {
+        if (data == null) throw new IllegalArgumentException();
+        add(Collections.singletonList(data));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param data {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     * @throws ArithmeticException {@inheritDoc} In that case, nothing is written into the log.
+     * @throws java.io.UncheckedIOException If the scores couldn't be written into the log.
+     * @throws IllegalStateException If the log was closed.
+     */
+    @Override
+    public void addScores(@NonNull Collection<UserData> data) {
+        if (data == null) throw new IllegalArgumentException();
+        List<UserData> copy = new ArrayList<>(data);
+        if (copy.contains(null)) throw new IllegalArgumentException();
+        add(copy);
+    }
+
+    /**
+     * Reserves the points of the given scores, writes them into the log and then adds them to the table.
+     * @param data The scores.
+     * @throws ArithmeticException If the points of some user overflow.
+     * @throws java.io.UncheckedIOException If the scores couldn't be written into the log.
+     * @throws IllegalStateException If the log was closed.
+     */
+    private void add(@NonNull List<UserData> data) {
+        Map<Long, Long> sums = reserve(data);
+        try {
+            Lock lock = quiesce.readLock();
+            lock.lock();
+            try {
+                await(log.append(data));
+                delegate.addScores(data);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            release(sums);
+        }
+    }
+
+    /**
+     * Checks that the given scores fit in the table together with the ones already being written, and if they do, counts them as
+     * being written too. The points already in the table are read from a snapshot of the table taken before holding the lock of the
+     * pending scores, and only their points are looked up, not their positions. If some score was released from the pending scores
+     * meanwhile, it might be in neither of them, so the snapshot is taken and read again. Otherwise, a score added to the table after
+     * the snapshot was taken is still counted as pending, so it is never missed.
+     * @param data The scores.
+     * @return The sum of the points of each user in the scores, to be given to {@link #release(Map)} after they are added.
+     * @throws ArithmeticException If the points of some user overflow.
+     */
+    @NonNull
+    private Map<Long, Long> reserve(@NonNull List<UserData> data) {
+        Map<Long, Long> sums = new HashMap<>();
+        for (UserData d : data) {
+            sums.merge(d.getUserId(), d.getPoints(), Math::addExact);
+        }
+        long[] userIds = sums.keySet().stream().mapToLong(Long::longValue).toArray();
+        long[] inTable = new long[userIds.length];
+        while (true) {
+            long seen = releases.get();
+            ApplicationState state = delegate.snapshot();
+            for (int i = 0; i < userIds.length; i++) {
+                inTable[i] = state.findPoints(userIds[i]).orElse(0L);
+            }
+            synchronized (pending) {
+                if (releases.get() != seen) continue;
+                for (int i = 0; i < userIds.length; i++) {
+                    long userId = userIds[i];
+                    Math.addExact(Math.addExact(sums.get(userId), pending.getOrDefault(userId, 0L)), inTable[i]);
+                }
+                sums.forEach((userId, points) -> pending.merge(userId, points, Long::sum));
+                return sums;
+            }
+        }
+    }
+
+    /**
+     * Stops counting the given scores as being written, after they were added to the table or failed.
+     * @param sums The sum of the points of each user in the scores, as given by {@link #reserve(List)}.
+     */
+    private void release(@NonNull Map<Long, Long> sums) {
+        synchronized (pending) {
+            sums.forEach((userId, points) -> pending.computeIfPresent(userId, (k, v) -> v.equals(points) ? null : v - points));
+            releases.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes a snapshot or a delta of the table and then deletes the segments of the log that it covers. A full snapshot is written if
+     * there is no snapshot yet or if enough deltas were written since the last one, and then the older snapshot and deltas are also
+     * deleted. Otherwise, a delta with the changes since the last checkpoint is written. If no score was added since the last
+     * checkpoint, nothing is written. Adding scores is held back only while the log starts a new segment and the current state of the
+     * table is taken. The snapshot or delta is written afterwards by a background thread.
+     * @return A {@link CompletableFuture} which is completed when the snapshot or delta is durable and the covered files are deleted.
+     *     If something fails, it is completed with an {@link UncheckedIOException}.
+     * @throws IllegalStateException If the log was closed.
+     */
+    @NonNull
+    public CompletableFuture<Void> checkpoint() {
+        long firstSegment;
+        ApplicationState state;
+        Lock lock = quiesce.writeLock();
+        lock.lock();
+        try {
+            firstSegment = log.rotate();
+            state = delegate.snapshot();
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new UncheckedIOException(e));
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writeCheckpoint(firstSegment, state);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, snapshotWriter);
+    }
+
+    /**
+     * Writes a snapshot or a delta of the given state and deletes the files that it covers. Only runs in the {@link #snapshotWriter}
+     * thread. The last checkpoint is changed only if everything succeeds, so a failed delta is just included in the next one.
+     * @param firstSegment The number of the first segment of the log that isn't covered by the state.
+     * @param state The state.
+     * @throws IOException If something couldn't be written or deleted.
+     */
+    private void writeCheckpoint(long firstSegment, @NonNull ApplicationState state) throws IOException {
+        if (firstSegment == lastCheckpointSegment) return;
+        Path directory = log.getDirectory();
+        ApplicationState older = lastCheckpointState;
+        if (older == null || deltasSinceCompaction >= compactEvery) {
+            ScoreSnapshot.write(directory, firstSegment, state);
+            log.discardSegmentsBefore(firstSegment);
+            ScoreSnapshot.discardBefore(directory, firstSegment);
+            deltasSinceCompaction = 0;
+        } else {
+            ScoreSnapshot.writeDelta(directory, firstSegment, state, older);
+            log.discardSegmentsBefore(firstSegment);
+            deltasSinceCompaction++;
+        }
+        lastCheckpointState = state;
+        lastCheckpointSegment = firstSegment;
+    }
+
+    /**
+     * Closes the log, after every score already added is written into it, and waits for the snapshot being written, if any. The table
+     * might still be read afterwards. If the calling thread is interrupted while waiting, it stops waiting and its interrupted status
+     * is kept.
+     */
+    @Override
+    public void close() {
+        log.close();
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public ApplicationState snapshot() {
+        return delegate.snapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<PositionedUserData> findUser(long userId) {
+        return delegate.findUser(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param maxUsers {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int maxUsers) {
+        return delegate.getHighScores(maxUsers);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param limit {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public HighscoresTableData getHighScores(int offset, int limit) {
+        return delegate.getHighScores(offset, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param userId {@inheritDoc}
+     * @param above {@inheritDoc}
+     * @param below {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    @CheckReturnValue
+    public Optional<HighscoresTableData> findNeighbours(long userId, int above, int below) {
+        return delegate.findNeighbours(userId, above, below);
+    }
+}
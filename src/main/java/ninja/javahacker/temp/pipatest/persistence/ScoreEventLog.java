@@ -0,0 +1,535 @@
+package ninja.javahacker.temp.pipatest.persistence;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * A durable append-only log of score events, used as a write-ahead log for the highscores table.
+ *
+ * <p>The log is a directory of segment files, named by their sequence numbers, each one holding a sequence of records of 16 bytes:
+ * the user id and the points, both as big-endian {@code long}s. A new segment is started each time that the log is opened and each
+ * time that the current segment grows too much. Since every record has the same size, a record torn by a crash in the middle of a
+ * write is just an incomplete record at the end of a segment, which is ignored when the log is replayed.</p>
+ *
+ * <p>The events are appended by a single committer thread that does group commit: it takes all the events appended so far (waiting
+ * for more of them during a configurable linger interval, up to a configurable batch size), writes them all and then forces them to
+ * the disk with a single {@code fsync}. The {@link CompletableFuture} given when the events were appended is completed only after
+ * that, so whoever waits for it knows that the events are durable.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+@ThreadSafe
+@SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+public final class ScoreEventLog implements AutoCloseable {
+
+    /**
+     * The size of each record, in bytes.
+     */
+    public static final int RECORD_SIZE = 16;
+
+    /**
+     * The default maximum number of events written with a single {@code fsync}.
+     */
+    public static final int DEFAULT_MAX_BATCH = 4096;
+
+    /**
+     * The default size in bytes after which a new segment is started.
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The pattern of the names of the segment files.
+     */
+    private static final Pattern SEGMENT_NAME = Pattern.compile("[0-9]{20}\\.log");
+
+    /**
+     * How long the committer thread waits for events before checking if the log was closed, in milliseconds.
+     */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * The directory where the segments are.
+     */
+    @NonNull
+    private final Path directory;
+
+    /**
+     * The maximum number of events written with a single {@code fsync}.
+     */
+    private final int maxBatch;
+
+    /**
+     * How long the committer thread waits for more events before writing them, in nanoseconds.
+     */
+    private final long lingerNanos;
+
+    /**
+     * The size in bytes after which a new segment is started.
+     */
+    private final long maxSegmentBytes;
+
+    /**
+     * The events appended but not yet written.
+     */
+    @NonNull
+    private final BlockingQueue<Pending> queue;
+
+    /**
+     * The committer thread.
+     */
+    @NonNull
+    private final Thread committer;
+
+    /**
+     * Tells if this log was closed.
+     */
+    @GuardedBy("this")
+    private boolean closed;
+
+    /**
+     * Guards the current segment, which is changed by the committer thread and by the {@link #rotate() rotate} method.
+     */
+    @NonNull
+    private final Object segmentLock;
+
+    /**
+     * The current segment.
+     */
+    @NonNull
+    @GuardedBy("segmentLock")
+    private FileChannel channel;
+
+    /**
+     * The sequence number of the current segment.
+     */
+    @GuardedBy("segmentLock")
+    private long segmentNumber;
+
+    /**
+     * How many bytes were written in the current segment.
+     */
+    @GuardedBy("segmentLock")
+    private long segmentBytes;
+
+    /**
+     * The buffer used to encode the records before writing them. Only used by the committer thread.
+     */
+    @NonNull
+    private ByteBuffer buffer;
+
+    /**
+     * The failure that broke the log, if any. Once it happens, every following append fails.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Some events appended together, waiting to be written.
+     * @author Victor Williams Stafusa da Silva
+     */
+    @Immutable
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Pending {
+
+        /**
+         * The events.
+         */
+        @NonNull
+        private final List<UserData> data;
+
+        /**
+         * Completed when the events are durable.
+         */
+        @NonNull
+        private final CompletableFuture<Void> done;
+
+        /**
+         * Creates an instance from its values.
+         * @param data The events.
+         * @param done Completed when the events are durable.
+         */
+        public Pending(@NonNull List<UserData> data, @NonNull CompletableFuture<Void> done) {
+            this.data = data;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Opens the log in the given directory with the default settings, creating the directory if needed and starting a new segment.
+     * @param directory The directory where the segments are.
+     * @throws IOException If the directory or the new segment couldn't be created.
+     * @throws IllegalArgumentException If {@code directory} is {@code null}.
+     */
+    public ScoreEventLog(@NonNull Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_BATCH, 0L, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log in the given directory, creating the directory if needed and starting a new segment.
+     * @param directory The directory where the segments are.
+     * @param maxBatch The maximum number of events written with a single {@code fsync}.
+     * @param lingerMillis How long the committer thread waits for more events before writing them, in milliseconds. With zero, it
+     *     writes right away whatever was appended while the previous {@code fsync} was running.
+     * @param maxSegmentBytes The size in bytes after which a new segment is started.
+     * @throws IOException If the directory or the new segment couldn't be created.
+     * @throws IllegalArgumentException If {@code directory} is {@code null}, if {@code maxBatch} or {@code maxSegmentBytes} aren't
+     *     positive or if {@code lingerMillis} is negative.
+     */
+    public ScoreEventLog(@NonNull Path directory, int maxBatch, long lingerMillis, long maxSegmentBytes) throws IOException {
+        if (directory == null || maxBatch <= 0 || lingerMillis < 0 || maxSegmentBytes <= 0) throw new IllegalArgumentException();
+        this.directory = directory;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.queue = new LinkedBlockingQueue<>();
+        this.segmentLock = new Object();
+        this.buffer = ByteBuffer.allocateDirect(RECORD_SIZE * Math.min(maxBatch, 65536));
+
+        Files.createDirectories(directory);
+        List<Path> existing = listSegments(directory);
+        this.segmentNumber = existing.isEmpty() ? 0 : segmentNumberOf(existing.get(existing.size() - 1)) + 1;
+        this.channel = openSegment(directory, segmentNumber);
+
+        this.committer = new Thread(this::commitLoop, "score-event-log-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends the given events to the log.
+     * @param data The events.
+     * @return A {@link CompletableFuture} that is completed when the events are durable or completed exceptionally with an
+     *     {@link UncheckedIOException} if they couldn't be written.
+     * @throws IllegalArgumentException If {@code data} is {@code null} or contains {@code null}.
+     * @throws IllegalStateException If the log was closed.
+     */
+    @NonNull
+    public CompletableFuture<Void> append(@NonNull List<UserData> data) {
+        if (data == null || data.contains(null)) throw new IllegalArgumentException();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        IOException broken = failure;
+        if (broken != null) {
+            done.completeExceptionally(new UncheckedIOException(broken));
+            return done;
+        }
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Closed.");
+            queue.add(new Pending(data, done));
+        }
+        return done;
+    }
+
+    /**
+     * The work done by the committer thread. Takes the appended events in batches and commits each batch until the log is closed and
+     * there is nothing else to be written.
+     */
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            Pending first;
+            try {
+                first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                if (isClosed() && queue.isEmpty()) break;
+                continue;
+            }
+            batch.add(first);
+            int events = first.data.size();
+            long deadline = System.nanoTime() + lingerNanos;
+            while (events < maxBatch) {
+                Pending next = queue.poll();
+                if (next == null) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    try {
+                        next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (next == null) break;
+                }
+                batch.add(next);
+                events += next.data.size();
+            }
+            commit(batch, events);
+            batch.clear();
+        }
+        synchronized (segmentLock) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Everything was already forced to the disk, so there is nothing to be lost here.
+            }
+        }
+    }
+
+    /**
+     * Tells if this log was closed.
+     * @return {@code true} if this log was closed, {@code false} otherwise.
+     */
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Writes a batch of events, forces them to the disk and tells their appenders about that. If this fails, the log is broken and
+     * every following append fails.
+     * @param batch The batch of events.
+     * @param events How many events are in the batch.
+     */
+    private void commit(@NonNull List<Pending> batch, int events) {
+        try {
+            if (failure != null) throw failure;
+            if (buffer.capacity() < events * RECORD_SIZE) buffer = ByteBuffer.allocateDirect(events * RECORD_SIZE);
+            buffer.clear();
+            for (Pending p : batch) {
+                for (UserData d : p.data) {
+                    buffer.putLong(d.getUserId()).putLong(d.getPoints());
+                }
+            }
+            buffer.flip();
+            synchronized (segmentLock) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                segmentBytes += (long) events * RECORD_SIZE;
+                if (segmentBytes >= maxSegmentBytes) nextSegment();
+            }
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+            for (Pending p : batch) {
+                p.done.completeExceptionally(new UncheckedIOException(e));
+            }
+            return;
+        }
+        for (Pending p : batch) {
+            p.done.complete(null);
+        }
+    }
+
+    /**
+     * Closes the current segment and starts the next one.
+     * @throws IOException If the current segment couldn't be closed or the next one couldn't be created.
+     */
+    @GuardedBy("segmentLock")
+    private void nextSegment() throws IOException {
+        channel.close();
+        segmentNumber++;
+        segmentBytes = 0;
+        channel = openSegment(directory, segmentNumber);
+    }
+
+    /**
+     * Gives the directory where the segments are.
+     * @return The directory where the segments are.
+     */
+    @NonNull
+    @CheckReturnValue
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Starts a new segment, unless the current one is still empty, and gives its number. Every event whose append was completed
+     * before this method was called is in some earlier segment. This is used for knowing which segments are covered by a snapshot
+     * of the highscores table.
+     * @return The number of the current segment.
+     * @throws IOException If the log is broken or the new segment couldn't be created, which breaks the log.
+     * @throws IllegalStateException If the log was closed.
+     */
+    public long rotate() throws IOException {
+        synchronized (segmentLock) {
+            if (isClosed()) throw new IllegalStateException("Closed.");
+            IOException broken = failure;
+            if (broken != null) throw new IOException(broken);
+            try {
+                if (segmentBytes != 0) nextSegment();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            return segmentNumber;
+        }
+    }
+
+    /**
+     * Deletes the segments with numbers smaller than the given one, which should be covered by a snapshot of the highscores table.
+     * @param number The number of the first segment that should be kept.
+     * @throws IOException If some segment couldn't be deleted.
+     * @throws IllegalArgumentException If {@code number} is greater than the number of the current segment.
+     */
+    public void discardSegmentsBefore(long number) throws IOException {
+        synchronized (segmentLock) {
+            if (number > segmentNumber) throw new IllegalArgumentException();
+            for (Path p : listSegments(directory)) {
+                if (segmentNumberOf(p) < number) Files.delete(p);
+            }
+        }
+        forceDirectory(directory);
+    }
+
+    /**
+     * Stops accepting new events, waits for every event already appended to be written and closes the current segment. If the calling
+     * thread is interrupted while waiting, it stops waiting and its interrupted status is kept, but the committer thread still finishes
+     * its work by itself.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads all the events in the segments of the given directory, in the order that they were written, and gives them to the given
+     * receiver in batches. Incomplete records at the end of segments, which are left behind by crashes in the middle of a write, are
+     * ignored. If the directory doesn't exist, there is nothing to be read.
+     * @param directory The directory where the segments are.
+     * @param batchSize The maximum number of events in each batch.
+     * @param receiver Who receives the batches. Each batch is a new list, which the receiver might keep.
+     * @return How many events were read.
+     * @throws IOException If some segment couldn't be read or contains an invalid record.
+     * @throws IllegalArgumentException If {@code directory} or {@code receiver} are {@code null} or if {@code batchSize} isn't positive.
+     */
+    public static long replay(@NonNull Path directory, int batchSize, @NonNull Consumer<List<UserData>> receiver) throws IOException {
+        return replay(directory, 0L, batchSize, receiver);
+    }
+
+    /**
+     * Reads all the events in the segments of the given directory starting from the given one, in the order that they were written,
+     * and gives them to the given receiver in batches. The earlier segments, which should be covered by a snapshot, are skipped.
+     * Incomplete records at the end of segments, which are left behind by crashes in the middle of a write, are ignored. If the
+     * directory doesn't exist, there is nothing to be read.
+     * @param directory The directory where the segments are.
+     * @param firstSegment The number of the first segment to be read.
+     * @param batchSize The maximum number of events in each batch.
+     * @param receiver Who receives the batches. Each batch is a new list, which the receiver might keep.
+     * @return How many events were read.
+     * @throws IOException If some segment couldn't be read or contains an invalid record.
+     * @throws IllegalArgumentException If {@code directory} or {@code receiver} are {@code null} or if {@code batchSize} isn't positive.
+     */
+    public static long replay(
+            @NonNull Path directory,
+            long firstSegment,
+            int batchSize,
+            @NonNull Consumer<List<UserData>> receiver)
+            throws IOException
+    {
+        if (directory == null || batchSize <= 0 || receiver == null) throw new IllegalArgumentException();
+        if (!Files.isDirectory(directory)) return 0;
+        long count = 0;
+        List<UserData> batch = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        for (Path segment : listSegments(directory)) {
+            if (segmentNumberOf(segment) < firstSegment) continue;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                in.clear();
+                while (ch.read(in) != -1) {
+                    in.flip();
+                    while (in.remaining() >= RECORD_SIZE) {
+                        long userId = in.getLong();
+                        long points = in.getLong();
+                        if (userId < 0 || points < 0) throw new IOException("Invalid record in " + segment + ".");
+                        batch.add(new UserData(userId, points));
+                        count++;
+                        if (batch.size() == batchSize) {
+                            receiver.accept(batch);
+                            batch = new ArrayList<>();
+                        }
+                    }
+                    in.compact();
+                }
+            }
+        }
+        if (!batch.isEmpty()) receiver.accept(batch);
+        return count;
+    }
+
+    /**
+     * Lists the segment files in the given directory, ordered by their sequence numbers.
+     * @param directory The directory where the segments are.
+     * @return The segment files, ordered by their sequence numbers.
+     * @throws IOException If the directory couldn't be listed.
+     */
+    @NonNull
+    @CheckReturnValue
+    static List<Path> listSegments(@NonNull Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return Collections.emptyList();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Gives the sequence number of a segment file.
+     * @param segment The segment file.
+     * @return The sequence number of the segment file.
+     */
+    @CheckReturnValue
+    static long segmentNumberOf(@NonNull Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * Creates a new segment file.
+     * @param directory The directory where the segments are.
+     * @param number The sequence number of the segment.
+     * @return A channel for writing in the new segment.
+     * @throws IOException If the segment couldn't be created, including if it already exists.
+     */
+    @NonNull
+    private static FileChannel openSegment(@NonNull Path directory, long number) throws IOException {
+        Path segment = directory.resolve(String.format("%020d.log", number));
+        FileChannel created = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        forceDirectory(directory);
+        return created;
+    }
+
+    /**
+     * Forces the entries of the given directory to the disk, so that files created in it survive a crash. Some platforms can't open
+     * directories, in which case nothing is done.
+     * @param directory The directory.
+     */
+    static void forceDirectory(@NonNull Path directory) {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not supported in this platform.
+        }
+    }
+}
@@ -0,0 +1,712 @@
+package ninja.javahacker.temp.pipatest.persistence;
+
+import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.data.UserConsumer;
+
+/**
+ * Reads and writes compact binary snapshots of an {@link ApplicationState}, so that restarting the server doesn't need to replay the
+ * whole {@link ScoreEventLog}.
+ *
+ * <p>A snapshot file has a header with a magic number, the version of the format and the number of users, all of them as big-endian
+ * {@code int}s. Then, there is a record for each user, in the ascending order of their ids, with the difference between the user's
+ * id and the id of the previous user (or zero, for the first one) and the user's points, both encoded as unsigned variable-length
+ * integers (7 bits per byte, least significant first). Since most differences between ids and most points are small, most records
+ * take just a few bytes. Finally, there is a CRC-32 of everything before it, also as a big-endian {@code int}.</p>
+ *
+ * <p>Each snapshot is named by the number of the first segment of the {@link ScoreEventLog} that it doesn't cover, so, when
+ * restarting, the snapshot is loaded and only the segments from that one onwards need to be replayed. Snapshots are written into a
+ * temporary file which is renamed only after it is complete and durable, so a crash in the middle of a write never leaves behind a
+ * partial snapshot.</p>
+ *
+ * <p>Snapshots are read through memory-mapped windows of the file, so loading a large snapshot doesn't copy it into the heap. The
+ * CRC-32 is checked before anything is decoded and the records are decoded straight from the mapped file into the primitive arrays
+ * given to the {@link ApplicationState#loadUsers(long[], long[], int) loadUsers} method, which builds the trees from them. No object
+ * is created for each user besides the nodes of the trees themselves.</p>
+ *
+ * <p>Besides the full snapshots, there are also incremental ones, named deltas, which have just the users that were added or whose
+ * points changed since the previous snapshot or delta. They have the same format, but a different magic number and their names end
+ * with {@code .delta} instead of {@code .snap}. Since a new state shares with the older ones every subtree of its trees that wasn't
+ * touched by the changes between them, the changed users are found out by comparing the trees while skipping the shared
+ * subtrees (see {@link ApplicationState#forEachUserChangedSince(ApplicationState, UserConsumer) forEachUserChangedSince}), so
+ * writing a delta takes time and space proportional to the number of changes instead of the number of users. A snapshot and the
+ * deltas after it are loaded together, the later deltas overriding the earlier ones.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class ScoreSnapshot {
+
+    /**
+     * The magic number at the beginning of each snapshot file, which is "PIPS" in ASCII.
+     */
+    public static final int MAGIC = 0x50495053;
+
+    /**
+     * The magic number at the beginning of each delta file, which is "PIPD" in ASCII.
+     */
+    public static final int DELTA_MAGIC = 0x50495044;
+
+    /**
+     * The version of the format of the snapshot files.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * The size of the header, in bytes.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The size of the CRC-32 at the end of the file, in bytes.
+     */
+    private static final int TRAILER_SIZE = 4;
+
+    /**
+     * The size of the buffer used for writing, in bytes.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The maximum size of each window of a snapshot file mapped into memory, in bytes. A {@link MappedByteBuffer} can't be larger than
+     * 2 GiB, so larger files are mapped in several windows.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /**
+     * The pattern of the names of the snapshot files.
+     */
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("[0-9]{20}\\.snap");
+
+    /**
+     * The pattern of the names of the delta files.
+     */
+    private static final Pattern DELTA_NAME = Pattern.compile("[0-9]{20}\\.delta");
+
+    /**
+     * This class isn't instantiable.
+     */
+    private ScoreSnapshot() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Writes a snapshot of the given state into the given directory. This only reads the state, which is immutable, so it might run
+     * in any thread while the table keeps being changed.
+     * @param directory The directory where the snapshot is written.
+     * @param firstSegment The number of the first segment of the {@link ScoreEventLog} that isn't covered by the state.
+     * @param state The state to be written.
+     * @return The written snapshot file.
+     * @throws IOException If the snapshot couldn't be written.
+     * @throws IllegalArgumentException If {@code directory} or {@code state} are {@code null} or if {@code firstSegment} is negative.
+     */
+    @NonNull
+    public static Path write(@NonNull Path directory, long firstSegment, @NonNull ApplicationState state) throws IOException {
+        if (directory == null || firstSegment < 0 || state == null) throw new IllegalArgumentException();
+        return writeFile(directory, String.format("%020d.snap", firstSegment), MAGIC, state.getUserCount(), state::forEachUser);
+    }
+
+    /**
+     * Writes a delta with the users that were added or whose points changed since an older state into the given directory. Loading
+     * the older state and then this delta gives the given state back. This only reads the states, which are immutable, so it might run
+     * in any thread while the table keeps being changed.
+     * @param directory The directory where the delta is written.
+     * @param firstSegment The number of the first segment of the {@link ScoreEventLog} that isn't covered by the state.
+     * @param state The state to be written.
+     * @param older The state of the previous snapshot or delta.
+     * @return The written delta file.
+     * @throws IOException If the delta couldn't be written.
+     * @throws IllegalArgumentException If any of {@code directory}, {@code state} or {@code older} is {@code null} or if
+     *     {@code firstSegment} is negative.
+     */
+    @NonNull
+    public static Path writeDelta(
+            @NonNull Path directory,
+            long firstSegment,
+            @NonNull ApplicationState state,
+            @NonNull ApplicationState older)
+            throws IOException
+    {
+        if (directory == null || firstSegment < 0 || state == null || older == null) throw new IllegalArgumentException();
+
+        // The header has the number of users, so the changes are collected before anything is written.
+        Users changed = new Users(1024);
+        state.forEachUserChangedSince(older, changed);
+        return writeFile(directory, String.format("%020d.delta", firstSegment), DELTA_MAGIC, changed.count, changed::forEach);
+    }
+
+    /**
+     * Writes a snapshot or delta file. The file is written with a temporary name and renamed after it is complete and durable.
+     * @param directory The directory where the file is written.
+     * @param name The name of the file.
+     * @param magic The magic number at the beginning of the file.
+     * @param count How many users are written.
+     * @param users Feeds the given action with the users to be written, in the ascending order of their ids.
+     * @return The written file.
+     * @throws IOException If the file couldn't be written.
+     */
+    @NonNull
+    private static Path writeFile(
+            @NonNull Path directory,
+            @NonNull String name,
+            int magic,
+            int count,
+            @NonNull Consumer<UserConsumer> users)
+            throws IOException
+    {
+        Path temporary = directory.resolve(name + ".tmp");
+        Path written = directory.resolve(name);
+        StandardOpenOption[] options = {StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE};
+        try (FileChannel channel = FileChannel.open(temporary, options)) {
+            Output out = new Output(channel);
+            out.putInt(magic);
+            out.putInt(FORMAT_VERSION);
+            out.putInt(count);
+            long[] previous = {0L};
+            try {
+                users.accept((userId, points) -> {
+                    try {
+                        out.putVarLong(userId - previous[0]);
+                        out.putVarLong(points);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    previous[0] = userId;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.finish();
+        }
+        Files.move(temporary, written, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        ScoreEventLog.forceDirectory(directory);
+        return written;
+    }
+
+    /**
+     * Reads a snapshot file into a new state.
+     * @param snapshot The snapshot file.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used. The users are loaded into it with
+     *     the {@link ApplicationState#loadUsers(long[], long[], int) loadUsers} method.
+     * @return A new state with all the users in the snapshot.
+     * @throws IOException If the snapshot couldn't be read or is corrupted.
+     * @throws IllegalArgumentException If any parameter is {@code null} or if {@code empty} isn't empty.
+     */
+    @NonNull
+    public static ApplicationState read(@NonNull Path snapshot, @NonNull ApplicationState empty) throws IOException {
+        return read(snapshot, Collections.emptyList(), empty);
+    }
+
+    /**
+     * Reads a snapshot file and the deltas written after it into a new state. The users in the deltas override the ones in the
+     * snapshot and in the deltas before them. All the files are merged in a single pass into a single pair of arrays, which is then
+     * loaded at once.
+     * @param snapshot The snapshot file.
+     * @param deltas The delta files written after the snapshot, from the oldest to the most recent.
+     * @param empty An empty state, which determines which {@link ApplicationState} engine is used. The users are loaded into it with
+     *     the {@link ApplicationState#loadUsers(long[], long[], int) loadUsers} method.
+     * @return A new state with all the users in the snapshot and in the deltas.
+     * @throws IOException If some file couldn't be read or is corrupted.
+     * @throws IllegalArgumentException If any parameter is {@code null}, if {@code deltas} contains {@code null} or if {@code empty}
+     *     isn't empty.
+     */
+    @NonNull
+    public static ApplicationState read(@NonNull Path snapshot, @NonNull List<Path> deltas, @NonNull ApplicationState empty)
+            throws IOException
+    {
+        if (snapshot == null || deltas == null || empty == null || empty.getUserCount() != 0) throw new IllegalArgumentException();
+        for (Path p : deltas) {
+            if (p == null) throw new IllegalArgumentException();
+        }
+        Users[] layers = new Users[deltas.size() + 1];
+        layers[0] = readFile(snapshot, MAGIC);
+        for (int i = 0; i < deltas.size(); i++) {
+            layers[i + 1] = readFile(deltas.get(i), DELTA_MAGIC);
+        }
+        Users users = Users.merge(layers);
+        return empty.loadUsers(users.ids, users.points, users.count);
+    }
+
+    /**
+     * Reads the users in a snapshot or delta file.
+     * @param file The file.
+     * @param magic The magic number expected at the beginning of the file.
+     * @return The users in the file, in the ascending order of their ids.
+     * @throws IOException If the file couldn't be read or is corrupted.
+     */
+    @NonNull
+    private static Users readFile(@NonNull Path file, int magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long bodySize = channel.size() - TRAILER_SIZE;
+            if (bodySize < HEADER_SIZE) throw corrupted(file);
+            if (checksumOf(channel, bodySize) != readTrailer(channel, bodySize)) throw corrupted(file);
+            Input in = new Input(channel, bodySize);
+            if (in.getInt() != magic || in.getInt() != FORMAT_VERSION) throw corrupted(file);
+
+            // Each record has at least two bytes, so a larger count can't be right and shouldn't be used to allocate the arrays.
+            int count = in.getInt();
+            if (count < 0 || count > (bodySize - HEADER_SIZE) / 2) throw corrupted(file);
+            Users users = new Users(count);
+            long userId = 0L;
+            for (int i = 0; i < count; i++) {
+                long delta = in.getVarLong();
+                userId += delta;
+                long points = in.getVarLong();
+                if ((delta == 0 && i != 0) || delta < 0 || userId < 0 || points < 0) throw corrupted(file);
+                users.accept(userId, points);
+            }
+            if (!in.isExhausted()) throw corrupted(file);
+            return users;
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of the beginning of a snapshot file, mapping it into memory window by window.
+     * @param channel The snapshot file.
+     * @param bodySize The size of everything before the CRC-32 at the end of the file, in bytes.
+     * @return The CRC-32 of everything before the CRC-32 at the end of the file.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static int checksumOf(@NonNull FileChannel channel, long bodySize) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long start = 0; start < bodySize; start += WINDOW_SIZE) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, bodySize - start)));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the CRC-32 at the end of a snapshot file.
+     * @param channel The snapshot file.
+     * @param bodySize The size of everything before the CRC-32, in bytes.
+     * @return The CRC-32 at the end of the snapshot file.
+     * @throws IOException If the CRC-32 couldn't be read.
+     */
+    private static int readTrailer(@NonNull FileChannel channel, long bodySize) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        while (trailer.hasRemaining()) {
+            if (channel.read(trailer, bodySize + trailer.position()) == -1) throw new IOException("Truncated snapshot.");
+        }
+        trailer.flip();
+        return trailer.getInt();
+    }
+
+    /**
+     * Creates the exception for a corrupted snapshot file.
+     * @param snapshot The snapshot file.
+     * @return The exception for a corrupted snapshot file.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static IOException corrupted(@NonNull Path snapshot) {
+        return new IOException("Corrupted snapshot " + snapshot + ".");
+    }
+
+    /**
+     * Finds the most recent snapshot file in the given directory, if there is one.
+     * @param directory The directory.
+     * @return An {@link Optional} with the most recent snapshot file or an empty one if there is none.
+     * @throws IOException If the directory couldn't be listed.
+     * @throws IllegalArgumentException If {@code directory} is {@code null}.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static Optional<Path> latest(@NonNull Path directory) throws IOException {
+        if (directory == null) throw new IllegalArgumentException();
+        List<Path> all = listSnapshots(directory);
+        return all.isEmpty() ? Optional.empty() : Optional.of(all.get(all.size() - 1));
+    }
+
+    /**
+     * Gives the number of the first segment of the {@link ScoreEventLog} that isn't covered by the given snapshot file.
+     * @param snapshot The snapshot file.
+     * @return The number of the first segment that isn't covered by the given snapshot file.
+     * @throws IllegalArgumentException If {@code snapshot} is {@code null}.
+     */
+    @CheckReturnValue
+    public static long firstSegmentOf(@NonNull Path snapshot) {
+        if (snapshot == null) throw new IllegalArgumentException();
+        return ScoreEventLog.segmentNumberOf(snapshot);
+    }
+
+    /**
+     * Finds the delta files in the given directory written after the snapshot that doesn't cover the given segment.
+     * @param directory The directory.
+     * @param firstSegment The number of the first segment that isn't covered by the snapshot.
+     * @return The delta files written after the snapshot, from the oldest to the most recent.
+     * @throws IOException If the directory couldn't be listed.
+     * @throws IllegalArgumentException If {@code directory} is {@code null}.
+     */
+    @NonNull
+    @CheckReturnValue
+    public static List<Path> deltasAfter(@NonNull Path directory, long firstSegment) throws IOException {
+        if (directory == null) throw new IllegalArgumentException();
+        List<Path> found = new ArrayList<>();
+        for (Path p : list(directory, DELTA_NAME)) {
+            if (firstSegmentOf(p) > firstSegment) found.add(p);
+        }
+        return found;
+    }
+
+    /**
+     * Deletes the snapshot and delta files in the given directory that are older than the snapshot that doesn't cover the given
+     * segment.
+     * @param directory The directory.
+     * @param firstSegment The number of the first segment that isn't covered by the snapshot that should be kept.
+     * @throws IOException If some file couldn't be deleted.
+     * @throws IllegalArgumentException If {@code directory} is {@code null}.
+     */
+    public static void discardBefore(@NonNull Path directory, long firstSegment) throws IOException {
+        if (directory == null) throw new IllegalArgumentException();
+        for (Path p : listSnapshots(directory)) {
+            if (firstSegmentOf(p) < firstSegment) Files.delete(p);
+        }
+        for (Path p : list(directory, DELTA_NAME)) {
+            if (firstSegmentOf(p) < firstSegment) Files.delete(p);
+        }
+        ScoreEventLog.forceDirectory(directory);
+    }
+
+    /**
+     * Lists the snapshot files in the given directory, from the oldest to the most recent.
+     * @param directory The directory.
+     * @return The snapshot files in the given directory, from the oldest to the most recent.
+     * @throws IOException If the directory couldn't be listed.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static List<Path> listSnapshots(@NonNull Path directory) throws IOException {
+        return list(directory, SNAPSHOT_NAME);
+    }
+
+    /**
+     * Lists the files in the given directory whose names match the given pattern, ordered by name.
+     * @param directory The directory.
+     * @param names The pattern of the names of the files.
+     * @return The files in the given directory whose names match the pattern, ordered by name.
+     * @throws IOException If the directory couldn't be listed.
+     */
+    @NonNull
+    @CheckReturnValue
+    private static List<Path> list(@NonNull Path directory, @NonNull Pattern names) throws IOException {
+        if (!Files.isDirectory(directory)) return Collections.emptyList();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(p -> names.matcher(p.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Users and their points, in the ascending order of their ids, kept in primitive arrays that grow as needed.
+     */
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Users implements UserConsumer {
+
+        /**
+         * The ids of the users. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] ids;
+
+        /**
+         * The points of the users. Only the first {@link #count} elements are used.
+         */
+        @NonNull
+        private long[] points;
+
+        /**
+         * How many users there are.
+         */
+        private int count;
+
+        /**
+         * Creates an instance without any user.
+         * @param capacity How many users might be added before the arrays need to grow.
+         */
+        public Users(int capacity) {
+            this.ids = new long[Math.max(1, capacity)];
+            this.points = new long[ids.length];
+        }
+
+        /**
+         * Adds a user after the ones already added.
+         * @param userId The id of the user, which must be larger than the ids of the users already added.
+         * @param userPoints The points of the user.
+         */
+        @Override
+        public void accept(long userId, long userPoints) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                points = Arrays.copyOf(points, count * 2);
+            }
+            ids[count] = userId;
+            points[count] = userPoints;
+            count++;
+        }
+
+        /**
+         * Feeds the given action with the users, in the ascending order of their ids.
+         * @param action The action that receives each user.
+         */
+        public void forEach(@NonNull UserConsumer action) {
+            for (int i = 0; i < count; i++) {
+                action.accept(ids[i], points[i]);
+            }
+        }
+
+        /**
+         * Merges the users of a snapshot and of the deltas after it in a single k-way pass. Where several of them have the same user,
+         * the points of the most recent one are kept.
+         * @param layers The users of the snapshot and of each delta, from the oldest to the most recent.
+         * @return The merged users.
+         */
+        @NonNull
+        @CheckReturnValue
+        public static Users merge(@NonNull Users... layers) {
+            if (layers.length == 1) return layers[0];
+            long total = 0;
+            for (Users u : layers) {
+                total += u.count;
+            }
+            Users merged = new Users((int) Math.min(total, Integer.MAX_VALUE - 8));
+            int[] heads = new int[layers.length];
+            while (true) {
+
+                // Find out the smallest id at the heads of the layers. With ties, the most recent layer wins.
+                int best = -1;
+                for (int i = 0; i < layers.length; i++) {
+                    if (heads[i] == layers[i].count) continue;
+                    if (best == -1 || layers[i].ids[heads[i]] <= layers[best].ids[heads[best]]) best = i;
+                }
+                if (best == -1) return merged;
+                long userId = layers[best].ids[heads[best]];
+                merged.accept(userId, layers[best].points[heads[best]]);
+
+                // Skip that user in every layer that has it.
+                for (int i = 0; i < layers.length; i++) {
+                    if (heads[i] < layers[i].count && layers[i].ids[heads[i]] == userId) heads[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the data of a snapshot into a buffer, writing it into the file each time that the buffer fills up and computing the
+     * CRC-32 of everything that was written.
+     */
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Output {
+
+        /**
+         * The maximum size of an encoded {@code long}, in bytes.
+         */
+        private static final int MAX_VAR_LONG_SIZE = 10;
+
+        /**
+         * Where the data is written into.
+         */
+        @NonNull
+        private final FileChannel channel;
+
+        /**
+         * Holds the encoded data not yet written into the file.
+         */
+        @NonNull
+        private final ByteBuffer buffer;
+
+        /**
+         * The CRC-32 of everything written so far.
+         */
+        @NonNull
+        private final CRC32 crc;
+
+        /**
+         * Creates an instance that writes into the given file.
+         * @param channel Where the data is written into.
+         */
+        public Output(@NonNull FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.crc = new CRC32();
+        }
+
+        /**
+         * Encodes an {@code int} in big-endian order.
+         * @param value The value to be encoded.
+         * @throws IOException If the buffer couldn't be written into the file.
+         */
+        public void putInt(int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) drain();
+            buffer.putInt(value);
+        }
+
+        /**
+         * Encodes a non-negative {@code long} as a variable-length integer, with 7 bits per byte, least significant first. The
+         * highest bit of each byte tells if there are more bytes.
+         * @param value The value to be encoded.
+         * @throws IOException If the buffer couldn't be written into the file.
+         */
+        public void putVarLong(long value) throws IOException {
+            if (buffer.remaining() < MAX_VAR_LONG_SIZE) drain();
+            long v = value;
+            while ((v & ~0x7FL) != 0) {
+                buffer.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buffer.put((byte) v);
+        }
+
+        /**
+         * Writes the buffer into the file.
+         * @throws IOException If the buffer couldn't be written into the file.
+         */
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes the rest of the buffer and the CRC-32 into the file and forces everything to the disk.
+         * @throws IOException If the data couldn't be written into the file.
+         */
+        public void finish() throws IOException {
+            drain();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Decodes the data of a snapshot straight from the file mapped into memory, one window after the other. The CRC-32 at the end of
+     * the file is never read by this class.
+     */
+    @SuppressFBWarnings("IMC_IMMATURE_CLASS_NO_TOSTRING")
+    private static final class Input {
+
+        /**
+         * Where the data is read from.
+         */
+        @NonNull
+        private final FileChannel channel;
+
+        /**
+         * How many bytes should be read from the file.
+         */
+        private final long size;
+
+        /**
+         * The position in the file where the current window starts.
+         */
+        private long windowStart;
+
+        /**
+         * The current window of the file mapped into memory.
+         */
+        @NonNull
+        private MappedByteBuffer window;
+
+        /**
+         * Creates an instance that reads from the given file.
+         * @param channel Where the data is read from.
+         * @param size How many bytes should be read from the file. Must be positive.
+         * @throws IOException If the file couldn't be mapped into memory.
+         */
+        public Input(@NonNull FileChannel channel, long size) throws IOException {
+            this.channel = channel;
+            this.size = size;
+            this.windowStart = 0L;
+            this.window = map();
+        }
+
+        /**
+         * Maps the window of the file that starts at the {@link #windowStart} position into memory.
+         * @return The mapped window.
+         * @throws IOException If the file couldn't be mapped into memory.
+         */
+        @NonNull
+        private MappedByteBuffer map() throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+        }
+
+        /**
+         * Decodes a single byte, moving to the next window if the current one is over.
+         * @return The decoded byte.
+         * @throws IOException If the file couldn't be mapped into memory or if there is nothing more to be read.
+         */
+        private byte get() throws IOException {
+            if (!window.hasRemaining()) {
+                windowStart += window.capacity();
+                if (windowStart >= size) throw new IOException("Truncated snapshot.");
+                window = map();
+            }
+            return window.get();
+        }
+
+        /**
+         * Decodes an {@code int} in big-endian order.
+         * @return The decoded value.
+         * @throws IOException If the file couldn't be mapped into memory or if there is nothing more to be read.
+         */
+        public int getInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < Integer.BYTES; i++) {
+                value = (value << 8) | (get() & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Decodes a variable-length integer, as encoded by the {@link Output#putVarLong(long)} method.
+         * @return The decoded value, which is negative if the encoded value is too long.
+         * @throws IOException If the file couldn't be mapped into memory or if there is nothing more to be read.
+         */
+        public long getVarLong() throws IOException {
+            long value = 0L;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                byte b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            return -1L;
+        }
+
+        /**
+         * Tells if everything was decoded.
+         * @return {@code true} if everything was decoded, {@code false} otherwise.
+         */
+        @CheckReturnValue
+        public boolean isExhausted() {
+            return windowStart + window.position() == size;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Contains the classes that keep the highscores table durable across restarts of the server.
+ * @author Victor Williams Stafusa da Silva
+ */
+package ninja.javahacker.temp.pipatest.persistence;
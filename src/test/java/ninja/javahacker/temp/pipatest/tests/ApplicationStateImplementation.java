@@ -0,0 +1,24 @@
+package ninja.javahacker.temp.pipatest.tests;
+
+import java.util.function.Supplier;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+
+/**
+ * Enum to hold the {@link ApplicationState} implementations.
+ * @author Victor Williams Stafusa da Silva
+ */
+public enum ApplicationStateImplementation {
+    NESTED_TREES(ApplicationState::getNestedTreesImplementation),
+    COMPOSITE_KEY(ApplicationState::getCompositeKeyImplementation),
+    SHARDED(() -> ApplicationState.getShardedImplementation(ApplicationState.getCompositeKeyImplementation(), 3));
+
+    private final Supplier<ApplicationState> factory;
+
+    private ApplicationStateImplementation(Supplier<ApplicationState> factory) {
+        this.factory = factory;
+    }
+
+    public ApplicationState createState() {
+        return factory.get();
+    }
+}
@@ -4,12 +4,15 @@ import java.util.function.Supplier;
 import ninja.javahacker.temp.pipatest.HighscoresTable;
 
 /**
- * Enum to hold the two {@link HighscoresTable} implementations.
+ * Enum to hold the {@link HighscoresTable} implementations.
  * @author Victor Williams Stafusa da Silva
  */
 public enum HighscoresTableImplementation {
     CAS(HighscoresTable::getCasImplementation),
-    SYNC(HighscoresTable::getSynchronizedImplementation);
+    SYNC(HighscoresTable::getSynchronizedImplementation),
+    SINGLE_WRITER(HighscoresTable::getSingleWriterImplementation),
+    FLAT_COMBINING(HighscoresTable::getFlatCombiningImplementation),
+    SHARDED(HighscoresTable::getShardedImplementation);
 
     private final Supplier<HighscoresTable> factory;
 
@@ -0,0 +1,142 @@
+package ninja.javahacker.temp.pipatest.tests.load;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies, in nanoseconds, with log-linear buckets: values below 64 have their own buckets and each power of two
+ * above that is split into 32 buckets, so any value is kept with an error of at most about 3%, using a small fixed array regardless
+ * of how many values are recorded.
+ *
+ * <p>This class is not thread-safe. Each thread records into its own histogram and they are merged afterwards.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class LatencyHistogram {
+
+    /**
+     * How many bits of each value are kept.
+     */
+    private static final int SUB_BITS = 6;
+
+    /**
+     * The number of buckets for each power of two above {@code 2^SUB_BITS}.
+     */
+    private static final int HALF = 1 << (SUB_BITS - 1);
+
+    /**
+     * The number of buckets.
+     */
+    private static final int BUCKETS = (1 << SUB_BITS) + (Long.SIZE - SUB_BITS - 1) * HALF;
+
+    /**
+     * How many values fell into each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * How many values were recorded.
+     */
+    private long total;
+
+    /**
+     * The largest recorded value.
+     */
+    private long max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+    /**
+     * Gives the bucket of a value.
+     * @param value The value, which must not be negative.
+     * @return The bucket of the value.
+     */
+    private static int bucketOf(long value) {
+        if (value < 1L << SUB_BITS) return (int) value;
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (1 << SUB_BITS) + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * Gives the value in the middle of a bucket.
+     * @param bucket The bucket.
+     * @return The value in the middle of the bucket.
+     */
+    private static long valueOf(int bucket) {
+        if (bucket < 1 << SUB_BITS) return bucket;
+        int shift = (bucket - (1 << SUB_BITS)) / HALF + 1;
+        long top = (bucket - (1 << SUB_BITS)) % HALF + HALF;
+        return (top << shift) + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * @param nanos The value, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        counts[bucketOf(value)]++;
+        total++;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     * @param other The other histogram.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forgets all the recorded values.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0L);
+        total = 0L;
+        max = 0L;
+    }
+
+    /**
+     * Gives how many values were recorded.
+     * @return How many values were recorded.
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Gives the largest recorded value.
+     * @return The largest recorded value, or zero if nothing was recorded.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gives the value below which the given fraction of the recorded values are, approximately.
+     * @param quantile The fraction, from 0 to 1. For instance, 0.99 gives the 99th percentile.
+     * @return The value below which the given fraction of the recorded values are, or zero if nothing was recorded.
+     * @throws IllegalArgumentException If {@code quantile} isn't between 0 and 1.
+     */
+    public long getQuantile(double quantile) {
+        if (!(quantile >= 0.0 && quantile <= 1.0)) throw new IllegalArgumentException();
+        if (total == 0) return 0L;
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        if (rank == total) return max;
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(valueOf(i), max);
+        }
+        return max;
+    }
+}
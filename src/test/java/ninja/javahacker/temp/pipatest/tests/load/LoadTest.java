@@ -0,0 +1,330 @@
+package ninja.javahacker.temp.pipatest.tests.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ninja.javahacker.temp.pipatest.GameServer;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.tests.HighscoresTableImplementation;
+import ninja.javahacker.temp.pipatest.tests.workload.Operation;
+import ninja.javahacker.temp.pipatest.tests.workload.ScoreDistribution;
+import ninja.javahacker.temp.pipatest.tests.workload.UserSelector;
+import ninja.javahacker.temp.pipatest.tests.workload.Workload;
+
+/**
+ * Load test of the whole HTTP stack: starts a {@link GameServer} on an ephemeral port of localhost and sends it requests from many
+ * concurrent clients for a fixed duration, then reports the throughput and the latency percentiles of each route.
+ *
+ * <p>The load is open-loop: each client sends its requests on a fixed schedule, regardless of how long the previous responses took,
+ * and the latency of each request is measured from the moment that it should have been sent. So, if the server stalls and the
+ * clients fall behind their schedules, the time spent waiting is included in the latencies instead of being silently hidden by the
+ * clients sending less requests. Before measuring, the same load is sent for a while for warming up the JVM and its results are
+ * discarded.</p>
+ *
+ * <p>The requests follow a {@link Workload}, so their mix and users are reproducible. It is configured by the following system
+ * properties, which might be given to the {@code gradle loadTest} task as project properties (e.g. {@code -PloadTest.rate=5000}):</p>
+ * <ul>
+ *     <li>{@code loadTest.durationSeconds} - How long the load is measured, in seconds. Defaults to 30.</li>
+ *     <li>{@code loadTest.warmupSeconds} - How long the load is sent before measuring, in seconds. Defaults to 10.</li>
+ *     <li>{@code loadTest.rate} - How many requests are sent per second, by all the clients together. Defaults to 2000.</li>
+ *     <li>{@code loadTest.clients} - How many concurrent clients there are. Defaults to 64.</li>
+ *     <li>{@code loadTest.users} - How many users there are. Each one of them gets a score before starting. Defaults to 100000.</li>
+ *     <li>{@code loadTest.skew} - The exponent of the Zipfian distribution of the users, or 0 for choosing them uniformly. Defaults
+ *         to 0.99.</li>
+ *     <li>{@code loadTest.mix} - The weights of {@code POST /score}, {@code GET /score/:userId/position} and
+ *         {@code GET /highscorelist}, separated by commas. Defaults to {@code 20,4,1}.</li>
+ *     <li>{@code loadTest.table} - Which {@link HighscoresTableImplementation} is used. Defaults to {@code SYNC}.</li>
+ *     <li>{@code loadTest.seed} - The seed of the workload. Defaults to 42.</li>
+ * </ul>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class LoadTest {
+
+    /**
+     * The routes that receive requests.
+     */
+    private static enum Route {
+
+        /**
+         * The {@code POST /score} route.
+         */
+        ADD_SCORE("POST /score"),
+
+        /**
+         * The {@code GET /score/:userId/position} route.
+         */
+        FIND_USER("GET /score/:userId/position"),
+
+        /**
+         * The {@code GET /highscorelist} route.
+         */
+        HIGH_SCORES("GET /highscorelist");
+
+        /**
+         * The name of the route, as printed in the report.
+         */
+        private final String label;
+
+        /**
+         * Creates an instance.
+         * @param label The name of the route, as printed in the report.
+         */
+        private Route(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * This class isn't instantiable.
+     */
+    private LoadTest() {
+        throw new UnsupportedOperationException("No instances.");
+    }
+
+    /**
+     * Runs the load test and prints its report.
+     * @param args The command line arguments, which are ignored. The load test is configured by system properties.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int duration = Integer.getInteger("loadTest.durationSeconds", 30);
+        int warmup = Integer.getInteger("loadTest.warmupSeconds", 10);
+        int rate = Integer.getInteger("loadTest.rate", 2000);
+        int clients = Integer.getInteger("loadTest.clients", 64);
+        int users = Integer.getInteger("loadTest.users", 100_000);
+        double skew = Double.parseDouble(System.getProperty("loadTest.skew", "0.99"));
+        String[] mix = System.getProperty("loadTest.mix", "20,4,1").split(",");
+        String implementation = System.getProperty("loadTest.table", "SYNC");
+        long seed = Long.getLong("loadTest.seed", 42L);
+        if (duration <= 0 || warmup < 0 || rate <= 0 || clients <= 0 || users <= 0 || mix.length != 3) {
+            throw new IllegalArgumentException();
+        }
+
+        // Each client keeps its own connection alive.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+
+        HighscoresTable table = HighscoresTableImplementation.valueOf(implementation).createTable();
+        List<UserData> all = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            all.add(new UserData(i, i % 1000));
+        }
+        table.addScores(all);
+        Workload workload = new Workload(
+                seed,
+                skew == 0 ? UserSelector.uniform(users) : UserSelector.zipfian(users, skew),
+                ScoreDistribution.geometric(5.0),
+                Integer.parseInt(mix[0].trim()),
+                Integer.parseInt(mix[1].trim()),
+                Integer.parseInt(mix[2].trim()),
+                100);
+
+        GameServer server = new GameServer(0, table);
+        try {
+            String base = "http://localhost:" + server.getPort();
+            System.out.println("Warming up for " + warmup + " seconds against " + base + "...");
+            run(base, workload, clients, rate, warmup, 0);
+            System.out.println("Measuring for " + duration + " seconds with " + clients + " clients at " + rate + " requests/s...");
+            Result result = run(base, workload, clients, rate, duration, clients);
+            result.print(duration);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Sends requests from several concurrent clients for a while.
+     * @param base The base URL of the server.
+     * @param workload The workload.
+     * @param clients How many concurrent clients there are.
+     * @param rate How many requests are sent per second, by all the clients together.
+     * @param seconds For how long the requests are sent.
+     * @param firstDriver The index of the driver of the first client. Each client has its own.
+     * @return The latencies and the errors of the requests of all the clients.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    private static Result run(String base, Workload workload, int clients, int rate, int seconds, int firstDriver)
+            throws InterruptedException
+    {
+        long interval = TimeUnit.SECONDS.toNanos(clients) / rate;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>(clients);
+        List<Result> results = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Workload.Driver driver = workload.newDriver(firstDriver + i);
+            Result result = new Result();
+            results.add(result);
+
+            // The clients are evenly spread over the interval, so the requests don't arrive in bursts.
+            long first = start + interval * i / clients;
+            Thread t = new Thread(() -> runClient(base, driver, first, interval, end, result), "load-client-" + i);
+            threads.add(t);
+            t.start();
+        }
+        Result total = new Result();
+        for (int i = 0; i < clients; i++) {
+            threads.get(i).join();
+            total.merge(results.get(i));
+        }
+        return total;
+    }
+
+    /**
+     * Sends the requests of a single client on its schedule.
+     * @param base The base URL of the server.
+     * @param driver Chooses the requests.
+     * @param first When the first request should be sent, as given by {@link System#nanoTime()}.
+     * @param interval The time between the requests, in nanoseconds.
+     * @param end When the client stops sending requests, as given by {@link System#nanoTime()}.
+     * @param result Where the latencies and errors are recorded.
+     */
+    private static void runClient(String base, Workload.Driver driver, long first, long interval, long end, Result result) {
+        for (long intended = first; intended < end; intended += interval) {
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+            Operation op = driver.nextOperation();
+            Route route;
+            boolean ok;
+            switch (op) {
+                case ADD_SCORE:
+                    route = Route.ADD_SCORE;
+                    UserData score = driver.nextScore();
+                    String json = "{\"userId\":" + score.getUserId() + ",\"points\":" + score.getPoints() + "}";
+                    ok = send(base + "/score", json.getBytes(StandardCharsets.UTF_8));
+                    break;
+                case FIND_USER:
+                    route = Route.FIND_USER;
+                    ok = send(base + "/score/" + driver.nextUser() + "/position", null);
+                    break;
+                default:
+                    route = Route.HIGH_SCORES;
+                    ok = send(base + "/highscorelist?limit=" + driver.getTopN(), null);
+                    break;
+            }
+            result.record(route, System.nanoTime() - intended, ok);
+        }
+    }
+
+    /**
+     * Sends a request and reads the whole response.
+     * @param url The URL.
+     * @param body The JSON body of a {@code POST} request, or {@code null} for a {@code GET} request.
+     * @return {@code true} if the server answered with a successful status, {@code false} otherwise.
+     */
+    private static boolean send(String url, byte[] body) {
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+            if (body != null) {
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type", "application/json");
+                c.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = c.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = c.getResponseCode();
+
+            // Reading the whole response lets the connection be reused.
+            InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+            if (in != null) {
+                try (InputStream i = in) {
+                    byte[] buffer = new byte[8192];
+                    while (i.read(buffer) != -1) {
+                        // Just discard it.
+                    }
+                }
+            }
+            return status >= 200 && status < 300;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The latencies and the errors of the requests to each route.
+     */
+    private static final class Result {
+
+        /**
+         * The latencies of the requests to each route.
+         */
+        private final Map<Route, LatencyHistogram> latencies;
+
+        /**
+         * How many requests to each route failed.
+         */
+        private final Map<Route, long[]> errors;
+
+        /**
+         * Creates an instance without any request.
+         */
+        public Result() {
+            this.latencies = new EnumMap<>(Route.class);
+            this.errors = new EnumMap<>(Route.class);
+            for (Route r : Route.values()) {
+                latencies.put(r, new LatencyHistogram());
+                errors.put(r, new long[1]);
+            }
+        }
+
+        /**
+         * Records a request.
+         * @param route The route.
+         * @param nanos The latency, in nanoseconds.
+         * @param ok {@code true} if the request succeeded, {@code false} otherwise.
+         */
+        public void record(Route route, long nanos, boolean ok) {
+            latencies.get(route).record(nanos);
+            if (!ok) errors.get(route)[0]++;
+        }
+
+        /**
+         * Adds all the requests recorded in another instance to this one.
+         * @param other The other instance.
+         */
+        public void merge(Result other) {
+            for (Route r : Route.values()) {
+                latencies.get(r).merge(other.latencies.get(r));
+                errors.get(r)[0] += other.errors.get(r)[0];
+            }
+        }
+
+        /**
+         * Prints the throughput and the latency percentiles of each route.
+         * @param seconds For how long the requests were sent.
+         */
+        public void print(int seconds) {
+            System.out.println(String.format(
+                    "%-30s %10s %8s %12s %10s %10s %10s %10s",
+                    "Route", "Requests", "Errors", "Requests/s", "p50 (ms)", "p99 (ms)", "p999 (ms)", "max (ms)"));
+            for (Route r : Route.values()) {
+                LatencyHistogram h = latencies.get(r);
+                System.out.println(String.format(
+                        "%-30s %10d %8d %12.1f %10.3f %10.3f %10.3f %10.3f",
+                        r.label,
+                        h.getCount(),
+                        errors.get(r)[0],
+                        h.getCount() / (double) seconds,
+                        h.getQuantile(0.5) / 1e6,
+                        h.getQuantile(0.99) / 1e6,
+                        h.getQuantile(0.999) / 1e6,
+                        h.getMax() / 1e6));
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ninja.javahacker.temp.pipatest.tests.performance;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.avl.ImmutableLongWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.tests.ApplicationStateImplementation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Measures how many bytes are allocated by the mutating operations of the AVL trees and of the {@link ApplicationState}. Since the
+ * trees are immutable, almost everything that they allocate are copies of the nodes in the path from the root to the changed node, so
+ * the allocated bytes per operation is a good proxy for the quantity of nodes created by each operation.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class AllocationPerformanceTest {
+
+    /**
+     * How many keys should be in the trees.
+     */
+    private static final int SIZE = 200_000;
+
+    /**
+     * How many operations should be measured.
+     */
+    private static final int OPERATIONS = 1_000_000;
+
+    /**
+     * Test sole constructor.
+     */
+    public AllocationPerformanceTest() {
+    }
+
+    /**
+     * Gives how many bytes were allocated so far by the current thread.
+     * @return How many bytes were allocated so far by the current thread.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the given operation many times, first for warming up and then for measuring, and gives the average number of bytes
+     * allocated per operation.
+     * @param name The name of the operation, used for reporting.
+     * @param operation The operation to run. It receives the number of the iteration and gives something to be kept alive.
+     * @return The average number of bytes allocated per operation.
+     */
+    private static double measure(String name, LongUnaryOperator operation) {
+        long sink = 0;
+        for (long i = 0; i < OPERATIONS; i++) {
+            sink += operation.applyAsLong(i);
+        }
+        long before = allocatedBytes();
+        for (long i = 0; i < OPERATIONS; i++) {
+            sink += operation.applyAsLong(i);
+        }
+        long after = allocatedBytes();
+        double perOperation = (after - before) / (double) OPERATIONS;
+        System.out.println(name + ": " + perOperation + " bytes/op (" + sink + ").");
+        return perOperation;
+    }
+
+    /**
+     * Compares the single-pass upsert of the {@link ImmutableWeightedAvlTree#put(Comparable, int, Object) put} method with the old
+     * strategy of removing the key and then putting it again.
+     */
+    @Test
+    @Timeout(value = 300, unit = TimeUnit.SECONDS)
+    public void testPutExistingKey() {
+        ImmutableWeightedAvlTree<Long, Long> generic = new ImmutableWeightedAvlTree<>();
+        ImmutableLongWeightedAvlTree primitive = new ImmutableLongWeightedAvlTree();
+        for (long i = 0; i < SIZE; i++) {
+            generic = generic.put(i, 1, i);
+            primitive = primitive.put(i, 1, i);
+        }
+        ImmutableWeightedAvlTree<Long, Long> g = generic;
+        ImmutableLongWeightedAvlTree p = primitive;
+
+        // The values are preallocated, so boxing don't interfere with the measurements.
+        Long[] boxed = new Long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            boxed[i] = (long) i;
+        }
+
+        double genericTwoPasses = measure("Generic remove+put", i -> {
+            Long k = boxed[(int) ((i * 7919) % SIZE)];
+            return g.remove(k).put(k, 2, k).getTotalWeight();
+        });
+        double genericOnePass = measure("Generic upsert", i -> {
+            Long k = boxed[(int) ((i * 7919) % SIZE)];
+            return g.put(k, 2, k).getTotalWeight();
+        });
+        double primitiveTwoPasses = measure("Primitive remove+put", i -> {
+            long k = (i * 7919) % SIZE;
+            return p.remove(k).put(k, 2, i).getTotalWeight();
+        });
+        double primitiveOnePass = measure("Primitive upsert", i -> {
+            long k = (i * 7919) % SIZE;
+            return p.put(k, 2, i).getTotalWeight();
+        });
+        Assertions.assertTrue(genericOnePass < genericTwoPasses);
+        Assertions.assertTrue(primitiveOnePass < primitiveTwoPasses);
+    }
+
+    /**
+     * Reports how many bytes are allocated by each invocation of the {@link ApplicationState#addScore(UserData) addScore} method.
+     * @param choice An instance of {@link ApplicationStateImplementation} that provides an implementation to the
+     *     {@link ApplicationState} interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 300, unit = TimeUnit.SECONDS)
+    public void testAddScore(ApplicationStateImplementation choice) {
+        ApplicationState initial = choice.createState();
+        for (long i = 0; i < SIZE; i++) {
+            initial = initial.addScore(new UserData(i, i % 1000));
+        }
+        ApplicationState s = initial;
+        UserData[] data = new UserData[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            data[i] = new UserData((i * 7919L) % SIZE, 1 + i % 50);
+        }
+        measure(choice + " addScore", i -> s.addScore(data[(int) (i % SIZE)]).hashCode());
+    }
+}
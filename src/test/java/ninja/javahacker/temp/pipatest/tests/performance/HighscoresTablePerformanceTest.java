@@ -6,8 +6,10 @@ import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
 import ninja.javahacker.temp.pipatest.HighscoresTable;
-import ninja.javahacker.temp.pipatest.data.UserData;
 import ninja.javahacker.temp.pipatest.tests.HighscoresTableImplementation;
+import ninja.javahacker.temp.pipatest.tests.workload.ScoreDistribution;
+import ninja.javahacker.temp.pipatest.tests.workload.UserSelector;
+import ninja.javahacker.temp.pipatest.tests.workload.Workload;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -25,6 +27,20 @@ public class HighscoresTablePerformanceTest {
     public HighscoresTablePerformanceTest() {
     }
 
+    /**
+     * The workload used to stress the tables. A few thousand users are very hot and there is a long tail of users that rarely get
+     * points. Most scores add just a few points. For each 20 added scores, there are 4 users looked up and one listing of the high
+     * scores.
+     */
+    private static final Workload WORKLOAD = new Workload(
+            42L,
+            UserSelector.zipfian(25_000, 0.99),
+            ScoreDistribution.geometric(5.0),
+            20,
+            4,
+            1,
+            20_000);
+
     /**
      * A heavy performance test to measure the time took be a {@link HighscoresTable} under stress.
      * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
@@ -36,23 +52,22 @@ public class HighscoresTablePerformanceTest {
     void testHeavyUse(HighscoresTableImplementation choice) {
         HighscoresTable ht = choice.createTable();
         int numThreads = 50;
-        int operationsPerThread = 50_000;
+        int operationsPerThread = 62_500;
         CyclicBarrier c = new CyclicBarrier(numThreads + 1);
-        Runnable r = () -> {
-            try {
-                c.await();
-            } catch (InterruptedException | BrokenBarrierException e) {
-                return;
-            }
-            for (int i = 0; i < operationsPerThread; i++) {
-                if (Thread.interrupted()) return;
-                ht.addScore(new UserData(i % 25_000, (i * 271) % 50));
-                if (i % 20 == 0) ht.getHighScores(20_000);
-                if (i % 5 == 0) ht.findUser(i % 25_000);
-            }
-        };
         List<Thread> threads = new ArrayList<>(numThreads);
         for (int i = 0; i < numThreads; i++) {
+            Workload.Driver driver = WORKLOAD.newDriver(i);
+            Runnable r = () -> {
+                try {
+                    c.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    return;
+                }
+                for (int j = 0; j < operationsPerThread; j++) {
+                    if (Thread.interrupted()) return;
+                    driver.runOn(ht);
+                }
+            };
             Thread t = new Thread(r);
             threads.add(t);
             t.start();
@@ -0,0 +1,298 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.tests.ApplicationStateImplementation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Unit tests for the {@link ApplicationState} implementations.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class ApplicationStateTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public ApplicationStateTest() {
+    }
+
+    /**
+     * A simple test to check the correctness and the immutability of the given {@link ApplicationState} implementations.
+     * @param choice An instance of {@link ApplicationStateImplementation} that provides an implementation to the
+     *     {@link ApplicationState} interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 5, unit = TimeUnit.SECONDS)
+    void testSimpleUse(ApplicationStateImplementation choice) {
+        ApplicationState empty = choice.createState();
+        ApplicationState s = empty
+                .addScore(new UserData(555, 70))
+                .addScore(new UserData(777, 80))
+                .addScore(new UserData(555, 90))
+                .addScore(new UserData(888, 80))
+                .addScore(new UserData(333, 20))
+                .addScore(new UserData(444, 0));
+
+        List<PositionedUserData> desiredList = new ArrayList<>(5);
+        desiredList.add(new PositionedUserData(555, 160, 1));
+        desiredList.add(new PositionedUserData(777, 80, 2));
+        desiredList.add(new PositionedUserData(888, 80, 2));
+        desiredList.add(new PositionedUserData(333, 20, 4));
+        desiredList.add(new PositionedUserData(444, 0, 5));
+        Assertions.assertEquals(new HighscoresTableData(desiredList), s.getHighScores(1000));
+        Assertions.assertEquals(new HighscoresTableData(desiredList.subList(0, 2)), s.getHighScores(2));
+        Assertions.assertEquals(new HighscoresTableData(new ArrayList<>()), s.getHighScores(0));
+        for (PositionedUserData p : desiredList) {
+            Assertions.assertEquals(p, s.findUser(p.getUserId()).get());
+        }
+        Assertions.assertFalse(s.findUser(9999).isPresent());
+        Assertions.assertSame(s, s.addScore(new UserData(555, 0)));
+        Assertions.assertEquals(0L, empty.getVersion());
+        Assertions.assertEquals(6L, s.getVersion());
+        Assertions.assertEquals(7L, s.addScore(new UserData(555, 1)).getVersion());
+        Assertions.assertFalse(empty.findUser(555).isPresent());
+        Assertions.assertEquals(new HighscoresTableData(new ArrayList<>()), empty.getHighScores(1000));
+    }
+
+    /**
+     * Feeds the same long sequence of scores to all the {@link ApplicationState} implementations and checks that they all agree.
+     */
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testImplementationsAgree() {
+        ApplicationStateImplementation[] choices = ApplicationStateImplementation.values();
+        ApplicationState[] states = new ApplicationState[choices.length];
+        for (int i = 0; i < choices.length; i++) {
+            states[i] = choices[i].createState();
+        }
+        int users = 500;
+        for (long i = 0; i < 20_000; i++) {
+            UserData data = new UserData((i * 7919) % users, (i * 31) % 7);
+            for (int j = 0; j < states.length; j++) {
+                states[j] = states[j].addScore(data);
+            }
+        }
+        HighscoresTableData expected = states[0].getHighScores(users);
+        Assertions.assertEquals(users, expected.getHighscores().size());
+        for (int j = 1; j < states.length; j++) {
+            Assertions.assertEquals(expected, states[j].getHighScores(users), choices[j].name());
+            if (states[j].getDistinctScoreCount().isPresent()) {
+                Assertions.assertEquals(states[0].getDistinctScoreCount(), states[j].getDistinctScoreCount(), choices[j].name());
+            }
+            for (long id = 0; id <= users; id++) {
+                Assertions.assertEquals(states[0].findUser(id), states[j].findUser(id), choices[j].name());
+            }
+        }
+    }
+
+    /**
+     * Checks that the pages and the windows around users are the same as the corresponding parts of the full list.
+     * @param choice An instance of {@link ApplicationStateImplementation} that provides an implementation to the
+     *     {@link ApplicationState} interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void testPagesAndNeighbours(ApplicationStateImplementation choice) {
+        ApplicationState s = choice.createState();
+        int users = 300;
+        for (long i = 0; i < 3000; i++) {
+            s = s.addScore(new UserData((i * 7919) % users, (i * 31) % 5));
+        }
+        List<PositionedUserData> full = s.getHighScores(users).getHighscores();
+        Assertions.assertEquals(users, full.size());
+
+        for (int offset = 0; offset <= users + 1; offset += 7) {
+            for (int limit = 0; limit < 40; limit += 13) {
+                List<PositionedUserData> expected = full.subList(Math.min(offset, users), Math.min(offset + limit, users));
+                Assertions.assertEquals(new HighscoresTableData(expected), s.getHighScores(offset, limit));
+            }
+            List<PositionedUserData> rest = full.subList(Math.min(offset, users), users);
+            Assertions.assertEquals(new HighscoresTableData(rest), s.getHighScores(offset, Integer.MAX_VALUE));
+        }
+        for (int index = 0; index < users; index++) {
+            PositionedUserData user = full.get(index);
+            List<PositionedUserData> expected = full.subList(Math.max(0, index - 3), Math.min(index + 5, users));
+            Assertions.assertEquals(new HighscoresTableData(expected), s.findNeighbours(user.getUserId(), 3, 4).get());
+            Assertions.assertEquals(index, s.countUsersListedBefore(user.getPoints(), user.getUserId()));
+            Assertions.assertEquals(user.getPosition() - 1, s.countUsersWithMorePoints(user.getPoints()));
+        }
+        Assertions.assertEquals(0, s.countUsersWithMorePoints(Long.MAX_VALUE));
+        Assertions.assertEquals(users, s.countUsersListedBefore(-1, 0));
+        Assertions.assertFalse(s.findNeighbours(9999, 3, 4).isPresent());
+        ApplicationState t = s;
+        Assertions.assertThrows(IllegalArgumentException.class, () -> t.getHighScores(-1, 5));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> t.getHighScores(5, -1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> t.findNeighbours(full.get(0).getUserId(), -1, 5));
+    }
+
+    /**
+     * Checks that adding a batch of scores gives the same result as adding each one of them, one at a time.
+     * @param choice An instance of {@link ApplicationStateImplementation} that provides an implementation to the
+     *     {@link ApplicationState} interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void testAddScores(ApplicationStateImplementation choice) {
+        ApplicationState one = choice.createState();
+        ApplicationState batched = choice.createState();
+        ApplicationState summed = choice.createState();
+        int users = 200;
+        List<UserData> batch = new ArrayList<>(100);
+        for (long i = 0; i < 3000; i++) {
+            UserData data = new UserData((i * 7919) % users, (i * 31) % 5);
+            one = one.addScore(data);
+            batch.add(data);
+            if (batch.size() == 100) {
+                batched = batched.addScores(batch);
+                summed = addSummed(summed, batch);
+                batch.clear();
+            }
+        }
+        Assertions.assertEquals(one.getHighScores(users), batched.getHighScores(users));
+        Assertions.assertEquals(summed.getVersion(), batched.getVersion());
+
+        // A single large batch, with new users, repeated users and users that scored nothing.
+        for (long i = 0; i < 2000; i++) {
+            UserData data = new UserData((i * 104729) % (users * 2), i % 3 == 0 ? 0 : (i * 17) % 11);
+            one = one.addScore(data);
+            batch.add(data);
+        }
+        batched = batched.addScores(batch);
+        summed = addSummed(summed, batch);
+        Assertions.assertEquals(one.getHighScores(users * 2), batched.getHighScores(users * 2));
+        Assertions.assertEquals(summed.getVersion(), batched.getVersion());
+        Assertions.assertEquals(one.getUserCount(), batched.getUserCount());
+        for (long i = 0; i < users * 2; i++) {
+            Assertions.assertEquals(one.findUser(i), batched.findUser(i));
+            Optional<PositionedUserData> found = batched.findUser(i);
+            OptionalLong points = found.isPresent() ? OptionalLong.of(found.get().getPoints()) : OptionalLong.empty();
+            Assertions.assertEquals(points, batched.findPoints(i));
+        }
+        Assertions.assertSame(batched, batched.addScores(new ArrayList<>()));
+        Assertions.assertSame(batched, batched.addScores(Arrays.asList(new UserData(1, 0), new UserData(2, 0))));
+
+        ApplicationState t = batched;
+        List<UserData> withNull = new ArrayList<>();
+        withNull.add(new UserData(1, 1));
+        withNull.add(null);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> t.addScores(null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> t.addScores(withNull));
+
+        // Overflowing the points of a user is refused instead of wrapping around.
+        ApplicationState rich = t.addScore(new UserData(1, Long.MAX_VALUE - t.findUser(1).get().getPoints()));
+        Assertions.assertThrows(ArithmeticException.class, () -> rich.addScore(new UserData(1, 1)));
+        Assertions.assertThrows(ArithmeticException.class, () -> rich.addScores(Arrays.asList(new UserData(2, 1), new UserData(1, 1))));
+        Assertions.assertEquals(Long.MAX_VALUE, rich.findUser(1).get().getPoints());
+    }
+
+    /**
+     * Sums up the points of each user in the given batch and adds them one user at a time, in the order of their ids, which is what a
+     * batch is expected to be equivalent to, including the version of the resulting state.
+     * @param state The state where the scores are added.
+     * @param batch The scores to add.
+     * @return The state with the scores added.
+     */
+    private static ApplicationState addSummed(ApplicationState state, List<UserData> batch) {
+        Map<Long, Long> sums = new TreeMap<>();
+        for (UserData d : batch) {
+            sums.merge(d.getUserId(), d.getPoints(), Long::sum);
+        }
+        ApplicationState s = state;
+        for (Map.Entry<Long, Long> e : sums.entrySet()) {
+            s = s.addScore(new UserData(e.getKey(), e.getValue()));
+        }
+        return s;
+    }
+
+    /**
+     * Tests that loading the users at once gives the same state as adding them one by one and that the users are given back in the
+     * ascending order of their ids.
+     * @param choice Which {@link ApplicationState} implementation should be tested.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void testLoadUsers(ApplicationStateImplementation choice) {
+        int users = 500;
+        long[] userIds = new long[users];
+        long[] points = new long[users];
+        ApplicationState one = choice.createState();
+        for (int i = 0; i < users; i++) {
+            userIds[i] = i * 3L + 1;
+            points[i] = (i * 7919L) % 37;
+            one = one.addScore(new UserData(userIds[i], points[i]));
+        }
+        ApplicationState loaded = choice.createState().loadUsers(userIds, points, users);
+        Assertions.assertEquals(one.getHighScores(users), loaded.getHighScores(users));
+        Assertions.assertEquals(one.getVersion(), loaded.getVersion());
+        Assertions.assertEquals(one.findUser(301), loaded.findUser(301));
+        Assertions.assertEquals(one.findNeighbours(301, 3, 3), loaded.findNeighbours(301, 3, 3));
+
+        List<UserData> forEach = new ArrayList<>(users);
+        loaded.addScore(new UserData(0, 5)).forEachUser((userId, p) -> forEach.add(new UserData(userId, p)));
+        Assertions.assertEquals(users + 1, forEach.size());
+        Assertions.assertEquals(new UserData(0, 5), forEach.get(0));
+        for (int i = 0; i < users; i++) {
+            Assertions.assertEquals(new UserData(userIds[i], points[i]), forEach.get(i + 1));
+        }
+
+        long[] unsorted = {5, 3};
+        long[] twoPoints = {1, 1};
+        ApplicationState empty = choice.createState();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> empty.loadUsers(unsorted, twoPoints, 2));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> empty.loadUsers(userIds, points, users + 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> loaded.loadUsers(userIds, points, users));
+    }
+
+    /**
+     * Tests that the users changed since an older state are exactly the ones that were added or got points, with their new points.
+     * @param choice Which {@link ApplicationState} implementation should be tested.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(ApplicationStateImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void testForEachUserChangedSince(ApplicationStateImplementation choice) {
+        ApplicationState older = choice.createState();
+        for (int i = 0; i < 1000; i++) {
+            older = older.addScore(new UserData(i * 2L, i % 17));
+        }
+        ApplicationState newer = older
+                .addScore(new UserData(7, 3))
+                .addScore(new UserData(400, 5))
+                .addScore(new UserData(1, 0))
+                .addScore(new UserData(3000, 2))
+                .addScore(new UserData(400, 1));
+        List<UserData> expected = new ArrayList<>();
+        expected.add(new UserData(1, 0));
+        expected.add(new UserData(7, 3));
+        expected.add(new UserData(400, 200 % 17 + 6));
+        expected.add(new UserData(3000, 2));
+        List<UserData> changed = new ArrayList<>();
+        newer.forEachUserChangedSince(older, (userId, p) -> changed.add(new UserData(userId, p)));
+        Assertions.assertEquals(expected, changed);
+
+        List<UserData> none = new ArrayList<>();
+        newer.forEachUserChangedSince(newer, (userId, p) -> none.add(new UserData(userId, p)));
+        Assertions.assertEquals(new ArrayList<>(), none);
+        ApplicationState last = newer;
+        Assertions.assertThrows(IllegalArgumentException.class, () -> last.forEachUserChangedSince(null, (userId, p) -> { }));
+    }
+}
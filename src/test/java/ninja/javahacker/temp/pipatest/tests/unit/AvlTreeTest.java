@@ -4,9 +4,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.Spliterator;
 import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import ninja.javahacker.temp.pipatest.avl.ImmutableWeightedAvlTree;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -161,4 +165,339 @@ public class AvlTreeTest {
         Assertions.assertEquals(OptionalInt.empty(), avl.getNodeWeight(9999));
         Assertions.assertEquals(sumTo(totalNodes - 1), avl.getTotalWeight());
     }
+
+    /**
+     * Test that putting an already existing key replaces its node in place, keeping the other nodes and the weights right.
+     */
+    @Test
+    public void testPutReplaces() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        for (int i = 0; i < 30; i++) {
+            avl = avl.put(i, 1, "" + i);
+        }
+        ImmutableWeightedAvlTree<Integer, String> avl2 = avl.put(17, 5, "x");
+        Assertions.assertEquals(Optional.of("17"), avl.get(17));
+        Assertions.assertEquals(Optional.of("x"), avl2.get(17));
+        Assertions.assertEquals(5, avl2.getNodeWeight(17).getAsInt());
+        Assertions.assertEquals(34, avl2.getTotalWeight());
+        Assertions.assertEquals(17, avl2.getLeftWeight(18).getAsInt() - 5);
+        List<Integer> keys = new ArrayList<>();
+        avl2.forEach((x, y, lw, nd, rw) -> keys.add(x));
+        Assertions.assertEquals(30, keys.size());
+
+        // Putting the very same value and weight should give the same tree.
+        String same = avl2.get(17).get();
+        Assertions.assertSame(avl2, avl2.put(17, 5, same));
+    }
+
+    /**
+     * Test the compute-like update operation when adding, replacing, removing or not changing nodes.
+     */
+    @Test
+    public void testUpdate() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        for (int i = 0; i < 30; i += 2) {
+            avl = avl.put(i, 1, "" + i);
+        }
+
+        // Add a missing node.
+        ImmutableWeightedAvlTree<Integer, String> added = avl.update(7, String::length, old -> {
+            Assertions.assertFalse(old.isPresent());
+            return Optional.of("seven");
+        });
+        Assertions.assertEquals(Optional.of("seven"), added.get(7));
+        Assertions.assertEquals(5, added.getNodeWeight(7).getAsInt());
+        Assertions.assertEquals(20, added.getTotalWeight());
+
+        // Replace an existing node.
+        ImmutableWeightedAvlTree<Integer, String> replaced = added.update(8, String::length, old -> old.map(x -> x + "!!"));
+        Assertions.assertEquals(Optional.of("8!!"), replaced.get(8));
+        Assertions.assertEquals(3, replaced.getNodeWeight(8).getAsInt());
+        Assertions.assertEquals(22, replaced.getTotalWeight());
+
+        // Remove an existing node.
+        ImmutableWeightedAvlTree<Integer, String> removed = replaced.update(10, String::length, old -> Optional.empty());
+        Assertions.assertEquals(Optional.empty(), removed.get(10));
+        Assertions.assertEquals(21, removed.getTotalWeight());
+
+        // Nothing to do.
+        Assertions.assertSame(removed, removed.update(9, String::length, old -> old));
+        Assertions.assertSame(removed, removed.update(12, x -> 1, old -> old));
+
+        // Check the order and the weights of everything.
+        List<Integer> keys = new ArrayList<>();
+        removed.forEach((x, y, lw, nd, rw) -> {
+            keys.add(x);
+            Assertions.assertEquals(x == 7 || x == 8 ? y.length() : 1, nd);
+        });
+        List<Integer> sorted = new ArrayList<>(keys);
+        sorted.sort(Integer::compareTo);
+        Assertions.assertEquals(sorted, keys);
+        Assertions.assertEquals(15, keys.size());
+    }
+
+    /**
+     * Test the batched update operation when adding, replacing, removing or not changing nodes, for batches both much smaller and much
+     * larger than the tree, by comparing it to the compute-like update operation done for each key.
+     */
+    @Test
+    public void testUpdateSorted() {
+        for (int size : new int[] {0, 1, 5, 30, 1000}) {
+            for (int step : new int[] {1, 3, 50}) {
+                ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+                for (int i = 0; i < size; i += 2) {
+                    avl = avl.put(i, 1, "" + i);
+                }
+
+                // Odd keys are added only if they are multiple of 3, even keys multiple of 3 are removed and the others are replaced.
+                List<Integer> batch = new ArrayList<>();
+                for (int k = -1; k <= size + 1; k += step) {
+                    batch.add(k);
+                }
+                Function<Integer, Function<Optional<String>, Optional<String>>> change = k -> old -> old.isPresent()
+                        ? (k % 3 == 0 ? Optional.empty() : old.map(x -> x + "!"))
+                        : (k % 3 == 0 ? Optional.of("new" + k) : Optional.empty());
+                ImmutableWeightedAvlTree<Integer, String> expected = avl;
+                for (int k : batch) {
+                    expected = expected.update(k, String::length, change.apply(k)::apply);
+                }
+                List<Integer> remapped = new ArrayList<>();
+                ImmutableWeightedAvlTree<Integer, String> merged = avl.updateSorted(batch.size(), batch::get, String::length, (i, old) -> {
+                    remapped.add(i);
+                    return change.apply(batch.get(i)).apply(old);
+                });
+                List<Integer> indexes = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    indexes.add(i);
+                }
+                Assertions.assertEquals(indexes, remapped);
+
+                List<String> expectedNodes = new ArrayList<>();
+                List<String> mergedNodes = new ArrayList<>();
+                expected.forEach((x, y, lw, nd, rw) -> expectedNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+                merged.forEach((x, y, lw, nd, rw) -> mergedNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+                Assertions.assertEquals(expectedNodes, mergedNodes);
+                Assertions.assertEquals(expected.getTotalWeight(), merged.getTotalWeight());
+
+                // Nothing to do.
+                ImmutableWeightedAvlTree<Integer, String> unchanged = merged;
+                Assertions.assertSame(unchanged, unchanged.updateSorted(batch.size(), batch::get, String::length, (i, old) -> old));
+            }
+        }
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> avl.updateSorted(2, i -> 5, String::length, (i, old) -> old));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> avl.updateSorted(1, i -> null, String::length, (i, old) -> old));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> avl.updateSorted(-1, i -> i, String::length, (i, old) -> old));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> avl.updateSorted(1, i -> i, String::length, null));
+    }
+
+    /**
+     * Test the {@link ImmutableWeightedAvlTree#selectByWeight(int) selectByWeight} and the
+     * {@link ImmutableWeightedAvlTree#selectByWeightReverse(int) selectByWeightReverse} methods against a full traversal, including
+     * nodes with zero weight and offsets out of the tree bounds.
+     */
+    @Test
+    public void testSelectByWeight() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        for (int i = 0; i < 60; i++) {
+            int key = (i * 37) % 60;
+            avl = avl.put(key, key % 4, "v" + key);
+        }
+        ImmutableWeightedAvlTree<Integer, String> tree = avl;
+        int total = tree.getTotalWeight();
+        List<Integer> expectedForward = new ArrayList<>(total);
+        List<Integer> expectedReverse = new ArrayList<>(total);
+        tree.forEach((x, y, lw, nd, rw) -> {
+            for (int j = 0; j < nd; j++) {
+                expectedForward.add(x);
+            }
+        });
+        tree.forEachReverse((x, y, lw, nd, rw) -> {
+            for (int j = 0; j < nd; j++) {
+                expectedReverse.add(x);
+            }
+        });
+        for (int offset = 0; offset < total; offset++) {
+            ImmutableWeightedAvlTree.Entry<Integer, String> forward = tree.selectByWeight(offset).get();
+            Assertions.assertEquals(expectedForward.get(offset), forward.getKey());
+            Assertions.assertEquals("v" + forward.getKey(), forward.getValue());
+            Assertions.assertEquals(tree.getLeftWeight(forward.getKey()).getAsInt(), forward.getLeftWeight());
+            Assertions.assertEquals(tree.getRightWeight(forward.getKey()).getAsInt(), forward.getRightWeight());
+            Assertions.assertEquals(forward.getKey() % 4, forward.getNodeWeight());
+            ImmutableWeightedAvlTree.Entry<Integer, String> reverse = tree.selectByWeightReverse(offset).get();
+            Assertions.assertEquals(expectedReverse.get(offset), reverse.getKey());
+            Assertions.assertEquals(tree.getLeftWeight(reverse.getKey()).getAsInt(), reverse.getLeftWeight());
+            Assertions.assertEquals(tree.getRightWeight(reverse.getKey()).getAsInt(), reverse.getRightWeight());
+        }
+        Assertions.assertFalse(tree.selectByWeight(-1).isPresent());
+        Assertions.assertFalse(tree.selectByWeight(total).isPresent());
+        Assertions.assertFalse(tree.selectByWeightReverse(-1).isPresent());
+        Assertions.assertFalse(tree.selectByWeightReverse(total).isPresent());
+        Assertions.assertFalse(new ImmutableWeightedAvlTree<Integer, String>().selectByWeight(0).isPresent());
+    }
+
+    /**
+     * Test the {@link ImmutableWeightedAvlTree#forEachFrom(Comparable, ImmutableWeightedAvlTree.TraversalAction) forEachFrom} and the
+     * {@link ImmutableWeightedAvlTree#forEachReverseFrom(Comparable, ImmutableWeightedAvlTree.TraversalAction) forEachReverseFrom}
+     * methods starting from keys that are both present and absent in the tree.
+     */
+    @Test
+    public void testForEachFrom() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        TreeSet<Integer> toCheck = new TreeSet<>();
+        for (int i = 0; i < 40; i++) {
+            int key = ((i * 13) % 40) * 2;
+            avl = avl.put(key, 1, "v" + key);
+            toCheck.add(key);
+        }
+        ImmutableWeightedAvlTree<Integer, String> tree = avl;
+        for (int from = -3; from <= 82; from++) {
+            List<Integer> forward = new ArrayList<>();
+            tree.forEachFrom(from, (x, y, lw, nd, rw) -> {
+                Assertions.assertEquals(tree.getLeftWeight(x).getAsInt(), lw);
+                Assertions.assertEquals(tree.getRightWeight(x).getAsInt(), rw);
+                forward.add(x);
+            });
+            Assertions.assertEquals(new ArrayList<>(toCheck.tailSet(from, true)), forward);
+            List<Integer> reverse = new ArrayList<>();
+            tree.forEachReverseFrom(from, (x, y, lw, nd, rw) -> {
+                Assertions.assertEquals(tree.getLeftWeight(x).getAsInt(), lw);
+                Assertions.assertEquals(tree.getRightWeight(x).getAsInt(), rw);
+                reverse.add(x);
+            });
+            Assertions.assertEquals(new ArrayList<>(toCheck.headSet(from, true).descendingSet()), reverse);
+        }
+    }
+
+    /**
+     * Test that the traversals that might be stopped visit the expected nodes and stop exactly when the action tells them to.
+     */
+    @Test
+    public void testForEachWhile() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        for (int i = 0; i < 30; i++) {
+            avl = avl.put(i, 1, "v" + i);
+        }
+        List<Integer> forward = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachWhile((x, y, lw, nd, rw) -> forward.add(x) && forward.size() < 5));
+        Assertions.assertEquals(5, forward.size());
+        Assertions.assertEquals(Integer.valueOf(4), forward.get(4));
+
+        List<Integer> reverse = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachReverseWhile((x, y, lw, nd, rw) -> reverse.add(x) && reverse.size() < 3));
+        Assertions.assertEquals(3, reverse.size());
+        Assertions.assertEquals(Integer.valueOf(27), reverse.get(2));
+
+        List<Integer> from = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachFromWhile(10, (x, y, lw, nd, rw) -> from.add(x) && from.size() < 4));
+        Assertions.assertEquals(4, from.size());
+        Assertions.assertEquals(Integer.valueOf(10), from.get(0));
+        Assertions.assertEquals(Integer.valueOf(13), from.get(3));
+
+        List<Integer> reverseFrom = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachReverseFromWhile(10, (x, y, lw, nd, rw) -> reverseFrom.add(x) && reverseFrom.size() < 4));
+        Assertions.assertEquals(4, reverseFrom.size());
+        Assertions.assertEquals(Integer.valueOf(10), reverseFrom.get(0));
+        Assertions.assertEquals(Integer.valueOf(7), reverseFrom.get(3));
+
+        List<Integer> all = new ArrayList<>();
+        Assertions.assertTrue(avl.forEachFromWhile(25, (x, y, lw, nd, rw) -> all.add(x)));
+        Assertions.assertEquals(5, all.size());
+        Assertions.assertTrue(avl.forEachReverseFromWhile(-1, (x, y, lw, nd, rw) -> false));
+        Assertions.assertTrue(new ImmutableWeightedAvlTree<>().forEachWhile((x, y, lw, nd, rw) -> false));
+    }
+
+    /**
+     * Test that the iterators and the spliterator walk through the same nodes with the same weights as the recursive traversals and
+     * that the spliterator splits itself in parts of exact sizes.
+     */
+    @Test
+    public void testIteratorsAndSpliterator() {
+        ImmutableWeightedAvlTree<Integer, String> avl = new ImmutableWeightedAvlTree<>();
+        for (int i = 0; i < 1000; i++) {
+            int key = (i * 7919) % 1000;
+            avl = avl.put(key, key % 3, "v" + key);
+        }
+        List<String> expected = new ArrayList<>();
+        avl.forEach((x, y, lw, nd, rw) -> expected.add(x + ":" + y + ":" + lw + ":" + nd + ":" + rw));
+        List<String> expectedReverse = new ArrayList<>();
+        avl.forEachReverse((x, y, lw, nd, rw) -> expectedReverse.add(x + ":" + y + ":" + lw + ":" + nd + ":" + rw));
+        Function<ImmutableWeightedAvlTree.Entry<Integer, String>, String> f =
+                e -> e.getKey() + ":" + e.getValue() + ":" + e.getLeftWeight() + ":" + e.getNodeWeight() + ":" + e.getRightWeight();
+
+        List<String> forward = new ArrayList<>();
+        avl.iterator().forEachRemaining(e -> forward.add(f.apply(e)));
+        Assertions.assertEquals(expected, forward);
+
+        List<String> reverse = new ArrayList<>();
+        avl.reverseIterator().forEachRemaining(e -> reverse.add(f.apply(e)));
+        Assertions.assertEquals(expectedReverse, reverse);
+
+        Assertions.assertEquals(expected, avl.stream().parallel().map(f).collect(Collectors.toList()));
+        Assertions.assertEquals(1000, avl.size());
+
+        Spliterator<ImmutableWeightedAvlTree.Entry<Integer, String>> second = avl.spliterator();
+        Assertions.assertTrue(second.tryAdvance(e -> { }));
+        Spliterator<ImmutableWeightedAvlTree.Entry<Integer, String>> first = second.trySplit();
+        Assertions.assertEquals(499, first.estimateSize());
+        Assertions.assertEquals(500, second.estimateSize());
+        List<String> rebuilt = new ArrayList<>();
+        rebuilt.add(expected.get(0));
+        first.forEachRemaining(e -> rebuilt.add(f.apply(e)));
+        second.forEachRemaining(e -> rebuilt.add(f.apply(e)));
+        Assertions.assertEquals(expected, rebuilt);
+
+        ImmutableWeightedAvlTree<Integer, String> empty = new ImmutableWeightedAvlTree<>();
+        Assertions.assertFalse(empty.iterator().hasNext());
+        Assertions.assertFalse(empty.reverseIterator().hasNext());
+        Assertions.assertThrows(NoSuchElementException.class, () -> empty.iterator().next());
+        Assertions.assertEquals(0, empty.stream().count());
+    }
+
+    /**
+     * Tests that a tree built from sorted nodes has the same nodes and weights as one built by adding the nodes one by one, that the
+     * nodes are taken in order exactly once and that the tree keeps working as usual when changed afterwards.
+     */
+    @Test
+    public void testFromSorted() {
+        for (int size : new int[] {0, 1, 2, 3, 7, 8, 1000}) {
+            ImmutableWeightedAvlTree<Integer, String> expected = new ImmutableWeightedAvlTree<>();
+            for (int i = 0; i < size; i++) {
+                expected = expected.put(i * 3, i % 4, "v" + i);
+            }
+            List<Integer> taken = new ArrayList<>();
+            ImmutableWeightedAvlTree<Integer, String> built = ImmutableWeightedAvlTree.fromSorted(
+                    size,
+                    i -> {
+                        taken.add(i);
+                        return i * 3;
+                    },
+                    i -> i % 4,
+                    i -> "v" + i);
+            for (int i = 0; i < size; i++) {
+                Assertions.assertEquals(Integer.valueOf(i), taken.get(i));
+            }
+            Assertions.assertEquals(size, taken.size());
+            List<String> expectedNodes = new ArrayList<>();
+            List<String> builtNodes = new ArrayList<>();
+            expected.forEach((x, y, lw, nd, rw) -> expectedNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+            built.forEach((x, y, lw, nd, rw) -> builtNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+            Assertions.assertEquals(expectedNodes, builtNodes);
+            Assertions.assertEquals(expected.getTotalWeight(), built.getTotalWeight());
+            Assertions.assertEquals(expected.size(), built.size());
+
+            // Changing the built tree must rebalance it as usual.
+            for (int i = 0; i < size; i += 2) {
+                expected = expected.remove(i * 3).put(i * 3 + 1, 1, "x");
+                built = built.remove(i * 3).put(i * 3 + 1, 1, "x");
+            }
+            Assertions.assertEquals(
+                    expected.stream().map(ImmutableWeightedAvlTree.Entry::getKey).collect(Collectors.toList()),
+                    built.stream().map(ImmutableWeightedAvlTree.Entry::getKey).collect(Collectors.toList()));
+            Assertions.assertEquals(expected.getTotalWeight(), built.getTotalWeight());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ImmutableWeightedAvlTree.fromSorted(3, i -> 5, i -> 1, i -> "x"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ImmutableWeightedAvlTree.fromSorted(3, i -> i, i -> 1, i -> null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ImmutableWeightedAvlTree.fromSorted(-1, i -> i, i -> 1, i -> "x"));
+    }
 }
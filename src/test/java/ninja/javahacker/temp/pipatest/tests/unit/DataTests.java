@@ -1,15 +1,25 @@
 package ninja.javahacker.temp.pipatest.tests.unit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import ninja.javahacker.temp.pipatest.data.BatchTooLargeException;
 import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
+import ninja.javahacker.temp.pipatest.data.HighscoresTableJsonWriter;
 import ninja.javahacker.temp.pipatest.data.PositionedUserData;
+import ninja.javahacker.temp.pipatest.data.RejectedLineData;
 import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.data.UserDataBatchReader;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 /**
- * Tests for the classes {@link UserData}, {@link PositionedUserData} and {@link HighscoresTableData}.
+ * Tests for the classes {@link UserData}, {@link PositionedUserData}, {@link HighscoresTableData}, {@link HighscoresTableJsonWriter}
+ * and {@link UserDataBatchReader}.
  * @author Victor Williams Stafusa da Silva
  */
 public class DataTests {
@@ -149,4 +159,87 @@ public class DataTests {
     public void testHighscoresTableDataBadInstantiation() {
         Assertions.assertThrows(IllegalArgumentException.class, () -> new HighscoresTableData(null));
     }
+
+    /**
+     * Tests that the {@link HighscoresTableJsonWriter} produces the same JSON as the serialization of a {@link HighscoresTableData}.
+     * @throws IOException If the JSON couldn't be written, which is not expected.
+     */
+    @Test
+    public void testHighscoresTableJsonWriter() throws IOException {
+        List<PositionedUserData> list = new ArrayList<>(3);
+        list.add(new PositionedUserData(555, 160, 1));
+        list.add(new PositionedUserData(777, 80, 2));
+        list.add(new PositionedUserData(888, 80, 2));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (HighscoresTableJsonWriter writer = new HighscoresTableJsonWriter(out)) {
+            list.forEach(p -> writer.accept(p.getUserId(), p.getPoints(), p.getPosition()));
+        }
+        Assertions.assertEquals(new HighscoresTableData(list).toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new HighscoresTableJsonWriter(empty).close();
+        String emptyJson = new String(empty.toByteArray(), StandardCharsets.UTF_8);
+        Assertions.assertEquals(new HighscoresTableData(new ArrayList<>()).toString(), emptyJson);
+    }
+
+    /**
+     * Reads a batch with the {@link UserDataBatchReader}.
+     * @param body The batch.
+     * @param accepted Where the accepted entries are added.
+     * @return The lines of the rejected entries.
+     * @throws IOException If the batch couldn't be read, which is not expected.
+     */
+    private static List<Integer> readBatch(String body, List<UserData> accepted) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        List<RejectedLineData> rejected = UserDataBatchReader.read(in, accepted::add);
+        List<Integer> lines = new ArrayList<>(rejected.size());
+        for (RejectedLineData r : rejected) {
+            Assertions.assertEquals(422, r.getStatus());
+            lines.add(r.getLine());
+        }
+        return lines;
+    }
+
+    /**
+     * Tests that the {@link UserDataBatchReader} reads both JSON arrays and newline-delimited JSON, rejecting only the bad entries.
+     * @throws IOException If the batch couldn't be read, which is not expected.
+     */
+    @Test
+    public void testUserDataBatchReader() throws IOException {
+        List<UserData> expected = new ArrayList<>(2);
+        expected.add(new UserData(555, 70));
+        expected.add(new UserData(777, 80));
+
+        List<UserData> fromLines = new ArrayList<>(2);
+        String lines = "{\"userId\":555,\"points\":70}\n{\"userId\":-1,\"points\":5}\n\n{garbage\n{\"userId\":777,\"points\":80}\nnull\n";
+        Assertions.assertEquals(Arrays.asList(2, 4, 6), readBatch(lines, fromLines));
+        Assertions.assertEquals(expected, fromLines);
+
+        List<UserData> fromArray = new ArrayList<>(2);
+        String array = " [{\"userId\":555,\"points\":70}, {\"userId\":1,\"points\":-3}, {\"userId\":777,\"points\":80}, {\"userId\":3 ]";
+        Assertions.assertEquals(Arrays.asList(2, 4), readBatch(array, fromArray));
+        Assertions.assertEquals(expected, fromArray);
+
+        List<UserData> none = new ArrayList<>(0);
+        Assertions.assertTrue(readBatch("  \n ", none).isEmpty());
+        Assertions.assertTrue(readBatch("[]", none).isEmpty());
+        Assertions.assertTrue(none.isEmpty());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UserDataBatchReader.read(null, none::add));
+
+        List<Integer> acceptedLines = new ArrayList<>(2);
+        ByteArrayInputStream in = new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(3, UserDataBatchReader.readNumbered(in, (data, line) -> acceptedLines.add(line)).size());
+        Assertions.assertEquals(Arrays.asList(1, 5), acceptedLines);
+
+        // The lines have 5 entries, since the blank line doesn't count, and the array has 4 of them.
+        ByteArrayInputStream fiveLines = new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(3, UserDataBatchReader.readNumbered(fiveLines, 5, (data, line) -> { }).size());
+        ByteArrayInputStream tooManyLines = new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertThrows(BatchTooLargeException.class, () -> UserDataBatchReader.readNumbered(tooManyLines, 4, (d, l) -> { }));
+        ByteArrayInputStream tooLargeArray = new ByteArrayInputStream(array.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertThrows(BatchTooLargeException.class, () -> UserDataBatchReader.readNumbered(tooLargeArray, 3, (d, l) -> { }));
+        ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UserDataBatchReader.readNumbered(empty, 0, (d, l) -> { }));
+    }
 }
@@ -0,0 +1,102 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.avl.NodeAllocationCounter;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.events.FlightRecorderEvents;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the JDK Flight Recorder events emitted by the states and by the tables.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class FlightRecorderEventsTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public FlightRecorderEventsTest() {
+    }
+
+    /**
+     * Tests that adding scores, listing high scores and publishing states emit their events with the right values while a recording
+     * is running, and that nothing is emitted for a change that doesn't change anything.
+     * @throws IOException If the recording couldn't be written or read.
+     */
+    @Test
+    public void testEvents() throws IOException {
+        Assumptions.assumeTrue(FlightRecorderEvents.isAvailable());
+        Path file = Files.createTempFile("pipatest", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("ninja.javahacker.pipatest.AddScore").withThreshold(Duration.ZERO);
+                recording.enable("ninja.javahacker.pipatest.HighScores");
+                recording.enable("ninja.javahacker.pipatest.StatePublished");
+                recording.start();
+                HighscoresTable table = HighscoresTable.getCasImplementation();
+                table.addScore(new UserData(1, 10));
+                table.addScore(new UserData(2, 20));
+                table.addScore(new UserData(3, 30));
+                table.addScore(new UserData(3, 0));
+                ApplicationState state = table.snapshot();
+                Assertions.assertEquals(2, state.getHighScores(0, 2).getHighscores().size());
+                Assertions.assertEquals(1, state.getHighScores(2, 5).getHighscores().size());
+                recording.stop();
+                recording.dump(file);
+            }
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+            List<RecordedEvent> added = ofType(events, "ninja.javahacker.pipatest.AddScore");
+            Assertions.assertEquals(4, added.size());
+            Assertions.assertEquals(2L, added.get(1).getLong("userId"));
+            Assertions.assertEquals(20L, added.get(1).getLong("delta"));
+            if (NodeAllocationCounter.isEnabled()) {
+                Assertions.assertTrue(added.get(1).getLong("nodesAllocated") > 0);
+                Assertions.assertEquals(0L, added.get(3).getLong("nodesAllocated"));
+            } else {
+                Assertions.assertEquals(-1L, added.get(1).getLong("nodesAllocated"));
+            }
+
+            List<RecordedEvent> listed = ofType(events, "ninja.javahacker.pipatest.HighScores");
+            Assertions.assertEquals(2, listed.size());
+            Assertions.assertEquals(2, listed.get(0).getInt("rows"));
+            Assertions.assertTrue(listed.get(0).getBoolean("stoppedEarly"));
+            Assertions.assertEquals(1, listed.get(1).getInt("rows"));
+            Assertions.assertFalse(listed.get(1).getBoolean("stoppedEarly"));
+
+            List<RecordedEvent> published = ofType(events, "ninja.javahacker.pipatest.StatePublished");
+            Assertions.assertEquals(3, published.size());
+            Assertions.assertEquals("CasHighscoresTable", published.get(2).getString("table"));
+            Assertions.assertEquals(3L, published.get(2).getLong("version"));
+            Assertions.assertEquals(1L, published.get(2).getLong("changes"));
+            Assertions.assertEquals(3, published.get(2).getInt("users"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Gives the events of the given type, in the order that they started.
+     * @param events All the events.
+     * @param type The name of the type of the wanted events.
+     * @return The events of the given type, in the order that they started.
+     */
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String type) {
+        return events.stream()
+                .filter(e -> e.getEventType().getName().equals(type))
+                .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,253 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import ninja.javahacker.temp.pipatest.GameServer;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.StrictObjectMapper;
+import ninja.javahacker.temp.pipatest.metrics.InstrumentedHighscoresTable;
+import ninja.javahacker.temp.pipatest.tests.HighscoresTableImplementation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Tests for the HTTP routes of the {@link GameServer}, running it on an ephemeral port of localhost.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class GameServerTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public GameServerTest() {
+    }
+
+    /**
+     * The status, the {@code ETag} header and the body of a response.
+     */
+    private static final class Response {
+
+        /**
+         * The status of the response.
+         */
+        private final int status;
+
+        /**
+         * The {@code ETag} header of the response, or {@code null} if there is none.
+         */
+        private final String etag;
+
+        /**
+         * The body of the response.
+         */
+        private final String body;
+
+        /**
+         * Creates an instance from its values.
+         * @param status The status of the response.
+         * @param etag The {@code ETag} header of the response, or {@code null} if there is none.
+         * @param body The body of the response.
+         */
+        public Response(int status, String etag, String body) {
+            this.status = status;
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Sends a request to the given server and reads the whole response.
+     * @param server The server.
+     * @param path The path of the request.
+     * @param body The body of a {@code POST} request, or {@code null} for a {@code GET} request.
+     * @param ifNoneMatch The {@code If-None-Match} header of the request, or {@code null} for none.
+     * @return The response.
+     * @throws IOException If the request couldn't be sent or the response couldn't be read, which is not expected.
+     */
+    private static Response send(GameServer server, String path, String body, String ifNoneMatch) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        try {
+            if (ifNoneMatch != null) c.setRequestProperty("If-None-Match", ifNoneMatch);
+            if (body != null) {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setFixedLengthStreamingMode(bytes.length);
+                try (OutputStream out = c.getOutputStream()) {
+                    out.write(bytes);
+                }
+            }
+            int status = c.getResponseCode();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+            if (in != null) {
+                try (InputStream i = in) {
+                    byte[] buffer = new byte[8192];
+                    for (int n = i.read(buffer); n != -1; n = i.read(buffer)) {
+                        content.write(buffer, 0, n);
+                    }
+                }
+            }
+            return new Response(status, c.getHeaderField("ETag"), new String(content.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Checks that the read routes give an {@code ETag} that changes when the table changes and answer 304 (Not Modified) when the
+     * {@code If-None-Match} header matches it, either as it is, weak, as {@code *} or in a comma-separated list.
+     * @throws IOException If the server couldn't be reached, which is not expected.
+     */
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testETags() throws IOException {
+        GameServer server = new GameServer(0, HighscoresTable.getSynchronizedImplementation());
+        try {
+            Assertions.assertEquals(200, send(server, "/score", "{\"userId\":1,\"points\":10}", null).status);
+
+            Response first = send(server, "/highscorelist", null, null);
+            Assertions.assertEquals(200, first.status);
+            Assertions.assertNotNull(first.etag);
+            Assertions.assertTrue(first.body.contains("\"userId\":1"), first.body);
+
+            Assertions.assertEquals(304, send(server, "/highscorelist", null, first.etag).status);
+            Assertions.assertEquals(304, send(server, "/highscorelist", null, "W/" + first.etag).status);
+            Assertions.assertEquals(304, send(server, "/highscorelist", null, "*").status);
+            Assertions.assertEquals(304, send(server, "/highscorelist", null, "\"other\", W/\"another\", " + first.etag).status);
+            Assertions.assertEquals(304, send(server, "/score/1/position", null, first.etag).status);
+            Assertions.assertEquals(304, send(server, "/score/1/neighbours", null, first.etag).status);
+            Assertions.assertEquals(200, send(server, "/highscorelist", null, "\"other\"").status);
+            Assertions.assertEquals(200, send(server, "/highscorelist?offset=0&limit=5", null, "\"other\", \"another\"").status);
+
+            Assertions.assertEquals(200, send(server, "/score", "{\"userId\":2,\"points\":20}", null).status);
+            Response second = send(server, "/highscorelist", null, first.etag);
+            Assertions.assertEquals(200, second.status);
+            Assertions.assertNotEquals(first.etag, second.etag);
+            Assertions.assertEquals(304, send(server, "/score/2/position", null, second.etag).status);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Checks that the {@code POST /scores} route adds the good entries and reports the rejected ones with their lines, including the
+     * ones that overflow the points of their users, with the given {@link HighscoresTable} implementations.
+     * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
+     *     interface.
+     * @throws IOException If the server couldn't be reached, which is not expected.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(HighscoresTableImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testScoresBatch(HighscoresTableImplementation choice) throws IOException {
+        GameServer server = new GameServer(0, choice.createTable());
+        try {
+            Assertions.assertEquals(200, send(server, "/score", "{\"userId\":6,\"points\":" + (Long.MAX_VALUE - 1) + "}", null).status);
+            String lines = "{\"userId\":1,\"points\":10}\n"
+                    + "{\"userId\":2,\"points\":-5}\n"
+                    + "{\"userId\":3,\"points\":" + Long.MAX_VALUE + "}\n"
+                    + "{garbage\n"
+                    + "{\"userId\":3,\"points\":1}\n"
+                    + "{\"userId\":1,\"points\":5}\n"
+                    + "{\"userId\":6,\"points\":1}\n"
+                    + "{\"userId\":6,\"points\":1}\n"
+                    + "{\"userId\":7,\"points\":1}\n";
+            Response response = send(server, "/scores", lines, null);
+            Assertions.assertEquals(200, response.status);
+            JsonNode result = StrictObjectMapper.create().readTree(response.body);
+            Assertions.assertEquals(5, result.get("accepted").asInt(), response.body);
+            JsonNode rejected = result.get("rejected");
+            Assertions.assertEquals(4, rejected.size(), response.body);
+            int[] expectedLines = {2, 4, 5, 8};
+            for (int i = 0; i < expectedLines.length; i++) {
+                Assertions.assertEquals(expectedLines[i], rejected.get(i).get("line").asInt(), response.body);
+                Assertions.assertEquals(422, rejected.get(i).get("status").asInt(), response.body);
+            }
+
+            // Each entry must have been added only once, even though the batch as a whole overflowed.
+            Response user1 = send(server, "/score/1/position", null, null);
+            Assertions.assertTrue(user1.body.contains("\"points\":15"), user1.body);
+            Response user3 = send(server, "/score/3/position", null, null);
+            Assertions.assertTrue(user3.body.contains("\"points\":" + Long.MAX_VALUE), user3.body);
+            Response user6 = send(server, "/score/6/position", null, null);
+            Assertions.assertTrue(user6.body.contains("\"points\":" + Long.MAX_VALUE), user6.body);
+            Response user7 = send(server, "/score/7/position", null, null);
+            Assertions.assertTrue(user7.body.contains("\"points\":1,"), user7.body);
+
+            Response array = send(server, "/scores", "[{\"userId\":4,\"points\":1}, null, {\"userId\":5,\"points\":2}]", null);
+            JsonNode arrayResult = StrictObjectMapper.create().readTree(array.body);
+            Assertions.assertEquals(2, arrayResult.get("accepted").asInt(), array.body);
+            Assertions.assertEquals(2, arrayResult.get("rejected").get(0).get("line").asInt(), array.body);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Checks that the {@code POST /scores} route refuses a batch with more than 10000 entries as a whole.
+     * @throws IOException If the server couldn't be reached, which is not expected.
+     */
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testScoresBatchTooLarge() throws IOException {
+        GameServer server = new GameServer(0, HighscoresTable.getSynchronizedImplementation());
+        try {
+            StringBuilder lines = new StringBuilder(10001 * 30);
+            for (int i = 1; i <= 10001; i++) {
+                lines.append("{\"userId\":").append(i).append(",\"points\":1}\n");
+            }
+            Assertions.assertEquals(413, send(server, "/scores", lines.toString(), null).status);
+            Assertions.assertEquals("", send(server, "/score/1/position", null, null).body);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Checks that the {@code GET /metrics} route gives the metrics of the routes, the durations of the reads made by the routes and the
+     * gauges of the table in the Prometheus text format.
+     * @throws IOException If the server couldn't be reached, which is not expected.
+     */
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testMetrics() throws IOException {
+        GameServer server = new GameServer(0, HighscoresTable.getSynchronizedImplementation());
+        try {
+            send(server, "/score", "{\"userId\":1,\"points\":10}", null);
+            send(server, "/score", "{\"userId\":2,\"points\":10}", null);
+            send(server, "/score", "{\"userId\":-2,\"points\":10}", null);
+            send(server, "/highscorelist", null, null);
+            send(server, "/score/1/position", null, null);
+            send(server, "/score/1/position", null, null);
+
+            Response metrics = send(server, "/metrics", null, null);
+            Assertions.assertEquals(200, metrics.status);
+            String text = metrics.body;
+            Assertions.assertTrue(text.contains("# TYPE pipatest_http_request_duration_seconds histogram\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_http_request_duration_seconds_count{route=\"/score\"} 3\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_http_responses_total{route=\"/score\",status=\"200\"} 2\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_http_responses_total{route=\"/score\",status=\"422\"} 1\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_http_responses_total{route=\"/highscorelist\",status=\"200\"} 1\n"), text);
+            String operation = InstrumentedHighscoresTable.OPERATION_DURATION;
+            Assertions.assertTrue(text.contains(operation + "_count{operation=\"getHighScores\"} 1\n"), text);
+            Assertions.assertTrue(text.contains(operation + "_count{operation=\"findUser\"} 2\n"), text);
+            Assertions.assertTrue(text.contains(operation + "_count{operation=\"findNeighbours\"} 0\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_users 2\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_distinct_scores 1\n"), text);
+            Assertions.assertTrue(text.contains("pipatest_state_version 2\n"), text);
+        } finally {
+            server.stop();
+        }
+    }
+}
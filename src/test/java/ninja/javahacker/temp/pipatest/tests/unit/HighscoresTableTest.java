@@ -2,13 +2,20 @@ package ninja.javahacker.temp.pipatest.tests.unit;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import ninja.javahacker.temp.pipatest.ApplicationState;
 import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.ShardedHighscoresTable;
+import ninja.javahacker.temp.pipatest.SingleWriterHighscoresTable;
 import ninja.javahacker.temp.pipatest.data.HighscoresTableData;
 import ninja.javahacker.temp.pipatest.data.PositionedUserData;
 import ninja.javahacker.temp.pipatest.data.UserData;
 import ninja.javahacker.temp.pipatest.tests.HighscoresTableImplementation;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
@@ -54,4 +61,234 @@ public class HighscoresTableTest {
         }
         Assertions.assertFalse(ht.findUser(9999).isPresent());
     }
+
+    /**
+     * Checks that the snapshots of the given {@link HighscoresTable} implementations are not affected by later changes and that their
+     * versions grow as the table changes.
+     * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
+     *     interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(HighscoresTableImplementation.class)
+    @Timeout(value = 5, unit = TimeUnit.SECONDS)
+    void testSnapshot(HighscoresTableImplementation choice) {
+        HighscoresTable ht = choice.createTable();
+        ht.addScore(new UserData(555, 70));
+        ApplicationState before = ht.snapshot();
+        ht.addScore(new UserData(777, 80));
+        ApplicationState after = ht.snapshot();
+        Assertions.assertFalse(before.findUser(777).isPresent());
+        Assertions.assertTrue(after.findUser(777).isPresent());
+        Assertions.assertTrue(after.getVersion() > before.getVersion());
+        Assertions.assertEquals(ht.getHighScores(1000), after.getHighScores(1000));
+    }
+
+    /**
+     * Checks that a batch of scores is added to the given {@link HighscoresTable} implementations at once, summing up the points of
+     * repeated users.
+     * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
+     *     interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(HighscoresTableImplementation.class)
+    @Timeout(value = 5, unit = TimeUnit.SECONDS)
+    void testAddScores(HighscoresTableImplementation choice) {
+        HighscoresTable ht = choice.createTable();
+        List<UserData> batch = new ArrayList<>(5);
+        batch.add(new UserData(555, 70));
+        batch.add(new UserData(777, 80));
+        batch.add(new UserData(555, 90));
+        batch.add(new UserData(888, 80));
+        batch.add(new UserData(333, 20));
+        long before = ht.snapshot().getVersion();
+        ht.addScores(batch);
+        Assertions.assertEquals(before + 4, ht.snapshot().getVersion());
+
+        List<PositionedUserData> desiredList = new ArrayList<>(5);
+        desiredList.add(new PositionedUserData(555, 160, 1));
+        desiredList.add(new PositionedUserData(777, 80, 2));
+        desiredList.add(new PositionedUserData(888, 80, 2));
+        desiredList.add(new PositionedUserData(333, 20, 4));
+        Assertions.assertEquals(new HighscoresTableData(desiredList), ht.getHighScores(1000));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ht.addScores(null));
+    }
+
+    /**
+     * Checks that a batch of scores where some user would overflow is refused as a whole by the given {@link HighscoresTable}
+     * implementations, even when the users of the batch are spread across several shards.
+     * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
+     *     interface.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(HighscoresTableImplementation.class)
+    @Timeout(value = 5, unit = TimeUnit.SECONDS)
+    void testAddScoresOverflow(HighscoresTableImplementation choice) {
+        HighscoresTable ht = choice.createTable();
+        checkAddScoresOverflow(ht);
+        if (choice == HighscoresTableImplementation.SHARDED) {
+            checkAddScoresOverflow(HighscoresTable.getShardedImplementation(ApplicationState.getDefaultImplementation(), 4));
+        }
+    }
+
+    /**
+     * Adds to the given {@link HighscoresTable} a batch of scores where the user with the highest id, which is in the last shard when
+     * there are 4 of them, would overflow, and checks that none of its scores was added.
+     * @param ht The table.
+     */
+    private static void checkAddScoresOverflow(HighscoresTable ht) {
+        ht.addScore(new UserData(7, Long.MAX_VALUE - 5));
+        HighscoresTableData before = ht.getHighScores(1000);
+        List<UserData> batch = new ArrayList<>(9);
+        for (int i = 0; i < 8; i++) {
+            batch.add(new UserData(i, 3));
+        }
+        batch.add(new UserData(7, 3));
+        Assertions.assertThrows(ArithmeticException.class, () -> ht.addScores(batch));
+        Assertions.assertEquals(before, ht.getHighScores(1000));
+        for (int i = 0; i < 7; i++) {
+            Assertions.assertFalse(ht.findUser(i).isPresent());
+        }
+    }
+
+    /**
+     * Checks that no score is lost when several threads add scores to the given {@link HighscoresTable} implementations at the same
+     * time.
+     * @param choice An instance of {@link HighscoresTableImplementation} that provides an implementation to the {@link HighscoresTable}
+     *     interface.
+     * @throws InterruptedException If interrupted while waiting the threads, which is not expected.
+     */
+    @ParameterizedTest(name = "{displayName}[{argumentsWithNames}]")
+    @EnumSource(HighscoresTableImplementation.class)
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void testConcurrentWriters(HighscoresTableImplementation choice) throws InterruptedException {
+        HighscoresTable ht = choice.createTable();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    ht.addScore(new UserData((seed * 31 + i) % 50, 1));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long total = 0;
+        for (PositionedUserData p : ht.getHighScores(1000).getHighscores()) {
+            total += p.getPoints();
+        }
+        Assertions.assertEquals(threads.length * 2000L, total);
+    }
+
+    /**
+     * Checks that the {@link SingleWriterHighscoresTable} applies both the fire-and-forget and the acknowledged scores, in the order
+     * that they were submitted, and that it refuses new scores after closed.
+     */
+    @Test
+    @Timeout(value = 5, unit = TimeUnit.SECONDS)
+    void testSingleWriterAcknowledgement() {
+        SingleWriterHighscoresTable ht = new SingleWriterHighscoresTable(ApplicationState.getDefaultImplementation(), 4);
+        for (int i = 0; i < 100; i++) {
+            ht.submit(new UserData(i % 10, 1));
+        }
+        CompletableFuture<Void> ack = ht.submitAndAcknowledge(new UserData(3, 5));
+        ack.join();
+        Assertions.assertEquals(new PositionedUserData(3, 15, 1), ht.findUser(3).get());
+        Assertions.assertEquals(new PositionedUserData(4, 10, 2), ht.findUser(4).get());
+
+        ht.submit(new UserData(4, 1));
+        ht.close();
+        Assertions.assertEquals(11, ht.findUser(4).get().getPoints());
+        Assertions.assertThrows(IllegalStateException.class, () -> ht.submit(new UserData(4, 1)));
+    }
+
+    /**
+     * Checks that closing the {@link SingleWriterHighscoresTable} while other threads are submitting updates either applies or refuses
+     * each one of them, never leaving any submitter waiting forever.
+     * @throws InterruptedException If interrupted (should never happen).
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    void testSingleWriterCloseRace() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            SingleWriterHighscoresTable ht = new SingleWriterHighscoresTable(ApplicationState.getDefaultImplementation(), 2);
+            AtomicLong accepted = new AtomicLong();
+            List<CompletableFuture<Void>> acks = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                int user = i;
+                Thread t = new Thread(() -> {
+                    try {
+                        while (true) {
+                            CompletableFuture<Void> ack = ht.submitAndAcknowledge(new UserData(user, 1));
+                            synchronized (acks) {
+                                acks.add(ack);
+                            }
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException expected) {
+                        // Closed.
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            Thread.sleep(2);
+            ht.close();
+            for (Thread t : threads) {
+                t.join();
+            }
+            synchronized (acks) {
+                acks.forEach(CompletableFuture::join);
+            }
+            long applied = 0;
+            for (int i = 0; i < 4; i++) {
+                applied += ht.findUser(i).map(PositionedUserData::getPoints).orElse(0L);
+            }
+            Assertions.assertEquals(accepted.get(), applied);
+        }
+    }
+
+    /**
+     * Checks that the snapshots of the {@link ShardedHighscoresTable} are taken even under a steady stream of writes and that they are
+     * consistent cuts. Each writer adds a point to one user and then to another, so in any consistent cut the first one has either
+     * the same points of the second one or a single point more.
+     * @throws InterruptedException If interrupted (should never happen).
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    void testShardedSnapshotUnderWrites() throws InterruptedException {
+        ShardedHighscoresTable ht = new ShardedHighscoresTable(ApplicationState.getDefaultImplementation(), 8);
+        int writers = 4;
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int i = 0; i < writers; i++) {
+            long first = 2 * i;
+            Thread t = new Thread(() -> {
+                while (!stop.get()) {
+                    ht.addScore(new UserData(first, 1));
+                    ht.addScore(new UserData(first + 1, 1));
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        try {
+            for (int round = 0; round < 2000; round++) {
+                ApplicationState cut = ht.snapshot();
+                for (long i = 0; i < writers; i++) {
+                    long a = cut.findUser(2 * i).map(PositionedUserData::getPoints).orElse(0L);
+                    long b = cut.findUser(2 * i + 1).map(PositionedUserData::getPoints).orElse(0L);
+                    Assertions.assertTrue(a == b || a == b + 1, a + " " + b);
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+    }
 }
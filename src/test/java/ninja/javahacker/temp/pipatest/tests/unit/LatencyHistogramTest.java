@@ -0,0 +1,54 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import ninja.javahacker.temp.pipatest.tests.load.LatencyHistogram;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the {@link LatencyHistogram} used by the load test.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public LatencyHistogramTest() {
+    }
+
+    /**
+     * Tests that the quantiles are within the precision of the buckets, for small and large values, and that merging histograms
+     * gives the same quantiles as recording everything in a single one.
+     */
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            long value = i * 1000;
+            (i % 2 == 0 ? a : b).record(value);
+            all.record(value);
+        }
+        a.merge(b);
+        for (double q : new double[] {0.0, 0.5, 0.99, 0.999, 1.0}) {
+            long expected = Math.max(1L, (long) Math.ceil(q * 100_000)) * 1000;
+            Assertions.assertEquals(expected, all.getQuantile(q), expected * 0.03);
+            Assertions.assertEquals(all.getQuantile(q), a.getQuantile(q));
+        }
+        Assertions.assertEquals(100_000, a.getCount());
+        Assertions.assertEquals(100_000_000L, a.getMax());
+
+        LatencyHistogram small = new LatencyHistogram();
+        for (long i = 0; i < 64; i++) {
+            small.record(i);
+        }
+        Assertions.assertEquals(31, small.getQuantile(0.5));
+        small.record(Long.MAX_VALUE);
+        small.record(-5);
+        Assertions.assertEquals(Long.MAX_VALUE, small.getQuantile(1.0));
+        small.clear();
+        Assertions.assertEquals(0, small.getQuantile(0.5));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> small.getQuantile(1.5));
+    }
+}
@@ -0,0 +1,401 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import ninja.javahacker.temp.pipatest.avl.ImmutableLongWeightedAvlTree;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the {@link ImmutableLongWeightedAvlTree} class.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class LongAvlTreeTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public LongAvlTreeTest() {
+    }
+
+    /**
+     * Simple tests that do a few insertions and traverse the tree to check if the traversal is in the correct order.
+     */
+    @Test
+    public void testSimpleInsertion() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        for (int i = 19; i >= 0; i--) {
+            avl = avl.put(i * 7L, 1, i * 3L);
+        }
+        List<Long> keys = new ArrayList<>();
+        avl.forEach((x, y, lw, nd, rw) -> {
+            Assertions.assertEquals(x / 7 * 3, y);
+            keys.add(x);
+        });
+        List<Long> sorted = new ArrayList<>(keys);
+        sorted.sort(Long::compareTo);
+        Assertions.assertEquals(sorted, keys);
+        Assertions.assertEquals(20, keys.size());
+    }
+
+    /**
+     * Tests a lot of insertions, modifications and exclusions against a {@link TreeMap} in order to check if the tree keeps the same
+     * mappings in the same order.
+     */
+    @Test
+    public void testManyRandomOperations() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        Map<Long, Long> toCheck = new TreeMap<>();
+        int size = 3000;
+
+        // Scrambles the keys with a prime multiplier, so the tree is forced to perform all the sorts of internal reorganizations.
+        for (long i = 0; i < size; i++) {
+            long key = (i * 7919) % size;
+            avl = avl.put(key, 1, i);
+            toCheck.put(key, i);
+        }
+        for (long i = 0; i < size; i += 3) {
+            long key = (i * 104_729) % size;
+            avl = avl.remove(key);
+            toCheck.remove(key);
+        }
+        for (long i = 0; i < size; i += 5) {
+            long key = (i * 31) % size;
+            avl = avl.put(key, 1, -i);
+            toCheck.put(key, -i);
+        }
+
+        List<Long> keysAccessed = new ArrayList<>(size);
+        avl.forEach((x, y, lw, nd, rw) -> {
+            keysAccessed.add(x);
+            Assertions.assertEquals(toCheck.get(x), Long.valueOf(y));
+        });
+        Assertions.assertEquals(new ArrayList<>(toCheck.keySet()), keysAccessed);
+        Assertions.assertEquals(toCheck.size(), avl.getTotalWeight());
+        for (long i = 0; i < size; i++) {
+            Long expected = toCheck.get(i);
+            Assertions.assertEquals(expected == null ? OptionalLong.empty() : OptionalLong.of(expected), avl.get(i));
+        }
+    }
+
+    /**
+     * Test that the mutating methods don't change the original tree.
+     */
+    @Test
+    public void testImmutability() {
+        ImmutableLongWeightedAvlTree empty = new ImmutableLongWeightedAvlTree();
+        ImmutableLongWeightedAvlTree a = empty.put(1, 1, 10).put(2, 1, 20).put(3, 1, 30);
+        ImmutableLongWeightedAvlTree b = a.put(2, 1, 25).remove(3);
+        Assertions.assertTrue(empty.isEmpty());
+        Assertions.assertEquals(OptionalLong.of(20), a.get(2));
+        Assertions.assertEquals(OptionalLong.of(30), a.get(3));
+        Assertions.assertEquals(OptionalLong.of(25), b.get(2));
+        Assertions.assertEquals(OptionalLong.empty(), b.get(3));
+        Assertions.assertSame(b, b.remove(999));
+    }
+
+    /**
+     * Test the weights of the nodes both during and not during a traversal.
+     */
+    @Test
+    public void testWeights() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        int totalNodes = 50;
+        for (int i = 0; i < totalNodes; i++) {
+            avl = avl.put(i, i, -i);
+        }
+        avl.forEachReverse((x, y, lw, nd, rw) -> {
+            Assertions.assertEquals(-x, y);
+            Assertions.assertEquals((x - 1) * x / 2, lw);
+            Assertions.assertEquals(x, nd);
+            Assertions.assertEquals((totalNodes - 1) * totalNodes / 2 - (x + 1) * x / 2, rw);
+        });
+        Assertions.assertEquals(22 * 23 / 2, avl.getLeftWeight(23).getAsInt());
+        Assertions.assertEquals(23, avl.getNodeWeight(23).getAsInt());
+        Assertions.assertEquals(49 * 50 / 2 - 23 * 24 / 2, avl.getRightWeight(23).getAsInt());
+        Assertions.assertEquals(OptionalInt.empty(), avl.getLeftWeight(9999));
+        Assertions.assertEquals(OptionalInt.empty(), avl.getRightWeight(-1));
+        Assertions.assertEquals(OptionalInt.empty(), avl.getNodeWeight(9999));
+        Assertions.assertEquals(49 * 50 / 2, avl.getTotalWeight());
+    }
+
+    /**
+     * Test the {@link ImmutableLongWeightedAvlTree#selectByWeight(int) selectByWeight} and the
+     * {@link ImmutableLongWeightedAvlTree#selectByWeightReverse(int) selectByWeightReverse} methods against a full traversal, including
+     * nodes with zero weight and offsets out of the tree bounds.
+     */
+    @Test
+    public void testSelectByWeight() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        for (long i = 0; i < 60; i++) {
+            long key = (i * 37) % 60;
+            avl = avl.put(key, (int) (key % 4), -key);
+        }
+        ImmutableLongWeightedAvlTree tree = avl;
+        int total = tree.getTotalWeight();
+        List<Long> expectedForward = new ArrayList<>(total);
+        List<Long> expectedReverse = new ArrayList<>(total);
+        tree.forEach((x, y, lw, nd, rw) -> {
+            for (int j = 0; j < nd; j++) {
+                expectedForward.add(x);
+            }
+        });
+        tree.forEachReverse((x, y, lw, nd, rw) -> {
+            for (int j = 0; j < nd; j++) {
+                expectedReverse.add(x);
+            }
+        });
+        for (int offset = 0; offset < total; offset++) {
+            ImmutableLongWeightedAvlTree.Entry forward = tree.selectByWeight(offset).get();
+            Assertions.assertEquals(expectedForward.get(offset).longValue(), forward.getKey());
+            Assertions.assertEquals(-forward.getKey(), forward.getValue());
+            Assertions.assertEquals(tree.getLeftWeight(forward.getKey()).getAsInt(), forward.getLeftWeight());
+            Assertions.assertEquals(tree.getRightWeight(forward.getKey()).getAsInt(), forward.getRightWeight());
+            ImmutableLongWeightedAvlTree.Entry reverse = tree.selectByWeightReverse(offset).get();
+            Assertions.assertEquals(expectedReverse.get(offset).longValue(), reverse.getKey());
+            Assertions.assertEquals(tree.getLeftWeight(reverse.getKey()).getAsInt(), reverse.getLeftWeight());
+            Assertions.assertEquals(tree.getRightWeight(reverse.getKey()).getAsInt(), reverse.getRightWeight());
+        }
+        Assertions.assertFalse(tree.selectByWeight(-1).isPresent());
+        Assertions.assertFalse(tree.selectByWeight(total).isPresent());
+        Assertions.assertFalse(tree.selectByWeightReverse(total).isPresent());
+    }
+
+    /**
+     * Test the {@link ImmutableLongWeightedAvlTree#forEachFrom(long, ImmutableLongWeightedAvlTree.TraversalAction) forEachFrom} and
+     * the {@link ImmutableLongWeightedAvlTree#forEachReverseFrom(long, ImmutableLongWeightedAvlTree.TraversalAction) forEachReverseFrom}
+     * methods starting from keys that are both present and absent in the tree.
+     */
+    @Test
+    public void testForEachFrom() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        TreeSet<Long> toCheck = new TreeSet<>();
+        for (long i = 0; i < 40; i++) {
+            long key = ((i * 13) % 40) * 2;
+            avl = avl.put(key, 1, key);
+            toCheck.add(key);
+        }
+        ImmutableLongWeightedAvlTree tree = avl;
+        for (long from = -3; from <= 82; from++) {
+            List<Long> forward = new ArrayList<>();
+            tree.forEachFrom(from, (x, y, lw, nd, rw) -> forward.add(x));
+            Assertions.assertEquals(new ArrayList<>(toCheck.tailSet(from, true)), forward);
+            List<Long> reverse = new ArrayList<>();
+            tree.forEachReverseFrom(from, (x, y, lw, nd, rw) -> reverse.add(x));
+            Assertions.assertEquals(new ArrayList<>(toCheck.headSet(from, true).descendingSet()), reverse);
+        }
+    }
+
+    /**
+     * Test that the traversals that might be stopped visit the expected nodes and stop exactly when the action tells them to.
+     */
+    @Test
+    public void testForEachWhile() {
+        ImmutableLongWeightedAvlTree avl = new ImmutableLongWeightedAvlTree();
+        for (long i = 0; i < 30; i++) {
+            avl = avl.put(i, 1, i);
+        }
+        List<Long> forward = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachWhile((x, y, lw, nd, rw) -> forward.add(x) && forward.size() < 5));
+        Assertions.assertEquals(5, forward.size());
+        Assertions.assertEquals(Long.valueOf(4), forward.get(4));
+
+        List<Long> reverse = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachReverseWhile((x, y, lw, nd, rw) -> reverse.add(x) && reverse.size() < 3));
+        Assertions.assertEquals(3, reverse.size());
+        Assertions.assertEquals(Long.valueOf(27), reverse.get(2));
+
+        List<Long> from = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachFromWhile(10, (x, y, lw, nd, rw) -> from.add(x) && from.size() < 4));
+        Assertions.assertEquals(4, from.size());
+        Assertions.assertEquals(Long.valueOf(10), from.get(0));
+        Assertions.assertEquals(Long.valueOf(13), from.get(3));
+
+        List<Long> reverseFrom = new ArrayList<>();
+        Assertions.assertFalse(avl.forEachReverseFromWhile(10, (x, y, lw, nd, rw) -> reverseFrom.add(x) && reverseFrom.size() < 4));
+        Assertions.assertEquals(4, reverseFrom.size());
+        Assertions.assertEquals(Long.valueOf(10), reverseFrom.get(0));
+        Assertions.assertEquals(Long.valueOf(7), reverseFrom.get(3));
+
+        List<Long> all = new ArrayList<>();
+        Assertions.assertTrue(avl.forEachFromWhile(25, (x, y, lw, nd, rw) -> all.add(x)));
+        Assertions.assertEquals(5, all.size());
+        Assertions.assertTrue(avl.forEachReverseFromWhile(-1, (x, y, lw, nd, rw) -> false));
+        Assertions.assertTrue(new ImmutableLongWeightedAvlTree().forEachWhile((x, y, lw, nd, rw) -> false));
+    }
+
+    /**
+     * Tests that a tree built from sorted nodes has the same nodes and weights as one built by adding the nodes one by one and that it
+     * keeps working as usual when changed afterwards.
+     */
+    @Test
+    public void testFromSorted() {
+        for (int size : new int[] {0, 1, 2, 3, 7, 8, 1000}) {
+            ImmutableLongWeightedAvlTree expected = new ImmutableLongWeightedAvlTree();
+            for (int i = 0; i < size; i++) {
+                expected = expected.put(i * 3L, i % 4, i * 2L);
+            }
+            ImmutableLongWeightedAvlTree built = ImmutableLongWeightedAvlTree.fromSorted(size, i -> i * 3L, i -> i % 4, i -> i * 2L);
+            List<String> expectedNodes = new ArrayList<>();
+            List<String> builtNodes = new ArrayList<>();
+            expected.forEach((x, y, lw, nd, rw) -> expectedNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+            built.forEach((x, y, lw, nd, rw) -> builtNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+            Assertions.assertEquals(expectedNodes, builtNodes);
+            Assertions.assertEquals(expected.getTotalWeight(), built.getTotalWeight());
+            Assertions.assertEquals(expected.getWeightBefore(size), built.getWeightBefore(size));
+
+            // Changing the built tree must rebalance it as usual.
+            for (int i = 0; i < size; i += 2) {
+                expected = expected.remove(i * 3L).put(i * 3L + 1, 1, 5L);
+                built = built.remove(i * 3L).put(i * 3L + 1, 1, 5L);
+            }
+            List<Long> expectedKeys = new ArrayList<>();
+            List<Long> builtKeys = new ArrayList<>();
+            expected.forEach((x, y, lw, nd, rw) -> expectedKeys.add(x));
+            built.forEach((x, y, lw, nd, rw) -> builtKeys.add(x));
+            Assertions.assertEquals(expectedKeys, builtKeys);
+            Assertions.assertEquals(expected.getTotalWeight(), built.getTotalWeight());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ImmutableLongWeightedAvlTree.fromSorted(3, i -> 5L, i -> 1, i -> 0L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ImmutableLongWeightedAvlTree.fromSorted(-1, i -> i, i -> 1, i -> 0L));
+    }
+
+    /**
+     * Tests that merging batches of sorted nodes into a tree, either adding or removing them, gives the same nodes and weights as adding
+     * or removing the nodes one by one, for batches both much smaller and much larger than the tree, and that nothing is copied when
+     * nothing changes.
+     */
+    @Test
+    public void testPutAndRemoveSorted() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ImmutableLongWeightedAvlTree expected = new ImmutableLongWeightedAvlTree();
+            int initial = random.nextInt(round % 2 == 0 ? 10 : 1000);
+            for (int i = 0; i < initial; i++) {
+                expected = expected.put(random.nextInt(3000), 1 + random.nextInt(3), random.nextInt(100));
+            }
+            ImmutableLongWeightedAvlTree merged = expected;
+            long[] keys = new TreeSet<>(randomKeys(random, random.nextInt(round % 3 == 0 ? 10 : 1000))).stream()
+                    .mapToLong(Long::longValue)
+                    .toArray();
+            int[] weights = new int[keys.length];
+            long[] values = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                weights[i] = 1 + random.nextInt(3);
+                values[i] = random.nextInt(100);
+                expected = expected.put(keys[i], weights[i], values[i]);
+            }
+            merged = merged.putSorted(keys.length, i -> keys[i], i -> weights[i], i -> values[i]);
+            assertSameNodes(expected, merged);
+            Assertions.assertSame(merged, merged.putSorted(keys.length, i -> keys[i], i -> weights[i], i -> values[i]));
+
+            long[] removed = new TreeSet<>(randomKeys(random, random.nextInt(1000))).stream().mapToLong(Long::longValue).toArray();
+            for (long key : removed) {
+                expected = expected.remove(key);
+            }
+            merged = merged.removeSorted(removed.length, i -> removed[i]);
+            assertSameNodes(expected, merged);
+            Assertions.assertSame(merged, merged.removeSorted(removed.length, i -> removed[i]));
+        }
+        ImmutableLongWeightedAvlTree tree = new ImmutableLongWeightedAvlTree();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> tree.putSorted(2, i -> 5L, i -> 1, i -> 0L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> tree.putSorted(-1, i -> i, i -> 1, i -> 0L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> tree.removeSorted(2, i -> 5L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> tree.removeSorted(1, null));
+    }
+
+    /**
+     * Gives random keys between 0 and 2999.
+     * @param random The source of the keys.
+     * @param count How many keys to give, possibly repeated.
+     * @return The random keys.
+     */
+    private static List<Long> randomKeys(Random random, int count) {
+        List<Long> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add((long) random.nextInt(3000));
+        }
+        return keys;
+    }
+
+    /**
+     * Checks that two trees have the same keys, values and weights, in the same order.
+     * @param expected The expected tree.
+     * @param actual The tree to check.
+     */
+    private static void assertSameNodes(ImmutableLongWeightedAvlTree expected, ImmutableLongWeightedAvlTree actual) {
+        List<String> expectedNodes = new ArrayList<>();
+        List<String> actualNodes = new ArrayList<>();
+        expected.forEach((x, y, lw, nd, rw) -> expectedNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+        actual.forEach((x, y, lw, nd, rw) -> actualNodes.add(x + "/" + y + "/" + lw + "/" + nd + "/" + rw));
+        Assertions.assertEquals(expectedNodes, actualNodes);
+        Assertions.assertEquals(expected.getTotalWeight(), actual.getTotalWeight());
+    }
+
+    /**
+     * Tests that the differences between two trees are found out exactly, both for a tree derived from the other and for unrelated
+     * trees with the same nodes.
+     */
+    @Test
+    public void testForEachChange() {
+        Random random = new Random(42);
+        ImmutableLongWeightedAvlTree older = new ImmutableLongWeightedAvlTree();
+        TreeMap<Long, Long> olderMap = new TreeMap<>();
+        for (int i = 0; i < 2000; i++) {
+            long key = random.nextInt(5000);
+            older = older.put(key, 1, key * 10);
+            olderMap.put(key, key * 10);
+        }
+        ImmutableLongWeightedAvlTree newer = older;
+        TreeMap<Long, Long> newerMap = new TreeMap<>(olderMap);
+        for (int i = 0; i < 50; i++) {
+            long key = random.nextInt(6000);
+            if (random.nextBoolean()) {
+                newer = newer.remove(key);
+                newerMap.remove(key);
+            } else {
+                newer = newer.put(key, 1, key * 10 + 1);
+                newerMap.put(key, key * 10 + 1);
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        TreeSet<Long> keys = new TreeSet<>(olderMap.keySet());
+        keys.addAll(newerMap.keySet());
+        for (Long key : keys) {
+            Long a = olderMap.get(key);
+            Long b = newerMap.get(key);
+            if (a == null || !a.equals(b)) expected.add(key + "/" + (a != null) + "/" + (b != null) + "/" + (b == null ? 0L : b));
+        }
+        List<String> found = new ArrayList<>();
+        newer.forEachChange(older, (key, inOlder, oldValue, inNewer, newValue) -> {
+            if (inOlder) Assertions.assertEquals(olderMap.get(key).longValue(), oldValue);
+            found.add(key + "/" + inOlder + "/" + inNewer + "/" + newValue);
+        });
+        Assertions.assertEquals(expected, found);
+
+        // Unrelated trees with the same nodes have no differences.
+        long[] sorted = newerMap.keySet().stream().mapToLong(Long::longValue).toArray();
+        ImmutableLongWeightedAvlTree rebuilt = ImmutableLongWeightedAvlTree.fromSorted(
+                sorted.length,
+                i -> sorted[i],
+                i -> 1,
+                i -> newerMap.get(sorted[i]));
+        rebuilt.forEachChange(newer, (key, inOlder, oldValue, inNewer, newValue) -> Assertions.fail());
+        newer.forEachChange(newer, (key, inOlder, oldValue, inNewer, newValue) -> Assertions.fail());
+
+        // Everything differs from an empty tree.
+        int[] count = {0};
+        new ImmutableLongWeightedAvlTree().forEachChange(newer, (key, inOlder, oldValue, inNewer, newValue) -> {
+            Assertions.assertTrue(inOlder && !inNewer);
+            count[0]++;
+        });
+        Assertions.assertEquals(newerMap.size(), count[0]);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> rebuilt.forEachChange(null, (a, b, c, d, e) -> { }));
+    }
+}
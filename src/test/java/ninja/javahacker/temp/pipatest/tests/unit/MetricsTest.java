@@ -0,0 +1,157 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.util.OptionalInt;
+import java.util.stream.LongStream;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.metrics.Counter;
+import ninja.javahacker.temp.pipatest.metrics.Histogram;
+import ninja.javahacker.temp.pipatest.metrics.InstrumentedHighscoresTable;
+import ninja.javahacker.temp.pipatest.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the metrics and their exposition in the Prometheus text format.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class MetricsTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public MetricsTest() {
+    }
+
+    /**
+     * Tests that durations fall into the right buckets, including the ones at the bounds, the negative ones and the ones above the
+     * largest bound.
+     */
+    @Test
+    public void testHistogramBuckets() {
+        Histogram h = new Histogram();
+        h.record(-1);
+        h.record(10_000L);
+        h.record(10_001L);
+        h.record(3_000_000L);
+        h.record(Long.MAX_VALUE / 2);
+        long[] counts = h.getCounts();
+        Assertions.assertEquals(Histogram.getBucketCount(), counts.length);
+        Assertions.assertEquals(2, counts[0]);
+        Assertions.assertEquals(1, counts[1]);
+        Assertions.assertEquals(1, counts[8]);
+        Assertions.assertEquals(1, counts[counts.length - 1]);
+        Assertions.assertEquals(5_000_000L, Histogram.getUpperBound(8));
+        Assertions.assertEquals(Long.MAX_VALUE, Histogram.getUpperBound(counts.length - 1));
+        Assertions.assertEquals(10_000L + 10_001L + 3_000_000L + Long.MAX_VALUE / 2, h.getSum());
+    }
+
+    /**
+     * Tests that the registry gives the same metric for the same name and labels, rejects conflicting and invalid ones and renders
+     * everything in the Prometheus text format.
+     */
+    @Test
+    public void testPrometheusText() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Counter c = metrics.counter("requests_total", "Requests.", "route", "/a\"b", "status", "404");
+        c.increment();
+        c.add(2);
+        Assertions.assertSame(c, metrics.counter("requests_total", "Requests.", "route", "/a\"b", "status", "404"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> c.add(-1));
+        metrics.histogram("latency_seconds", "Latency.").record(1_500_000L);
+        metrics.gauge("users", "Users.", () -> 42L);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> metrics.histogram("users", "Users."));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> metrics.counter("bad name", "Bad."));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> metrics.counter("odd", "Odd.", "label"));
+
+        String text = metrics.toPrometheusText();
+        Assertions.assertTrue(text.contains("# TYPE requests_total counter\nrequests_total{route=\"/a\\\"b\",status=\"404\"} 3\n"), text);
+        Assertions.assertTrue(text.contains("# TYPE users gauge\nusers 42\n"), text);
+        Assertions.assertTrue(text.contains("# TYPE latency_seconds histogram\n"), text);
+        Assertions.assertTrue(text.contains("latency_seconds_bucket{le=\"0.001\"} 0\n"), text);
+        Assertions.assertTrue(text.contains("latency_seconds_bucket{le=\"0.002\"} 1\n"), text);
+        Assertions.assertTrue(text.contains("latency_seconds_bucket{le=\"+Inf\"} 1\n"), text);
+        Assertions.assertTrue(text.contains("latency_seconds_sum 0.0015\n"), text);
+        Assertions.assertTrue(text.contains("latency_seconds_count 1\n"), text);
+        Assertions.assertTrue(text.indexOf("latency_seconds") < text.indexOf("requests_total"), text);
+    }
+
+    /**
+     * Tests that the instrumented table records each operation while giving the same results as the decorated table and that the
+     * states give how many distinct scores they have.
+     */
+    @Test
+    public void testInstrumentedTable() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        HighscoresTable table = new InstrumentedHighscoresTable(HighscoresTable.getCasImplementation(), metrics);
+        table.addScore(new UserData(1, 10));
+        table.addScore(new UserData(2, 10));
+        table.addScore(new UserData(3, 5));
+        Assertions.assertEquals(3, table.findUser(3).get().getPosition());
+        Assertions.assertEquals(1, table.findUser(1).get().getPosition());
+        Assertions.assertEquals(3, table.getHighScores(10).getHighscores().size());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> table.addScore(null));
+
+        String text = metrics.toPrometheusText();
+        String name = InstrumentedHighscoresTable.OPERATION_DURATION;
+        Assertions.assertTrue(text.contains(name + "_count{operation=\"addScore\"} 4\n"), text);
+        Assertions.assertTrue(text.contains(name + "_count{operation=\"findUser\"} 2\n"), text);
+        Assertions.assertTrue(text.contains(name + "_count{operation=\"getHighScores\"} 1\n"), text);
+        Assertions.assertTrue(text.contains(name + "_count{operation=\"findNeighbours\"} 0\n"), text);
+
+        ApplicationState nested = table.snapshot();
+        Assertions.assertEquals(OptionalInt.of(2), nested.getDistinctScoreCount());
+        ApplicationState composite = ApplicationState.getCompositeKeyImplementation().addScore(new UserData(1, 10));
+        Assertions.assertFalse(composite.getDistinctScoreCount().isPresent());
+        ApplicationState sharded = ApplicationState.getShardedImplementation(ApplicationState.getCompositeKeyImplementation(), 2);
+        Assertions.assertFalse(sharded.getDistinctScoreCount().isPresent());
+    }
+
+    /**
+     * Tests that the CAS table counts every update and that each retry is a discarded build, and that the synchronized table
+     * measures how long its lock is waited for and held, both under concurrent updates.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    @Test
+    public void testContentionMetrics() throws InterruptedException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        HighscoresTable cas = HighscoresTable.getCasImplementation(ApplicationState.getDefaultImplementation(), metrics);
+        HighscoresTable sync = HighscoresTable.getSynchronizedImplementation(ApplicationState.getDefaultImplementation(), metrics);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t * 1000;
+            threads[t] = new Thread(() -> {
+                for (int i = first; i < first + 1000; i++) {
+                    cas.addScore(new UserData(i, 1));
+                    sync.addScore(new UserData(i, 1));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assertions.assertEquals(4000, cas.snapshot().getUserCount());
+        Assertions.assertEquals(4000, sync.snapshot().getUserCount());
+
+        String wait = "pipatest_lock_wait_duration_seconds";
+        String hold = "pipatest_lock_hold_duration_seconds";
+        long retries = metrics.counter("pipatest_cas_retries_total", "").get();
+        Assertions.assertEquals(4000, metrics.counter("pipatest_cas_updates_total", "").get());
+        Assertions.assertEquals(retries, countOf(metrics.histogram("pipatest_cas_wasted_build_duration_seconds", "")));
+        Assertions.assertEquals(4000, countOf(metrics.histogram(wait, "", "operation", "update")));
+        Assertions.assertEquals(4000, countOf(metrics.histogram(hold, "", "operation", "update")));
+        Assertions.assertEquals(1, countOf(metrics.histogram(hold, "", "operation", "read")));
+    }
+
+    /**
+     * Gives how many durations were recorded into the given histogram.
+     * @param histogram The histogram.
+     * @return How many durations were recorded into the given histogram.
+     */
+    private static long countOf(Histogram histogram) {
+        return LongStream.of(histogram.getCounts()).sum();
+    }
+}
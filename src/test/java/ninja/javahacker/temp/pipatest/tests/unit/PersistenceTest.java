@@ -0,0 +1,430 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ninja.javahacker.temp.pipatest.ApplicationState;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.persistence.DurableHighscoresTable;
+import ninja.javahacker.temp.pipatest.persistence.ScoreEventLog;
+import ninja.javahacker.temp.pipatest.persistence.ScoreSnapshot;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for the classes {@link ScoreEventLog}, {@link ScoreSnapshot} and {@link DurableHighscoresTable}.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class PersistenceTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public PersistenceTest() {
+    }
+
+    /**
+     * Deletes a directory with everything in it.
+     * @param directory The directory.
+     * @throws IOException If something couldn't be deleted.
+     */
+    static void deleteAll(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Opens a {@link DurableHighscoresTable} in the given directory using the CAS implementation.
+     * @param dir The directory.
+     * @return The opened table.
+     * @throws IOException If the snapshot or the log couldn't be read or opened.
+     */
+    static DurableHighscoresTable open(Path dir) throws IOException {
+        return DurableHighscoresTable.open(ApplicationState.getDefaultImplementation(), HighscoresTable::getCasImplementation, dir, 16, 0);
+    }
+
+    /**
+     * Opens a {@link DurableHighscoresTable} in the given directory using the CAS implementation and writing a full snapshot after the
+     * given number of deltas.
+     * @param dir The directory.
+     * @param compactEvery How many deltas are written between two full snapshots.
+     * @return The opened table.
+     * @throws IOException If the snapshot or the log couldn't be read or opened.
+     */
+    static DurableHighscoresTable openCompactingEvery(Path dir, int compactEvery) throws IOException {
+        ApplicationState empty = ApplicationState.getDefaultImplementation();
+        return DurableHighscoresTable.open(empty, HighscoresTable::getCasImplementation, dir, 16, 0, compactEvery);
+    }
+
+    /**
+     * Checks that the scores added to a {@link DurableHighscoresTable} are restored when it is opened again, even if the end of the
+     * log was torn by a crash.
+     * @throws IOException If the log couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testReplay() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            HighscoresTable expected = HighscoresTable.getSynchronizedImplementation();
+            try (DurableHighscoresTable table = open(dir)) {
+                for (long i = 0; i < 500; i++) {
+                    UserData data = new UserData(i % 37, i % 11);
+                    table.addScore(data);
+                    expected.addScore(data);
+                }
+                List<UserData> batch = new ArrayList<>(3);
+                batch.add(new UserData(5, 100));
+                batch.add(new UserData(6, 200));
+                batch.add(new UserData(5, 300));
+                table.addScores(batch);
+                expected.addScores(batch);
+                Assertions.assertEquals(expected.getHighScores(100), table.getHighScores(100));
+            }
+
+            // Simulate a crash in the middle of a write.
+            Path last = ScoreEventLogFiles.last(dir);
+            Files.write(last, new byte[] {1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+            try (DurableHighscoresTable table = open(dir)) {
+                Assertions.assertEquals(expected.getHighScores(100), table.getHighScores(100));
+                table.addScore(new UserData(99, 1));
+            }
+            long[] count = {0};
+            Assertions.assertEquals(504, ScoreEventLog.replay(dir, 7, b -> count[0] += b.size()));
+            Assertions.assertEquals(504, count[0]);
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Checks that the {@link ScoreEventLog} starts new segments when they grow too much and refuses events after closed.
+     * @throws IOException If the log couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testSegments() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            ScoreEventLog log = new ScoreEventLog(dir, 4, 0, ScoreEventLog.RECORD_SIZE * 10);
+            for (int i = 0; i < 100; i++) {
+                List<UserData> one = new ArrayList<>(1);
+                one.add(new UserData(i, 1));
+                log.append(one).join();
+            }
+            log.close();
+            Assertions.assertTrue(ScoreEventLogFiles.count(dir) >= 10);
+            Assertions.assertThrows(IllegalStateException.class, () -> log.append(new ArrayList<>()));
+            List<UserData> read = new ArrayList<>(100);
+            Assertions.assertEquals(100, ScoreEventLog.replay(dir, 1000, read::addAll));
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals(new UserData(i, 1), read.get(i));
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Checks that a checkpoint writes a snapshot and deletes the segments that it covers and that the table is restored from the
+     * snapshot and the segments after it.
+     * @throws IOException If the log or the snapshot couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testSnapshot() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            HighscoresTable expected = HighscoresTable.getSynchronizedImplementation();
+            try (DurableHighscoresTable table = open(dir)) {
+                for (long i = 0; i < 300; i++) {
+                    UserData data = new UserData((i * 7919) % 101, i % 13);
+                    table.addScore(data);
+                    expected.addScore(data);
+                }
+                table.checkpoint().join();
+                Assertions.assertEquals(0, ScoreEventLog.replay(dir, 100, b -> { }));
+                Assertions.assertTrue(ScoreSnapshot.latest(dir).isPresent());
+
+                for (long i = 0; i < 50; i++) {
+                    UserData data = new UserData(i * 1000, i);
+                    table.addScore(data);
+                    expected.addScore(data);
+                }
+            }
+            Assertions.assertEquals(50, ScoreEventLog.replay(dir, 100, b -> { }));
+            Path written = ScoreSnapshot.latest(dir).get();
+            ApplicationState fromSnapshot = ScoreSnapshot.read(written, ApplicationState.getCompositeKeyImplementation());
+            Assertions.assertEquals(101, fromSnapshot.getUserCount());
+
+            try (DurableHighscoresTable table = open(dir)) {
+                Assertions.assertEquals(expected.getHighScores(200), table.getHighScores(200));
+                table.checkpoint().join();
+                table.checkpoint().join();
+            }
+            try (DurableHighscoresTable table = open(dir)) {
+                Assertions.assertEquals(expected.getHighScores(200), table.getHighScores(200));
+            }
+
+            // A corrupted snapshot must not be silently accepted.
+            Path snapshot = ScoreSnapshot.latest(dir).get();
+            byte[] content = Files.readAllBytes(snapshot);
+            content[content.length / 2] ^= 1;
+            Files.write(snapshot, content);
+            Assertions.assertThrows(IOException.class, () -> open(dir));
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Checks that a snapshot keeps every user and points exactly, including the ones that need the longest encodings, and that a
+     * truncated snapshot is refused.
+     * @throws IOException If the snapshot couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testSnapshotRoundTrip() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            ApplicationState state = ApplicationState.getNestedTreesImplementation();
+            state = state.addScore(new UserData(0, 0));
+            state = state.addScore(new UserData(Long.MAX_VALUE, Long.MAX_VALUE));
+            for (long i = 1; i < 5000; i++) {
+                state = state.addScore(new UserData(i * i * i, (i * 7919) % 1000));
+            }
+            Path written = ScoreSnapshot.write(dir, 3, state);
+            Assertions.assertEquals(3, ScoreSnapshot.firstSegmentOf(written));
+            for (ApplicationState empty : new ApplicationState[] {
+                ApplicationState.getNestedTreesImplementation(),
+                ApplicationState.getCompositeKeyImplementation(),
+                ApplicationState.getShardedImplementation(ApplicationState.getNestedTreesImplementation(), 4)
+            }) {
+                ApplicationState read = ScoreSnapshot.read(written, empty);
+                Assertions.assertEquals(state.getHighScores(6000), read.getHighScores(6000));
+            }
+
+            byte[] content = Files.readAllBytes(written);
+            Files.write(written, Arrays.copyOf(content, content.length - 7));
+            Assertions.assertThrows(IOException.class, () -> ScoreSnapshot.read(written, ApplicationState.getDefaultImplementation()));
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Checks that the checkpoints after the first one write just the changes, that a full snapshot is written again after the
+     * configured number of deltas and that the table is restored from a snapshot and the deltas after it.
+     * @throws IOException If the log or the snapshots couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testIncrementalCheckpoints() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            HighscoresTable expected = HighscoresTable.getSynchronizedImplementation();
+            try (DurableHighscoresTable table = openCompactingEvery(dir, 2)) {
+                for (long i = 0; i < 2000; i++) {
+                    UserData data = new UserData(i * 3, i % 50);
+                    table.addScore(data);
+                    expected.addScore(data);
+                }
+                table.checkpoint().join();
+                Assertions.assertEquals(0, ScoreSnapshotFiles.count(dir, ".delta"));
+                long full = Files.size(ScoreSnapshot.latest(dir).get());
+
+                for (long i = 0; i < 10; i++) {
+                    UserData data = new UserData(i * 300, 1);
+                    table.addScore(data);
+                    expected.addScore(data);
+                }
+                table.checkpoint().join();
+                Assertions.assertEquals(1, ScoreSnapshotFiles.count(dir, ".delta"));
+                Assertions.assertTrue(ScoreSnapshotFiles.size(dir, ".delta") * 20 < full);
+
+                // Nothing changed, so nothing is written.
+                table.checkpoint().join();
+                Assertions.assertEquals(1, ScoreSnapshotFiles.count(dir, ".delta"));
+
+                UserData data = new UserData(999_999, 7);
+                table.addScore(data);
+                expected.addScore(data);
+
+                // This user is in the snapshot and in both deltas, so the most recent points must win.
+                data = new UserData(300, 2);
+                table.addScore(data);
+                expected.addScore(data);
+                table.checkpoint().join();
+                Assertions.assertEquals(2, ScoreSnapshotFiles.count(dir, ".delta"));
+                data = new UserData(3, 4);
+                table.addScore(data);
+                expected.addScore(data);
+            }
+
+            try (DurableHighscoresTable table = openCompactingEvery(dir, 2)) {
+                Assertions.assertEquals(expected.getHighScores(3000), table.getHighScores(3000));
+                table.checkpoint().join();
+                Assertions.assertEquals(0, ScoreSnapshotFiles.count(dir, ".delta"));
+                Assertions.assertEquals(1, ScoreSnapshotFiles.count(dir, ".snap"));
+            }
+            try (DurableHighscoresTable table = openCompactingEvery(dir, 2)) {
+                Assertions.assertEquals(expected.getHighScores(3000), table.getHighScores(3000));
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Helper for finding the segment files of a {@link ScoreEventLog}.
+     */
+    private static final class ScoreEventLogFiles {
+
+        /**
+         * This class isn't instantiable.
+         */
+        private ScoreEventLogFiles() {
+            throw new UnsupportedOperationException("No instances.");
+        }
+
+        /**
+         * Lists the segment files in the given directory, ordered by name.
+         * @param dir The directory.
+         * @return The segment files in the given directory, ordered by name.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static List<Path> list(Path dir) throws IOException {
+            List<Path> found = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().forEach(found::add);
+            }
+            return found;
+        }
+
+        /**
+         * Finds the last non-empty segment file in the given directory.
+         * @param dir The directory.
+         * @return The last non-empty segment file in the given directory.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static Path last(Path dir) throws IOException {
+            List<Path> all = list(dir);
+            for (int i = all.size() - 1; i >= 0; i--) {
+                if (Files.size(all.get(i)) > 0) return all.get(i);
+            }
+            throw new AssertionError();
+        }
+
+        /**
+         * Counts the segment files in the given directory.
+         * @param dir The directory.
+         * @return How many segment files are in the given directory.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static int count(Path dir) throws IOException {
+            return list(dir).size();
+        }
+    }
+
+    /**
+     * Helper for finding the snapshot and delta files.
+     */
+    private static final class ScoreSnapshotFiles {
+
+        /**
+         * This class isn't instantiable.
+         */
+        private ScoreSnapshotFiles() {
+            throw new UnsupportedOperationException("No instances.");
+        }
+
+        /**
+         * Lists the files in the given directory with the given extension.
+         * @param dir The directory.
+         * @param extension The extension of the files.
+         * @return The files in the given directory with the given extension.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static List<Path> list(Path dir, String extension) throws IOException {
+            List<Path> found = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.filter(p -> p.getFileName().toString().endsWith(extension)).forEach(found::add);
+            }
+            return found;
+        }
+
+        /**
+         * Counts the files in the given directory with the given extension.
+         * @param dir The directory.
+         * @param extension The extension of the files.
+         * @return How many files are in the given directory with the given extension.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static int count(Path dir, String extension) throws IOException {
+            return list(dir, extension).size();
+        }
+
+        /**
+         * Sums the sizes of the files in the given directory with the given extension.
+         * @param dir The directory.
+         * @param extension The extension of the files.
+         * @return The sum of the sizes of the files in the given directory with the given extension, in bytes.
+         * @throws IOException If the directory couldn't be listed.
+         */
+        static long size(Path dir, String extension) throws IOException {
+            long total = 0;
+            for (Path p : list(dir, extension)) {
+                total += Files.size(p);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Checks that a batch of scores that overflows the points of some user, even when the overflow only happens together with
+     * batches still being written, is refused without being written into the log, so the table restored from the log is exactly the
+     * acknowledged one.
+     * @throws IOException If the log couldn't be used, which is not expected.
+     */
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testOverflowIsNotLogged() throws IOException {
+        Path dir = Files.createTempDirectory("pipatest-log");
+        try {
+            HighscoresTable expected = HighscoresTable.getSynchronizedImplementation();
+            try (DurableHighscoresTable table = open(dir)) {
+                List<UserData> first = Arrays.asList(new UserData(1, Long.MAX_VALUE - 10), new UserData(2, 5));
+                table.addScores(first);
+                expected.addScores(first);
+
+                List<UserData> overflows = Arrays.asList(new UserData(2, 7), new UserData(1, 11), new UserData(3, 1));
+                Assertions.assertThrows(ArithmeticException.class, () -> table.addScores(overflows));
+                Assertions.assertThrows(ArithmeticException.class, () -> table.addScore(new UserData(1, 11)));
+
+                List<UserData> fits = Arrays.asList(new UserData(1, 10), new UserData(3, 4));
+                table.addScores(fits);
+                expected.addScores(fits);
+                Assertions.assertEquals(expected.getHighScores(10), table.getHighScores(10));
+            }
+            Assertions.assertEquals(4, ScoreEventLog.replay(dir, 1, b -> { }));
+            try (DurableHighscoresTable table = open(dir)) {
+                Assertions.assertEquals(expected.getHighScores(10), table.getHighScores(10));
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ninja.javahacker.temp.pipatest.tests.unit;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+import ninja.javahacker.temp.pipatest.tests.workload.Operation;
+import ninja.javahacker.temp.pipatest.tests.workload.ScoreDistribution;
+import ninja.javahacker.temp.pipatest.tests.workload.UserSelector;
+import ninja.javahacker.temp.pipatest.tests.workload.Workload;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the {@link Workload} generator used by the performance tests and by the benchmarks.
+ * @author Victor Williams Stafusa da Silva
+ */
+public class WorkloadTest {
+
+    /**
+     * Test sole constructor.
+     */
+    public WorkloadTest() {
+    }
+
+    /**
+     * Tests that drivers with the same seed and index produce the same operations and that drivers with different indexes don't.
+     */
+    @Test
+    public void testReproducible() {
+        Workload w = new Workload(7L, UserSelector.zipfian(1000, 1.1), ScoreDistribution.uniform(0, 100), 5, 3, 2, 10);
+        Workload.Driver a = w.newDriver(3);
+        Workload.Driver b = w.newDriver(3);
+        Workload.Driver c = w.newDriver(4);
+        boolean differs = false;
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(a.nextOperation(), b.nextOperation());
+            UserData x = a.nextScore();
+            Assertions.assertEquals(x, b.nextScore());
+            differs |= !x.equals(c.nextScore());
+        }
+        Assertions.assertTrue(differs);
+    }
+
+    /**
+     * Tests that the Zipfian selector stays in range, that the first user is the hottest one and that its frequency is close to the
+     * expected one.
+     */
+    @Test
+    public void testZipfian() {
+        int users = 10_000;
+        int samples = 200_000;
+        UserSelector zipf = UserSelector.zipfian(users, 1.0);
+        SplittableRandom random = new SplittableRandom(1L);
+        int[] count = new int[users];
+        for (int i = 0; i < samples; i++) {
+            long u = zipf.nextUser(random);
+            Assertions.assertTrue(u >= 0 && u < users);
+            count[(int) u]++;
+        }
+        double harmonic = 0;
+        for (int k = 1; k <= users; k++) {
+            harmonic += 1.0 / k;
+        }
+        Assertions.assertEquals(samples / harmonic, count[0], samples / harmonic * 0.05);
+        Assertions.assertEquals(samples / harmonic / 2, count[1], samples / harmonic * 0.05);
+        Assertions.assertTrue(count[0] > count[10] && count[10] > count[1000]);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UserSelector.zipfian(0, 1.0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UserSelector.zipfian(10, 0.0));
+    }
+
+    /**
+     * Tests that the score distributions stay in range and that the geometric one has the expected mean.
+     */
+    @Test
+    public void testScores() {
+        SplittableRandom random = new SplittableRandom(2L);
+        ScoreDistribution uniform = ScoreDistribution.uniform(3, 5);
+        ScoreDistribution geometric = ScoreDistribution.geometric(4.0);
+        long sum = 0;
+        int samples = 100_000;
+        for (int i = 0; i < samples; i++) {
+            long u = uniform.nextPoints(random);
+            Assertions.assertTrue(u >= 3 && u <= 5);
+            long g = geometric.nextPoints(random);
+            Assertions.assertTrue(g >= 1);
+            sum += g;
+        }
+        Assertions.assertEquals(4.0, (double) sum / samples, 0.1);
+        Assertions.assertEquals(9L, ScoreDistribution.constant(9).nextPoints(random));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ScoreDistribution.uniform(5, 3));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ScoreDistribution.geometric(0.5));
+    }
+
+    /**
+     * Tests that the operations follow the configured mix and are really performed on the table.
+     */
+    @Test
+    public void testMix() {
+        Workload w = new Workload(3L, UserSelector.uniform(100), ScoreDistribution.constant(1), 6, 3, 1, 5);
+        Workload.Driver d = w.newDriver(0);
+        HighscoresTable table = HighscoresTable.getSynchronizedImplementation();
+        Map<Operation, Integer> count = new EnumMap<>(Operation.class);
+        int samples = 100_000;
+        for (int i = 0; i < samples; i++) {
+            count.merge(d.runOn(table), 1, Integer::sum);
+        }
+        Assertions.assertEquals(0.6, count.get(Operation.ADD_SCORE) / (double) samples, 0.01);
+        Assertions.assertEquals(0.3, count.get(Operation.FIND_USER) / (double) samples, 0.01);
+        Assertions.assertEquals(0.1, count.get(Operation.TOP_N) / (double) samples, 0.01);
+        long[] total = {0};
+        table.snapshot().forEachUser((userId, points) -> total[0] += points);
+        Assertions.assertEquals((long) count.get(Operation.ADD_SCORE), total[0]);
+
+        Workload.Driver readOnly = w.withMix(0, 1, 1).newDriver(0);
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertNotEquals(Operation.ADD_SCORE, readOnly.nextOperation());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> w.withMix(0, 0, 0));
+    }
+}
@@ -0,0 +1,23 @@
+package ninja.javahacker.temp.pipatest.tests.workload;
+
+/**
+ * The kinds of operations performed by a {@link Workload} on a {@link ninja.javahacker.temp.pipatest.HighscoresTable}.
+ * @author Victor Williams Stafusa da Silva
+ */
+public enum Operation {
+
+    /**
+     * Adds points to a user, as done by the {@code POST /score} HTTP route.
+     */
+    ADD_SCORE,
+
+    /**
+     * Finds out the position of a user, as done by the {@code GET /score/:userId/position} HTTP route.
+     */
+    FIND_USER,
+
+    /**
+     * Lists the top of the high scores list, as done by the {@code GET /highscorelist} HTTP route.
+     */
+    TOP_N;
+}
@@ -0,0 +1,56 @@
+package ninja.javahacker.temp.pipatest.tests.workload;
+
+import java.util.SplittableRandom;
+
+/**
+ * Chooses how many points are added by each score of a {@link Workload}.
+ * @author Victor Williams Stafusa da Silva
+ */
+@FunctionalInterface
+public interface ScoreDistribution {
+
+    /**
+     * Chooses how many points are added.
+     * @param random The source of randomness.
+     * @return How many points are added, which is never negative.
+     */
+    public long nextPoints(SplittableRandom random);
+
+    /**
+     * Gives a distribution where every score adds the same points.
+     * @param points How many points each score adds.
+     * @return A distribution where every score adds the same points.
+     * @throws IllegalArgumentException If {@code points} is negative.
+     */
+    public static ScoreDistribution constant(long points) {
+        if (points < 0) throw new IllegalArgumentException();
+        return random -> points;
+    }
+
+    /**
+     * Gives a distribution where every number of points in a range is equally likely.
+     * @param min The minimum number of points, inclusive.
+     * @param max The maximum number of points, inclusive.
+     * @return A distribution where every number of points in the range is equally likely.
+     * @throws IllegalArgumentException If {@code min} is negative or larger than {@code max} or if {@code max} is
+     *     {@link Long#MAX_VALUE}.
+     */
+    public static ScoreDistribution uniform(long min, long max) {
+        if (min < 0 || min > max || max == Long.MAX_VALUE) throw new IllegalArgumentException();
+        return random -> random.nextLong(min, max + 1);
+    }
+
+    /**
+     * Gives a distribution where most scores add just a few points and larger scores are exponentially rarer, following a geometric
+     * distribution that starts at 1.
+     * @param mean The mean number of points added by each score.
+     * @return A geometric distribution with the given mean.
+     * @throws IllegalArgumentException If {@code mean} is less than 1.
+     */
+    public static ScoreDistribution geometric(double mean) {
+        if (!(mean >= 1.0)) throw new IllegalArgumentException();
+        if (mean == 1.0) return constant(1);
+        double logFailure = Math.log1p(-1.0 / mean);
+        return random -> 1L + (long) (Math.log(1.0 - random.nextDouble()) / logFailure);
+    }
+}
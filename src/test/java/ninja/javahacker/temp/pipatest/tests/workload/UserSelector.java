@@ -0,0 +1,42 @@
+package ninja.javahacker.temp.pipatest.tests.workload;
+
+import java.util.SplittableRandom;
+
+/**
+ * Chooses which user is the target of each operation of a {@link Workload}. The users have the ids from zero up to the number of
+ * users.
+ * @author Victor Williams Stafusa da Silva
+ */
+@FunctionalInterface
+public interface UserSelector {
+
+    /**
+     * Chooses a user.
+     * @param random The source of randomness.
+     * @return The id of the chosen user.
+     */
+    public long nextUser(SplittableRandom random);
+
+    /**
+     * Gives a selector where every user is equally likely to be chosen.
+     * @param users How many users there are.
+     * @return A selector where every user is equally likely to be chosen.
+     * @throws IllegalArgumentException If {@code users} isn't positive.
+     */
+    public static UserSelector uniform(int users) {
+        if (users <= 0) throw new IllegalArgumentException();
+        return random -> random.nextInt(users);
+    }
+
+    /**
+     * Gives a selector where the users follow a Zipfian distribution, so a few users are very hot and there is a long tail of users
+     * that are rarely chosen. The user with id {@code k} is chosen with a probability proportional to {@code 1 / (k + 1)^exponent}.
+     * @param users How many users there are.
+     * @param exponent The exponent of the distribution. The larger it is, the hotter the first users are.
+     * @return A selector where the users follow a Zipfian distribution.
+     * @throws IllegalArgumentException If {@code users} or {@code exponent} aren't positive.
+     */
+    public static UserSelector zipfian(int users, double exponent) {
+        return new ZipfianSelector(users, exponent);
+    }
+}
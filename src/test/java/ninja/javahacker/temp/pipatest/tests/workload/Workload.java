@@ -0,0 +1,179 @@
+package ninja.javahacker.temp.pipatest.tests.workload;
+
+import java.util.SplittableRandom;
+import ninja.javahacker.temp.pipatest.HighscoresTable;
+import ninja.javahacker.temp.pipatest.data.UserData;
+
+/**
+ * A seeded, reproducible description of the traffic received by a {@link HighscoresTable}: which users are the targets of the
+ * operations, how many points each score adds and how often scores are added, users are looked up and the top of the high scores
+ * list is read. Each operation is chosen at random with a probability proportional to its weight.
+ *
+ * <p>This class is immutable and thread-safe. The operations themselves are produced by the {@link Driver} instances created by the
+ * {@link #newDriver(int)} method, usually one for each thread. Each driver has its own independent sequence of operations, which
+ * depends only on the seed of the workload and on the index of the driver, so runs are reproducible.</p>
+ *
+ * @author Victor Williams Stafusa da Silva
+ */
+public final class Workload {
+
+    /**
+     * The seed of the sequences of operations.
+     */
+    private final long seed;
+
+    /**
+     * Chooses the target of each operation.
+     */
+    private final UserSelector users;
+
+    /**
+     * Chooses the points added by each score.
+     */
+    private final ScoreDistribution scores;
+
+    /**
+     * The weight of adding scores.
+     */
+    private final int addWeight;
+
+    /**
+     * The weight of finding users.
+     */
+    private final int findWeight;
+
+    /**
+     * The weight of listing the top of the high scores list.
+     */
+    private final int topWeight;
+
+    /**
+     * How many users are listed from the top of the high scores list.
+     */
+    private final int topN;
+
+    /**
+     * Creates a workload.
+     * @param seed The seed of the sequences of operations.
+     * @param users Chooses the target of each operation.
+     * @param scores Chooses the points added by each score.
+     * @param addWeight The weight of adding scores.
+     * @param findWeight The weight of finding users.
+     * @param topWeight The weight of listing the top of the high scores list.
+     * @param topN How many users are listed from the top of the high scores list.
+     * @throws IllegalArgumentException If {@code users} or {@code scores} are {@code null}, if any weight or {@code topN} is negative
+     *     or if all the weights are zero.
+     */
+    public Workload(long seed, UserSelector users, ScoreDistribution scores, int addWeight, int findWeight, int topWeight, int topN) {
+        if (users == null || scores == null || addWeight < 0 || findWeight < 0 || topWeight < 0 || topN < 0) {
+            throw new IllegalArgumentException();
+        }
+        if ((long) addWeight + findWeight + topWeight == 0 || (long) addWeight + findWeight + topWeight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        this.seed = seed;
+        this.users = users;
+        this.scores = scores;
+        this.addWeight = addWeight;
+        this.findWeight = findWeight;
+        this.topWeight = topWeight;
+        this.topN = topN;
+    }
+
+    /**
+     * Creates a workload equal to this one, but with another mix of operations. This is useful for simulating the mix changing
+     * during the day.
+     * @param newAddWeight The weight of adding scores.
+     * @param newFindWeight The weight of finding users.
+     * @param newTopWeight The weight of listing the top of the high scores list.
+     * @return A workload equal to this one, but with another mix of operations.
+     * @throws IllegalArgumentException If any weight is negative or if all of them are zero.
+     */
+    public Workload withMix(int newAddWeight, int newFindWeight, int newTopWeight) {
+        return new Workload(seed, users, scores, newAddWeight, newFindWeight, newTopWeight, topN);
+    }
+
+    /**
+     * Creates a driver that produces a sequence of operations of this workload.
+     * @param index The index of the driver. Drivers with the same index produce the same sequence.
+     * @return A driver that produces a sequence of operations of this workload.
+     */
+    public Driver newDriver(int index) {
+        return new Driver(new SplittableRandom(seed ^ (index * 0x9E3779B97F4A7C15L)));
+    }
+
+    /**
+     * Produces a sequence of operations of a {@link Workload}. This class is not thread-safe, so each thread should have its own.
+     */
+    public final class Driver {
+
+        /**
+         * The source of randomness.
+         */
+        private final SplittableRandom random;
+
+        /**
+         * Creates an instance.
+         * @param random The source of randomness.
+         */
+        private Driver(SplittableRandom random) {
+            this.random = random;
+        }
+
+        /**
+         * Chooses the next operation.
+         * @return The next operation.
+         */
+        public Operation nextOperation() {
+            int r = random.nextInt(addWeight + findWeight + topWeight);
+            if (r < addWeight) return Operation.ADD_SCORE;
+            if (r < addWeight + findWeight) return Operation.FIND_USER;
+            return Operation.TOP_N;
+        }
+
+        /**
+         * Chooses the target of an operation.
+         * @return The id of the chosen user.
+         */
+        public long nextUser() {
+            return users.nextUser(random);
+        }
+
+        /**
+         * Chooses a score to be added.
+         * @return The score to be added.
+         */
+        public UserData nextScore() {
+            return new UserData(users.nextUser(random), scores.nextPoints(random));
+        }
+
+        /**
+         * Gives how many users are listed from the top of the high scores list.
+         * @return How many users are listed from the top of the high scores list.
+         */
+        public int getTopN() {
+            return topN;
+        }
+
+        /**
+         * Performs the next operation on the given table.
+         * @param table The table.
+         * @return The performed operation.
+         */
+        public Operation runOn(HighscoresTable table) {
+            Operation op = nextOperation();
+            switch (op) {
+                case ADD_SCORE:
+                    table.addScore(nextScore());
+                    break;
+                case FIND_USER:
+                    table.findUser(nextUser());
+                    break;
+                default:
+                    table.getHighScores(topN);
+                    break;
+            }
+            return op;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ninja.javahacker.temp.pipatest.tests.workload;
+
+import java.util.SplittableRandom;
+
+/**
+ * Chooses users following a Zipfian distribution with the rejection-inversion method by W. Hörmann and G. Derflinger, which takes
+ * constant time and memory regardless of the number of users, instead of keeping a table with the cumulative probability of each
+ * user.
+ * @author Victor Williams Stafusa da Silva
+ */
+final class ZipfianSelector implements UserSelector {
+
+    /**
+     * How many users there are.
+     */
+    private final int users;
+
+    /**
+     * The exponent of the distribution.
+     */
+    private final double exponent;
+
+    /**
+     * The value of {@code hIntegral(1.5) - 1}.
+     */
+    private final double hIntegralX1;
+
+    /**
+     * The value of {@code hIntegral(users + 0.5)}.
+     */
+    private final double hIntegralUsers;
+
+    /**
+     * Samples closer than this to their rank are always accepted.
+     */
+    private final double s;
+
+    /**
+     * Creates an instance.
+     * @param users How many users there are.
+     * @param exponent The exponent of the distribution.
+     * @throws IllegalArgumentException If {@code users} or {@code exponent} aren't positive.
+     */
+    ZipfianSelector(int users, double exponent) {
+        if (users <= 0 || !(exponent > 0)) throw new IllegalArgumentException();
+        this.users = users;
+        this.exponent = exponent;
+        this.hIntegralX1 = hIntegral(1.5) - 1.0;
+        this.hIntegralUsers = hIntegral(users + 0.5);
+        this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param random {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    @Override
+    public long nextUser(SplittableRandom random) {
+        while (true) {
+            double u = hIntegralUsers + random.nextDouble() * (hIntegralX1 - hIntegralUsers);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) k = 1;
+            if (k > users) k = users;
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) return k - 1L;
+        }
+    }
+
+    /**
+     * The function {@code h(x) = 1 / x^exponent}, which is proportional to the probability of the rank {@code x}.
+     * @param x The rank.
+     * @return The value of {@code h(x)}.
+     */
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    /**
+     * An antiderivative of {@link #h(double)}, which is {@code (x^(1 - exponent) - 1) / (1 - exponent)}, or {@code log(x)} if the
+     * exponent is 1.
+     * @param x The argument.
+     * @return The value of the antiderivative.
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return expm1OverX((1.0 - exponent) * logX) * logX;
+    }
+
+    /**
+     * The inverse of {@link #hIntegral(double)}.
+     * @param x The argument.
+     * @return The value of the inverse.
+     */
+    private double hIntegralInverse(double x) {
+        double t = x * (1.0 - exponent);
+        if (t < -1.0) t = -1.0;
+        return Math.exp(log1pOverX(t) * x);
+    }
+
+    /**
+     * Computes {@code (e^x - 1) / x}, which is 1 when {@code x} is 0, without losing precision near 0.
+     * @param x The argument.
+     * @return The value of {@code (e^x - 1) / x}.
+     */
+    private static double expm1OverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1.0 + x * 0.5 * (1.0 + x / 3.0 * (1.0 + x * 0.25));
+    }
+
+    /**
+     * Computes {@code log(1 + x) / x}, which is 1 when {@code x} is 0, without losing precision near 0.
+     * @param x The argument.
+     * @return The value of {@code log(1 + x) / x}.
+     */
+    private static double log1pOverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1.0 - x * (0.5 - x * (1.0 / 3.0 - x * 0.25));
+    }
+}